@@ -4,17 +4,22 @@ import android.Manifest;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.Looper;
 import android.provider.OpenableColumns;
 import android.text.Editable;
+import android.text.InputType;
 import android.text.TextWatcher;
 import androidx.core.content.FileProvider;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import android.view.Gravity;
 import android.view.View;
 import android.widget.*;
 import androidx.activity.result.ActivityResultLauncher;
@@ -24,31 +29,103 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
 import android.util.Log;
+import com.example.eyegod.engine.CsvTokenizer;
+import com.example.eyegod.engine.DbAppender;
+import com.example.eyegod.engine.DbCatalog;
+import com.example.eyegod.engine.DbFiles;
+import com.example.eyegod.engine.Fields;
+import com.example.eyegod.engine.GlobalIndex;
+import com.example.eyegod.engine.HashRegistry;
+import com.example.eyegod.engine.HitFormatter;
+import com.example.eyegod.engine.HitList;
+import com.example.eyegod.engine.ImportHandle;
+import com.example.eyegod.engine.ImportPipeline;
+import com.example.eyegod.engine.ImportProgress;
+import com.example.eyegod.engine.IncrementalSearch;
+import com.example.eyegod.engine.IndexRebuilder;
+import com.example.eyegod.engine.QueryTrace;
+import com.example.eyegod.engine.ResultCache;
+import com.example.eyegod.engine.SearchExecutor;
+import com.example.eyegod.engine.SearchHandle;
+import com.example.eyegod.engine.SearchListener;
+import com.example.eyegod.engine.SearchQuery;
+import com.example.eyegod.engine.StructuredQuery;
+import com.example.eyegod.engine.TraceBuffer;
 
 import java.io.*;
-import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MainActivity extends AppCompatActivity {
     private EditText editTextQuery;
-    private Button buttonSearch, buttonAddFile, buttonShowFiles;
-    private Button buttonNextPage;
+    private Button buttonSearch, buttonBatch, buttonAddFile, buttonShowFiles;
+    private CheckBox checkBoxLive;
     private TextView textViewResults, textViewVersion, textViewSearchType;
+    private RecyclerView recyclerViewResults;
     private ListView listViewFiles;
     private LinearLayout layoutFileActions;
-    private Button buttonDeleteFile, buttonRenameFile, buttonShareFile;
+    private Button buttonDeleteFile, buttonRenameFile, buttonAppendFile, buttonShareFile;
     private static final int REQUEST_CODE_PERMISSION = 100;
     private File csvDir;
     private Handler mainHandler = new Handler(Looper.getMainLooper());
     private Uri lastPickedUri;
     private File selectedFile = null;
+    private HashRegistry hashRegistry;
+    private GlobalIndex globalIndex;
+    private DbCatalog catalog;
+    // Каталог сверен с папкой при запуске — до этого список баз берётся из папки
+    private volatile boolean catalogReady = false;
+    // Перестройка негодных индексов: один поток сборки и не больше 16 МБ/с чтения CSV,
+    // чтобы фоновая сборка не отнимала диск у поиска
+    private final IndexRebuilder rebuilder = new IndexRebuilder();
+    private static final int REBUILD_THREADS = 1;
+    private static final long REBUILD_BYTES_PER_SECOND = 16L << 20;
 
     // Для поиска
-    private Thread searchThread = null;
-    private volatile boolean shouldStopSearch = false;
-    private List<String> allResults = new ArrayList<>();
-    private int currentPage = 0;
-    private static final int RESULTS_PER_PAGE = 50;
+    private final SearchExecutor searchExecutor = new SearchExecutor();
+    private ResultCache resultCache;
+    private SearchHandle searchHandle = null;
+    // Поиск при вводе: своя сессия со словарями баз и свой запрос в работе
+    private IncrementalSearch liveSearch;
+    private SearchHandle liveHandle;
+    private volatile int searchGeneration = 0;
+    // Создаётся в onCreate: сбрасывает лишнее в кэш-каталог приложения
+    private HitList allResults;
+    private HitFormatter hitFormatter = new HitFormatter();
+    // Форматирование строк результатов — чтение CSV, поэтому не в UI-потоке
+    private final ExecutorService pageExecutor = Executors.newSingleThreadExecutor();
+    private ResultsAdapter resultsAdapter;
+    private static final int LOAD_MORE_THRESHOLD = 10;
+    private static final long PROGRESS_INTERVAL_MS = 200;
+    // Пакетный поиск: больше запросов за раз не берём — автомат и подписи строк держатся в памяти
+    private static final int MAX_BATCH_QUERIES = 10000;
+    // Поиск по имени выдаёт столько самых похожих строк
+    private static final int MAX_NAME_RESULTS = 1000;
+    // Сколько памяти занимают ссылки на найденные строки; сверх — во временный файл (~12 байт на строку)
+    private static final long HIT_MEMORY_BUDGET = 8L << 20;
+    // Кэш результатов поиска: в памяти и на диске (каталог кэша приложения)
+    private static final long RESULT_CACHE_MEMORY = 8L << 20;
+    private static final long RESULT_CACHE_DISK = 64L << 20;
+    // Пауза в наборе, после которой запускается поиск при вводе
+    private static final long LIVE_DEBOUNCE_MS = 80;
+    // Сколько последних поисков хранится для экрана диагностики
+    private static final int TRACE_CAPACITY = 64;
+    private final TraceBuffer traces = new TraceBuffer(TRACE_CAPACITY);
+    private boolean allocationCounting = false;
+    private String pendingExport;
+
+    // Для импорта: по одному за раз, ход — в диалоге с кнопкой отмены
+    private final ExecutorService importExecutor = Executors.newSingleThreadExecutor();
+    // Хеши баз, дописанных на месте: считаются в фоне, а не сверкой реестра в следующем импорте
+    private final ExecutorService hashExecutor = Executors.newSingleThreadExecutor();
+    private volatile ImportHandle importHandle = null;
+    private AlertDialog importDialog;
+    private ProgressBar importProgressBar;
+    private TextView importProgressText;
 
     private final ActivityResultLauncher<Intent> filePickerLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -62,11 +139,39 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
     );
-    private static class SearchResult {
-        File csvFile;
-        int lineNumber;
-    }
-    private List<SearchResult> searchResults = new ArrayList<>();
+    // Порция строк для базы appendTarget, выбранной в списке
+    private File appendTarget;
+    private final ActivityResultLauncher<Intent> appendPickerLauncher = registerForActivityResult(
+            new ActivityResultContracts.StartActivityForResult(),
+            result -> {
+                File target = appendTarget;
+                appendTarget = null;
+                if (target != null && result.getResultCode() == RESULT_OK && result.getData() != null) {
+                    Uri uri = result.getData().getData();
+                    if (uri != null) appendToDatabase(target, uri);
+                }
+            }
+    );
+    // Файл для выгрузки трасс поиска выбирает пользователь
+    private final ActivityResultLauncher<Intent> traceExportLauncher = registerForActivityResult(
+            new ActivityResultContracts.StartActivityForResult(),
+            result -> {
+                if (result.getResultCode() == RESULT_OK && result.getData() != null) {
+                    Uri uri = result.getData().getData();
+                    if (uri != null) writeTraceExport(uri);
+                }
+            }
+    );
+    // Список запросов для пакетного поиска из текстового файла, по одному в строке
+    private final ActivityResultLauncher<Intent> queryListPickerLauncher = registerForActivityResult(
+            new ActivityResultContracts.StartActivityForResult(),
+            result -> {
+                if (result.getResultCode() == RESULT_OK && result.getData() != null) {
+                    Uri uri = result.getData().getData();
+                    if (uri != null) loadBatchQueries(uri);
+                }
+            }
+    );
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -75,16 +180,19 @@ public class MainActivity extends AppCompatActivity {
         // Инициализация всех View
         editTextQuery = findViewById(R.id.editTextQuery);
         buttonSearch = findViewById(R.id.buttonSearch);
+        buttonBatch = findViewById(R.id.buttonBatch);
+        checkBoxLive = findViewById(R.id.checkBoxLive);
         buttonAddFile = findViewById(R.id.buttonAddFile);
-        buttonNextPage = findViewById(R.id.buttonNextPage);
         textViewSearchType = findViewById(R.id.textViewSearchType);
         textViewResults = findViewById(R.id.textViewResults);
+        recyclerViewResults = findViewById(R.id.recyclerViewResults);
         textViewVersion = findViewById(R.id.textViewVersion);
         buttonShowFiles = findViewById(R.id.buttonShowFiles);
         listViewFiles = findViewById(R.id.listViewFiles);
         layoutFileActions = findViewById(R.id.layoutFileActions);
         buttonDeleteFile = findViewById(R.id.buttonDeleteFile);
         buttonRenameFile = findViewById(R.id.buttonRenameFile);
+        buttonAppendFile = findViewById(R.id.buttonAppendFile);
         buttonShareFile = findViewById(R.id.buttonShareFile);
 
         // Настройка директории
@@ -102,18 +210,147 @@ public class MainActivity extends AppCompatActivity {
         setVersionName();
         setupSearchTypeDetector();
         setupSearchButton();
-        setupNextPageButton();
+        buttonBatch.setOnClickListener(v -> showBatchDialog());
+        HitList.deleteSpillFiles(getCacheDir());
+        allResults = new HitList(getCacheDir(), HIT_MEMORY_BUDGET);
+        resultCache = new ResultCache(RESULT_CACHE_MEMORY, new File(getCacheDir(), "results"), RESULT_CACHE_DISK);
+        searchExecutor.setResultCache(resultCache);
+        searchExecutor.setTraceBuffer(traces);
+        setupRebuilder();
+        setupCacheStats();
+        setupDiagnostics();
+        setupResultsList();
         setupFileManagementButtons();
         buttonAddFile.setOnClickListener(v -> pickFile());
         copySamplesFromAssets();
+        // Общий индекс: сверка с каталогом читает манифест и может добавить старые базы — не в UI-потоке
+        importExecutor.execute(() -> {
+            try {
+                File[] databases = csvDir.listFiles((dir, name) -> name.endsWith(".csv"));
+                if (databases != null) globalIndex().reconcile(databases);
+            } catch (IOException e) {
+                Log.w("MainActivity", "Общий индекс недоступен: " + e.getMessage());
+            }
+            // Каталог: базы, положенные в папку не через импорт, описываются здесь один раз
+            try {
+                File[] databases = csvDir.listFiles((dir, name) -> name.endsWith(".csv"));
+                if (databases != null) catalog().reconcile(databases);
+                catalogReady = true;
+            } catch (IOException e) {
+                Log.w("MainActivity", "Каталог баз недоступен: " + e.getMessage());
+            }
+            // Индексы без отметки, от другого CSV или недостроенные — в очередь на перестройку
+            File[] databases = databaseFiles();
+            int queued = databases != null ? rebuilder.checkAll(databases) : 0;
+            if (queued > 0) {
+                mainHandler.post(() -> Toast.makeText(this,
+                        "Индексы баз перестраиваются в фоне: " + queued + ". Пока поиск по ним медленнее",
+                        Toast.LENGTH_LONG).show());
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (searchHandle != null) searchHandle.cancel();
+        searchExecutor.shutdown();
+        if (liveSearch != null) liveSearch.close();
+        if (importHandle != null) importHandle.cancel();
+        importExecutor.shutdown();
+        hashExecutor.shutdownNow();
+        rebuilder.shutdown();
+        if (allocationCounting) setAllocationCounting(false);
+        synchronized (this) {
+            if (globalIndex != null) globalIndex.close();
+        }
+        final HitFormatter formatter = hitFormatter;
+        pageExecutor.execute(() -> closeQuietly(formatter));
+        pageExecutor.shutdown();
+        allResults.close();
+        super.onDestroy();
+    }
+
+    // Реестр хешей баз; читается при первом обращении
+    private synchronized HashRegistry hashRegistry() throws IOException {
+        if (hashRegistry == null) hashRegistry = HashRegistry.open(csvDir);
+        return hashRegistry;
+    }
+
+    // Общий индекс всех баз; открывается при первом обращении и сразу подключается к поиску
+    private synchronized GlobalIndex globalIndex() throws IOException {
+        if (globalIndex == null) {
+            globalIndex = GlobalIndex.open(csvDir);
+            globalIndex.setMergeListener(e -> Log.w("Index", "Слияние общего индекса не удалось: " + e.getMessage(), e));
+            searchExecutor.setGlobalIndex(globalIndex);
+        }
+        return globalIndex;
+    }
+
+    // Каталог баз; открывается при первом обращении и сразу подключается к поиску
+    private synchronized DbCatalog catalog() throws IOException {
+        if (catalog == null) {
+            catalog = DbCatalog.open(csvDir);
+            rebuilder.setCatalog(catalog);
+            searchExecutor.setCatalog(catalog);
+        }
+        return catalog;
+    }
+
+    // Базы из каталога, без обхода папки; пока каталог не сверен или недоступен — из папки
+    private File[] databaseFiles() {
+        if (catalogReady) {
+            try {
+                return catalog().files().toArray(new File[0]);
+            } catch (IOException e) {
+                Log.w("MainActivity", "Каталог баз недоступен: " + e.getMessage());
+            }
+        }
+        return csvDir.listFiles((dir, name) -> name.endsWith(".csv"));
+    }
+
+    // Форматирование строк с разделителем и заголовком баз из каталога
+    private HitFormatter newFormatter() {
+        return new HitFormatter(catalogReady ? catalog : null, rebuilder);
+    }
+
+    // Перестроенная база заново входит в общий индекс: старые строки её словаря там уже неверны
+    private void setupRebuilder() {
+        rebuilder.setThrottle(REBUILD_THREADS, REBUILD_BYTES_PER_SECOND);
+        rebuilder.setListener(new IndexRebuilder.Listener() {
+            @Override
+            public void onRebuilt(File csvFile, int rows) {
+                Log.i("Index", "Индекс перестроен: " + csvFile.getName() + ", строк " + rows);
+                try {
+                    globalIndex().add(csvFile);
+                } catch (IOException e) {
+                    Log.w("Index", "Общий индекс не обновлён: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void onFailed(File csvFile, IOException e) {
+                Log.w("Index", "Не удалось перестроить индекс " + csvFile.getName() + ": " + e.getMessage());
+            }
+        });
+        searchExecutor.setRebuilder(rebuilder);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w("MainActivity", "Ошибка при закрытии: " + e.getMessage());
+        }
     }
     private void setVersionName() {
+        textViewVersion.setText("@koldun1986 Версия: v" + appVersion());
+    }
+
+    private String appVersion() {
         try {
-            String versionName = getPackageManager()
-                    .getPackageInfo(getPackageName(), 0).versionName;
-            textViewVersion.setText("@koldun1986 Версия: v" + versionName);
+            return getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
         } catch (Exception e) {
-            textViewVersion.setText("@koldun1986 Версия: v1.0.2");
+            return "1.0.2";
         }
     }
     private void setupSearchTypeDetector() {
@@ -134,6 +371,8 @@ public class MainActivity extends AppCompatActivity {
                 if (searchRunnable[0] != null) {
                     handler.removeCallbacks(searchRunnable[0]);
                 }
+                // Каждое нажатие отменяет поиск по прежнему тексту — его строки уже не нужны
+                if (liveHandle != null) liveHandle.cancel();
 
                 if (query.isEmpty()) {
                     textViewSearchType.setText("Тип запроса не определён");
@@ -142,150 +381,284 @@ public class MainActivity extends AppCompatActivity {
                 }
 
                 searchRunnable[0] = () -> {
-                    String queryType = detectQueryType(query);
+                    // Запрос с полями и операторами ищется только кнопкой: план строится по всем базам
+                    boolean structured = StructuredQuery.isStructured(query);
+                    String queryType = structured ? "query" : detectQueryType(query);
                     String displayText = getDisplayTextForType(queryType);
                     textViewSearchType.setText(displayText);
                     textViewSearchType.setVisibility(View.VISIBLE);
+                    if (checkBoxLive.isChecked() && !structured) startLiveSearch(query);
                 };
 
-                handler.postDelayed(searchRunnable[0], 3000);
+                handler.postDelayed(searchRunnable[0], checkBoxLive.isChecked() ? LIVE_DEBOUNCE_MS : 3000);
+            }
+        });
+    }
+    /**
+     * Поиск при вводе: только запросы к полю и только по словарям — десятки миллисекунд
+     * на нажатие. Базы без словаря и запросы по всем полям ищутся кнопкой.
+     */
+    private void startLiveSearch(String query) {
+        SearchQuery searchQuery = new SearchQuery(detectQueryType(query), query);
+        if (!IncrementalSearch.accepts(searchQuery)) return;
+        File[] files = databaseFiles();
+        if (files == null || files.length == 0) return;
+        // Базы, чей индекс перестраивается или ещё не проверен, ищутся только кнопкой — прямо по CSV.
+        // Отметки здесь не читаются: годность — по уже проверенному
+        List<File> databases = new ArrayList<>();
+        for (File f : files) {
+            if (rebuilder.isKnownUsable(f)) databases.add(f);
+        }
+        if (databases.isEmpty()) return;
+        // Базы добавлены, удалены или переимпортированы — старые словари больше не годятся
+        if (liveSearch == null || !liveSearch.isFor(databases)) {
+            if (liveSearch != null) liveSearch.close();
+            liveSearch = new IncrementalSearch(databases);
+        }
+
+        if (searchHandle != null) searchHandle.cancel();
+        buttonSearch.setText("Поиск");
+        final int generation = newGeneration();
+        final HitFormatter oldFormatter = hitFormatter;
+        hitFormatter = newFormatter();
+        resultsAdapter.reset(hitFormatter);
+        pageExecutor.execute(() -> closeQuietly(oldFormatter));
+
+        final long started = System.nanoTime();
+        final AtomicBoolean tooBroad = new AtomicBoolean();
+        liveHandle = liveSearch.search(searchQuery, new IncrementalSearch.Listener() {
+            @Override
+            public void onHits(File csvFile, int[] rows) {
+                addResults(generation, csvFile, rows, null);
+            }
+
+            @Override
+            public void onTooBroad(File csvFile) {
+                tooBroad.set(true);
+            }
+
+            @Override
+            public void onFileDone(File csvFile, int filesDone, int filesTotal) {}
+
+            @Override
+            public void onError(File csvFile, Exception e) {
+                Log.e("Search", "Ошибка поиска при вводе в файле: " + csvFile.getName(), e);
+            }
+
+            @Override
+            public void onFinished(boolean cancelled) {
+                long ms = (System.nanoTime() - started) / 1_000_000;
+                // Все базы — одной выдачей: список не перерисовывается на каждую
+                runOnUiThread(() -> {
+                    if (cancelled || generation != searchGeneration) return;
+                    resultsAdapter.onHitsAdded();
+                    if (allResults.isEmpty()) {
+                        textViewResults.setText(tooBroad.get()
+                                ? "Слишком общий запрос — уточните или нажмите «Поиск»"
+                                : "Ничего не найдено: " + query);
+                    } else {
+                        textViewResults.setText("Найдено: " + allResults.size() + " за " + ms + " мс"
+                                + (tooBroad.get() ? " (не во всех базах — уточните запрос)" : ""));
+                    }
+                });
             }
         });
     }
+
+    // Новый поиск: прежние строки убираются под той же блокировкой, под которой их добавляют
+    private int newGeneration() {
+        synchronized (allResults) {
+            allResults.clear();
+            return ++searchGeneration;
+        }
+    }
+
+    /**
+     * Строки поиска generation из рабочего потока; false — поиск уже сменился. Проверка и добавление
+     * под одной блокировкой: иначе между ними UI успевает начать новый поиск, и строки прежнего
+     * запроса попадают в его выдачу. tags — номера запросов пакета или null.
+     */
+    private boolean addResults(int generation, File csvFile, int[] rows, int[] tags) {
+        synchronized (allResults) {
+            if (generation != searchGeneration) return false;
+            if (tags == null) {
+                allResults.addAll(csvFile, rows);
+            } else {
+                allResults.addAll(csvFile, rows, tags);
+            }
+            return true;
+        }
+    }
+
     private void setupSearchButton() {
         buttonSearch.setOnClickListener(v -> {
-            if (searchThread == null || !searchThread.isAlive()) {
-                startSearch();
+            if (searchHandle == null || searchHandle.isDone()) {
                 buttonSearch.setText("СТОП");
+                startSearch();
             } else {
-                shouldStopSearch = true;
+                searchHandle.cancel();
                 buttonSearch.setText("Поиск");
                 Toast.makeText(this, "Поиск остановлен", Toast.LENGTH_SHORT).show();
             }
         });
     }
-    private void showCurrentPage() {
-        int fromIndex = currentPage * RESULTS_PER_PAGE;
-        int toIndex = Math.min(fromIndex + RESULTS_PER_PAGE, allResults.size());
+    // Бесконечная прокрутка: следующая порция строк — когда до конца списка остаётся LOAD_MORE_THRESHOLD
+    private void setupResultsList() {
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        resultsAdapter = new ResultsAdapter(allResults, hitFormatter, pageExecutor);
+        recyclerViewResults.setLayoutManager(layoutManager);
+        recyclerViewResults.setAdapter(resultsAdapter);
+        recyclerViewResults.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int lastVisible = layoutManager.findLastVisibleItemPosition();
+                if (resultsAdapter.hasMore() && lastVisible >= resultsAdapter.getItemCount() - LOAD_MORE_THRESHOLD) {
+                    recyclerView.post(resultsAdapter::loadMore);
+                }
+            }
+        });
+    }
 
-        if (fromIndex < 0 || fromIndex >= allResults.size()) {
-            runOnUiThread(() -> {
-                textViewResults.setText("Ошибка: неверная страница.");
-                buttonNextPage.setVisibility(View.GONE);
-            });
-            return;
-        }
+    // Долгое нажатие на строку итогов — попадания кэша результатов, чтобы подобрать его размер
+    private void setupCacheStats() {
+        textViewResults.setOnLongClickListener(v -> {
+            Toast.makeText(this, resultCache.stats().toString(), Toast.LENGTH_LONG).show();
+            return true;
+        });
+    }
 
-        List<String> pageResults = allResults.subList(fromIndex, toIndex);
-        String text = String.join("", pageResults);
+    // Долгое нажатие на строку версии — диагностика: последние поиски по стадиям и выгрузка трасс
+    private void setupDiagnostics() {
+        textViewVersion.setOnLongClickListener(v -> {
+            showDiagnostics();
+            return true;
+        });
+    }
 
-        runOnUiThread(() -> {
-            textViewResults.setText(text);
+    private void showDiagnostics() {
+        final List<QueryTrace> snapshot = traces.snapshot();
+        List<String> items = new ArrayList<>();
+        for (QueryTrace trace : snapshot) items.add(trace.summary());
+        if (items.isEmpty()) items.add("Поисков ещё не было");
+
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        CheckBox allocations = new CheckBox(this);
+        allocations.setText("Считать выделения памяти (замедляет поиск)");
+        allocations.setChecked(allocationCounting);
+        allocations.setOnCheckedChangeListener((button, checked) -> setAllocationCounting(checked));
+        layout.addView(allocations);
+        ListView list = new ListView(this);
+        list.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, items));
+        list.setOnItemClickListener((parent, view, position, id) -> {
+            if (position >= snapshot.size()) return;
+            QueryTrace trace = snapshot.get(position);
+            new AlertDialog.Builder(this)
+                    .setTitle("Поиск #" + trace.id)
+                    .setMessage(trace.describe())
+                    .setPositiveButton("OK", null)
+                    .show();
+        });
+        layout.addView(list);
+
+        new AlertDialog.Builder(this)
+                .setTitle("Диагностика поиска")
+                .setView(layout)
+                .setPositiveButton("JSON", (d, w) -> exportTraces(false))
+                .setNeutralButton("Perfetto", (d, w) -> exportTraces(true))
+                .setNegativeButton("Очистить", (d, w) -> traces.clear())
+                .show();
+    }
 
-            // ✅ Проверяем, есть ли следующая страница
-            if (toIndex < allResults.size()) {
-                // Есть ещё результаты — показываем кнопку
-                buttonNextPage.setText("Следующие 50 результатов");
-                buttonNextPage.setEnabled(true);
-                buttonNextPage.setVisibility(View.VISIBLE);
-            } else {
-                // Больше нет результатов
-                buttonNextPage.setText("Больше нет результатов");
-                buttonNextPage.setEnabled(false);
-                buttonNextPage.setVisibility(View.VISIBLE);
+    // Счётчик выделений ART общий на процесс и сам замедляет выделения — только по запросу
+    @SuppressWarnings("deprecation")
+    private void setAllocationCounting(boolean enabled) {
+        if (enabled) {
+            Debug.startAllocCounting();
+            traces.setAllocationCounter(Debug::getThreadAllocSize);
+        } else {
+            traces.setAllocationCounter(null);
+            Debug.stopAllocCounting();
+        }
+        allocationCounting = enabled;
+    }
+
+    // perfetto — Trace Event Format для ui.perfetto.dev, иначе — свой JSON с итогами по стадиям
+    private void exportTraces(boolean perfetto) {
+        Map<String, String> environment = new LinkedHashMap<>();
+        environment.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        environment.put("sdk", String.valueOf(Build.VERSION.SDK_INT));
+        environment.put("app", appVersion());
+        environment.put("cores", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        environment.put("maxMemoryMb", String.valueOf(Runtime.getRuntime().maxMemory() >> 20));
+        environment.put("allocationCounting", String.valueOf(allocationCounting));
+        pendingExport = perfetto ? traces.toTraceEvents(environment) : traces.toJson(environment);
+
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("application/json");
+        intent.putExtra(Intent.EXTRA_TITLE, (perfetto ? "eyegod-perfetto-" : "eyegod-trace-")
+                + System.currentTimeMillis() + ".json");
+        traceExportLauncher.launch(intent);
+    }
+
+    private void writeTraceExport(Uri uri) {
+        final String text = pendingExport;
+        pendingExport = null;
+        if (text == null) return;
+        pageExecutor.execute(() -> {
+            try (OutputStream out = getContentResolver().openOutputStream(uri)) {
+                if (out == null) throw new IOException("Не удалось открыть файл");
+                out.write(text.getBytes("UTF-8"));
+                mainHandler.post(() -> Toast.makeText(this, "Трассы сохранены", Toast.LENGTH_SHORT).show());
+            } catch (IOException e) {
+                Log.e("Search", "Ошибка выгрузки трасс", e);
+                mainHandler.post(() -> Toast.makeText(this, "Ошибка выгрузки: " + e.getMessage(), Toast.LENGTH_LONG).show());
             }
         });
     }
-    private void setupNextPageButton() {
-        buttonNextPage.setOnClickListener(v -> {
-            currentPage++;
-            showCurrentPage();
-        });
+
+    private void showFoundCount(boolean searching) {
+        textViewResults.setText("Найдено: " + allResults.size() + (searching ? " (поиск продолжается...)" : ""));
     }
 
     private void setupFileManagementButtons() {
         buttonShowFiles.setOnClickListener(v -> showFilesList());
 
         buttonDeleteFile.setOnClickListener(v -> {
-            if (selectedFile == null) return;
+            if (selectedFile == null || refuseBusy(selectedFile)) return;
             new AlertDialog.Builder(this)
                     .setTitle("Удалить файл")
                     .setMessage("Удалить файл:\n" + selectedFile.getName() + "?")
                     .setPositiveButton("Да", (d, w) -> {
-                        // Удаляем основной CSV-файл
-                        boolean csvDeleted = selectedFile.delete();
-
-                        // Формируем путь к файлу индекса и удаляем его
-                        File indexFile = new File(selectedFile.getParent(), selectedFile.getName() + ".idx");
-                        boolean idxDeleted = true;
-                        if (indexFile.exists()) {
-                            idxDeleted = indexFile.delete();
-                        }
-
-                        // Проверяем, успешно ли удалён основной файл
-                        if (csvDeleted) {
-                            Toast.makeText(this, "Файл удалён", Toast.LENGTH_SHORT).show();
-                            selectedFile = null;
-                            layoutFileActions.setVisibility(View.GONE);
-                            showFilesList();
-                        } else {
-                            Toast.makeText(this, "Ошибка при удалении", Toast.LENGTH_SHORT).show();
-                        }
-
-                        // Опционально: можно проигнорировать ошибку удаления .idx или показать предупреждение
-                        // if (!idxDeleted) {
-                            // Log.w("MainActivity", "Не удалось удалить файл индекса: " + indexFile.getName());
-                        // }
+                        if (refuseBusy(selectedFile)) return;
+                        deleteDatabase(selectedFile);
                     })
                     .setNegativeButton("Нет", null)
                     .show();
         });
 
-        buttonRenameFile.setOnClickListener(v -> {
+        buttonAppendFile.setOnClickListener(v -> {
             if (selectedFile == null) return;
+            appendTarget = selectedFile;
+            appendPickerLauncher.launch(csvPickerIntent());
+        });
+
+        buttonRenameFile.setOnClickListener(v -> {
+            if (selectedFile == null || refuseBusy(selectedFile)) return;
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
             builder.setTitle("Переименовать");
             final EditText input = new EditText(this);
             input.setText(selectedFile.getName());
             builder.setView(input);
             builder.setPositiveButton("OK", (d, w) -> {
+                if (refuseBusy(selectedFile)) return;
                 String newName = input.getText().toString().trim();
                 if (newName.isEmpty() || !newName.toLowerCase().endsWith(".csv")) {
                     Toast.makeText(this, "Введите имя с .csv", Toast.LENGTH_SHORT).show();
                     return;
                 }
-                File newFile = new File(csvDir, newName);
-                if (newFile.exists()) {
-                    Toast.makeText(this, "Файл уже существует", Toast.LENGTH_SHORT).show();
-                    return;
-                }
-
-                // Переименовываем основной CSV-файл
-                boolean csvRenamed = selectedFile.renameTo(newFile);
-
-                // Если CSV успешно переименован, переименовываем и .idx файл
-                if (csvRenamed) {
-                    File oldIndexFile = new File(selectedFile.getParent(), selectedFile.getName() + ".idx");
-                    File newIndexFile = new File(csvDir, newName + ".idx");
-
-                    boolean idxRenamed = true;
-                    if (oldIndexFile.exists()) {
-                        idxRenamed = oldIndexFile.renameTo(newIndexFile);
-                    }
-
-                    // Сообщаем о результате
-                    if (idxRenamed) {
-                        Toast.makeText(this, "Переименован", Toast.LENGTH_SHORT).show();
-                    } else {
-                        Toast.makeText(this, "CSV переименован, но не удалось переименовать индекс", Toast.LENGTH_SHORT).show();
-                    }
-
-                    // Обновляем ссылку на выбранный файл
-                    selectedFile = newFile;
-                    showFilesList();
-                } else {
-                    Toast.makeText(this, "Ошибка при переименовании", Toast.LENGTH_SHORT).show();
-                }
+                renameDatabase(selectedFile, new File(csvDir, newName));
             });
             builder.setNegativeButton("Отмена", null);
             builder.show();
@@ -302,23 +675,120 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
-    private String detectQueryType(String query) {
-        query = query.trim();
-        if (query.isEmpty()) return "all";
+    // Файлы и записи о базе убираются в потоке импорта: реестр, общий индекс и каталог пишутся на диск
+    private void deleteDatabase(File csvFile) {
+        importExecutor.execute(() -> {
+            boolean csvDeleted = csvFile.delete();
+            DbFiles.deleteSidecars(csvFile);
+            rebuilder.forget(csvFile);
+            if (csvDeleted) {
+                try {
+                    hashRegistry().remove(csvFile.getName());
+                } catch (IOException e) {
+                    // запись уберёт сверка при следующем импорте
+                    Log.w("MainActivity", "Реестр хешей не обновлён: " + e.getMessage());
+                }
+                try {
+                    globalIndex().remove(csvFile.getName());
+                } catch (IOException e) {
+                    // базу вычеркнет сверка при следующем запуске
+                    Log.w("MainActivity", "Общий индекс не обновлён: " + e.getMessage());
+                }
+                try {
+                    catalog().remove(csvFile.getName());
+                } catch (IOException e) {
+                    Log.w("MainActivity", "Каталог баз не обновлён: " + e.getMessage());
+                }
+            }
+            mainHandler.post(() -> {
+                if (!csvDeleted) {
+                    Toast.makeText(this, "Ошибка при удалении", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Toast.makeText(this, "Файл удалён", Toast.LENGTH_SHORT).show();
+                if (csvFile.equals(selectedFile)) {
+                    selectedFile = null;
+                    layoutFileActions.setVisibility(View.GONE);
+                }
+                showFilesList();
+            });
+        });
+    }
 
-        if (query.matches("\\d+")) {
-            return "tel";
-        }
-        if (query.contains("@")) {
-            return "email";
-        }
-        if (query.startsWith("@") || (query.toLowerCase().startsWith("id") && query.substring(2).matches("\\d+"))) {
-            return "tg_id";
-        }
-        if (query.matches("[a-zA-Zа-яА-ЯёЁ]+")) {
-            return "name";
-        }
-        return "all";
+    // Как удаление — в потоке импорта
+    private void renameDatabase(File oldFile, File newFile) {
+        importExecutor.execute(() -> {
+            if (newFile.exists()) {
+                mainHandler.post(() -> Toast.makeText(this, "Файл уже существует", Toast.LENGTH_SHORT).show());
+                return;
+            }
+            if (!oldFile.renameTo(newFile)) {
+                mainHandler.post(() -> Toast.makeText(this, "Ошибка при переименовании", Toast.LENGTH_SHORT).show());
+                return;
+            }
+            // CSV переименован — переименовываем и файлы индекса
+            boolean idxRenamed = DbFiles.renameSidecars(oldFile, newFile);
+            rebuilder.forget(oldFile);
+            try {
+                hashRegistry().rename(oldFile.getName(), newFile.getName());
+            } catch (IOException e) {
+                Log.w("MainActivity", "Реестр хешей не обновлён: " + e.getMessage());
+            }
+            try {
+                // Словарь не переехал вслед за CSV — база ищется без общего индекса
+                if (idxRenamed) {
+                    globalIndex().rename(oldFile.getName(), newFile.getName());
+                } else {
+                    globalIndex().remove(oldFile.getName());
+                }
+            } catch (IOException e) {
+                Log.w("MainActivity", "Общий индекс не обновлён: " + e.getMessage());
+            }
+            try {
+                // Спутники остались под старым именем — база описывается заново, уже без них
+                if (idxRenamed) {
+                    catalog().rename(oldFile.getName(), newFile.getName());
+                } else {
+                    catalog().remove(oldFile.getName());
+                    catalog().refresh(newFile);
+                }
+            } catch (IOException e) {
+                Log.w("MainActivity", "Каталог баз не обновлён: " + e.getMessage());
+            }
+            // Отметка под новым именем проверяется здесь, а не при вводе запроса
+            rebuilder.isUsable(newFile);
+            mainHandler.post(() -> {
+                if (idxRenamed) {
+                    Toast.makeText(this, "Переименован", Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(this, "CSV переименован, но не удалось переименовать индекс", Toast.LENGTH_SHORT).show();
+                }
+                // Обновляем ссылку на выбранный файл
+                selectedFile = newFile;
+                showFilesList();
+            });
+        });
+    }
+
+    // Импорт или дописывание в эту базу ещё идёт: её файлы меняются, удалять и переименовывать нельзя
+    private boolean isBusy(File csvFile) {
+        return importHandle != null || rebuilder.isAppending(csvFile);
+    }
+
+    private boolean refuseBusy(File csvFile) {
+        if (!isBusy(csvFile)) return false;
+        Toast.makeText(this, "Дождитесь окончания импорта", Toast.LENGTH_SHORT).show();
+        return true;
+    }
+
+    private void updateFileActions() {
+        boolean enabled = selectedFile != null && !isBusy(selectedFile);
+        buttonDeleteFile.setEnabled(enabled);
+        buttonRenameFile.setEnabled(enabled);
+    }
+
+    private String detectQueryType(String query) {
+        return SearchQuery.detectType(query);
     }
 
     private String getDisplayTextForType(String type) {
@@ -327,243 +797,277 @@ public class MainActivity extends AppCompatActivity {
             case "email": return "📧 Поиск по: Email";
             case "tg_id": return "💬 Поиск по: Telegram ID";
             case "name": return "👤 Поиск по: Имя";
+            case "query": return "🧩 Поиск по: выражению с полями";
             case "all": default: return "🔎 Поиск по: всем полям";
         }
     }
 
     private void startSearch() {
         String query = editTextQuery.getText().toString().trim();
-        String queryLower = query.toLowerCase(); // Объявлена вне потока
 
         if (query.isEmpty()) {
-            runOnUiThread(() -> {
-                textViewResults.setText("Введите запрос.");
-                buttonNextPage.setVisibility(View.GONE);
-                buttonSearch.setText("Поиск");
-            });
+            textViewResults.setText("Введите запрос.");
+            buttonSearch.setText("Поиск");
             return;
         }
 
-        // Останавливаем предыдущий поиск, если он был
-        if (searchThread != null && searchThread.isAlive()) {
-            shouldStopSearch = true;
+        // tel:7916* AND name:иванов — разбираем до остановки прежнего поиска: с ошибкой он не нужен
+        StructuredQuery structured = null;
+        if (StructuredQuery.isStructured(query)) {
             try {
-                searchThread.join(100);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                structured = StructuredQuery.parse(query);
+            } catch (IllegalArgumentException e) {
+                textViewResults.setText("Ошибка в запросе: " + e.getMessage());
+                buttonSearch.setText("Поиск");
+                return;
             }
         }
 
+        // Останавливаем предыдущий поиск, если он был
+        if (searchHandle != null) {
+            searchHandle.cancel();
+        }
+        if (liveHandle != null) liveHandle.cancel();
+
         // ✅ ОЧИЩАЕМ allResults ПЕРЕД НОВЫМ ПОИСКОМ
-        allResults.clear(); // ✅ Добавляем эту строку
-        // List<String> tempResults = new ArrayList<>();
-        shouldStopSearch = false;
+        final int generation = newGeneration();
+        final HitFormatter oldFormatter = hitFormatter;
+        hitFormatter = newFormatter();
+        resultsAdapter.reset(hitFormatter);
+        pageExecutor.execute(() -> closeQuietly(oldFormatter));
+
+        final long listStarted = System.nanoTime();
+        File[] files = databaseFiles();
+        final long listEnded = System.nanoTime();
+        if (files == null || files.length == 0) {
+            textViewResults.setText("Нет файлов для поиска.");
+            buttonSearch.setText("Поиск");
+            return;
+        }
 
-        searchThread = new Thread(() -> {
-            String queryType = detectQueryType(query);
+        textViewResults.setText("🔍 Поиск в " + files.length + " файлах...");
+        SearchListener listener = new SearchListener() {
+            private final AtomicLong lastProgress = new AtomicLong();
 
-            File[] files = csvDir.listFiles((dir, name) -> name.endsWith(".csv"));
-            if (files == null || files.length == 0) {
+            @Override
+            public void onHits(File csvFile, int[] rows) {
+                // Результаты отменённого поиска сюда уже не попадают
+                if (!addResults(generation, csvFile, rows, null)) return;
+                // Первая порция строк появляется сразу, остальные — при прокрутке
                 runOnUiThread(() -> {
-                    textViewResults.setText("Нет файлов для поиска.");
-                    buttonSearch.setText("Поиск");
+                    if (generation != searchGeneration) return;
+                    resultsAdapter.onHitsAdded();
+                    showFoundCount(true);
                 });
-                return;
             }
 
-            for (File file : files) {
-                if (shouldStopSearch) break;
-
-                final String fileName = file.getName();
+            @Override
+            public void onFileDone(File csvFile, int filesDone, int filesTotal) {
+                // Не чаще раза в PROGRESS_INTERVAL_MS, а не на каждый файл
+                long now = System.currentTimeMillis();
+                long last = lastProgress.get();
+                if (now - last < PROGRESS_INTERVAL_MS || !lastProgress.compareAndSet(last, now)) return;
                 runOnUiThread(() -> {
-                    textViewResults.setText("🔍 Поиск в файле: " + fileName + "...");
+                    if (generation != searchGeneration || !allResults.isEmpty()) return;
+                    textViewResults.setText("🔍 Поиск: " + filesDone + " из " + filesTotal + " файлов...");
                 });
+            }
 
-                File indexFile = new File(file.getParent(), file.getName() + ".idx");
-                if (!indexFile.exists()) continue;
-
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile)))) {
-                    String line;
-                    int lineNumberInIdx = 0; // Номер строки в .idx файле
-
-                    while (!shouldStopSearch && (line = reader.readLine()) != null) {
-                        lineNumberInIdx++;
-
-                        boolean found = false;
-                        switch (queryType) {
-                            case "tel":
-                            case "email":
-                            case "tg_id":
-                            case "name":
-                            default:
-                                if (line.contains(queryLower)) {
-                                    found = true;
-                                }
-                                break;
-                        }
-
-                        if (found) {
-                            // ✅ В .idx нет заголовка, в CSV — есть
-                            // Поэтому номер строки в CSV = lineNumberInIdx + 1
-                            String originalData = readLineFromCsv(file, lineNumberInIdx);
-                            if (originalData != null) {
-                                allResults.add(originalData);
-                            }
-                        }
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    Log.e("Search", "Ошибка чтения индекса: " + indexFile.getName(), e);
-                }
+            @Override
+            public void onError(File csvFile, Exception e) {
+                Log.e("Search", "Ошибка поиска в файле: " + csvFile.getName(), e);
             }
 
-            // Показываем результаты
-            runOnUiThread(() -> {
-                if (shouldStopSearch) {
-                    Toast.makeText(this, "Поиск остановлен", Toast.LENGTH_SHORT).show();
-                } else {
+            @Override
+            public void onFinished(boolean cancelled) {
+                // Показываем результаты
+                runOnUiThread(() -> {
+                    if (generation != searchGeneration) return;
+                    if (cancelled) {
+                        Toast.makeText(MainActivity.this, "Поиск остановлен", Toast.LENGTH_SHORT).show();
+                    }
                     if (allResults.isEmpty()) {
-                        textViewResults.setText("Ничего не найдено: " + query);
+                        textViewResults.setText(cancelled ? "" : "Ничего не найдено: " + query);
                     } else {
-                        currentPage = 0;
-                        showCurrentPage();
-                        buttonNextPage.setVisibility(allResults.size() > RESULTS_PER_PAGE ? View.VISIBLE : View.GONE);
-                    }
-                }
-                buttonSearch.setText("Поиск");
-            });
-        });
-
-        searchThread.start();
-    }
-    private String readLineFromCsv(File csvFile, int targetLine) {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile)))) {
-            String line;
-            int currentLine = 0;
-            while ((line = reader.readLine()) != null) {
-                if (currentLine == targetLine) {
-                    // Убедитесь, что parts.length соответствует headers.length
-                    String[] parts = line.split("[;|]", -1);
-                    String headerLine = getHeaderLine(csvFile);
-                    if (headerLine == null) return null;
-
-                    String[] headers = headerLine.trim().split("[;|]", -1);
-                    StringBuilder result = new StringBuilder();
-                    result.append("База: ").append(csvFile.getName()).append("\n");
-                    for (int i = 0; i < headers.length; i++) {
-                        String value = i < parts.length ? cleanField(parts[i]) : "";
-                        result.append(headers[i]).append(": ").append(value.isEmpty() ? "отсутствует" : value).append("\n");
+                        showFoundCount(false);
+                        if (searchHandle != null && searchHandle.isFromCache()) textViewResults.append(" · из кэша");
                     }
-                    result.append("\n");
-                    return result.toString();
-                }
-                currentLine++;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.e("Search", "Ошибка чтения CSV: " + csvFile.getName(), e);
-        }
-        return null;
-    }
-    private String getOriginalLineFromFile(File csvFile, int lineNumber) {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile)))) {
-            String line;
-            int currentLine = 0;
-            while ((line = reader.readLine()) != null) {
-                if (currentLine == lineNumber) {
-                    String[] parts = line.split("[;|]", -1);
-                    String headerLine = getHeaderLine(csvFile);
-                    if (headerLine == null) return null;
-
-                    String[] headers = headerLine.trim().split("[;|]", -1);
-                    StringBuilder result = new StringBuilder();
-                    result.append("База: ").append(csvFile.getName()).append("\n");
-                    for (int i = 0; i < headers.length; i++) {
-                        String value = i < parts.length ? cleanField(parts[i]) : "";
-                        result.append(headers[i]).append(": ").append(value.isEmpty() ? "отсутствует" : value).append("\n");
-                    }
-                    result.append("\n");
-                    return result.toString();
-                }
-                currentLine++;
+                    buttonSearch.setText("Поиск");
+                    Log.i("Search", resultCache.stats().toString());
+                });
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return null;
+        };
+        List<File> databases = Arrays.asList(files);
+        searchHandle = structured != null ? searchExecutor.searchStructured(databases, structured, listener)
+                : runSearch(databases, new SearchQuery(detectQueryType(query), query), listener);
+        attachTrace(searchHandle, listStarted, listEnded);
     }
 
-    private String getHeaderLine(File csvFile) {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile)))) {
-            return reader.readLine();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+    // Список баз и чтение строк для показа — в трассу того же поиска
+    private void attachTrace(SearchHandle handle, long listStarted, long listEnded) {
+        QueryTrace trace = handle.trace();
+        if (trace == null) return;
+        trace.record(QueryTrace.LIST, null, listStarted, listEnded);
+        hitFormatter.setTrace(trace);
+    }
+    // Имя ищется с опечатками и транслитерацией — самые похожие строки первыми; остальное — как есть
+    private SearchHandle runSearch(List<File> files, SearchQuery query, SearchListener listener) {
+        if (query.type.equals("name")) {
+            return searchExecutor.searchNames(files, query, MAX_NAME_RESULTS, listener);
         }
+        return searchExecutor.search(files, query, listener);
     }
 
+    // Пакетный поиск: запросы вставляются списком или берутся из текстового файла
+    private void showBatchDialog() {
+        final EditText input = new EditText(this);
+        input.setHint("Запросы, по одному в строке");
+        input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE);
+        input.setMinLines(5);
+        input.setMaxLines(10);
+        input.setGravity(Gravity.TOP);
+        new AlertDialog.Builder(this)
+                .setTitle("Пакетный поиск")
+                .setView(input)
+                .setPositiveButton("Искать", (d, w) ->
+                        startBatchSearch(Arrays.asList(input.getText().toString().split("\n"))))
+                .setNeutralButton("Из файла", (d, w) -> {
+                    Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                    intent.addCategory(Intent.CATEGORY_OPENABLE);
+                    intent.setType("text/*");
+                    queryListPickerLauncher.launch(intent);
+                })
+                .setNegativeButton("Отмена", null)
+                .show();
+    }
 
-    private void pickFile() {
-        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
-        intent.addCategory(Intent.CATEGORY_OPENABLE);
-        intent.setType("text/plain");
-        String[] mimeTypes = {"text/plain", "text/csv", "application/csv", "application/vnd.ms-excel", "*/*"};
-        intent.putExtra(Intent.EXTRA_MIME_TYPES, mimeTypes);
-        filePickerLauncher.launch(intent);
+    private void loadBatchQueries(Uri uri) {
+        pageExecutor.execute(() -> {
+            List<String> lines = new ArrayList<>();
+            try (InputStream in = getContentResolver().openInputStream(uri)) {
+                if (in == null) throw new IOException("Не удалось открыть файл");
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null && lines.size() <= MAX_BATCH_QUERIES) lines.add(line);
+            } catch (IOException e) {
+                Log.e("Search", "Ошибка чтения списка запросов", e);
+                mainHandler.post(() -> Toast.makeText(this, "Ошибка чтения: " + e.getMessage(), Toast.LENGTH_LONG).show());
+                return;
+            }
+            mainHandler.post(() -> startBatchSearch(lines));
+        });
     }
-    private void createSearchIndex(File csvFile, String[] headers) {
-        File indexFile = new File(csvFile.getParent(), csvFile.getName() + ".idx");
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csvFile)));
-             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile)))) {
 
-            String headerLine = reader.readLine(); // skip
-            if (headerLine == null) return;
+    /**
+     * Все запросы списка за один проход по каждой базе. У каждой найденной строки
+     * запоминается номер запроса — в результатах видно, какой запрос нашёл какую строку.
+     */
+    private void startBatchSearch(List<String> lines) {
+        // Одинаковые запросы ищутся один раз, порядок списка сохраняется
+        Set<String> distinct = new LinkedHashSet<>();
+        for (String line : lines) {
+            String query = line.trim();
+            if (!query.isEmpty()) distinct.add(query);
+        }
+        if (distinct.isEmpty()) {
+            textViewResults.setText("Список запросов пуст.");
+            return;
+        }
+        if (distinct.size() > MAX_BATCH_QUERIES) {
+            Toast.makeText(this, "Слишком много запросов, максимум " + MAX_BATCH_QUERIES, Toast.LENGTH_LONG).show();
+            return;
+        }
+        final List<String> labels = new ArrayList<>(distinct);
+        List<SearchQuery> queries = new ArrayList<>(labels.size());
+        for (String query : labels) queries.add(new SearchQuery(detectQueryType(query), query));
+
+        if (searchHandle != null) {
+            searchHandle.cancel();
+        }
+        if (liveHandle != null) liveHandle.cancel();
+        final int generation = newGeneration();
+        final HitFormatter oldFormatter = hitFormatter;
+        hitFormatter = newFormatter();
+        resultsAdapter.reset(hitFormatter, labels);
+        pageExecutor.execute(() -> closeQuietly(oldFormatter));
+
+        final long listStarted = System.nanoTime();
+        File[] files = databaseFiles();
+        final long listEnded = System.nanoTime();
+        if (files == null || files.length == 0) {
+            textViewResults.setText("Нет файлов для поиска.");
+            return;
+        }
 
-            // Определяем индексы нужных полей
-            int telIndex = -1, nameIndex = -1, emailIndex = -1, tgIdIndex = -1;
-            for (int i = 0; i < headers.length; i++) {
-                String h = headers[i].toLowerCase();
-                if (h.contains("tel") || h.contains("phone")) telIndex = i;
-                else if (h.contains("name") || h.contains("фио")) nameIndex = i;
-                else if (h.contains("mail") || h.contains("email")) emailIndex = i;
-                else if (h.contains("tg") || h.contains("telegram")) tgIdIndex = i;
+        buttonSearch.setText("СТОП");
+        textViewResults.setText("🔍 Пакет из " + labels.size() + " запросов, поиск в " + files.length + " файлах...");
+        // Какие запросы что-то нашли — для итоговой сводки
+        final boolean[] matched = new boolean[labels.size()];
+        searchHandle = searchExecutor.searchBatch(Arrays.asList(files), queries, new SearchListener() {
+            @Override
+            public void onHits(File csvFile, int[] rows) {
+                // в пакетном поиске результаты приходят в onMatches
             }
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                // ❌ Убираем: if (line.isEmpty()) continue;
+            @Override
+            public void onMatches(File csvFile, int[] queryIndexes, int[] rows) {
+                if (!addResults(generation, csvFile, rows, queryIndexes)) return;
+                synchronized (matched) {
+                    for (int q : queryIndexes) matched[q] = true;
+                }
+                runOnUiThread(() -> {
+                    if (generation != searchGeneration) return;
+                    resultsAdapter.onHitsAdded();
+                    showFoundCount(true);
+                });
+            }
 
-                String[] parts = line.split("[;|]", -1);
-                if (parts.length < headers.length) continue;
+            @Override
+            public void onFileDone(File csvFile, int filesDone, int filesTotal) {
+            }
 
-                StringBuilder searchableLine = new StringBuilder();
+            @Override
+            public void onError(File csvFile, Exception e) {
+                Log.e("Search", "Ошибка пакетного поиска в файле: " + csvFile.getName(), e);
+            }
 
-                if (telIndex != -1 && telIndex < parts.length) {
-                    searchableLine.append(cleanField(parts[telIndex]).toLowerCase()).append(" ");
-                }
-                if (nameIndex != -1 && nameIndex < parts.length) {
-                    searchableLine.append(cleanField(parts[nameIndex]).toLowerCase()).append(" ");
-                }
-                if (emailIndex != -1 && emailIndex < parts.length) {
-                    searchableLine.append(cleanField(parts[emailIndex]).toLowerCase()).append(" ");
-                }
-                if (tgIdIndex != -1 && tgIdIndex < parts.length) {
-                    searchableLine.append(cleanField(parts[tgIdIndex]).toLowerCase()).append(" ");
+            @Override
+            public void onFinished(boolean cancelled) {
+                int found = 0;
+                synchronized (matched) {
+                    for (boolean m : matched) if (m) found++;
                 }
-
-                String indexLine = searchableLine.toString().trim();
-                // Пишем строку в .idx, даже если она пустая
-                writer.write(indexLine.isEmpty() ? "" : indexLine);
-                writer.newLine();
+                final int matchedQueries = found;
+                runOnUiThread(() -> {
+                    if (generation != searchGeneration) return;
+                    if (cancelled) {
+                        Toast.makeText(MainActivity.this, "Поиск остановлен", Toast.LENGTH_SHORT).show();
+                    }
+                    textViewResults.setText("Найдено: " + allResults.size() + " строк по " + matchedQueries
+                            + " из " + labels.size() + " запросов");
+                    buttonSearch.setText("Поиск");
+                });
             }
+        });
+        attachTrace(searchHandle, listStarted, listEnded);
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private void pickFile() {
+        filePickerLauncher.launch(csvPickerIntent());
+    }
+
+    private static Intent csvPickerIntent() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("text/plain");
+        String[] mimeTypes = {"text/plain", "text/csv", "application/csv", "application/vnd.ms-excel", "*/*"};
+        intent.putExtra(Intent.EXTRA_MIME_TYPES, mimeTypes);
+        return intent;
     }
     private void importAndNormalizeCSV(Uri uri) {
-        new Thread(() -> {
+        importExecutor.execute(() -> {
+            File partFile = null;
+            ImportHandle handle = new ImportHandle();
             try {
                 InputStream inputStream = getContentResolver().openInputStream(uri);
                 if (inputStream == null) {
@@ -573,61 +1077,313 @@ public class MainActivity extends AppCompatActivity {
                     return;
                 }
 
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                String headerLine = reader.readLine();
-                if (headerLine == null) {
-                    mainHandler.post(() ->
-                            Toast.makeText(this, "Файл пустой", Toast.LENGTH_LONG).show()
-                    );
-                    return;
-                }
+                // Источник читается один раз: заголовок — через mark/reset, остальное — в ImportPipeline
+                try (BufferedInputStream in = new BufferedInputStream(inputStream, 64 * 1024)) {
+                    String headerLine = ImportPipeline.peekHeaderLine(in);
+                    if (headerLine == null) {
+                        mainHandler.post(() ->
+                                Toast.makeText(this, "Файл пустой", Toast.LENGTH_LONG).show()
+                        );
+                        return;
+                    }
 
-                String delimiter = headerLine.contains(";") ? ";" : "\\|";
-                String[] headers = headerLine.trim().split(delimiter, -1);
+                    // Разделитель — по образцу начала файла, так же его определит и IndexBuilder
+                    byte delimiter = CsvTokenizer.detect(in);
+                    String[] headers = new CsvTokenizer(delimiter).split(headerLine);
 
-                inputStream.close();
-                inputStream = getContentResolver().openInputStream(uri);
-                reader = new BufferedReader(new InputStreamReader(inputStream));
-                reader.readLine(); // skip header
+                    Map<String, Integer> fieldMapping = showMappingDialog(headers);
+                    if (fieldMapping == null) return;
 
-                Map<String, Integer> fieldMapping = showMappingDialog(headers);
-                if (fieldMapping == null) return;
+                    String fileName = getFileName(uri);
+                    if (fileName == null || fileName.isEmpty()) {
+                        fileName = "imported_" + System.currentTimeMillis() + ".csv";
+                    }
+
+                    importHandle = handle;
+                    long totalBytes = getFileSize(uri);
+                    final String title = fileName;
+                    mainHandler.post(() -> showImportProgress(title, handle));
+                    ImportProgress.Listener listener = progress -> mainHandler.post(() -> updateImportProgress(progress));
+
+                    // Копия, хеш и индекс — за один проход; имя выбираем, когда хеш уже известен
+                    partFile = new File(csvDir, "import_" + System.currentTimeMillis() + ".part");
+                    ImportPipeline.Result imported = ImportPipeline.run(in, partFile, headers, fieldMapping,
+                            totalBytes, handle, listener);
+
+                    long registerStarted = System.currentTimeMillis();
+                    listener.onProgress(new ImportProgress(ImportProgress.Stage.REGISTER, imported.bytes, totalBytes,
+                            imported.rows, imported.copyMs + imported.indexMs));
+
+                    // Дубликат под любым именем — по размеру и хешу из реестра, без перечитывания баз
+                    HashRegistry registry = hashRegistry();
+                    File[] databases = databaseFiles();
+                    if (databases != null) registry.reconcile(databases);
+                    HashRegistry.Entry existing = registry.find(imported.bytes, imported.hash);
+                    if (existing != null) {
+                        mainHandler.post(() ->
+                                Toast.makeText(this, "Файл уже добавлен: " + existing.name, Toast.LENGTH_SHORT).show()
+                        );
+                        return;
+                    }
+
+                    // После переноса под итоговым именем отменять уже нечего
+                    handle.throwIfCancelled();
+                    File outputFile = getUniqueFileForSave(fileName);
+                    if (partFile.renameTo(outputFile) && DbFiles.renameSidecars(partFile, outputFile)) {
+                        partFile = null;
+                        registry.put(outputFile, imported.hash);
+                        try {
+                            globalIndex().add(outputFile);
+                        } catch (IOException e) {
+                            // база ищется по своему словарю, в общий индекс её добавит сверка
+                            Log.w("Import", "Общий индекс не обновлён: " + e.getMessage());
+                        }
+                        try {
+                            catalog().put(outputFile, delimiter, headers, fieldMapping, imported.rows);
+                        } catch (IOException e) {
+                            // базу опишет сверка при следующем запуске
+                            Log.w("Import", "Каталог баз не обновлён: " + e.getMessage());
+                        }
+                        // Отметка новой базы проверяется здесь, чтобы поиск при вводе сразу её видел
+                        rebuilder.isUsable(outputFile);
+                        logImportMetrics(outputFile.getName(), imported, System.currentTimeMillis() - registerStarted);
+                        mainHandler.post(() -> {
+                            Toast.makeText(this, "Файл добавлен: " + outputFile.getName(), Toast.LENGTH_LONG).show();
+                            showFilesList();
+                        });
+                    } else {
+                        outputFile.delete();
+                        DbFiles.deleteSidecars(outputFile);
+                        mainHandler.post(() ->
+                                Toast.makeText(this, "Ошибка при сохранении", Toast.LENGTH_SHORT).show()
+                        );
+                    }
+                }
 
-                String fileName = getFileName(uri);
-                if (fileName == null || fileName.isEmpty()) {
-                    fileName = "imported_" + System.currentTimeMillis() + ".csv";
+            } catch (CancellationException e) {
+                Log.i("Import", "Импорт отменён");
+                mainHandler.post(() ->
+                        Toast.makeText(this, "Импорт отменён", Toast.LENGTH_SHORT).show()
+                );
+            } catch (Exception e) {
+                Log.e("Import", "Импорт не удался", e);
+                String reason = e.getMessage() != null ? e.getMessage() : e.toString();
+                mainHandler.post(() ->
+                        Toast.makeText(this, "Импорт не удался: " + reason, Toast.LENGTH_LONG).show()
+                );
+            } finally {
+                // Недоимпортированная копия, отмена или дубликат — убираем вместе с индексом
+                if (partFile != null) {
+                    partFile.delete();
+                    DbFiles.deleteSidecars(partFile);
                 }
+                if (importHandle == handle) importHandle = null;
+                mainHandler.post(this::hideImportProgress);
+            }
+        });
+    }
 
-                File outputFile = getUniqueFileForSaveByHash(uri, fileName);
-                if (outputFile == null) {
-                    final String finalFileName = fileName;
+    // Строки файла дописываются в базу target: индекс строится только по ним, словарь сливается в фоне
+    private void appendToDatabase(File target, Uri uri) {
+        importExecutor.execute(() -> {
+            ImportHandle handle = new ImportHandle();
+            boolean appending = false;
+            try (InputStream inputStream = getContentResolver().openInputStream(uri)) {
+                if (inputStream == null) {
                     mainHandler.post(() ->
-                            Toast.makeText(this, "Файл уже добавлен: " + finalFileName, Toast.LENGTH_SHORT).show()
+                            Toast.makeText(this, "Не удалось открыть файл", Toast.LENGTH_LONG).show()
                     );
                     return;
                 }
-
-                boolean success = saveFileFromUri(uri, outputFile);
-                if (success) {
-                    createSearchIndex(outputFile, headers);
-                    saveSearchTemplate(outputFile.getName(), headers);
-                    mainHandler.post(() -> {
-                        Toast.makeText(this, "Файл добавлен: " + outputFile.getName(), Toast.LENGTH_LONG).show();
-                        showFilesList();
-                    });
-                } else {
-                    mainHandler.post(() ->
-                            Toast.makeText(this, "Ошибка при сохранении", Toast.LENGTH_SHORT).show()
-                    );
+                // Базы нет в каталоге — описываем заново: без записи не узнать её полей-ключей
+                DbCatalog.Entry entry = catalog().get(target);
+                if (entry == null) {
+                    catalog().refresh(target);
+                    entry = catalog().get(target);
                 }
-
+                if (entry == null) throw new IOException("Не удалось прочитать заголовок базы");
+                List<String> keys = DbAppender.keyFields(entry);
+                if (keys.isEmpty()) {
+                    mainHandler.post(() -> Toast.makeText(this,
+                            "В базе нет полей tel, email, tg_id — повторы не проверяются", Toast.LENGTH_LONG).show());
+                }
+                String dedupField = showDedupDialog(keys);
+                if (dedupField == null) return;
+
+                rebuilder.beginAppend(target);
+                appending = true;
+                importHandle = handle;
+                long totalBytes = getFileSize(uri);
+                mainHandler.post(() -> showImportProgress(target.getName(), handle));
+                ImportProgress.Listener listener = progress -> mainHandler.post(() -> updateImportProgress(progress));
+                DbAppender.Result result = DbAppender.append(inputStream, target, entry,
+                        dedupField.isEmpty() ? null : dedupField, totalBytes, handle, listener);
+
+                try {
+                    catalog().put(target, entry.delimiter, entry.headers, entry.mapping, result.totalRows);
+                } catch (IOException e) {
+                    Log.w("Import", "Каталог баз не обновлён: " + e.getMessage());
+                }
+                Log.i("Import", String.format(Locale.US, "%s: дописано %d строк (повторов %d) за %d мс, %d байт",
+                        target.getName(), result.rows, result.duplicates, result.elapsedMs, result.bytes));
+                String message = result.duplicates > 0
+                        ? "Дописано строк: " + result.rows + ", повторов пропущено: " + result.duplicates
+                        : "Дописано строк: " + result.rows;
+                mainHandler.post(() -> {
+                    Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+                    showFilesList();
+                });
+            } catch (CancellationException e) {
+                mainHandler.post(() ->
+                        Toast.makeText(this, "Дописывание отменено", Toast.LENGTH_SHORT).show()
+                );
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.e("Import", "Дописывание не удалось", e);
+                String reason = e.getMessage() != null ? e.getMessage() : e.toString();
                 mainHandler.post(() ->
-                        Toast.makeText(this, "Ошибка: " + e.getMessage(), Toast.LENGTH_LONG).show()
+                        Toast.makeText(this, "Дописывание не удалось: " + reason, Toast.LENGTH_LONG).show()
                 );
+            } finally {
+                // Словари дописанных строк встают в очередь на слияние
+                if (appending) {
+                    rebuilder.endAppend(target);
+                    rehashInBackground(target);
+                }
+                if (importHandle == handle) importHandle = null;
+                mainHandler.post(this::hideImportProgress);
+            }
+        });
+    }
+
+    /**
+     * Прежний хеш базы больше не описывает её содержимое: запись убирается сразу, чтобы импорт
+     * не принял за дубликат файл со старым содержимым, а новый хеш считается в фоне.
+     */
+    private void rehashInBackground(File csvFile) {
+        try {
+            hashRegistry().remove(csvFile.getName());
+        } catch (IOException e) {
+            Log.w("Import", "Реестр хешей не обновлён: " + e.getMessage());
+        }
+        hashExecutor.execute(() -> {
+            try {
+                hashRegistry().rehash(csvFile);
+            } catch (IOException e) {
+                // базу перехеширует сверка при следующем импорте
+                Log.w("Import", "Реестр хешей не обновлён: " + e.getMessage());
+            }
+        });
+    }
+
+    // Поле-ключ из keys, по которому пропускаются уже известные строки: "" — без проверки, null — отмена
+    private String showDedupDialog(List<String> keys) {
+        if (keys.isEmpty()) return "";
+        String[] items = new String[keys.size() + 1];
+        items[0] = "Без проверки";
+        for (int i = 0; i < keys.size(); i++) items[i + 1] = "Пропускать повторы: " + keys.get(i);
+
+        String[] choice = {null};
+        boolean[] finished = {false};
+        mainHandler.post(() -> {
+            AlertDialog dialog = new AlertDialog.Builder(this)
+                    .setTitle("Повторяющиеся строки")
+                    .setItems(items, (d, which) -> {
+                        choice[0] = which == 0 ? "" : keys.get(which - 1);
+                        finished[0] = true;
+                    })
+                    .setNegativeButton("Отмена", (d, w) -> finished[0] = true)
+                    .create();
+            dialog.setCancelable(false);
+            dialog.show();
+        });
+
+        while (!finished[0]) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                return null;
             }
-        }).start();
+        }
+        return choice[0];
+    }
+
+    private void showImportProgress(String fileName, ImportHandle handle) {
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.setPadding(32, 16, 32, 16);
+
+        importProgressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+        importProgressBar.setMax(100);
+        importProgressBar.setIndeterminate(true);
+        layout.addView(importProgressBar);
+
+        importProgressText = new TextView(this);
+        importProgressText.setText("Подготовка...");
+        layout.addView(importProgressText);
+
+        importDialog = new AlertDialog.Builder(this)
+                .setTitle("Импорт: " + fileName)
+                .setView(layout)
+                .setNegativeButton("Отмена", (d, w) -> handle.cancel())
+                .create();
+        importDialog.setCancelable(false);
+        importDialog.show();
+        updateFileActions();
+    }
+
+    private void updateImportProgress(ImportProgress progress) {
+        if (importDialog == null) return;
+        int percent = progress.percent();
+        importProgressBar.setIndeterminate(percent < 0 || progress.stage != ImportProgress.Stage.COPY);
+        if (percent >= 0) importProgressBar.setProgress(percent);
+
+        StringBuilder text = new StringBuilder();
+        switch (progress.stage) {
+            case COPY:
+                text.append("Копирование: ").append(formatMegabytes(progress.bytes));
+                if (progress.totalBytes >= 0) text.append(" из ").append(formatMegabytes(progress.totalBytes));
+                break;
+            case INDEX:
+                text.append("Построение индекса");
+                break;
+            case REGISTER:
+                text.append("Сохранение");
+                break;
+        }
+        text.append("\nСтрок: ").append(progress.rows)
+                .append(String.format(Locale.US, " (%.0f строк/с, %.1f МБ/с)",
+                        progress.rowsPerSecond(), progress.bytesPerSecond() / (1 << 20)));
+        long eta = progress.etaMs();
+        if (eta >= 0) text.append("\nОсталось: ~").append(formatDuration(eta));
+        importProgressText.setText(text);
+    }
+
+    private void hideImportProgress() {
+        if (importDialog != null) importDialog.dismiss();
+        importDialog = null;
+        importProgressBar = null;
+        importProgressText = null;
+        updateFileActions();
+    }
+
+    private static String formatMegabytes(long bytes) {
+        return String.format(Locale.US, "%.1f МБ", bytes / (double) (1 << 20));
+    }
+
+    private static String formatDuration(long ms) {
+        long seconds = (ms + 999) / 1000;
+        return seconds < 60 ? seconds + " с" : seconds / 60 + " мин " + seconds % 60 + " с";
+    }
+
+    // Одна строка на импорт под тегом Import — чтобы сравнивать скорость на разных устройствах
+    private void logImportMetrics(String fileName, ImportPipeline.Result imported, long registerMs) {
+        long totalMs = imported.copyMs + imported.indexMs + registerMs;
+        double seconds = Math.max(totalMs, 1) / 1000.0;
+        Log.i("Import", String.format(Locale.US,
+                "%s: %d байт, %d строк за %d мс (копирование %d, индекс %d, реестр %d); %.1f МБ/с, %.0f строк/с; %s %s, API %d",
+                fileName, imported.bytes, imported.rows, totalMs, imported.copyMs, imported.indexMs, registerMs,
+                imported.bytes / seconds / (1 << 20), imported.rows / seconds,
+                Build.MANUFACTURER, Build.MODEL, Build.VERSION.SDK_INT));
     }
 
     private Map<String, Integer> showMappingDialog(String[] headers) {
@@ -650,7 +1406,7 @@ public class MainActivity extends AppCompatActivity {
 
                 EditText et = new EditText(this);
                 et.setHint("Ключ (tel, email, name, tg_id или новый)");
-                et.setText(inferKey(header));
+                et.setText(Fields.inferKey(header));
                 layout.addView(et);
                 editTexts.add(et);
             }
@@ -689,22 +1445,19 @@ public class MainActivity extends AppCompatActivity {
         return mapping.isEmpty() ? null : mapping;
     }
 
-    private String inferKey(String header) {
-        header = header.toLowerCase();
-        if (header.contains("tel") || header.contains("phone")) return "tel";
-        if (header.contains("mail") || header.contains("email")) return "email";
-        if (header.contains("name") || header.contains("fio") || header.contains("фио")) return "name";
-        if (header.contains("tg") || header.contains("telegram")) return "tg_id";
-        return header;
-    }
-
-    private void saveSearchTemplate(String fileName, String[] headers) {
-        SharedPreferences prefs = getSharedPreferences("templates", MODE_PRIVATE);
-        StringBuilder sb = new StringBuilder();
-        for (String header : headers) {
-            sb.append("$").append(header.trim().toLowerCase()).append(" ");
+    // Размер источника из провайдера; -1, если провайдер его не сообщает
+    private long getFileSize(Uri uri) {
+        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (sizeIndex != -1 && !cursor.isNull(sizeIndex)) {
+                    return cursor.getLong(sizeIndex);
+                }
+            }
+        } catch (Exception e) {
+            Log.w("MainActivity", "Размер файла не получен: " + e.getMessage());
         }
-        prefs.edit().putString(fileName, sb.toString().trim()).apply();
+        return -1;
     }
 
     private String getFileName(Uri uri) {
@@ -717,7 +1470,7 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.w("MainActivity", "Имя файла не получено: " + e.getMessage());
         }
         if (result == null) {
             result = new File(uri.getPath()).getName();
@@ -725,7 +1478,7 @@ public class MainActivity extends AppCompatActivity {
         return result;
     }
 
-    private File getUniqueFileForSaveByHash(Uri uri, String originalFileName) throws IOException {
+    private File getUniqueFileForSave(String originalFileName) {
         if (!originalFileName.toLowerCase().endsWith(".csv")) {
             originalFileName += ".csv";
         }
@@ -734,14 +1487,7 @@ public class MainActivity extends AppCompatActivity {
         String baseName = originalFileName.substring(0, originalFileName.length() - 4);
         int counter = 1;
 
-        String newFileHash = calculateFileHash(uri);
-        if (newFileHash == null) return targetFile;
-
         while (targetFile.exists()) {
-            String existingHash = calculateFileHashForFile(targetFile);
-            if (newFileHash.equals(existingHash)) {
-                return null;
-            }
             targetFile = new File(csvDir, baseName + "_" + counter + ".csv");
             counter++;
         }
@@ -749,67 +1495,8 @@ public class MainActivity extends AppCompatActivity {
         return targetFile;
     }
 
-    private String calculateFileHash(Uri uri) {
-        try (InputStream is = getContentResolver().openInputStream(uri)) {
-            if (is == null) return null;
-            return calculateMD5(is);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    private String calculateFileHashForFile(File file) {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            return calculateMD5(fis);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    private String calculateMD5(InputStream is) throws IOException {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = is.read(buffer)) != -1) {
-                md.update(buffer, 0, read);
-            }
-            byte[] digest = md.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    private boolean saveFileFromUri(Uri uri, File outputFile) {
-        try (InputStream is = getContentResolver().openInputStream(uri);
-             OutputStream os = new FileOutputStream(outputFile)) {
-            if (is == null) return false;
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = is.read(buffer)) != -1) {
-                os.write(buffer, 0, read);
-            }
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
-        }
-    }
-
-    private String cleanField(String s) {
-        return s == null ? "" : s.trim().replaceAll("^\"|\"$", "");
-    }
-
     private void showFilesList() {
-        File[] files = csvDir.listFiles((dir, name) -> name.endsWith(".csv"));
+        File[] files = databaseFiles();
         if (files == null || files.length == 0) {
             Toast.makeText(this, "Нет файлов", Toast.LENGTH_SHORT).show();
             listViewFiles.setAdapter(null);
@@ -820,7 +1507,7 @@ public class MainActivity extends AppCompatActivity {
         }
 
         List<String> fileNames = new ArrayList<>();
-        for (File f : files) fileNames.add(f.getName());
+        for (File f : files) fileNames.add(describeDatabase(f));
 
         ArrayAdapter<String> adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, fileNames);
         listViewFiles.setAdapter(adapter);
@@ -832,9 +1519,22 @@ public class MainActivity extends AppCompatActivity {
         listViewFiles.setOnItemClickListener((parent, view, position, id) -> {
             selectedFile = files[position];
             layoutFileActions.setVisibility(View.VISIBLE);
+            updateFileActions();
         });
     }
 
+    // Имя, строки и размер — из каталога, без чтения базы
+    private String describeDatabase(File csvFile) {
+        String rebuilding = rebuilder.isRebuilding(csvFile) ? " · индекс перестраивается" : "";
+        DbCatalog.Entry entry = catalogReady ? catalog.get(csvFile) : null;
+        if (rebuilding.isEmpty() && entry != null && entry.has(DbFiles.SEGMENTS)) {
+            rebuilding = " · дописанные строки сливаются в индекс";
+        }
+        if (entry == null) return csvFile.getName() + rebuilding;
+        String rows = entry.rows >= 0 ? entry.rows + " строк · " : "";
+        return csvFile.getName() + "\n" + rows + formatMegabytes(entry.size) + rebuilding;
+    }
+
     private void copySamplesFromAssets() {
         // Опционально
     }
@@ -0,0 +1,152 @@
+package com.example.eyegod;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import androidx.recyclerview.widget.RecyclerView;
+import com.example.eyegod.engine.HitFormatter;
+import com.example.eyegod.engine.HitList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Список результатов поиска. В HitList лежат только ссылки (база, строка);
+ * текст строки читается из CSV в фоне, когда строка попадает на экран,
+ * и кладётся в небольшой LRU-кэш. Показывается не больше shownCount строк —
+ * при прокрутке к концу подгружается следующая порция.
+ * В пакетном поиске перед строкой выводится запрос, который её нашёл.
+ */
+class ResultsAdapter extends RecyclerView.Adapter<ResultsAdapter.Holder> {
+    static final int PAGE_SIZE = 50;
+    private static final int CACHE_SIZE = 200;
+
+    private final HitList hits;
+    private final Executor formatExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LruCache<Integer, String> cache = new LruCache<>(CACHE_SIZE);
+    private final Set<Integer> pending = new HashSet<>();
+    private HitFormatter formatter;
+    private List<String> queryLabels = Collections.emptyList();
+    private int generation = 0;
+    private int shownCount = 0;
+
+    ResultsAdapter(HitList hits, HitFormatter formatter, Executor formatExecutor) {
+        this.hits = hits;
+        this.formatter = formatter;
+        this.formatExecutor = formatExecutor;
+    }
+
+    // Новый поиск: старые строки и кэш больше не нужны
+    void reset(HitFormatter formatter) {
+        reset(formatter, Collections.emptyList());
+    }
+
+    // Пакетный поиск: queryLabels[метка строки] — текст запроса
+    void reset(HitFormatter formatter, List<String> queryLabels) {
+        this.formatter = formatter;
+        this.queryLabels = queryLabels;
+        generation++;
+        cache.evictAll();
+        pending.clear();
+        shownCount = 0;
+        notifyDataSetChanged();
+    }
+
+    // Пришли новые результаты: первая порция показывается сразу, не дожидаясь конца поиска
+    void onHitsAdded() {
+        if (shownCount < PAGE_SIZE) showUpTo(PAGE_SIZE);
+    }
+
+    // Прокрутка дошла до конца списка — подгружаем следующую порцию
+    void loadMore() {
+        showUpTo(shownCount + PAGE_SIZE);
+    }
+
+    boolean hasMore() {
+        return shownCount < hits.size();
+    }
+
+    private void showUpTo(int limit) {
+        int target = Math.min(limit, hits.size());
+        if (target <= shownCount) return;
+        int from = shownCount;
+        shownCount = target;
+        notifyItemRangeInserted(from, target - from);
+    }
+
+    @Override
+    public int getItemCount() {
+        return shownCount;
+    }
+
+    @Override
+    public Holder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_result, parent, false);
+        return new Holder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(Holder holder, int position) {
+        String text = cache.get(position);
+        if (text != null) {
+            holder.text.setText(text);
+            return;
+        }
+        holder.text.setText("Загрузка...");
+        requestFormat(position);
+    }
+
+    private void requestFormat(int position) {
+        if (!pending.add(position)) return;
+        final int requestGeneration = generation;
+        final HitFormatter requestFormatter = formatter;
+        final List<String> labels = queryLabels;
+        // Ссылка тоже читается в фоне: сброшенные на диск ссылки HitList читает из файла
+        formatExecutor.execute(() -> {
+            String result;
+            try {
+                HitList.Hit hit = hits.get(position);
+                if (hit == null) return; // список уже очищен новым поиском
+                String label = hit.tag >= 0 && hit.tag < labels.size() ? "Запрос: " + labels.get(hit.tag) + "\n" : "";
+                String text;
+                try {
+                    text = requestFormatter.format(hit.file, hit.row);
+                } catch (IOException e) {
+                    Log.e("Search", "Ошибка чтения CSV: " + hit.file.getName(), e);
+                    text = null;
+                }
+                result = label + (text != null ? text : "База: " + hit.file.getName() + "\nстрока недоступна\n");
+            } catch (IOException e) {
+                Log.e("Search", "Ошибка чтения результатов", e);
+                result = "Результат недоступен: " + e.getMessage() + "\n";
+            }
+            final String shown = result;
+            mainHandler.post(() -> {
+                if (requestGeneration != generation) return;
+                pending.remove(position);
+                cache.put(position, shown);
+                if (position < shownCount) notifyItemChanged(position);
+            });
+        });
+    }
+
+    static class Holder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        Holder(View itemView) {
+            super(itemView);
+            text = itemView.findViewById(R.id.textViewResultRow);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.eyegod.benchmark;
+
+import com.example.eyegod.engine.DbFiles;
+import com.example.eyegod.engine.ImportPipeline;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Импорт синтетической базы целиком: копия, хеш и все индексы за один проход.
+ * Кроме времени импорта JMH печатает строки и байты источника в секунду и размер спутников.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class ImportBenchmark {
+    @Param("200000")
+    public int rows;
+
+    @Param("5000")
+    public int cardinality;
+
+    @Param({"semicolon", "comma", "tab"})
+    public String delimiter;
+
+    private File dir;
+    private File source;
+    private File target;
+
+    /** Скорость импорта: JMH делит счётчики на время итерации. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public long rows;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rows = 0;
+            bytes = 0;
+        }
+    }
+
+    /** Размер индекса после последнего импорта итерации — абсолютный и в процентах от CSV. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class IndexSize {
+        public long indexBytes;
+        public long indexPercent;
+    }
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        dir = SyntheticCsv.tempDir("eyegod-import");
+        source = new File(dir, "source.csv");
+        target = new File(dir, "db.csv");
+        SyntheticCsv.write(source, rows, cardinality, SyntheticCsv.delimiter(delimiter), 42);
+    }
+
+    // Каждый импорт — в пустое место, как новая база в приложении
+    @TearDown(Level.Invocation)
+    public void clean() {
+        DbFiles.deleteSidecars(target);
+        target.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() {
+        SyntheticCsv.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long importCsv(Throughput throughput, IndexSize size) throws IOException {
+        ImportPipeline.Result result = SyntheticCsv.importInto(source, target);
+        throughput.rows += result.rows;
+        throughput.bytes += result.bytes;
+        size.indexBytes = DbFiles.sidecarBytes(target);
+        size.indexPercent = size.indexBytes * 100 / Math.max(1, result.bytes);
+        return result.hash;
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.eyegod.benchmark;
+
+import com.example.eyegod.engine.DbFiles;
+import com.example.eyegod.engine.Fields;
+import com.example.eyegod.engine.SearchExecutor;
+import com.example.eyegod.engine.SearchListener;
+import com.example.eyegod.engine.SearchQuery;
+import com.example.eyegod.engine.StructuredQuery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Задержка одного запроса от вызова до onFinished по типам запросов. Режим SampleTime:
+ * JMH печатает распределение, в том числе p0.50 и p0.99. Базы импортируются один раз на параметры,
+ * запросы идут по кругу из образцов базы, кэш результатов выключен.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class SearchBenchmark {
+    // Как в MainActivity: выдача поиска по имени ограничена
+    private static final int MAX_NAME_RESULTS = 1000;
+
+    @Param("200000")
+    public int rows;
+
+    @Param("5000")
+    public int cardinality;
+
+    @Param("semicolon")
+    public String delimiter;
+
+    @Param({"tel", "tel_prefix", "email", "tg_id", "name", "name_typo", "all", "structured"})
+    public String queryType;
+
+    private File dir;
+    private List<File> databases;
+    private SearchExecutor executor;
+    private List<String> queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        dir = SyntheticCsv.tempDir("eyegod-search");
+        File source = new File(dir, "source.csv");
+        File db = new File(dir, "db.csv");
+        SyntheticCsv.Samples samples = SyntheticCsv.write(source, rows, cardinality,
+                SyntheticCsv.delimiter(delimiter), 42);
+        SyntheticCsv.importInto(source, db);
+        source.delete();
+        System.out.printf("%nБаза: %d строк, CSV %d КБ, спутники %d КБ%n",
+                rows, db.length() >> 10, DbFiles.sidecarBytes(db) >> 10);
+
+        databases = Collections.singletonList(db);
+        executor = new SearchExecutor();
+        queries = queries(samples);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() {
+        executor.shutdown();
+        SyntheticCsv.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public int search() throws Exception {
+        String text = queries.get(next++ % queries.size());
+        Collector collector = new Collector();
+        start(text, collector);
+        collector.done.await();
+        if (collector.error != null) throw collector.error;
+        return collector.hits.get();
+    }
+
+    // Тот же выбор пути, что у MainActivity.startSearch
+    private void start(String text, SearchListener listener) {
+        if (StructuredQuery.isStructured(text)) {
+            executor.searchStructured(databases, StructuredQuery.parse(text), listener);
+            return;
+        }
+        SearchQuery query = new SearchQuery(SearchQuery.detectType(text), text);
+        if (query.type.equals(Fields.NAME)) {
+            executor.searchNames(databases, query, MAX_NAME_RESULTS, listener);
+        } else {
+            executor.search(databases, query, listener);
+        }
+    }
+
+    private List<String> queries(SyntheticCsv.Samples samples) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < samples.phones.size(); i++) {
+            String phone = samples.phones.get(i);
+            String surname = samples.surnames.get(i);
+            String email = samples.emails.get(i);
+            switch (queryType) {
+                case "tel": result.add(phone); break;
+                case "tel_prefix": result.add(phone.substring(0, 6)); break;
+                case "email": result.add(email); break;
+                case "tg_id": result.add(samples.telegrams.get(i)); break;
+                case "name": result.add(surname); break;
+                case "name_typo": result.add(typo(surname, i)); break;
+                // Имя ящика с цифрами detectType относит к поиску по всем полям
+                case "all": result.add(email.substring(0, email.indexOf('@'))); break;
+                case "structured":
+                    result.add("name:" + surname.toLowerCase() + " AND tel:" + phone.substring(0, 4) + "*");
+                    break;
+                default: throw new IllegalArgumentException("Неизвестный тип запроса: " + queryType);
+            }
+        }
+        return result;
+    }
+
+    // Одна переставленная пара соседних букв — типичная опечатка при наборе
+    private static String typo(String word, int seed) {
+        int at = 1 + seed % (word.length() - 2);
+        char[] chars = word.toCharArray();
+        char c = chars[at];
+        chars[at] = chars[at + 1];
+        chars[at + 1] = c;
+        return new String(chars);
+    }
+
+    private static final class Collector implements SearchListener {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger hits = new AtomicInteger();
+        volatile Exception error;
+
+        @Override
+        public void onHits(File csvFile, int[] rows) {
+            hits.addAndGet(rows.length);
+        }
+
+        @Override
+        public void onFileDone(File csvFile, int filesDone, int filesTotal) {}
+
+        @Override
+        public void onError(File csvFile, Exception e) {
+            error = e;
+        }
+
+        @Override
+        public void onFinished(boolean cancelled) {
+            done.countDown();
+        }
+    }
+}
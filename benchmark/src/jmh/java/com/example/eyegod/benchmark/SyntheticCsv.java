@@ -0,0 +1,155 @@
+package com.example.eyegod.benchmark;
+
+import com.example.eyegod.engine.CsvTokenizer;
+import com.example.eyegod.engine.Fields;
+import com.example.eyegod.engine.ImportHandle;
+import com.example.eyegod.engine.ImportPipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Синтетическая база вида phone;full_name;email;telegram;city. Содержимое зависит только от параметров:
+ * rows — число строк, cardinality — число разных фамилий (от него зависят длина списков строк
+ * в словаре термов и размер словаря), delimiter — semicolon, comma, tab или pipe.
+ */
+final class SyntheticCsv {
+    static final String[] HEADERS = {"phone", "full_name", "email", "telegram", "city"};
+
+    // Сколько строк базы запоминается как образцы для запросов
+    private static final int SAMPLES = 256;
+
+    // Слоги фамилий: кириллица и латиница параллельно, чтобы email и транслит искались по тем же словам
+    private static final String[] SYLLABLES_RU = {
+            "ка", "ле", "ми", "но", "ро", "са", "те", "ву", "го", "да", "же", "зи",
+            "ла", "мо", "пе", "ри", "су", "ты", "фе", "ха", "че", "ша", "бо", "ва"};
+    private static final String[] SYLLABLES_EN = {
+            "ka", "le", "mi", "no", "ro", "sa", "te", "vu", "go", "da", "zhe", "zi",
+            "la", "mo", "pe", "ri", "su", "ty", "fe", "kha", "che", "sha", "bo", "va"};
+    private static final String[] FIRST_NAMES = {
+            "Александр", "Алексей", "Андрей", "Дмитрий", "Иван", "Максим", "Михаил", "Сергей",
+            "Анна", "Елена", "Мария", "Наталья", "Ольга", "Татьяна", "Юлия", "Ксения"};
+    private static final String[] CITIES = {
+            "Москва", "Санкт-Петербург", "Новосибирск", "Екатеринбург", "Казань", "Нижний Новгород",
+            "Челябинск", "Самара", "Омск", "Ростов-на-Дону", "Уфа", "Красноярск", "Воронеж", "Пермь"};
+    private static final String[] DOMAINS = {"mail.ru", "yandex.ru", "gmail.com", "bk.ru", "inbox.ru"};
+
+    /** Значения нескольких строк базы, равномерно по файлу: из них собираются запросы. */
+    static final class Samples {
+        final List<String> phones = new ArrayList<>();
+        final List<String> surnames = new ArrayList<>();
+        final List<String> emails = new ArrayList<>();
+        final List<String> telegrams = new ArrayList<>();
+    }
+
+    private SyntheticCsv() {}
+
+    static char delimiter(String name) {
+        switch (name) {
+            case "semicolon": return ';';
+            case "comma": return ',';
+            case "tab": return '\t';
+            case "pipe": return '|';
+            default: throw new IllegalArgumentException("Неизвестный разделитель: " + name);
+        }
+    }
+
+    static Samples write(File target, int rows, int cardinality, char delimiter, long seed) throws IOException {
+        Random random = new Random(seed);
+        Samples samples = new Samples();
+        int sampleStep = Math.max(1, rows / SAMPLES);
+        String d = String.valueOf(delimiter);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(target), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write(String.join(d, HEADERS));
+            out.write('\n');
+            StringBuilder line = new StringBuilder(128);
+            for (int row = 0; row < rows; row++) {
+                int family = random.nextInt(cardinality);
+                boolean female = random.nextBoolean();
+                String surname = surname(family, SYLLABLES_RU) + (female ? "ова" : "ов");
+                String latin = surname(family, SYLLABLES_EN) + (female ? "ova" : "ov");
+                String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length / 2) + (female ? FIRST_NAMES.length / 2 : 0)];
+                String phone = "79" + String.format("%09d", random.nextInt(1_000_000_000));
+                String email = latin + row + "@" + DOMAINS[random.nextInt(DOMAINS.length)];
+                String telegram = "@" + latin + "_" + Integer.toString(row, 36);
+
+                line.setLength(0);
+                line.append(phone).append(delimiter)
+                        .append(surname).append(' ').append(first).append(delimiter)
+                        .append(email).append(delimiter)
+                        .append(telegram).append(delimiter)
+                        .append(CITIES[random.nextInt(CITIES.length)]).append('\n');
+                out.append(line);
+
+                if (row % sampleStep == 0) {
+                    samples.phones.add(phone);
+                    samples.surnames.add(surname);
+                    samples.emails.add(email);
+                    samples.telegrams.add(telegram);
+                }
+            }
+        }
+        return samples;
+    }
+
+    // Импорт тем же путём, что и в приложении: заголовок, разделитель, сопоставление полей, один проход
+    static ImportPipeline.Result importInto(File source, File target) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source), 64 * 1024)) {
+            String headerLine = ImportPipeline.peekHeaderLine(in);
+            String[] headers = new CsvTokenizer(CsvTokenizer.detect(in)).split(headerLine);
+            return ImportPipeline.run(in, target, headers, mapping(), source.length(),
+                    new ImportHandle(), progress -> {});
+        }
+    }
+
+    static Map<String, Integer> mapping() {
+        Map<String, Integer> mapping = new HashMap<>();
+        mapping.put(Fields.TEL, 0);
+        mapping.put(Fields.NAME, 1);
+        mapping.put(Fields.EMAIL, 2);
+        mapping.put(Fields.TG_ID, 3);
+        return mapping;
+    }
+
+    static File tempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) throw new IOException("Не удалось создать " + dir);
+        return dir;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    // Номер семьи — в системе счисления по числу слогов, младшим слогом вперёд; старший слог не нулевой,
+    // поэтому дописанный нулевой слог у коротких фамилий не совпадает ни с одной другой
+    private static String surname(int family, String[] syllables) {
+        StringBuilder sb = new StringBuilder();
+        int n = family;
+        do {
+            sb.append(syllables[n % syllables.length]);
+            n /= syllables.length;
+        } while (n > 0);
+        if (sb.length() < 4) sb.append(syllables[0]);
+        String s = sb.toString();
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.eyegod.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Автомат Ахо — Корасик над байтами UTF-8: все образцы ищутся за один проход по тексту.
+ * Переходы посчитаны заранее (полный автомат), поэтому на байт — одно чтение таблицы.
+ * Байты, которых нет ни в одном образце, сведены в один класс: таблица — состояния × классы.
+ */
+public final class AhoCorasick {
+    private final int[] byteClass = new int[256];
+    private final int classes;
+    private final int[] delta;     // [состояние * classes + класс] → состояние
+    private final int[] output;    // образец, кончающийся в состоянии, или -1
+    private final int[] dictLink;  // ближайшее состояние по суффиксным ссылкам, где кончается образец, или -1
+    private final int[] samePattern; // следующий образец с тем же текстом или -1
+    private final int patternCount;
+
+    // Пустые образцы не ищутся
+    public AhoCorasick(List<String> patterns) {
+        patternCount = patterns.size();
+        byte[][] bytes = new byte[patternCount][];
+        for (int i = 0; i < patternCount; i++) bytes[i] = patterns.get(i).getBytes(StandardCharsets.UTF_8);
+
+        // Классы байтов: 0 — «любой другой»
+        int classCount = 1;
+        Arrays.fill(byteClass, -1);
+        for (byte[] p : bytes) {
+            for (byte b : p) {
+                if (byteClass[b & 0xFF] < 0) byteClass[b & 0xFF] = classCount++;
+            }
+        }
+        for (int i = 0; i < 256; i++) {
+            if (byteClass[i] < 0) byteClass[i] = 0;
+        }
+        classes = classCount;
+
+        // Бор
+        IntList trie = new IntList(classes * 16); // -1 — перехода нет
+        IntList out = new IntList(16);
+        samePattern = new int[patternCount];
+        Arrays.fill(samePattern, -1);
+        addState(trie, out);
+        for (int id = 0; id < patternCount; id++) {
+            byte[] p = bytes[id];
+            if (p.length == 0) continue;
+            int state = 0;
+            for (byte b : p) {
+                int cell = state * classes + byteClass[b & 0xFF];
+                int next = trie.get(cell);
+                if (next < 0) {
+                    next = addState(trie, out);
+                    trie.set(cell, next);
+                }
+                state = next;
+            }
+            samePattern[id] = out.get(state);
+            out.set(state, id);
+        }
+
+        // Суффиксные ссылки обходом в ширину; недостающие переходы берутся у суффикса
+        int states = out.size();
+        delta = trie.toArray();
+        output = out.toArray();
+        dictLink = new int[states];
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0, tail = 0;
+        dictLink[0] = -1;
+        for (int c = 0; c < classes; c++) {
+            int next = delta[c];
+            if (next < 0) {
+                delta[c] = 0;
+            } else {
+                fail[next] = 0;
+                dictLink[next] = -1;
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int c = 0; c < classes; c++) {
+                int cell = state * classes + c;
+                int next = delta[cell];
+                int viaFail = delta[fail[state] * classes + c];
+                if (next < 0) {
+                    delta[cell] = viaFail;
+                } else {
+                    fail[next] = viaFail;
+                    dictLink[next] = output[viaFail] >= 0 ? viaFail : dictLink[viaFail];
+                    queue[tail++] = next;
+                }
+            }
+        }
+    }
+
+    public int patternCount() {
+        return patternCount;
+    }
+
+    public int next(int state, byte b) {
+        return delta[state * classes + byteClass[b & 0xFF]];
+    }
+
+    // Первое состояние с совпадением для state (само state или по словарной ссылке), иначе -1
+    public int matchState(int state) {
+        return output[state] >= 0 ? state : dictLink[state];
+    }
+
+    // Следующее состояние с совпадением после matchState
+    public int nextMatchState(int matchState) {
+        return dictLink[matchState];
+    }
+
+    // Образцы, кончающиеся в состоянии: первый, затем по samePattern
+    public int pattern(int matchState) {
+        return output[matchState];
+    }
+
+    public int samePattern(int pattern) {
+        return samePattern[pattern];
+    }
+
+    private int addState(IntList trie, IntList out) {
+        for (int c = 0; c < classes; c++) trie.add(-1);
+        out.add(-1);
+        return out.size() - 1;
+    }
+}
@@ -0,0 +1,394 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Фильтры Блума по полям-ключам базы (.blm): один на всю базу и по одному на каждые
+ * BLOCK_ROWS строк. Точный запрос сначала проверяется фильтром базы — одно чтение 64 байт,
+ * и база, где значения точно нет, пропускается без словаря и .idx. Фильтры блоков
+ * отсекают куски .idx, если базу всё же приходится просматривать подряд.
+ *
+ * Фильтры блочные: все биты ключа лежат в одной 64-байтной строке фильтра.
+ * Хеш ключа — xxHash64 терма (см. {@link Fields#term}).
+ *
+ * Формат файла:
+ *   [magic, version]
+ *   [фильтры блоков строк]
+ *   [фильтр базы]
+ *   [оглавление: для каждого блока начало его первой строки в .idx, смещение и число строк фильтра]
+ *   [blockRows, blockCount, rowCount, globalOffset, globalLines, directoryOffset, magic]
+ *
+ * Дописанные строки ({@link #append}) добавляют свои блоки и свой фильтр базы после прежних
+ * в новой копии файла — версия APPENDED: первая строка блока записана в оглавлении, фильтров базы несколько:
+ *   [magic, version]
+ *   [фильтры блоков и фильтр базы каждой порции строк, порция за порцией]
+ *   [оглавление: для каждого блока первая строка, начало в .idx, смещение и число строк фильтра;
+ *    для каждого фильтра базы смещение и число строк]
+ *   [blockCount, rowCount, globalCount, directoryOffset, magic]
+ */
+public final class BloomIndex implements Closeable {
+    public static final int BLOCK_ROWS = 1 << 16;
+    static final int MAGIC = 0x4547424C; // "EGBL"
+    static final int VERSION = 1;
+    static final int APPENDED = 2;
+    private static final int LINE_BYTES = 64;
+    private static final int LINE_LONGS = LINE_BYTES / 8;
+    private static final int BITS_PER_KEY = 10; // ~1% ложных срабатываний
+    private static final int HASHES = 7;
+    private static final int FOOTER_SIZE = 4 + 4 + 4 + 8 + 4 + 8 + 4;
+    private static final int DIRECTORY_ENTRY = 8 + 8 + 4;
+    private static final int APPENDED_FOOTER_SIZE = 4 + 4 + 4 + 8 + 4;
+    private static final int APPENDED_DIRECTORY_ENTRY = 4 + 8 + 8 + 4;
+    private static final int GLOBAL_ENTRY = 8 + 4;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int rowCount;
+    private final long directoryOffset;
+    private final long[] globalOffset;
+    private final int[] globalLines;
+    private final int[] firstRow;
+    private final long[] idxStart;
+    private final long[] filterOffset;
+    private final int[] filterLines;
+
+    private BloomIndex(RandomAccessFile file) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        long size = channel.size();
+        if (size < 8 + APPENDED_FOOTER_SIZE) throw new IOException("Повреждённый фильтр Блума");
+
+        ByteBuffer header = read(0, 8);
+        int version = header.getInt() == MAGIC ? header.getInt() : -1;
+        if (version != VERSION && version != APPENDED) throw new IOException("Неизвестный формат фильтра Блума");
+        boolean appended = version == APPENDED;
+        int footerSize = appended ? APPENDED_FOOTER_SIZE : FOOTER_SIZE;
+        if (size < 8 + footerSize) throw new IOException("Повреждённый фильтр Блума");
+        ByteBuffer footer = read(size - footerSize, footerSize);
+        int blockRows = appended ? 0 : footer.getInt();
+        int blockCount = footer.getInt();
+        rowCount = footer.getInt();
+        int globalCount = appended ? footer.getInt() : 1;
+        long singleOffset = appended ? 0 : footer.getLong();
+        int singleLines = appended ? 0 : footer.getInt();
+        directoryOffset = footer.getLong();
+        long directorySize = (long) blockCount * (appended ? APPENDED_DIRECTORY_ENTRY : DIRECTORY_ENTRY)
+                + (appended ? (long) globalCount * GLOBAL_ENTRY : 0);
+        if (footer.getInt() != MAGIC || (!appended && blockRows <= 0) || blockCount < 0 || globalCount < 0
+                || directoryOffset + directorySize != size - footerSize) {
+            throw new IOException("Повреждённый фильтр Блума");
+        }
+
+        ByteBuffer directory = read(directoryOffset, (int) directorySize);
+        firstRow = new int[blockCount];
+        idxStart = new long[blockCount];
+        filterOffset = new long[blockCount];
+        filterLines = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            firstRow[i] = appended ? directory.getInt() : i * blockRows;
+            idxStart[i] = directory.getLong();
+            filterOffset[i] = directory.getLong();
+            filterLines[i] = directory.getInt();
+        }
+        globalOffset = new long[globalCount];
+        globalLines = new int[globalCount];
+        if (appended) {
+            for (int i = 0; i < globalCount; i++) {
+                globalOffset[i] = directory.getLong();
+                globalLines[i] = directory.getInt();
+            }
+        } else {
+            globalOffset[0] = singleOffset;
+            globalLines[0] = singleLines;
+        }
+    }
+
+    // null, если фильтра нет (база импортирована старой версией)
+    public static BloomIndex open(File blmFile) throws IOException {
+        if (!blmFile.exists()) return null;
+        RandomAccessFile file = new RandomAccessFile(blmFile, "r");
+        try {
+            return new BloomIndex(file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public static long hash(String term) {
+        byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        return XxHash64.hash(bytes, 0, bytes.length);
+    }
+
+    // false — ключа в базе точно нет; true — возможно есть
+    public boolean mightContain(long hash) throws IOException {
+        for (int i = 0; i < globalOffset.length; i++) {
+            if (probe(globalOffset[i], globalLines[i], hash)) return true;
+        }
+        return false;
+    }
+
+    public int blockCount() {
+        return idxStart.length;
+    }
+
+    public boolean blockMightContain(int block, long hash) throws IOException {
+        return probe(filterOffset[block], filterLines[block], hash);
+    }
+
+    public int firstRow(int block) {
+        return firstRow[block];
+    }
+
+    // Смещение первой строки блока в .idx
+    public long idxStart(int block) {
+        return idxStart[block];
+    }
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+    private boolean probe(long offset, int lines, long hash) throws IOException {
+        if (lines == 0) return false;
+        ByteBuffer line = read(offset + (long) lineOf(hash, lines) * LINE_BYTES, LINE_BYTES);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = bit(hash, i);
+            if ((line.getLong((bit >>> 6) * 8) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    // Позиционное чтение: безопасно вызывать из нескольких потоков
+    private ByteBuffer read(long pos, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0) throw new EOFException();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Дописывает к фильтрам базы фильтры порции строк, собранные отдельно (delta — .blm порции):
+     * новый файл — прежние фильтры, за ними фильтры порции и новое оглавление — собирается рядом
+     * и заменяет старый переименованием. Открытый фильтр дочитывает старый файл, а сбой посреди
+     * записи оставляет прежний .blm целым. firstRow и idxStart — где порция начинается в базе:
+     * номер первой строки и смещение в .idx.
+     */
+    static void append(File blmFile, File delta, int firstRow, long idxStart) throws IOException {
+        File tmp = new File(blmFile.getParentFile(), blmFile.getName() + ".tmp");
+        try (BloomIndex base = open(blmFile);
+             BloomIndex part = open(delta);
+             RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            if (base == null || part == null) throw new IOException("Нет фильтра Блума");
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(APPENDED);
+            // Фильтры не двигаются внутри файла: у прежних те же смещения, у порции — сдвиг на прежние
+            transfer(base.channel, 8, base.directoryOffset - 8, out);
+            long filtersLength = part.directoryOffset - 8;
+            long shift = base.directoryOffset - 8;
+            transfer(part.channel, 8, filtersLength, out);
+            long directoryOffset = base.directoryOffset + filtersLength;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream directory = new DataOutputStream(bytes);
+            for (int i = 0; i < base.blockCount(); i++) {
+                directory.writeInt(base.firstRow[i]);
+                directory.writeLong(base.idxStart[i]);
+                directory.writeLong(base.filterOffset[i]);
+                directory.writeInt(base.filterLines[i]);
+            }
+            for (int i = 0; i < part.blockCount(); i++) {
+                directory.writeInt(firstRow + part.firstRow[i]);
+                directory.writeLong(idxStart + part.idxStart[i]);
+                directory.writeLong(shift + part.filterOffset[i]);
+                directory.writeInt(part.filterLines[i]);
+            }
+            for (int i = 0; i < base.globalOffset.length; i++) {
+                directory.writeLong(base.globalOffset[i]);
+                directory.writeInt(base.globalLines[i]);
+            }
+            for (int i = 0; i < part.globalOffset.length; i++) {
+                directory.writeLong(shift + part.globalOffset[i]);
+                directory.writeInt(part.globalLines[i]);
+            }
+            directory.writeInt(base.blockCount() + part.blockCount());
+            directory.writeInt(firstRow + part.rowCount);
+            directory.writeInt(base.globalOffset.length + part.globalOffset.length);
+            directory.writeLong(directoryOffset);
+            directory.writeInt(MAGIC);
+            out.seek(directoryOffset);
+            out.write(bytes.toByteArray());
+            out.setLength(out.getFilePointer());
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(blmFile)) {
+            tmp.delete();
+            throw new IOException("Не удалось сохранить " + blmFile.getName());
+        }
+    }
+
+    // length байт from с позиции position — в конец out
+    private static void transfer(FileChannel from, long position, long length, RandomAccessFile out) throws IOException {
+        FileChannel to = out.getChannel();
+        to.position(out.length());
+        for (long done = 0; done < length; ) {
+            done += from.transferTo(position + done, length - done, to);
+        }
+    }
+
+    private static int lineOf(long hash, int lines) {
+        return (int) (((hash >>> 32) * lines) >>> 32);
+    }
+
+    private static int linesFor(long keys) {
+        return (int) Math.min(Integer.MAX_VALUE / LINE_BYTES, (keys * BITS_PER_KEY + LINE_BYTES * 8 - 1) / (LINE_BYTES * 8));
+    }
+
+    // i-й бит ключа внутри строки фильтра (0..511): по 9 бит перемешанного хеша
+    private static int bit(long hash, int i) {
+        return (int) ((hash * 0x9E3779B97F4A7C15L) >>> (9 * i)) & (LINE_BYTES * 8 - 1);
+    }
+
+    /**
+     * Запись .blm при импорте. Строки подаются по порядку: startRow, затем ключи строки.
+     * Фильтр блока пишется, как только блок заполнен; размер фильтра базы известен только
+     * в конце, поэтому хеши всех ключей копятся во временном файле и раскладываются в finish().
+     */
+    public static final class Writer implements Closeable {
+        private final File target;
+        private final File hashesFile;
+        private final RandomAccessFile out;
+        private final DataOutputStream hashes;
+        private final ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+        private final DataOutputStream directory = new DataOutputStream(directoryBytes);
+        private long[] blockHashes = new long[1024];
+        private int blockKeys;
+        private long blockIdxStart;
+        private int rows;
+        private int blocks;
+        private long totalKeys;
+        private boolean finished;
+
+        public Writer(File target) throws IOException {
+            this.target = target;
+            this.hashesFile = new File(target.getParentFile(), target.getName() + ".tmp");
+            this.out = new RandomAccessFile(target, "rw");
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            this.hashes = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(hashesFile), 64 * 1024));
+        }
+
+        // Следующая строка; idxOffset — где она начинается в .idx
+        public void startRow(long idxOffset) throws IOException {
+            if (rows % BLOCK_ROWS == 0) {
+                if (rows > 0) flushBlock();
+                blockIdxStart = idxOffset;
+            }
+            rows++;
+        }
+
+        public void add(long hash) throws IOException {
+            if (blockKeys == blockHashes.length) blockHashes = Arrays.copyOf(blockHashes, blockKeys * 2);
+            blockHashes[blockKeys++] = hash;
+            hashes.writeLong(hash);
+            totalKeys++;
+        }
+
+        public void finish() throws IOException {
+            if (rows > 0) flushBlock();
+            hashes.close();
+
+            long globalOffset = out.getFilePointer();
+            int globalLines = linesFor(totalKeys);
+            long globalSize = (long) globalLines * LINE_BYTES;
+            // Фильтр базы строится прямо в файле: в памяти его можно и не уместить
+            MappedByteBuffer global = out.getChannel().map(FileChannel.MapMode.READ_WRITE, globalOffset, globalSize);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hashesFile), 64 * 1024))) {
+                for (long i = 0; i < totalKeys; i++) {
+                    long hash = in.readLong();
+                    int base = lineOf(hash, globalLines) * LINE_BYTES;
+                    for (int b = 0; b < HASHES; b++) {
+                        int bit = bit(hash, b);
+                        int pos = base + (bit >>> 6) * 8;
+                        global.putLong(pos, global.getLong(pos) | 1L << bit);
+                    }
+                }
+            }
+            global.force();
+
+            long directoryOffset = globalOffset + globalSize;
+            out.seek(directoryOffset);
+            directory.flush();
+            out.write(directoryBytes.toByteArray());
+            out.writeInt(BLOCK_ROWS);
+            out.writeInt(blocks);
+            out.writeInt(rows);
+            out.writeLong(globalOffset);
+            out.writeInt(globalLines);
+            out.writeLong(directoryOffset);
+            out.writeInt(MAGIC);
+            out.setLength(out.getFilePointer());
+            finished = true;
+        }
+
+        private void flushBlock() throws IOException {
+            int lines = linesFor(blockKeys);
+            long[] words = new long[lines * LINE_LONGS];
+            for (int k = 0; k < blockKeys; k++) {
+                int base = lineOf(blockHashes[k], lines) * LINE_LONGS;
+                for (int b = 0; b < HASHES; b++) {
+                    int bit = bit(blockHashes[k], b);
+                    words[base + (bit >>> 6)] |= 1L << bit;
+                }
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(lines * LINE_BYTES);
+            bytes.asLongBuffer().put(words);
+
+            directory.writeLong(blockIdxStart);
+            directory.writeLong(out.getFilePointer());
+            directory.writeInt(lines);
+            out.write(bytes.array());
+            blocks++;
+            blockKeys = 0;
+        }
+
+        // Без finish() удаляет и незаконченный .blm
+        @Override
+        public void close() throws IOException {
+            try {
+                hashes.close();
+                out.close();
+            } finally {
+                hashesFile.delete();
+                if (!finished) target.delete();
+            }
+        }
+    }
+}
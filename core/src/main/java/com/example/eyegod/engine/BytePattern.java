@@ -0,0 +1,66 @@
+package com.example.eyegod.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Поиск подстроки в сырых байтах UTF-8 (Бойер — Мур — Хорспул) без декодирования в String.
+ * Все методы работают с абсолютными позициями буфера и ничего не выделяют.
+ */
+public final class BytePattern {
+    private final byte[] needle;
+    private final int[] shift = new int[256];
+
+    public BytePattern(String text) {
+        this(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public BytePattern(byte[] needle) {
+        this.needle = needle;
+        int m = needle.length;
+        Arrays.fill(shift, Math.max(m, 1));
+        for (int i = 0; i < m - 1; i++) {
+            shift[needle[i] & 0xFF] = m - 1 - i;
+        }
+    }
+
+    public int length() {
+        return needle.length;
+    }
+
+    // Первое вхождение в [from, to) или -1
+    public int indexOf(ByteBuffer buf, int from, int to) {
+        int m = needle.length;
+        if (m == 0) return from <= to ? from : -1;
+        int last = m - 1;
+        byte lastByte = needle[last];
+        int pos = from;
+        while (pos + last < to) {
+            byte b = buf.get(pos + last);
+            if (b == lastByte) {
+                int i = last - 1;
+                while (i >= 0 && buf.get(pos + i) == needle[i]) i--;
+                if (i < 0) return pos;
+            }
+            pos += shift[b & 0xFF];
+        }
+        return -1;
+    }
+
+    // Первая позиция байта b в [from, to) или -1
+    public static int indexOf(ByteBuffer buf, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    public static int count(ByteBuffer buf, byte b, int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.eyegod.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Чтение строк CSV по номеру через таблицу смещений: один seek и чтение одной строки
+ * вместо прохода по файлу с начала. Заголовок разбирается один раз при открытии.
+ */
+public final class CsvRowReader implements Closeable {
+    private static final int CHUNK = 4096;
+
+    private final File csvFile;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final OffsetTable offsets;
+    private final byte delimiter;
+    private final String[] headers;
+
+    private CsvRowReader(File csvFile, RandomAccessFile file, OffsetTable offsets, DbCatalog.Entry entry)
+            throws IOException {
+        this.csvFile = csvFile;
+        this.file = file;
+        this.channel = file.getChannel();
+        this.offsets = offsets;
+        if (entry != null) {
+            this.delimiter = entry.delimiter;
+            this.headers = entry.headers;
+        } else {
+            this.delimiter = CsvTokenizer.detect(csvFile);
+            CsvTokenizer tokenizer = new CsvTokenizer(delimiter);
+            this.headers = readRecordAt(0, tokenizer) == null ? new String[0] : tokenizer.toArray();
+        }
+    }
+
+    // null, если у базы нет таблицы смещений — тогда строки ищутся старым способом
+    public static CsvRowReader open(File csvFile) throws IOException {
+        return open(csvFile, null);
+    }
+
+    // entry — запись каталога о базе: разделитель и заголовок берутся из неё, а не из файла
+    public static CsvRowReader open(File csvFile, DbCatalog.Entry entry) throws IOException {
+        if (entry != null && !entry.has(DbFiles.OFFSETS)) return null;
+        OffsetTable offsets = OffsetTable.open(DbFiles.sidecar(csvFile, DbFiles.OFFSETS));
+        if (offsets == null) return null;
+        try {
+            return new CsvRowReader(csvFile, new RandomAccessFile(csvFile, "r"), offsets, entry);
+        } catch (IOException e) {
+            offsets.close();
+            throw e;
+        }
+    }
+
+    public String[] headers() {
+        return headers;
+    }
+
+    public int rowCount() {
+        return offsets.rowCount();
+    }
+
+    // Сырая запись CSV для строки индекса row (с нуля)
+    public String readRow(int row) throws IOException {
+        long offset = offsets.offsetOf(row);
+        return offset < 0 ? null : readRecordAt(offset, new CsvTokenizer(delimiter));
+    }
+
+    // Блок "База: …\nзаголовок: значение" для вывода в результатах
+    public String formatRow(int row) throws IOException {
+        CsvTokenizer tokenizer = newTokenizer();
+        return readRecord(row, tokenizer) ? format(tokenizer) : null;
+    }
+
+    CsvTokenizer newTokenizer() {
+        return new CsvTokenizer(delimiter);
+    }
+
+    // Разбирает запись строки row в tokenizer; false — такой строки нет
+    boolean readRecord(int row, CsvTokenizer tokenizer) throws IOException {
+        long offset = offsets.offsetOf(row);
+        return offset >= 0 && readRecordAt(offset, tokenizer) != null;
+    }
+
+    String format(CsvTokenizer fields) {
+        return format(csvFile, headers, fields);
+    }
+
+    // Старые базы без таблицы смещений: строка csvLine (0 — заголовок) ищется чтением CSV с начала
+    public static String formatLine(File csvFile, int csvLine) throws IOException {
+        return formatLine(csvFile, csvLine, null);
+    }
+
+    public static String formatLine(File csvFile, int csvLine, DbCatalog.Entry entry) throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(entry != null ? entry.delimiter : CsvTokenizer.detect(csvFile));
+        try (LineReader reader = new LineReader(new FileInputStream(csvFile))) {
+            if (!reader.next()) return null;
+            String[] headers = entry != null ? entry.headers : tokenizer.split(reader.lineString());
+            for (int line = 1; reader.next(); line++) {
+                if (line == csvLine) {
+                    tokenizer.parse(reader.lineBytes(), 0, reader.lineLength());
+                    return format(csvFile, headers, tokenizer);
+                }
+            }
+        }
+        return null;
+    }
+
+    static String format(File csvFile, String[] headers, CsvTokenizer fields) {
+        StringBuilder result = new StringBuilder();
+        result.append("База: ").append(csvFile.getName()).append("\n");
+        for (int i = 0; i < headers.length; i++) {
+            String value = fields.field(i);
+            result.append(headers[i]).append(": ").append(value.isEmpty() ? "отсутствует" : value).append("\n");
+        }
+        result.append("\n");
+        return result.toString();
+    }
+
+    /**
+     * Запись CSV с позиции offset, разобранная в tokenizer; null — за концом файла.
+     * Позиционное чтение канала не трогает общий указатель файла, поэтому потокобезопасно.
+     */
+    private String readRecordAt(long offset, CsvTokenizer tokenizer) throws IOException {
+        try (LineReader reader = new LineReader(new PositionalInputStream(channel, offset), CHUNK)) {
+            return reader.nextRecord(tokenizer) ? reader.lineString() : null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            offsets.close();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static final class PositionalInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        PositionalInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // канал принадлежит CsvRowReader
+        }
+    }
+}
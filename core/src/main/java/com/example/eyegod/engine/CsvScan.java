@@ -0,0 +1,93 @@
+package com.example.eyegod.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Проход по записям CSV без спутников — для баз, чей индекс перестраивается ({@link IndexRebuilder}).
+ * Записи нумеруются так же, как их нумерует {@link IndexBuilder} (заголовок и короткие записи
+ * пропускаются), а {@link #line()} собирается, как строка .idx: найденные номера совпадают
+ * с теми, что дал бы готовый индекс, и остаются верными после перестройки.
+ */
+final class CsvScan implements Closeable {
+    private final LineReader reader;
+    private final CsvTokenizer tokenizer;
+    final String[] headers;
+    private final int[] idxColumns;
+    private final StringBuilder line = new StringBuilder();
+    private long position;
+    private int row = -1;
+
+    private CsvScan(LineReader reader, CsvTokenizer tokenizer, String[] headers, Map<String, Integer> mapping) {
+        this.reader = reader;
+        this.tokenizer = tokenizer;
+        this.headers = headers;
+        this.idxColumns = new IndexBuilder.Schema(mapping).idxColumns;
+    }
+
+    /**
+     * entry — запись каталога: разделитель и сопоставление полей берутся из неё.
+     * Сопоставления нет (база не из импорта) — оно угадывается по заголовку, как при перестройке.
+     */
+    static CsvScan open(File csvFile, DbCatalog.Entry entry) throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(entry != null ? entry.delimiter : CsvTokenizer.detect(csvFile));
+        LineReader reader = new LineReader(new FileInputStream(csvFile));
+        try {
+            String[] headers = reader.nextRecord(tokenizer) ? tokenizer.toArray() : new String[0];
+            return new CsvScan(reader, tokenizer, headers, mapping(entry, headers));
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    static Map<String, Integer> mapping(DbCatalog.Entry entry, String[] headers) {
+        return entry != null && !entry.mapping.isEmpty() ? entry.mapping : Fields.inferMapping(headers);
+    }
+
+    // Следующая запись с номером; false — файл кончился
+    boolean next() throws IOException {
+        while (reader.nextRecord(tokenizer)) {
+            position = reader.position();
+            if (tokenizer.size() < headers.length) continue;
+            row++;
+            return true;
+        }
+        return false;
+    }
+
+    // Номер текущей записи; -1 — ещё ни одной
+    int row() {
+        return row;
+    }
+
+    // Сколько байт CSV прочитано
+    long position() {
+        return position;
+    }
+
+    CsvTokenizer fields() {
+        return tokenizer;
+    }
+
+    // Строка текущей записи, какой она была бы в .idx: сопоставленные поля в нижнем регистре
+    String line() {
+        line.setLength(0);
+        for (int i = 0; i < idxColumns.length; i++) {
+            int column = idxColumns[i];
+            if (column == -1 || column >= tokenizer.size()) continue;
+            String value = tokenizer.field(column);
+            line.append(i == IndexBuilder.Schema.IDX_TEL ? Fields.normalizePhone(value)
+                    : value.toLowerCase().replace('\n', ' ').replace('\r', ' ')).append(' ');
+        }
+        return line.toString().trim();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
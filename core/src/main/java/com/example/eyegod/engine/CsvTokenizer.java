@@ -0,0 +1,231 @@
+package com.example.eyegod.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Разбор записи CSV по RFC 4180 прямо в байтах UTF-8, без регулярных выражений.
+ * Поле в кавычках может содержать разделитель, перевод строки и "" (кавычку).
+ * Поля — срезы одного переиспользуемого буфера: после разогрева разбор ничего не выделяет.
+ * Пробелы по краям поля срезаются, как раньше в cleanField.
+ */
+public final class CsvTokenizer {
+    public static final int SAMPLE_SIZE = 64 * 1024;
+    // Сколько строк файла может занять одна запись: незакрытая кавычка в грязных данных не съест весь файл
+    public static final int MAX_RECORD_LINES = 8;
+    private static final byte[] CANDIDATES = {';', '|', ',', '\t'};
+    private static final int SAMPLE_LINES = 50;
+
+    private final byte delimiter;
+    private byte[] data = new byte[256];
+    private int dataLength;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int count;
+
+    public CsvTokenizer(byte delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    public byte delimiter() {
+        return delimiter;
+    }
+
+    /**
+     * Разбирает запись line[off, off + len). false — запись не закончена: поле в кавычках
+     * не закрыто до конца строки, нужно добавить "\n" и следующую строку файла.
+     * Поля при этом всё равно заполнены — незакрытое поле тянется до конца.
+     */
+    public boolean parse(byte[] line, int off, int len) {
+        count = 0;
+        dataLength = 0;
+        int end = off + len;
+        int i = off;
+        while (true) {
+            while (i < end && isBlank(line[i])) i++;
+            int fieldStart = dataLength;
+            int keepEnd = fieldStart; // содержимое кавычек не обрезается
+            if (i < end && line[i] == '"') {
+                i++;
+                boolean closed = false;
+                while (i < end) {
+                    int quote = indexOf(line, (byte) '"', i, end);
+                    put(line, i, quote - i);
+                    i = quote;
+                    if (i == end) break;
+                    if (i + 1 < end && line[i + 1] == '"') {
+                        put(line, i, 1);
+                        i += 2;
+                    } else {
+                        i++;
+                        closed = true;
+                        break;
+                    }
+                }
+                if (!closed) {
+                    addField(fieldStart, dataLength);
+                    return false;
+                }
+                keepEnd = dataLength;
+            }
+            // Без кавычек — до разделителя; после закрывающей кавычки остаток поля берётся как есть
+            int delimiterAt = indexOf(line, delimiter, i, end);
+            put(line, i, delimiterAt - i);
+            i = delimiterAt;
+            int fieldEnd = dataLength;
+            while (fieldEnd > keepEnd && isBlank(data[fieldEnd - 1])) fieldEnd--;
+            addField(fieldStart, fieldEnd);
+            if (i == end) return true;
+            i++;
+        }
+    }
+
+    // Разбор строки целиком (заголовок, вывод результата); незакрытая кавычка тянется до конца
+    public String[] split(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        parse(bytes, 0, bytes.length);
+        return toArray();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Буфер, в котором лежат поля; действителен до следующего parse
+    public byte[] data() {
+        return data;
+    }
+
+    public int start(int field) {
+        return starts[field];
+    }
+
+    public int end(int field) {
+        return ends[field];
+    }
+
+    public boolean isEmpty(int field) {
+        return field >= count || starts[field] == ends[field];
+    }
+
+    // Значение поля; "" для отсутствующего
+    public String field(int field) {
+        if (field >= count) return "";
+        return new String(data, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+    }
+
+    public String[] toArray() {
+        String[] fields = new String[count];
+        for (int i = 0; i < count; i++) fields[i] = field(i);
+        return fields;
+    }
+
+    /**
+     * Разделитель по образцу начала файла: для каждого кандидата (; | , tab) считаем вхождения
+     * вне кавычек в строке заголовка и в следующих строках. Выигрывает тот, что есть в заголовке
+     * и чаще всего встречается в строках столько же раз; при равенстве — больше полей,
+     * затем порядок кандидатов. Ни одного в заголовке — ";".
+     */
+    public static byte detect(byte[] sample, int length) {
+        int[] headerCounts = null;
+        int[] consistent = new int[CANDIDATES.length];
+        int[] counts = new int[CANDIDATES.length];
+        int pos = 0;
+        for (int lines = 0; pos < length && lines < SAMPLE_LINES; lines++) {
+            int lineEnd = indexOf(sample, (byte) '\n', pos, length);
+            // Оборванная последняя строка образца посчитала бы поля неверно
+            if (lineEnd == length && lines > 0 && length == SAMPLE_SIZE) break;
+            Arrays.fill(counts, 0);
+            boolean quoted = false;
+            for (int i = pos; i < lineEnd; i++) {
+                byte b = sample[i];
+                if (b == '"') {
+                    quoted = !quoted;
+                } else if (!quoted) {
+                    for (int c = 0; c < CANDIDATES.length; c++) {
+                        if (b == CANDIDATES[c]) counts[c]++;
+                    }
+                }
+            }
+            if (headerCounts == null) {
+                headerCounts = counts.clone();
+            } else {
+                for (int c = 0; c < CANDIDATES.length; c++) {
+                    if (counts[c] == headerCounts[c]) consistent[c]++;
+                }
+            }
+            pos = lineEnd + 1;
+        }
+
+        int best = -1;
+        for (int c = 0; headerCounts != null && c < CANDIDATES.length; c++) {
+            if (headerCounts[c] == 0) continue;
+            if (best < 0 || consistent[c] > consistent[best]
+                    || (consistent[c] == consistent[best] && headerCounts[c] > headerCounts[best])) {
+                best = c;
+            }
+        }
+        return best < 0 ? (byte) ';' : CANDIDATES[best];
+    }
+
+    // Разделитель по началу потока; поток должен поддерживать mark/reset и не сдвигается
+    public static byte detect(InputStream in) throws IOException {
+        in.mark(SAMPLE_SIZE);
+        try {
+            byte[] sample = new byte[SAMPLE_SIZE];
+            return detect(sample, readFully(in, sample));
+        } finally {
+            in.reset();
+        }
+    }
+
+    public static byte detect(File csvFile) throws IOException {
+        try (InputStream in = new FileInputStream(csvFile)) {
+            byte[] sample = new byte[SAMPLE_SIZE];
+            return detect(sample, readFully(in, sample));
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = in.read(buffer, total, buffer.length - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    // Табуляция — пробел, только если это не разделитель
+    private boolean isBlank(byte b) {
+        return b == ' ' || (b == '\t' && delimiter != '\t') || b == '\r';
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) return i;
+        }
+        return to;
+    }
+
+    private void put(byte[] src, int from, int len) {
+        if (len <= 0) return;
+        if (dataLength + len > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + len));
+        System.arraycopy(src, from, data, dataLength, len);
+        dataLength += len;
+    }
+
+    private void addField(int start, int end) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+}
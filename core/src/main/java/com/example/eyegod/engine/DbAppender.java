@@ -0,0 +1,298 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Дописывание строк в готовую базу без полной переиндексации — для ежедневных выгрузок
+ * тех же источников. Заголовок порции должен совпадать с заголовком базы: те же столбцы
+ * в том же порядке, тогда к ней подходит и сопоставление полей базы.
+ *
+ * Строки дописываются в конец CSV, и индекс собирается только по ним: их строки .idx
+ * и смещения дописываются в .idx и .off базы, фильтры Блума — к её фильтрам
+ * ({@link BloomIndex#append}), термы ложатся отдельным словарём порции ({@link DeltaIndex}),
+ * который {@link IndexRebuilder} потом сливает с .tix в фоне.
+ *
+ * По желанию строки с уже известным ключом (телефон, email, Telegram) пропускаются: ключ ищется
+ * в словаре базы, в словарях прежних порций и среди уже дописанных строк этой порции.
+ */
+public final class DbAppender {
+    // Спутники порции собираются рядом с базой: name.csv.append.idx и т. д.
+    private static final String TEMP = ".append";
+
+    public static final class Result {
+        public final int rows;       // дописано строк
+        public final int duplicates; // пропущено строк с уже известным ключом
+        public final int totalRows;  // строк в базе после дописывания
+        public final long bytes;     // прочитано байт порции
+        public final long elapsedMs;
+
+        Result(int rows, int duplicates, int totalRows, long bytes, long elapsedMs) {
+            this.rows = rows;
+            this.duplicates = duplicates;
+            this.totalRows = totalRows;
+            this.bytes = bytes;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    private DbAppender() {}
+
+    // Поля, по которым можно пропускать повторы: ключи из сопоставления базы (или выведенного из заголовка)
+    public static List<String> keyFields(DbCatalog.Entry entry) {
+        List<String> keys = new ArrayList<>();
+        for (String field : CsvScan.mapping(entry, entry.headers).keySet()) {
+            if (Fields.isKey(field)) keys.add(field);
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Дописывает в базу csvFile строки потока delta (CSV с заголовком). entry — запись каталога
+     * о базе; null — разделитель и сопоставление берутся из самого CSV. dedupField — поле-ключ,
+     * по которому пропускаются повторы; null — дописываются все строки. Индекс базы должен быть
+     * годен ({@link IndexStamp}), а {@link IndexRebuilder} — знать о дописывании ({@link IndexRebuilder#beginAppend}).
+     * При отмене (CancellationException) или ошибке до записи спутников CSV обрезается до прежней длины.
+     */
+    public static Result append(InputStream delta, File csvFile, DbCatalog.Entry entry, String dedupField,
+                                long totalBytes, ImportHandle handle, ImportProgress.Listener listener)
+            throws IOException {
+        long started = System.nanoTime();
+        File indexFile = DbFiles.sidecar(csvFile, DbFiles.IDX);
+        File offsetsFile = DbFiles.sidecar(csvFile, DbFiles.OFFSETS);
+        File termsFile = DbFiles.sidecar(csvFile, DbFiles.TERMS);
+        File bloomFile = DbFiles.sidecar(csvFile, DbFiles.BLOOM);
+        if (IndexStamp.check(csvFile) != IndexStamp.Status.FRESH || !offsetsFile.exists()) {
+            throw new IOException("Индекс базы не готов — строки можно дописать после его перестройки");
+        }
+
+        byte delimiter;
+        String[] headers;
+        try (CsvScan scan = CsvScan.open(csvFile, entry)) {
+            delimiter = scan.fields().delimiter();
+            headers = scan.headers;
+        }
+        Map<String, Integer> mapping = CsvScan.mapping(entry, headers);
+        int keyColumn = -1;
+        if (dedupField != null) {
+            Integer column = mapping.get(dedupField);
+            if (column == null || !Fields.isKey(dedupField)) {
+                throw new IllegalArgumentException("Поле «" + dedupField + "» не ключ этой базы");
+            }
+            keyColumn = column;
+        }
+
+        BufferedInputStream in = new BufferedInputStream(delta, CsvTokenizer.SAMPLE_SIZE);
+        CsvTokenizer fields = new CsvTokenizer(CsvTokenizer.detect(in));
+        LineReader reader = new LineReader(in);
+        if (!reader.nextRecord(fields)) throw new IOException("Файл пустой");
+        checkHeaders(headers, fields.toArray());
+
+        long originalLength = csvFile.length();
+        int baseRows = OffsetTable.rowCount(offsetsFile);
+        long idxLength = indexFile.length();
+        File part = new File(csvFile.getParentFile(), csvFile.getName() + TEMP);
+        DbFiles.deleteSidecars(part);
+        List<TermIndex> known = new ArrayList<>();
+        int rows = 0;
+        int duplicates = 0;
+        boolean sidecarsChanged = false;
+        // Отметка «строится» — пока CSV и спутники расходятся: прерванное дописывание кончится перестройкой
+        IndexStamp.markBuilding(csvFile);
+        try {
+            if (keyColumn >= 0) openKnown(csvFile, termsFile, known);
+            boolean newline = originalLength > 0 && lastByte(csvFile) != '\n';
+            long appendStart = originalLength + (newline ? 1 : 0);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(csvFile, true), 64 * 1024)) {
+                if (newline) out.write('\n');
+                Set<String> seen = new HashSet<>();
+                long lastReport = started;
+                while (reader.nextRecord(fields)) {
+                    handle.throwIfCancelled();
+                    if (fields.size() < headers.length) continue; // такую запись не взял бы и индекс
+                    if (keyColumn >= 0 && isDuplicate(fields, dedupField, keyColumn, seen, known)) {
+                        duplicates++;
+                        continue;
+                    }
+                    if (fields.delimiter() == delimiter) {
+                        out.write(reader.lineBytes(), 0, reader.lineLength());
+                    } else {
+                        writeRecord(out, fields, delimiter);
+                    }
+                    out.write('\n');
+                    rows++;
+                    long now = System.nanoTime();
+                    if (now - lastReport >= ImportPipeline.REPORT_INTERVAL_MS * 1_000_000L) {
+                        lastReport = now;
+                        listener.onProgress(new ImportProgress(ImportProgress.Stage.COPY, reader.position(),
+                                totalBytes, rows, elapsedMs(started)));
+                    }
+                }
+            }
+            if (rows == 0) {
+                restore(csvFile, originalLength, baseRows);
+                return new Result(0, duplicates, baseRows, reader.position(), elapsedMs(started));
+            }
+
+            // Индекс только по дописанному: заголовок базы и хвост CSV с начала порции
+            listener.onProgress(new ImportProgress(ImportProgress.Stage.INDEX, reader.position(), totalBytes, rows,
+                    elapsedMs(started)));
+            byte[] header = headerLine(headers, delimiter);
+            int built;
+            try (FileInputStream tail = new FileInputStream(csvFile)) {
+                tail.getChannel().position(appendStart);
+                InputStream source = new SequenceInputStream(new ByteArrayInputStream(header), tail);
+                built = IndexBuilder.build(source, delimiter, part, headers, mapping, new AtomicInteger(),
+                        Runtime.getRuntime().availableProcessors());
+            }
+            if (built != rows) throw new IOException("Индекс порции: " + built + " строк вместо " + rows);
+            handle.throwIfCancelled();
+
+            // Дальше меняются спутники базы — отменять уже нечего, сбой кончится перестройкой
+            sidecarsChanged = true;
+            appendFile(DbFiles.sidecar(part, DbFiles.IDX), indexFile);
+            appendOffsets(DbFiles.sidecar(part, DbFiles.OFFSETS), offsetsFile, appendStart - header.length);
+            if (bloomFile.exists()) BloomIndex.append(bloomFile, DbFiles.sidecar(part, DbFiles.BLOOM), baseRows, idxLength);
+            if (termsFile.exists()) DeltaIndex.add(csvFile, DbFiles.sidecar(part, DbFiles.TERMS), baseRows, rows);
+            IndexStamp.write(csvFile, baseRows + rows);
+            return new Result(rows, duplicates, baseRows + rows, reader.position(), elapsedMs(started));
+        } catch (IOException | RuntimeException e) {
+            if (!sidecarsChanged) restore(csvFile, originalLength, baseRows);
+            throw e;
+        } finally {
+            for (TermIndex index : known) index.close();
+            DbFiles.deleteSidecars(part);
+        }
+    }
+
+    // Те же столбцы в том же порядке — иначе сопоставление полей базы к порции не подходит
+    private static void checkHeaders(String[] base, String[] delta) throws IOException {
+        if (base.length != delta.length) {
+            throw new IOException("Заголовок не совпадает с базой: столбцов " + delta.length + ", в базе " + base.length);
+        }
+        for (int i = 0; i < base.length; i++) {
+            if (!base[i].trim().equalsIgnoreCase(delta[i].trim())) {
+                throw new IOException("Заголовок не совпадает с базой: столбец " + (i + 1) + " «" + delta[i]
+                        + "», в базе «" + base[i] + "»");
+            }
+        }
+    }
+
+    // Словарь базы и словари прежних порций — где искать уже известные ключи
+    private static void openKnown(File csvFile, File termsFile, List<TermIndex> known) throws IOException {
+        TermIndex main = TermIndex.open(termsFile);
+        if (main != null) known.add(main);
+        for (DeltaIndex.Segment segment : DeltaIndex.read(csvFile)) {
+            TermIndex index = TermIndex.open(DeltaIndex.file(csvFile, segment));
+            if (index != null) known.add(index);
+        }
+    }
+
+    private static boolean isDuplicate(CsvTokenizer fields, String field, int column, Set<String> seen,
+                                       List<TermIndex> known) throws IOException {
+        String[] terms = Fields.indexTerms(field, fields.field(column));
+        if (terms.length == 0) return false; // без ключа строку не с чем сравнить
+        String term = Fields.term(field, terms[0]);
+        if (!seen.add(term)) return true;
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        for (TermIndex index : known) {
+            if (index.entry(key) != null) return true;
+        }
+        return false;
+    }
+
+    // Запись в разделителе базы: поле с разделителем, кавычкой или переводом строки — в кавычках
+    private static void writeRecord(OutputStream out, CsvTokenizer fields, byte delimiter) throws IOException {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) out.write(delimiter);
+            writeField(out, fields.data(), fields.start(i), fields.end(i), delimiter);
+        }
+    }
+
+    private static void writeField(OutputStream out, byte[] data, int from, int to, byte delimiter)
+            throws IOException {
+        boolean quote = false;
+        for (int i = from; i < to && !quote; i++) {
+            quote = data[i] == delimiter || data[i] == '"' || data[i] == '\n' || data[i] == '\r';
+        }
+        if (!quote) {
+            out.write(data, from, to - from);
+            return;
+        }
+        out.write('"');
+        for (int i = from; i < to; i++) {
+            if (data[i] == '"') out.write('"');
+            out.write(data[i]);
+        }
+        out.write('"');
+    }
+
+    private static byte[] headerLine(String[] headers, byte delimiter) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int i = 0; i < headers.length; i++) {
+            if (i > 0) line.write(delimiter);
+            byte[] name = headers[i].getBytes(StandardCharsets.UTF_8);
+            writeField(line, name, 0, name.length, delimiter);
+        }
+        line.write('\n');
+        return line.toByteArray();
+    }
+
+    private static int lastByte(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(raf.length() - 1);
+            return raf.read();
+        }
+    }
+
+    private static void appendFile(File from, File to) throws IOException {
+        try (InputStream in = new FileInputStream(from);
+             OutputStream out = new FileOutputStream(to, true)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+        }
+    }
+
+    // Смещения порции считаны от начала её потока (заголовок + хвост) — переводятся в смещения CSV
+    private static void appendOffsets(File from, File to, long shift) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(from)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(to, true)))) {
+            for (int i = OffsetTable.rowCount(from); i > 0; i--) out.writeLong(in.readLong() + shift);
+        }
+    }
+
+    // CSV — как до дописывания; отметка пишется заново: время изменения CSV сдвинулось
+    private static void restore(File csvFile, long length, int rows) throws IOException {
+        if (!csvFile.exists()) return; // база удалена — "rw" создал бы пустой файл на её месте
+        try (RandomAccessFile csv = new RandomAccessFile(csvFile, "rw")) {
+            csv.setLength(length);
+        }
+        IndexStamp.write(csvFile, rows);
+    }
+
+    private static long elapsedMs(long startedNanos) {
+        return (System.nanoTime() - startedNanos) / 1_000_000L;
+    }
+}
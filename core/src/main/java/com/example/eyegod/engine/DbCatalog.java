@@ -0,0 +1,269 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Каталог баз: что известно о каждой базе без чтения её файлов — размер, число строк,
+ * разделитель, заголовок, сопоставление полей, какие файлы-спутники построены и версия словаря.
+ * Записывается при импорте; список баз, поиск и показ строк берут всё отсюда, а не из папки.
+ * Хранится в текстовом файле рядом с базами и пишется, как {@link HashRegistry}, через временный файл.
+ */
+public final class DbCatalog {
+    public static final String FILE_NAME = "catalog.db";
+    private static final String HEADER = "# eyegod catalog v1";
+    private static final char LIST_SEPARATOR = '\u001F';
+
+    public static final class Entry {
+        public final String name;
+        public final long size;
+        public final long modified;
+        public final int rows;          // -1 — неизвестно (у базы нет ни .off, ни .idx)
+        public final byte delimiter;
+        public final String[] headers;
+        public final Map<String, Integer> mapping; // поле → столбец; пусто — база не из импорта
+        public final String sidecars;   // суффиксы построенных спутников подряд: ".idx.off.tix"
+        public final int indexVersion;  // версия формата .tix; 0 — словаря нет
+        public final long importedAt;
+
+        Entry(String name, long size, long modified, int rows, byte delimiter, String[] headers,
+              Map<String, Integer> mapping, String sidecars, int indexVersion, long importedAt) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.rows = rows;
+            this.delimiter = delimiter;
+            this.headers = headers;
+            this.mapping = Collections.unmodifiableMap(mapping);
+            this.sidecars = sidecars;
+            this.indexVersion = indexVersion;
+            this.importedAt = importedAt;
+        }
+
+        public boolean has(String suffix) {
+            return sidecars.contains(suffix);
+        }
+
+        Entry renamed(String newName) {
+            return new Entry(newName, size, modified, rows, delimiter, headers, mapping, sidecars, indexVersion,
+                    importedAt);
+        }
+    }
+
+    private final File dir;
+    private final File file;
+    private final Map<String, Entry> byName = new TreeMap<>();
+
+    private DbCatalog(File dir) {
+        this.dir = dir;
+        this.file = new File(dir, FILE_NAME);
+    }
+
+    // Каталог папки баз; нет файла — пустой каталог, базы в него добавит reconcile
+    public static DbCatalog open(File dir) throws IOException {
+        DbCatalog catalog = new DbCatalog(dir);
+        if (!catalog.file.exists()) return catalog;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(catalog.file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                Entry entry = parse(line);
+                // повреждённая строка: базу заново опишет reconcile
+                if (entry != null) catalog.byName.put(entry.name, entry);
+            }
+        }
+        return catalog;
+    }
+
+    public synchronized Entry get(String name) {
+        return byName.get(name);
+    }
+
+    // Запись о базе из папки каталога; null — база лежит не здесь или не описана
+    public Entry get(File csvFile) {
+        return dir.equals(csvFile.getParentFile()) ? get(csvFile.getName()) : null;
+    }
+
+    // По имени
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(byName.values());
+    }
+
+    // Файлы баз по имени — вместо обхода папки
+    public synchronized List<File> files() {
+        List<File> files = new ArrayList<>(byName.size());
+        for (String name : byName.keySet()) files.add(new File(dir, name));
+        return files;
+    }
+
+    /**
+     * Запись о только что импортированной базе: спутники и размер — с диска,
+     * остальное — то, что импорт уже знает.
+     */
+    public void put(File csvFile, byte delimiter, String[] headers, Map<String, Integer> mapping, int rows)
+            throws IOException {
+        Entry entry = describe(csvFile, delimiter, headers, mapping, rows, System.currentTimeMillis());
+        synchronized (this) {
+            byName.put(entry.name, entry);
+            save();
+        }
+    }
+
+    public synchronized void remove(String name) throws IOException {
+        if (byName.remove(name) != null) save();
+    }
+
+    // Спутники переименовываются вслед за CSV; если не вышло, сверка опишет базу заново
+    public synchronized void rename(String oldName, String newName) throws IOException {
+        Entry entry = byName.remove(oldName);
+        if (entry == null) return;
+        byName.put(newName, entry.renamed(newName));
+        save();
+    }
+
+    // База изменилась на диске не через импорт (например, спутники не переименовались) — описать заново
+    public void refresh(File csvFile) throws IOException {
+        Entry old = get(csvFile.getName());
+        Entry entry = inspect(csvFile, old != null ? old.mapping : Collections.emptyMap());
+        synchronized (this) {
+            byName.put(entry.name, entry);
+            save();
+        }
+    }
+
+    /**
+     * Сверка с папкой: записи удалённых баз выбрасываются, а базы без записи или изменённые
+     * (другие размер или время) описываются заново — чтением заголовка и размеров спутников.
+     * Сопоставление полей изменённой базы сохраняется. Файлы читаются без блокировки каталога.
+     */
+    public void reconcile(File[] csvFiles) throws IOException {
+        List<File> stale = new ArrayList<>();
+        Map<String, Entry> known = new HashMap<>();
+        synchronized (this) {
+            known.putAll(byName);
+        }
+        Map<String, File> present = new HashMap<>();
+        for (File f : csvFiles) {
+            present.put(f.getName(), f);
+            Entry entry = known.get(f.getName());
+            if (entry == null || entry.size != f.length() || entry.modified != f.lastModified()) stale.add(f);
+        }
+        List<Entry> described = new ArrayList<>();
+        for (File f : stale) {
+            Entry old = known.get(f.getName());
+            described.add(inspect(f, old != null ? old.mapping : Collections.emptyMap()));
+        }
+        synchronized (this) {
+            boolean changed = byName.keySet().retainAll(present.keySet());
+            for (Entry entry : described) byName.put(entry.name, entry);
+            if (changed || !described.isEmpty()) save();
+        }
+    }
+
+    // База, которой нет в каталоге: разделитель, заголовок и число строк читаются из её файлов
+    private static Entry inspect(File csvFile, Map<String, Integer> mapping) throws IOException {
+        byte delimiter = CsvTokenizer.detect(csvFile);
+        CsvTokenizer tokenizer = new CsvTokenizer(delimiter);
+        String[] headers = new String[0];
+        try (LineReader reader = new LineReader(new FileInputStream(csvFile))) {
+            if (reader.nextRecord(tokenizer)) headers = tokenizer.toArray();
+        }
+        // Старые базы без таблицы смещений считаются по .idx — один раз, а не в каждом запросе
+        File offsets = DbFiles.sidecar(csvFile, DbFiles.OFFSETS);
+        File index = DbFiles.sidecar(csvFile, DbFiles.IDX);
+        int rows = offsets.exists() ? OffsetTable.rowCount(offsets) : index.exists() ? QueryPlanner.countLines(index) : -1;
+        return describe(csvFile, delimiter, headers, mapping, rows, 0);
+    }
+
+    private static Entry describe(File csvFile, byte delimiter, String[] headers, Map<String, Integer> mapping,
+                                  int rows, long importedAt) throws IOException {
+        StringBuilder sidecars = new StringBuilder();
+        for (String suffix : DbFiles.SIDECARS) {
+            if (DbFiles.sidecar(csvFile, suffix).exists()) sidecars.append(suffix);
+        }
+        File tix = DbFiles.sidecar(csvFile, DbFiles.TERMS);
+        int indexVersion = tix.exists() ? TermIndex.version(tix) : 0;
+        return new Entry(csvFile.getName(), csvFile.length(), csvFile.lastModified(), rows, delimiter, headers,
+                new LinkedHashMap<>(mapping), sidecars.toString(), indexVersion, importedAt);
+    }
+
+    // размер, время, строк, разделитель, версия словаря, время импорта, спутники, поля, заголовок, имя
+    private static Entry parse(String line) {
+        String[] parts = line.split("\t", 10);
+        if (parts.length < 10) return null;
+        try {
+            Map<String, Integer> mapping = new LinkedHashMap<>();
+            for (String pair : split(parts[7])) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) mapping.put(pair.substring(0, eq), Integer.parseInt(pair.substring(eq + 1)));
+            }
+            return new Entry(parts[9], Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                    Integer.parseInt(parts[2]), (byte) Integer.parseInt(parts[3]), split(parts[8]), mapping,
+                    parts[6], Integer.parseInt(parts[4]), Long.parseLong(parts[5]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String format(Entry e) {
+        StringBuilder mapping = new StringBuilder();
+        for (Map.Entry<String, Integer> field : e.mapping.entrySet()) {
+            if (mapping.length() > 0) mapping.append(LIST_SEPARATOR);
+            mapping.append(clean(field.getKey())).append('=').append(field.getValue());
+        }
+        StringBuilder headers = new StringBuilder();
+        for (int i = 0; i < e.headers.length; i++) {
+            if (i > 0) headers.append(LIST_SEPARATOR);
+            headers.append(clean(e.headers[i]));
+        }
+        return e.size + "\t" + e.modified + "\t" + e.rows + "\t" + e.delimiter + "\t" + e.indexVersion + "\t"
+                + e.importedAt + "\t" + e.sidecars + "\t" + mapping + "\t" + headers + "\t" + e.name + "\n";
+    }
+
+    // Табуляция, перевод строки и разделитель списка в заголовке сломали бы строку каталога
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ').replace(LIST_SEPARATOR, ' ');
+    }
+
+    private static String[] split(String list) {
+        if (list.isEmpty()) return new String[0];
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= list.length(); i++) {
+            if (i == list.length() || list.charAt(i) == LIST_SEPARATOR) {
+                parts.add(list.substring(start, i));
+                start = i + 1;
+            }
+        }
+        return parts.toArray(new String[0]);
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            out.write(HEADER);
+            out.write('\n');
+            for (Entry e : byName.values()) out.write(format(e));
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Не удалось сохранить " + file.getName());
+        }
+    }
+}
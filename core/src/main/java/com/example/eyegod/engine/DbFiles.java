@@ -0,0 +1,76 @@
+package com.example.eyegod.engine;
+
+import java.io.File;
+
+/**
+ * Файлы-спутники базы: всё, что лежит рядом с name.csv и называется name.csv + суффикс.
+ */
+public final class DbFiles {
+    public static final String IDX = ".idx";
+    public static final String OFFSETS = ".off";
+    public static final String TERMS = ".tix";
+    public static final String BLOOM = ".blm";
+    public static final String NAMES = ".tri";
+    // Словари дописанных строк, ещё не слитые с .tix ({@link DeltaIndex}): список и сами словари name.csv.seg.N.tix
+    public static final String SEGMENTS = ".seg";
+    public static final String STAMP = ".stm"; // для какого CSV построены остальные ({@link IndexStamp})
+
+    static final String[] SIDECARS = {IDX, OFFSETS, TERMS, BLOOM, NAMES, SEGMENTS, STAMP};
+
+    private DbFiles() {}
+
+    public static File sidecar(File csvFile, String suffix) {
+        return new File(csvFile.getParentFile(), csvFile.getName() + suffix);
+    }
+
+    // Сколько места занимают спутники базы вместе: цена индексов поверх самого CSV
+    public static long sidecarBytes(File csvFile) {
+        long total = 0;
+        for (String suffix : SIDECARS) {
+            total += sidecar(csvFile, suffix).length();
+        }
+        for (File segment : segmentFiles(csvFile)) total += segment.length();
+        return total;
+    }
+
+    // Удаляет все файлы-спутники; false, если хотя бы один удалить не удалось
+    public static boolean deleteSidecars(File csvFile) {
+        boolean ok = true;
+        for (String suffix : SIDECARS) {
+            File f = sidecar(csvFile, suffix);
+            if (f.exists() && !f.delete()) ok = false;
+        }
+        return deleteSegments(csvFile) && ok;
+    }
+
+    // Переименовывает файлы-спутники вслед за CSV; false, если хотя бы один не переименован
+    public static boolean renameSidecars(File oldCsv, File newCsv) {
+        boolean ok = true;
+        for (String suffix : SIDECARS) {
+            File from = sidecar(oldCsv, suffix);
+            if (from.exists() && !from.renameTo(sidecar(newCsv, suffix))) ok = false;
+        }
+        String prefix = oldCsv.getName();
+        for (File from : segmentFiles(oldCsv)) {
+            String suffix = from.getName().substring(prefix.length());
+            if (!from.renameTo(sidecar(newCsv, suffix))) ok = false;
+        }
+        return ok;
+    }
+
+    // Словари дописанных строк (name.csv.seg.N.tix) — по папке: их число у каждой базы своё
+    static File[] segmentFiles(File csvFile) {
+        String prefix = csvFile.getName() + SEGMENTS + ".";
+        File[] files = csvFile.getParentFile().listFiles((dir, name) -> name.startsWith(prefix));
+        return files != null ? files : new File[0];
+    }
+
+    // Удаляет словари дописанных строк, но не их список
+    static boolean deleteSegments(File csvFile) {
+        boolean ok = true;
+        for (File f : segmentFiles(csvFile)) {
+            if (!f.delete()) ok = false;
+        }
+        return ok;
+    }
+}
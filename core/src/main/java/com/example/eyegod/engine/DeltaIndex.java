@@ -0,0 +1,138 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Словари термов дописанных строк базы ({@link DbAppender}), ещё не слитые с её .tix.
+ * Каждая дописанная порция — свой маленький словарь name.csv.seg.N.tix со строками от нуля;
+ * в списке (.seg) для него записано, с какой строки базы порция начинается. Поиск по словарю
+ * базы дополняется поиском по этим словарям, а {@link IndexRebuilder} в фоне сливает их с .tix
+ * за один проход по словарям, без чтения CSV, после чего список удаляется.
+ *
+ * Список — текстовый, по строке на словарь: номер, первая строка, число строк;
+ * пишется через временный файл, как {@link HashRegistry}.
+ */
+final class DeltaIndex {
+    private static final String HEADER = "# eyegod delta v1";
+
+    static final class Segment {
+        final int id;
+        final int firstRow;
+        final int rows;
+
+        Segment(int id, int firstRow, int rows) {
+            this.id = id;
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+    }
+
+    private DeltaIndex() {}
+
+    // По возрастанию первой строки; нет списка — пусто
+    static List<Segment> read(File csvFile) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        File list = DbFiles.sidecar(csvFile, DbFiles.SEGMENTS);
+        if (!list.exists()) return segments;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(list), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] parts = line.split("\t");
+                if (parts.length < 3) throw new IOException("Повреждённый список " + list.getName());
+                try {
+                    segments.add(new Segment(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                            Integer.parseInt(parts[2])));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Повреждённый список " + list.getName());
+                }
+            }
+        }
+        return segments;
+    }
+
+    static File file(File csvFile, Segment segment) {
+        return DbFiles.sidecar(csvFile, DbFiles.SEGMENTS + "." + segment.id + DbFiles.TERMS);
+    }
+
+    // Словарь порции, собранный в built, переезжает к базе и записывается в список
+    static void add(File csvFile, File built, int firstRow, int rows) throws IOException {
+        List<Segment> segments = read(csvFile);
+        int id = 1;
+        for (Segment s : segments) id = Math.max(id, s.id + 1);
+        Segment segment = new Segment(id, firstRow, rows);
+        if (!built.renameTo(file(csvFile, segment))) throw new IOException("Не удалось сохранить словарь порции");
+        segments.add(segment);
+        save(csvFile, segments);
+    }
+
+    // Строки терма (или термов с началом term) во всех порциях — номерами строк базы, по возрастанию
+    static int[] lookup(File csvFile, String term, boolean exact) throws IOException {
+        IntList rows = new IntList();
+        for (Segment segment : read(csvFile)) {
+            try (TermIndex index = TermIndex.open(file(csvFile, segment))) {
+                if (index == null) throw new IOException("Нет словаря порции " + segment.id);
+                int[] found = exact ? index.lookup(term) : index.prefix(term);
+                for (int row : found) rows.add(segment.firstRow + row);
+            }
+        }
+        return rows.toArray();
+    }
+
+    /**
+     * Слияние словаря базы и словарей порций в target: строки порций переводятся в номера
+     * строк базы. Порции идут после всех строк словаря, поэтому списки терма просто склеиваются.
+     */
+    static void merge(File csvFile, List<Segment> segments, File target) throws IOException {
+        List<TermIndex> indexes = new ArrayList<>();
+        List<TermIndexWriter.RowMap> maps = new ArrayList<>();
+        try {
+            TermIndex main = TermIndex.open(DbFiles.sidecar(csvFile, DbFiles.TERMS));
+            if (main == null) throw new IOException("Нет словаря базы");
+            indexes.add(main);
+            maps.add(row -> row);
+            for (Segment segment : segments) {
+                TermIndex index = TermIndex.open(file(csvFile, segment));
+                if (index == null) throw new IOException("Нет словаря порции " + segment.id);
+                indexes.add(index);
+                int firstRow = segment.firstRow;
+                maps.add(row -> firstRow + row);
+            }
+            TermIndexWriter.merge(target, indexes, maps);
+        } finally {
+            for (TermIndex index : indexes) index.close();
+        }
+    }
+
+    // Словари слиты с .tix базы: список и словари порций больше не нужны
+    static void clear(File csvFile) {
+        DbFiles.sidecar(csvFile, DbFiles.SEGMENTS).delete();
+        DbFiles.deleteSegments(csvFile);
+    }
+
+    private static void save(File csvFile, List<Segment> segments) throws IOException {
+        File list = DbFiles.sidecar(csvFile, DbFiles.SEGMENTS);
+        File tmp = new File(list.getParentFile(), list.getName() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            out.write(HEADER);
+            out.write('\n');
+            for (Segment s : segments) out.write(s.id + "\t" + s.firstRow + "\t" + s.rows + "\n");
+        }
+        if (!tmp.renameTo(list)) {
+            tmp.delete();
+            throw new IOException("Не удалось сохранить " + list.getName());
+        }
+    }
+}
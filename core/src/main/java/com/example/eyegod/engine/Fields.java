@@ -0,0 +1,177 @@
+package com.example.eyegod.engine;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Ключи полей из диалога сопоставления и нормализация значений для индекса.
+ * Терм словаря — ключ поля + разделитель + нормализованное значение, поэтому
+ * один .tix хранит независимые индексы по каждому полю.
+ */
+public final class Fields {
+    public static final String TEL = "tel";
+    public static final String EMAIL = "email";
+    public static final String NAME = "name";
+    public static final String TG_ID = "tg_id";
+
+    private static final char SEPARATOR = '\u001F';
+    private static final String[] NONE = new String[0];
+
+    private Fields() {}
+
+    public static String term(String field, String value) {
+        return field + SEPARATOR + value;
+    }
+
+    // Термы, под которыми значение поля попадает в индекс
+    public static String[] indexTerms(String field, String value) {
+        if (field.equals(NAME)) return words(normalizeName(value));
+        String normalized = field.equals(TEL) ? normalizePhone(value) : normalize(field, value);
+        return normalized.isEmpty() ? NONE : new String[]{normalized};
+    }
+
+    // Поля-ключи: значение ищется целиком, по ним строятся фильтры Блума (.blm)
+    public static boolean isKey(String field) {
+        return field.equals(TEL) || field.equals(EMAIL) || field.equals(TG_ID);
+    }
+
+    /**
+     * Нормализованный запрос — ключ целиком, а не начало более длинного: номер +7 из 11 цифр
+     * или номер предельной длины (15 цифр), адрес с доменом. Такой запрос ищется точным
+     * совпадением терма, и базы без него отсекает фильтр Блума. Номера других стран бывают
+     * разной длины, а Telegram-идентификатор — любой, поэтому они ищутся по началу.
+     */
+    public static boolean isCompleteKey(String field, String value) {
+        switch (field) {
+            case TEL:
+                return value.length() == 11 && value.charAt(0) == '7' || value.length() >= 15;
+            case EMAIL:
+                int at = value.indexOf('@');
+                int dot = value.lastIndexOf('.');
+                return at > 0 && dot > at + 1 && dot < value.length() - 1;
+            default:
+                return false;
+        }
+    }
+
+    // Ключ поля по заголовку столбца — подсказка в диалоге сопоставления
+    public static String inferKey(String header) {
+        header = header.toLowerCase();
+        if (header.contains("tel") || header.contains("phone")) return TEL;
+        if (header.contains("mail") || header.contains("email")) return EMAIL;
+        if (header.contains("name") || header.contains("fio") || header.contains("фио")) return NAME;
+        if (header.contains("tg") || header.contains("telegram")) return TG_ID;
+        return header;
+    }
+
+    // Сопоставление, которое дал бы диалог без правок: для баз, чьё сопоставление не сохранилось
+    public static Map<String, Integer> inferMapping(String[] headers) {
+        Map<String, Integer> mapping = new HashMap<>();
+        for (int i = 0; i < headers.length; i++) {
+            String key = inferKey(headers[i]).trim();
+            if (!key.isEmpty()) mapping.put(key, i);
+        }
+        return mapping;
+    }
+
+    // Нормализация запроса; для телефона запрос может быть началом номера
+    public static String normalizeQuery(String field, String query) {
+        return field.equals(TEL) ? normalizePhone(query) : normalize(field, query);
+    }
+
+    /**
+     * Кусок значения не с начала (часть маски после "*"): регистр и ё — как у всего значения,
+     * у телефона — только цифры, без замены 8 на 7, которая верна лишь для начала номера.
+     */
+    public static String normalizeFragment(String field, String fragment) {
+        if (field.equals(TEL)) return fragment.replaceAll("\\D", "");
+        String lower = fragment.toLowerCase();
+        return field.equals(NAME) ? lower.replace('ё', 'е') : lower;
+    }
+
+    private static String normalize(String field, String value) {
+        switch (field) {
+            case NAME:
+                return normalizeName(value);
+            case TG_ID:
+                return normalizeTelegram(value);
+            default:
+                return value.trim().toLowerCase();
+        }
+    }
+
+    /**
+     * Только цифры, российские 8XXXXXXXXXX и 9XXXXXXXXX приводятся к 7XXXXXXXXXX,
+     * так что "+7 (916) 123-45-67", "8-916-123-45-67" и "9161234567" дают один терм.
+     * Неполный номер не меняется: "8613" — и начало 8-916..., и китайский 86..., см. {@link #russianPrefix}.
+     */
+    public static String normalizePhone(String value) {
+        StringBuilder digits = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') digits.append(c);
+        }
+        int length = digits.length();
+        if (length == 0) return "";
+        char first = digits.charAt(0);
+        if (first == '8' && length == 11) {
+            digits.setCharAt(0, '7');
+        } else if (first == '9' && length == 10) {
+            digits.insert(0, '7');
+        }
+        return digits.toString();
+    }
+
+    /**
+     * Начало номера, каким оно было бы у российского номера в словаре, или null: неполные
+     * "8916" и "916" ищутся и как есть (Китай 86..., Турция 90...), и как 7916.
+     */
+    public static String russianPrefix(String digits) {
+        if (digits.isEmpty()) return null;
+        char first = digits.charAt(0);
+        if (first == '8' && digits.length() < 11) return "7" + digits.substring(1);
+        if (first == '9' && digits.length() < 10) return "7" + digits;
+        return null;
+    }
+
+    // Слова между пробельными символами — split("\\s+") без регулярного выражения
+    private static String[] words(String value) {
+        int count = 0;
+        for (int i = 0; i < value.length(); ) {
+            while (i < value.length() && Character.isWhitespace(value.charAt(i))) i++;
+            if (i == value.length()) break;
+            count++;
+            while (i < value.length() && !Character.isWhitespace(value.charAt(i))) i++;
+        }
+        if (count == 0) return NONE;
+        String[] words = new String[count];
+        int n = 0;
+        for (int i = 0; i < value.length(); ) {
+            while (i < value.length() && Character.isWhitespace(value.charAt(i))) i++;
+            if (i == value.length()) break;
+            int start = i;
+            while (i < value.length() && !Character.isWhitespace(value.charAt(i))) i++;
+            words[n++] = value.substring(start, i);
+        }
+        return words;
+    }
+
+    private static String normalizeName(String value) {
+        return value.trim().toLowerCase().replace('ё', 'е');
+    }
+
+    // "@Nick" → "nick", "id123" → "123"
+    private static String normalizeTelegram(String value) {
+        String v = value.trim().toLowerCase();
+        if (v.startsWith("@")) v = v.substring(1);
+        if (v.startsWith("id") && v.length() > 2 && isDigits(v, 2)) v = v.substring(2);
+        return v;
+    }
+
+    private static boolean isDigits(String s, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+}
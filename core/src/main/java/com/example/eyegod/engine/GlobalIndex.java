@@ -0,0 +1,510 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Общий индекс термов по всем базам каталога: терм → (база, строка). Хранится сегментами —
+ * словарями в формате .tix, где строки баз сегмента пронумерованы подряд, у каждой базы
+ * своё смещение. Новая база становится сегментом сама: это её собственный .tix, без копирования.
+ * Фоновое слияние склеивает сегменты, и запрос читает не больше MAX_SEGMENTS словарей,
+ * сколько бы баз ни было загружено. Удалённая база лишь вычёркивается из манифеста,
+ * её строки выбрасываются при следующем слиянии сегмента.
+ *
+ * Манифест (global/manifest) — текстовый: базы (id, имя CSV) и сегменты (файл, базы со смещениями).
+ * Каждое изменение записывается сразу через временный файл, как в {@link HashRegistry}.
+ */
+public final class GlobalIndex implements Closeable {
+    public static final String DIR_NAME = "global";
+    static final int MAX_SEGMENTS = 4;
+    private static final String MANIFEST = "manifest";
+    private static final String HEADER = "# eyegod global index v1";
+    private static final String OWN = "@"; // сегмент "@id" — собственный .tix базы id
+    // Сегмент переписывается отдельно, если строк удалённых баз в нём больше половины
+    private static final double MAX_DELETED_RATIO = 0.5;
+
+    private final File csvDir;
+    private final File dir;
+    private final Map<Integer, String> databases = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private int nextDatabase = 1;
+    private int nextSegment = 1;
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "global-merge");
+        t.setDaemon(true);
+        return t;
+    });
+    private boolean mergeScheduled;
+    private volatile MergeListener mergeListener;
+
+    private GlobalIndex(File csvDir) {
+        this.csvDir = csvDir;
+        this.dir = new File(csvDir, DIR_NAME);
+    }
+
+    public interface MergeListener {
+        // Фоновое слияние не удалось, сегменты остались прежними; вызывается из потока слияния
+        void onMergeFailed(IOException e);
+    }
+
+    public void setMergeListener(MergeListener listener) {
+        this.mergeListener = listener;
+    }
+
+    // Индекс каталога баз; нет манифеста — пустой индекс
+    public static GlobalIndex open(File csvDir) throws IOException {
+        GlobalIndex index = new GlobalIndex(csvDir);
+        if (!index.dir.exists() && !index.dir.mkdirs()) throw new IOException("Не удалось создать " + index.dir);
+        File manifest = new File(index.dir, MANIFEST);
+        if (manifest.exists()) index.load(manifest);
+        index.deleteUnreferenced();
+        return index;
+    }
+
+    /**
+     * Добавляет импортированную базу (нужны её .tix и .off). База с тем же именем
+     * заменяется. Слияние сегментов запускается в фоне.
+     */
+    public synchronized void add(File csvFile) throws IOException {
+        File tix = DbFiles.sidecar(csvFile, DbFiles.TERMS);
+        File off = DbFiles.sidecar(csvFile, DbFiles.OFFSETS);
+        if (!tix.exists() || !off.exists()) return;
+        removeDatabase(csvFile.getName());
+        int id = nextDatabase++;
+        databases.put(id, csvFile.getName());
+        segments.add(new Segment(OWN + id, new int[]{id}, new int[]{0}, new int[]{(int) (off.length() / 8)}));
+        save();
+        scheduleMerge();
+    }
+
+    public synchronized void remove(String name) throws IOException {
+        if (removeDatabase(name)) {
+            save();
+            scheduleMerge();
+        }
+    }
+
+    public synchronized void rename(String oldName, String newName) throws IOException {
+        Integer id = idOf(oldName);
+        if (id == null) return;
+        removeDatabase(newName);
+        databases.put(id, newName);
+        save();
+    }
+
+    /**
+     * Сверка с каталогом: базы, которых больше нет, вычёркиваются, а базы со словарём,
+     * которых ещё нет в индексе, добавляются. Так индекс подхватывает базы,
+     * импортированные до его появления.
+     */
+    public synchronized void reconcile(File[] csvFiles) throws IOException {
+        Set<String> present = new HashSet<>();
+        for (File f : csvFiles) present.add(f.getName());
+        boolean changed = false;
+        for (String name : new ArrayList<>(databases.values())) {
+            if (!present.contains(name)) changed |= removeDatabase(name);
+        }
+        if (changed) {
+            save();
+            scheduleMerge();
+        }
+        for (File f : csvFiles) {
+            if (idOf(f.getName()) == null) add(f);
+        }
+    }
+
+    // Снимок для поиска: сегменты не удаляются, пока снимок не закрыт
+    public synchronized Snapshot snapshot() throws IOException {
+        List<Segment> acquired = new ArrayList<>(segments.size());
+        try {
+            for (Segment segment : segments) {
+                acquire(segment);
+                acquired.add(segment);
+            }
+        } catch (IOException e) {
+            for (Segment segment : acquired) release(segment);
+            throw e;
+        }
+        return new Snapshot(acquired, new HashMap<>(databases));
+    }
+
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        merger.shutdownNow();
+        synchronized (this) {
+            for (Segment segment : segments) segment.closeIndex();
+        }
+    }
+
+    public final class Snapshot implements Closeable {
+        private final List<Segment> segments;
+        private final Map<Integer, String> names;
+        private final Set<String> covered = new HashSet<>();
+        private boolean closed;
+
+        private Snapshot(List<Segment> segments, Map<Integer, String> names) {
+            this.segments = segments;
+            this.names = names;
+            for (Segment segment : segments) {
+                for (int id : segment.dbIds) {
+                    String name = names.get(id);
+                    if (name != null) covered.add(name);
+                }
+            }
+        }
+
+        // Есть ли база в индексе; остальные базы ищутся по отдельности
+        public boolean covers(String name) {
+            return covered.contains(name);
+        }
+
+        /**
+         * Строки каждой базы, где есть терм (exact) или терм с этим началом.
+         * Один поиск в словаре на сегмент, сколько бы баз в нём ни было.
+         */
+        public Map<String, int[]> lookup(String term, boolean exact) throws IOException {
+            Map<String, int[]> result = new HashMap<>();
+            for (Segment segment : segments) {
+                int[] rows = exact ? segment.index.lookup(term) : segment.index.prefix(term);
+                int db = 0;
+                IntList dbRows = new IntList();
+                for (int row : rows) {
+                    while (db + 1 < segment.dbIds.length && row >= segment.bases[db] + segment.rows[db]) {
+                        emit(segment.dbIds[db], dbRows, result);
+                        db++;
+                    }
+                    dbRows.add(row - segment.bases[db]);
+                }
+                emit(segment.dbIds[db], dbRows, result);
+            }
+            return result;
+        }
+
+        private void emit(int id, IntList rows, Map<String, int[]> result) {
+            String name = names.get(id);
+            if (name != null && !rows.isEmpty()) result.put(name, rows.toArray());
+            rows.clear();
+        }
+
+        @Override
+        public void close() {
+            synchronized (GlobalIndex.this) {
+                if (closed) return;
+                closed = true;
+                for (Segment segment : segments) release(segment);
+            }
+        }
+    }
+
+    // Словарь сегмента и его базы: строки базы dbIds[i] — [bases[i], bases[i] + rows[i])
+    private static final class Segment {
+        final String file;
+        final int[] dbIds;
+        final int[] bases;
+        final int[] rows;
+        TermIndex index;
+        int refs;
+        boolean retired;
+
+        Segment(String file, int[] dbIds, int[] bases, int[] rows) {
+            this.file = file;
+            this.dbIds = dbIds;
+            this.bases = bases;
+            this.rows = rows;
+        }
+
+        boolean isOwn() {
+            return file.startsWith(OWN);
+        }
+
+        long totalRows() {
+            long total = 0;
+            for (int r : rows) total += r;
+            return total;
+        }
+
+        long liveRows(Map<Integer, String> databases) {
+            long live = 0;
+            for (int i = 0; i < dbIds.length; i++) {
+                if (databases.containsKey(dbIds[i])) live += rows[i];
+            }
+            return live;
+        }
+
+        // Номер базы сегмента, которой принадлежит строка
+        int dbIndex(int row) {
+            int i = Arrays.binarySearch(bases, row);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        void closeIndex() {
+            if (index == null) return;
+            try {
+                index.close();
+            } catch (IOException e) {
+                // файл только читался — закрыть нечего терять
+            }
+            index = null;
+        }
+    }
+
+    private File fileOf(Segment segment) {
+        if (!segment.isOwn()) return new File(dir, segment.file);
+        String name = databases.get(Integer.parseInt(segment.file.substring(OWN.length())));
+        return DbFiles.sidecar(new File(csvDir, name), DbFiles.TERMS);
+    }
+
+    private void acquire(Segment segment) throws IOException {
+        if (segment.index == null) {
+            segment.index = TermIndex.open(fileOf(segment));
+            if (segment.index == null) throw new IOException("Нет сегмента " + segment.file);
+        }
+        segment.refs++;
+    }
+
+    private void release(Segment segment) {
+        if (--segment.refs == 0 && segment.retired) dispose(segment);
+    }
+
+    // Сегмент больше не нужен: файл слитого сегмента удаляется, когда его никто не читает
+    private void retire(Segment segment) {
+        segment.retired = true;
+        if (segment.refs == 0) dispose(segment);
+    }
+
+    private void dispose(Segment segment) {
+        segment.closeIndex();
+        if (!segment.isOwn()) new File(dir, segment.file).delete();
+    }
+
+    private Integer idOf(String name) {
+        for (Map.Entry<Integer, String> e : databases.entrySet()) {
+            if (e.getValue().equals(name)) return e.getKey();
+        }
+        return null;
+    }
+
+    // Собственный сегмент базы уходит вместе с ней; в слитых база остаётся до слияния
+    private boolean removeDatabase(String name) {
+        Integer id = idOf(name);
+        if (id == null) return false;
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (segment.isOwn() && segment.dbIds[0] == id) {
+                segments.remove(segment);
+                retire(segment);
+            }
+        }
+        databases.remove(id);
+        return true;
+    }
+
+    private void scheduleMerge() {
+        if (mergeScheduled) return;
+        mergeScheduled = true;
+        merger.execute(() -> {
+            synchronized (this) {
+                mergeScheduled = false;
+            }
+            try {
+                List<Segment> group;
+                while ((group = pickMerge()) != null) merge(group);
+            } catch (IOException e) {
+                MergeListener l = mergeListener;
+                if (l != null) l.onMergeFailed(e);
+            }
+        });
+    }
+
+    /**
+     * Что сливать: больше MAX_SEGMENTS сегментов — самые маленькие, чтобы осталось MAX_SEGMENTS;
+     * иначе сегмент, где больше половины строк принадлежат удалённым базам.
+     */
+    private synchronized List<Segment> pickMerge() {
+        if (segments.size() > MAX_SEGMENTS) {
+            List<Segment> bySize = new ArrayList<>(segments);
+            Collections.sort(bySize, (a, b) -> Long.compare(a.totalRows(), b.totalRows()));
+            return new ArrayList<>(bySize.subList(0, segments.size() - MAX_SEGMENTS + 1));
+        }
+        for (Segment segment : segments) {
+            if (!segment.isOwn() && segment.liveRows(databases) < segment.totalRows() * (1 - MAX_DELETED_RATIO)) {
+                return Collections.singletonList(segment);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Сливает группу сегментов в новый; только в потоке слияния, поэтому два слияния
+     * не пересекаются. Словари читаются вне блокировки: поиск и изменения каталога не ждут. Базы, удалённые за время слияния, остаются в новом сегменте
+     * вычеркнутыми; в манифест новый сегмент попадает одной записью вместо группы.
+     */
+    private void merge(List<Segment> group) throws IOException {
+        Map<Integer, String> live;
+        File target;
+        synchronized (this) {
+            // Группу выбирали без блокировки слияния: база могла уйти вместе со своим сегментом
+            if (!segments.containsAll(group)) return;
+            for (Segment segment : group) acquire(segment);
+            live = new HashMap<>(databases);
+            target = new File(dir, "seg-" + nextSegment++ + ".tix");
+        }
+        try {
+            IntList ids = new IntList();
+            IntList bases = new IntList();
+            IntList counts = new IntList();
+            List<TermIndex> indexes = new ArrayList<>();
+            List<TermIndexWriter.RowMap> maps = new ArrayList<>();
+            long next = 0;
+            for (Segment segment : group) {
+                int[] newBase = new int[segment.dbIds.length];
+                for (int i = 0; i < segment.dbIds.length; i++) {
+                    if (!live.containsKey(segment.dbIds[i])) {
+                        newBase[i] = -1;
+                        continue;
+                    }
+                    newBase[i] = (int) next;
+                    ids.add(segment.dbIds[i]);
+                    bases.add((int) next);
+                    counts.add(segment.rows[i]);
+                    next += segment.rows[i];
+                }
+                if (next > Integer.MAX_VALUE) throw new IOException("Слишком много строк для одного сегмента");
+                indexes.add(segment.index);
+                maps.add(row -> {
+                    int db = segment.dbIndex(row);
+                    return newBase[db] < 0 ? -1 : newBase[db] + row - segment.bases[db];
+                });
+            }
+            if (!ids.isEmpty()) TermIndexWriter.merge(target, indexes, maps);
+
+            synchronized (this) {
+                segments.removeAll(group);
+                if (!ids.isEmpty()) {
+                    segments.add(new Segment(target.getName(), ids.toArray(), bases.toArray(), counts.toArray()));
+                }
+                try {
+                    save();
+                } catch (IOException e) {
+                    // манифест остался прежним: возвращаем группу, новый сегмент удаляем
+                    segments.removeIf(s -> s.file.equals(target.getName()));
+                    segments.addAll(group);
+                    target.delete();
+                    throw e;
+                }
+                for (Segment segment : group) retire(segment);
+            }
+        } catch (IOException e) {
+            target.delete();
+            throw e;
+        } finally {
+            synchronized (this) {
+                for (Segment segment : group) release(segment);
+            }
+        }
+    }
+
+    private void load(File manifest) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                // имя базы последним: в нём может быть что угодно, кроме \n
+                String[] parts = line.split("\t", 3);
+                try {
+                    switch (parts[0]) {
+                        case "next":
+                            nextDatabase = Integer.parseInt(parts[1]);
+                            nextSegment = Integer.parseInt(parts[2]);
+                            break;
+                        case "db":
+                            databases.put(Integer.parseInt(parts[1]), parts[2]);
+                            break;
+                        case "seg":
+                            segments.add(parseSegment(parts[1], parts[2]));
+                            break;
+                        default:
+                            break;
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException("Повреждённый манифест общего индекса", e);
+                }
+            }
+        }
+        // Собственный сегмент без базы (сбой между удалением и записью манифеста) не нужен
+        segments.removeIf(s -> s.isOwn() && !databases.containsKey(s.dbIds[0]));
+    }
+
+    private static Segment parseSegment(String file, String dbs) {
+        String[] entries = dbs.split(",");
+        int[] ids = new int[entries.length];
+        int[] bases = new int[entries.length];
+        int[] rows = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String[] p = entries[i].split(":");
+            ids[i] = Integer.parseInt(p[0]);
+            bases[i] = Integer.parseInt(p[1]);
+            rows[i] = Integer.parseInt(p[2]);
+        }
+        return new Segment(file, ids, bases, rows);
+    }
+
+    // Слитые сегменты, которых нет в манифесте, — остатки прерванного слияния
+    private void deleteUnreferenced() {
+        Set<String> referenced = new HashSet<>();
+        referenced.add(MANIFEST);
+        for (Segment segment : segments) referenced.add(segment.file);
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (!referenced.contains(f.getName())) f.delete();
+        }
+    }
+
+    private void save() throws IOException {
+        File manifest = new File(dir, MANIFEST);
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            out.write(HEADER + "\n");
+            out.write("next\t" + nextDatabase + "\t" + nextSegment + "\n");
+            for (Map.Entry<Integer, String> e : databases.entrySet()) {
+                out.write("db\t" + e.getKey() + "\t" + e.getValue() + "\n");
+            }
+            for (Segment segment : segments) {
+                StringBuilder dbs = new StringBuilder();
+                for (int i = 0; i < segment.dbIds.length; i++) {
+                    if (i > 0) dbs.append(',');
+                    dbs.append(segment.dbIds[i]).append(':').append(segment.bases[i]).append(':').append(segment.rows[i]);
+                }
+                out.write("seg\t" + segment.file + "\t" + dbs + "\n");
+            }
+        }
+        if (!tmp.renameTo(manifest)) {
+            tmp.delete();
+            throw new IOException("Не удалось сохранить " + manifest.getName());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Реестр содержимого импортированных баз: размер + xxHash64 для каждого CSV.
+ * Проверка дубликата — поиск в памяти по (размер, хеш) без перечитывания файлов,
+ * под любым именем. Хранится в текстовом файле рядом с базами; каждое изменение
+ * записывается сразу (через временный файл, чтобы сбой не оставил его обрезанным).
+ */
+public final class HashRegistry {
+    public static final String FILE_NAME = "hashes.reg";
+    private static final String HEADER = "# eyegod hashes v1";
+
+    public static final class Entry {
+        public final String name;
+        public final long size;
+        public final long modified;
+        public final long hash;
+
+        Entry(String name, long size, long modified, long hash) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+        String contentKey() {
+            return contentKey(size, hash);
+        }
+
+        static String contentKey(long size, long hash) {
+            return size + "/" + Long.toHexString(hash);
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<String, Entry> byContent = new HashMap<>();
+
+    private HashRegistry(File file) {
+        this.file = file;
+    }
+
+    // Реестр каталога баз; нет файла — пустой реестр
+    public static HashRegistry open(File dir) throws IOException {
+        HashRegistry registry = new HashRegistry(new File(dir, FILE_NAME));
+        if (!registry.file.exists()) return registry;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(registry.file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                // размер, время изменения, хеш, имя — имя последним, в нём может быть что угодно, кроме \n
+                String[] parts = line.split("\t", 4);
+                if (parts.length < 4) continue;
+                try {
+                    registry.index(new Entry(parts[3], Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                            Long.parseUnsignedLong(parts[2], 16)));
+                } catch (NumberFormatException e) {
+                    // повреждённая строка: база будет перехеширована при reconcile
+                }
+            }
+        }
+        return registry;
+    }
+
+    // База с тем же содержимым или null
+    public synchronized Entry find(long size, long hash) {
+        return byContent.get(Entry.contentKey(size, hash));
+    }
+
+    public synchronized void put(File csvFile, long hash) throws IOException {
+        unindex(csvFile.getName());
+        index(new Entry(csvFile.getName(), csvFile.length(), csvFile.lastModified(), hash));
+        save();
+    }
+
+    public synchronized void remove(String name) throws IOException {
+        if (unindex(name) != null) save();
+    }
+
+    public synchronized void rename(String oldName, String newName) throws IOException {
+        Entry entry = unindex(oldName);
+        if (entry == null) return;
+        unindex(newName);
+        index(new Entry(newName, entry.size, entry.modified, entry.hash));
+        save();
+    }
+
+    /**
+     * Сверка с каталогом: записи удалённых файлов выбрасываются, а файлы без записи
+     * или изменённые с момента записи (другие размер или время) хешируются заново.
+     * Так один раз подхватываются базы, импортированные до появления реестра.
+     */
+    public synchronized void reconcile(File[] csvFiles) throws IOException {
+        boolean changed = false;
+        Map<String, File> present = new HashMap<>();
+        for (File f : csvFiles) present.put(f.getName(), f);
+
+        for (String name : new ArrayList<>(byName.keySet())) {
+            if (!present.containsKey(name)) {
+                unindex(name);
+                changed = true;
+            }
+        }
+        for (File f : csvFiles) {
+            Entry entry = byName.get(f.getName());
+            if (entry != null && entry.size == f.length() && entry.modified == f.lastModified()) continue;
+            unindex(f.getName());
+            index(new Entry(f.getName(), f.length(), f.lastModified(), hashFile(f)));
+            changed = true;
+        }
+        if (changed) save();
+    }
+
+    /**
+     * Хеш базы, изменившейся на месте (дописаны строки, {@link DbAppender}): файл читается без
+     * блокировки реестра, запись меняется, только если файл не менялся за время подсчёта, —
+     * иначе его перехеширует reconcile.
+     */
+    public void rehash(File csvFile) throws IOException {
+        long size = csvFile.length();
+        long modified = csvFile.lastModified();
+        long hash = hashFile(csvFile);
+        synchronized (this) {
+            if (csvFile.length() != size || csvFile.lastModified() != modified) return;
+            unindex(csvFile.getName());
+            index(new Entry(csvFile.getName(), size, modified, hash));
+            save();
+        }
+    }
+
+    public static long hashFile(File f) throws IOException {
+        XxHash64 hash = new XxHash64();
+        try (InputStream in = new FileInputStream(f)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) hash.update(buffer, 0, read);
+        }
+        return hash.digest();
+    }
+
+    private void index(Entry entry) {
+        byName.put(entry.name, entry);
+        byContent.put(entry.contentKey(), entry);
+    }
+
+    private Entry unindex(String name) {
+        Entry entry = byName.remove(name);
+        if (entry != null && byContent.get(entry.contentKey()) == entry) byContent.remove(entry.contentKey());
+        return entry;
+    }
+
+    private void save() throws IOException {
+        List<Entry> entries = new ArrayList<>(byName.values());
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            out.write(HEADER);
+            out.write('\n');
+            for (Entry e : entries) {
+                out.write(e.size + "\t" + e.modified + "\t" + Long.toHexString(e.hash) + "\t" + e.name + "\n");
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Не удалось сохранить " + file.getName());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.eyegod.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Превращает ссылку (база, строка) в текст для вывода. Держит открытым
+ * по одному {@link CsvRowReader} на базу, пока идёт показ результатов одного поиска.
+ * Строки баз, чей индекс перестраивается, читаются проходом по CSV ({@link CsvScan}):
+ * строки показываются по возрастанию, поэтому проход продолжается с места прошлой строки.
+ */
+public final class HitFormatter implements Closeable {
+    // null в значении — база без таблицы смещений, строку ищем перечитыванием CSV
+    private final Map<File, CsvRowReader> readers = new HashMap<>();
+    // Базы с негодным индексом: проход по CSV, остановленный на последней показанной строке
+    private final Map<File, CsvScan> scans = new HashMap<>();
+    private final DbCatalog catalog;
+    private final IndexRebuilder rebuilder;
+    private volatile QueryTrace trace;
+
+    public HitFormatter() {
+        this(null);
+    }
+
+    // Разделитель и заголовок базы — из каталога, без чтения начала CSV; null — из файла
+    public HitFormatter(DbCatalog catalog) {
+        this(catalog, null);
+    }
+
+    // rebuilder — годность индексов баз; null — таблицы смещений на диске считаются годными
+    public HitFormatter(DbCatalog catalog, IndexRebuilder rebuilder) {
+        this.catalog = catalog;
+        this.rebuilder = rebuilder;
+    }
+
+    // Трасса поиска, чьи строки показываются: чтение и сборка текста пишутся в неё
+    public void setTrace(QueryTrace trace) {
+        this.trace = trace;
+    }
+
+    public synchronized String format(File csvFile, int row) throws IOException {
+        QueryTrace.Timer resolve = QueryTrace.begin(trace, QueryTrace.RESOLVE, csvFile);
+        CsvRowReader reader;
+        if (readers.containsKey(csvFile)) {
+            reader = readers.get(csvFile);
+        } else if (scans.containsKey(csvFile) || (rebuilder != null && !rebuilder.isUsable(csvFile))) {
+            return scanned(csvFile, row, resolve);
+        } else {
+            reader = CsvRowReader.open(csvFile, entry(csvFile));
+            readers.put(csvFile, reader);
+        }
+        if (reader == null) {
+            // В .idx нет заголовка, в CSV — есть, поэтому номер строки в CSV = row + 1
+            String text = CsvRowReader.formatLine(csvFile, row + 1, entry(csvFile));
+            resolve.rows = row + 1;
+            resolve.end();
+            return text;
+        }
+        CsvTokenizer fields = reader.newTokenizer();
+        boolean found = reader.readRecord(row, fields);
+        resolve.rows = 1;
+        resolve.end();
+        if (!found) return null;
+        QueryTrace.Timer format = QueryTrace.begin(trace, QueryTrace.FORMAT, csvFile);
+        String text = reader.format(fields);
+        format.end();
+        return text;
+    }
+
+    private String scanned(File csvFile, int row, QueryTrace.Timer resolve) throws IOException {
+        CsvScan scan = scans.get(csvFile);
+        if (scan == null || scan.row() > row) {
+            if (scan != null) scan.close();
+            scan = CsvScan.open(csvFile, entry(csvFile));
+            scans.put(csvFile, scan);
+        }
+        int from = scan.row();
+        while (scan.row() < row) {
+            if (!scan.next()) break;
+        }
+        resolve.rows = scan.row() - from;
+        resolve.bytes = scan.position();
+        resolve.end();
+        if (scan.row() != row) return null;
+        QueryTrace.Timer format = QueryTrace.begin(trace, QueryTrace.FORMAT, csvFile);
+        String text = CsvRowReader.format(csvFile, scan.headers, scan.fields());
+        format.end();
+        return text;
+    }
+
+    private DbCatalog.Entry entry(File csvFile) {
+        return catalog != null ? catalog.get(csvFile) : null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (CsvRowReader reader : readers.values()) {
+            if (reader != null) reader.close();
+        }
+        readers.clear();
+        for (CsvScan scan : scans.values()) scan.close();
+        scans.clear();
+    }
+}
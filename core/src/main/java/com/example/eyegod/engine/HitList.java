@@ -0,0 +1,227 @@
+package com.example.eyegod.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Найденные строки как ссылки (база, номер строки), упакованные в long:
+ * старшие 32 бита — номер базы, младшие — строка. Текст строки не хранится,
+ * его получают через {@link HitFormatter}, когда страница становится видимой.
+ * В пакетном поиске у каждой строки есть метка — номер запроса, который её нашёл.
+ *
+ * В памяти держится не больше memoryBudget байт ссылок. Сверх бюджета старые ссылки
+ * сбрасываются во временный файл записями по RECORD_SIZE байт (ссылка, метка),
+ * а при просмотре читаются оттуда блоками по READ_BLOCK — страница списка стоит одно чтение.
+ * Потокобезопасен: пишут рабочие потоки поиска, читает поток форматирования страниц ({@link #get}).
+ */
+public final class HitList implements Closeable {
+    private static final int RECORD_SIZE = 8 + 4;
+    private static final int READ_BLOCK = 1024;
+    private static final int MIN_CAPACITY = 1024;
+    private static final String SPILL_PREFIX = "hits";
+    private static final String SPILL_SUFFIX = ".bin";
+
+    private final List<File> files = new ArrayList<>();
+    private final Map<File, Integer> fileIds = new HashMap<>();
+    private final File spillDir;
+    private final int budgetCapacity; // ссылок в памяти, дальше — сброс в файл
+    private int capacity; // то же, но после ошибки записи файла — без предела
+    private long[] hits = new long[64];
+    private int[] tags; // null, пока не добавлено ни одной строки с меткой
+    private int size;
+
+    // Сброшенные в файл ссылки: [0, spilled) — в файле, [spilled, size) — в памяти
+    private RandomAccessFile spill;
+    private File spillFile;
+    private int spilled;
+    private final long[] blockHits = new long[READ_BLOCK];
+    private final int[] blockTags = new int[READ_BLOCK];
+    private int block = -1;
+
+    // Всё в памяти
+    public HitList() {
+        this(null, Long.MAX_VALUE);
+    }
+
+    // spillDir — куда сбрасывать ссылки сверх memoryBudget байт
+    public HitList(File spillDir, long memoryBudget) {
+        this.spillDir = spillDir;
+        this.budgetCapacity = spillDir == null ? Integer.MAX_VALUE
+                : (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_CAPACITY, memoryBudget / RECORD_SIZE));
+        this.capacity = budgetCapacity;
+    }
+
+    // Файлы, оставшиеся в spillDir после аварийного завершения
+    public static void deleteSpillFiles(File spillDir) {
+        File[] stale = spillDir.listFiles((dir, name) -> name.startsWith(SPILL_PREFIX) && name.endsWith(SPILL_SUFFIX));
+        if (stale == null) return;
+        for (File f : stale) f.delete();
+    }
+
+    public synchronized void addAll(File csvFile, int[] rows) {
+        addAll(csvFile, rows, null);
+    }
+
+    // tags[i] — метка rows[i]; null — без меток
+    public synchronized void addAll(File csvFile, int[] rows, int[] tags) {
+        Integer id = fileIds.get(csvFile);
+        if (id == null) {
+            id = files.size();
+            files.add(csvFile);
+            fileIds.put(csvFile, id);
+        }
+        long high = (long) id << 32;
+        for (int from = 0; from < rows.length; ) {
+            if (size - spilled == capacity) spillMemory();
+            int count = Math.min(rows.length - from, capacity - (size - spilled));
+            append(high, rows, tags, from, count);
+            from += count;
+        }
+    }
+
+    private void append(long high, int[] rows, int[] tags, int from, int count) {
+        int used = size - spilled;
+        if (used + count > hits.length) {
+            hits = Arrays.copyOf(hits, (int) Math.min(capacity, Math.max(hits.length * 2L, used + count)));
+        }
+        if (tags != null || this.tags != null) {
+            if (this.tags == null) {
+                this.tags = new int[hits.length];
+                Arrays.fill(this.tags, 0, used, -1);
+            } else if (this.tags.length < hits.length) {
+                this.tags = Arrays.copyOf(this.tags, hits.length);
+            }
+            for (int i = 0; i < count; i++) this.tags[used + i] = tags != null ? tags[from + i] : -1;
+        }
+        for (int i = 0; i < count; i++) hits[used + i] = high | (rows[from + i] & 0xFFFFFFFFL);
+        size += count;
+    }
+
+    // Ссылки из памяти — в конец файла; массивы остаются для следующих
+    private void spillMemory() {
+        int used = size - spilled;
+        ByteBuffer records = ByteBuffer.allocate(used * RECORD_SIZE);
+        for (int i = 0; i < used; i++) {
+            records.putLong(hits[i]);
+            records.putInt(tags != null ? tags[i] : -1);
+        }
+        records.flip();
+        try {
+            if (spill == null) {
+                spillFile = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, spillDir);
+                spill = new RandomAccessFile(spillFile, "rw");
+            }
+            long position = (long) spilled * RECORD_SIZE;
+            while (records.hasRemaining()) position += spill.getChannel().write(records, position);
+        } catch (IOException e) {
+            // Поиск не должен падать из-за временного файла: дальше список растёт в памяти
+            capacity = Integer.MAX_VALUE;
+            return;
+        }
+        spilled += used;
+        block = -1; // последний блок мог быть прочитан неполным
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Сколько ссылок сейчас в файле, а не в памяти
+    public synchronized int spilledCount() {
+        return spilled;
+    }
+
+    // Одна найденная строка: база, номер строки и метка (-1 — без метки)
+    public static final class Hit {
+        public final File file;
+        public final int row;
+        public final int tag;
+
+        Hit(File file, int row, int tag) {
+            this.file = file;
+            this.row = row;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * Ссылка с номером index; null — такой уже нет (список очищен новым поиском).
+     * Сброшенные ссылки читаются из файла, поэтому вызывать не из UI-потока.
+     */
+    public synchronized Hit get(int index) throws IOException {
+        if (index >= size) return null;
+        long hit;
+        int tag;
+        if (index >= spilled) {
+            hit = hits[index - spilled];
+            tag = tags != null ? tags[index - spilled] : -1;
+        } else {
+            load(index);
+            hit = blockHits[index % READ_BLOCK];
+            tag = blockTags[index % READ_BLOCK];
+        }
+        return new Hit(files.get((int) (hit >>> 32)), (int) hit, tag);
+    }
+
+    // Блок записей файла с index; соседние строки страницы берутся из того же блока
+    private void load(int index) throws IOException {
+        int wanted = index / READ_BLOCK;
+        if (wanted == block) return;
+        int first = wanted * READ_BLOCK;
+        int count = Math.min(READ_BLOCK, spilled - first);
+        ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE);
+        long position = (long) first * RECORD_SIZE;
+        while (records.hasRemaining()) {
+            int read = spill.getChannel().read(records, position + records.position());
+            if (read < 0) throw new IOException("Файл результатов обрезан");
+        }
+        records.flip();
+        for (int i = 0; i < count; i++) {
+            blockHits[i] = records.getLong();
+            blockTags[i] = records.getInt();
+        }
+        block = wanted;
+    }
+
+    public synchronized void clear() {
+        files.clear();
+        fileIds.clear();
+        hits = new long[64];
+        tags = null;
+        size = 0;
+        capacity = budgetCapacity;
+        deleteSpill();
+    }
+
+    // Удаляет временный файл; сам список остаётся пригодным
+    @Override
+    public synchronized void close() {
+        clear();
+    }
+
+    private void deleteSpill() {
+        spilled = 0;
+        block = -1;
+        if (spill == null) return;
+        try {
+            spill.close();
+        } catch (IOException e) {
+            // Файл всё равно удаляется
+        }
+        spillFile.delete();
+        spill = null;
+        spillFile = null;
+    }
+}
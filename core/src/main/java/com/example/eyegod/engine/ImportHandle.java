@@ -0,0 +1,23 @@
+package com.example.eyegod.engine;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Запущенный импорт: кооперативная отмена. Поток импорта проверяет флаг между блоками
+ * и бросает {@link CancellationException}; недописанные файлы удаляет вызывающий.
+ */
+public final class ImportHandle {
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void throwIfCancelled() {
+        if (cancelled) throw new CancellationException("Импорт отменён");
+    }
+}
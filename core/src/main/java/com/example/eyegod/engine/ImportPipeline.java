@@ -0,0 +1,293 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Импорт за один проход по источнику: каждый прочитанный блок хешируется, пишется
+ * в копию базы и передаётся потоку индексации через ограниченную очередь блоков.
+ * Если индексация отстаёт, чтение ждёт освобождения блока — памяти не больше
+ * BLOCK_COUNT * BLOCK_SIZE независимо от размера файла.
+ */
+public final class ImportPipeline {
+    static final int BLOCK_SIZE = 256 * 1024;
+    static final int BLOCK_COUNT = 8;
+    public static final long REPORT_INTERVAL_MS = 200;
+    private static final int HEADER_LIMIT = 1 << 20;
+
+    public static final class Result {
+        public final long hash; // xxHash64 содержимого, ключ для HashRegistry
+        public final long bytes;
+        public final int rows;
+        public final long copyMs;  // проход по источнику
+        public final long indexMs; // сборка словаря после конца источника
+
+        Result(long hash, long bytes, int rows, long copyMs, long indexMs) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.rows = rows;
+            this.copyMs = copyMs;
+            this.indexMs = indexMs;
+        }
+    }
+
+    private ImportPipeline() {}
+
+    /**
+     * Первая строка потока без его потребления: поток должен поддерживать mark/reset
+     * (например, {@link BufferedInputStream}). null — поток пуст.
+     */
+    public static String peekHeaderLine(InputStream in) throws IOException {
+        in.mark(HEADER_LIMIT);
+        try {
+            LineReader reader = new LineReader(new LimitedInputStream(in, HEADER_LIMIT), 8192);
+            return reader.next() ? reader.lineString() : null;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Копирует source в target, попутно считая хеш содержимого и строя индекс target.
+     * totalBytes — размер источника для оценки оставшегося времени (-1, если неизвестен).
+     * При отмене бросает CancellationException: сборка индекса прерывается, спутники target удаляются,
+     * недописанную копию убирает вызывающий.
+     */
+    public static Result run(InputStream source, File target, String[] headers, Map<String, Integer> fieldMapping,
+                             long totalBytes, ImportHandle handle, ImportProgress.Listener listener)
+            throws IOException {
+        long started = System.nanoTime();
+        XxHash64 hash = new XxHash64();
+        BlockPipe pipe = new BlockPipe();
+        AtomicInteger rowCounter = new AtomicInteger();
+        int[] rows = new int[1];
+        Throwable[] indexError = new Throwable[1];
+        Thread indexer = new Thread(() -> {
+            try (InputStream blocks = pipe.input()) {
+                rows[0] = IndexBuilder.build(blocks, target, headers, fieldMapping, rowCounter);
+            } catch (Throwable t) {
+                indexError[0] = t;
+            }
+        }, "import-index");
+        indexer.start();
+
+        long bytes = 0;
+        try (OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = new byte[BLOCK_SIZE];
+            long lastReport = started;
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                handle.throwIfCancelled();
+                hash.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                pipe.write(buffer, read);
+                bytes += read;
+                long now = System.nanoTime();
+                if (now - lastReport >= REPORT_INTERVAL_MS * 1_000_000L) {
+                    lastReport = now;
+                    listener.onProgress(new ImportProgress(ImportProgress.Stage.COPY, bytes, totalBytes,
+                            rowCounter.get(), elapsedMs(started)));
+                }
+            }
+            pipe.finish();
+        } catch (IOException | RuntimeException e) {
+            // Запись в очередь падает, когда индексатор уже упал, — настоящая причина у него
+            boolean indexerFailed = pipe.consumerClosed;
+            pipe.abort();
+            joinQuietly(indexer);
+            if (handle.isCancelled()) DbFiles.deleteSidecars(target);
+            if (indexerFailed && indexError[0] != null) throw new IOException("Ошибка индексации", indexError[0]);
+            throw e;
+        }
+        long copyMs = elapsedMs(started);
+
+        // Источник прочитан: индексатор дорабатывает очередь и собирает словарь термов
+        try {
+            while (indexer.isAlive()) {
+                if (handle.isCancelled()) {
+                    // Словарь большой базы собирается долго — не ждём его, а прерываем сборку
+                    indexer.interrupt();
+                    joinQuietly(indexer);
+                    break;
+                }
+                listener.onProgress(new ImportProgress(ImportProgress.Stage.INDEX, bytes, totalBytes,
+                        rowCounter.get(), elapsedMs(started)));
+                indexer.join(REPORT_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            joinQuietly(indexer);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (handle.isCancelled()) {
+            DbFiles.deleteSidecars(target);
+            handle.throwIfCancelled();
+        }
+        if (indexError[0] != null) throw new IOException("Ошибка индексации", indexError[0]);
+        // Копия закрыта: отметка индекса ляжет рядом и переедет с остальными спутниками
+        IndexStamp.write(target, rows[0]);
+        return new Result(hash.digest(), bytes, rows[0], copyMs, elapsedMs(started) - copyMs);
+    }
+
+    private static long elapsedMs(long startedNanos) {
+        return (System.nanoTime() - startedNanos) / 1_000_000L;
+    }
+
+    // Индексатор обязательно останавливается после abort, поэтому ждём его до конца
+    private static void joinQuietly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Ограниченная очередь между чтением и индексацией. Блоки переиспользуются:
+     * пустые ходят по кругу через free, заполненные — через full.
+     */
+    private static final class BlockPipe {
+        private static final byte[] EOF = new byte[0];
+        private static final byte[] ABORTED = new byte[0];
+
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(BLOCK_COUNT);
+        private final BlockingQueue<byte[]> full = new ArrayBlockingQueue<>(BLOCK_COUNT + 1);
+        private final int[] lengths = new int[BLOCK_COUNT];
+        private final byte[][] blocks = new byte[BLOCK_COUNT][];
+        private volatile boolean consumerClosed;
+
+        BlockPipe() {
+            for (int i = 0; i < BLOCK_COUNT; i++) {
+                blocks[i] = new byte[BLOCK_SIZE];
+                free.add(blocks[i]);
+            }
+        }
+
+        void write(byte[] data, int length) throws IOException {
+            byte[] block = null;
+            try {
+                while (block == null) {
+                    if (consumerClosed) throw new IOException("Индексация остановлена");
+                    block = free.poll(100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            System.arraycopy(data, 0, block, 0, length);
+            lengths[indexOf(block)] = length;
+            full.add(block);
+        }
+
+        void finish() {
+            full.add(EOF);
+        }
+
+        void abort() {
+            full.add(ABORTED);
+        }
+
+        private int indexOf(byte[] block) {
+            for (int i = 0; i < BLOCK_COUNT; i++) {
+                if (blocks[i] == block) return i;
+            }
+            throw new IllegalStateException();
+        }
+
+        InputStream input() {
+            return new InputStream() {
+                private byte[] current;
+                private int pos, limit;
+                private boolean eof;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) return 0;
+                    while (current == null || pos == limit) {
+                        if (eof) return -1;
+                        if (current != null) free.add(current);
+                        current = null;
+                        byte[] next;
+                        try {
+                            next = full.take();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                        if (next == EOF) {
+                            eof = true;
+                            return -1;
+                        }
+                        if (next == ABORTED) throw new IOException("Импорт прерван");
+                        current = next;
+                        pos = 0;
+                        limit = lengths[indexOf(next)];
+                    }
+                    int n = Math.min(len, limit - pos);
+                    System.arraycopy(current, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+
+                @Override
+                public void close() {
+                    consumerClosed = true;
+                    if (current != null) free.add(current);
+                    current = null;
+                }
+            };
+        }
+    }
+
+    private static final class LimitedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // исходный поток закрывает вызывающий
+        }
+    }
+}
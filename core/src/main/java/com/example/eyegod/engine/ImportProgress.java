@@ -0,0 +1,50 @@
+package com.example.eyegod.engine;
+
+/**
+ * Снимок хода импорта для отображения и логов. Стадии идут по порядку:
+ * COPY — проход по источнику (копия + строки в индекс), INDEX — сборка словаря термов
+ * после конца источника, REGISTER — запись в реестр и перенос под итоговым именем.
+ */
+public final class ImportProgress {
+    public enum Stage { COPY, INDEX, REGISTER }
+
+    public interface Listener {
+        // Вызывается из потока импорта не чаще раза в ImportPipeline.REPORT_INTERVAL_MS и при смене стадии
+        void onProgress(ImportProgress progress);
+    }
+
+    public final Stage stage;
+    public final long bytes;
+    public final long totalBytes; // -1 — размер источника неизвестен
+    public final int rows;
+    public final long elapsedMs;
+
+    public ImportProgress(Stage stage, long bytes, long totalBytes, int rows, long elapsedMs) {
+        this.stage = stage;
+        this.bytes = bytes;
+        this.totalBytes = totalBytes;
+        this.rows = rows;
+        this.elapsedMs = elapsedMs;
+    }
+
+    public double bytesPerSecond() {
+        return elapsedMs > 0 ? bytes * 1000.0 / elapsedMs : 0;
+    }
+
+    public double rowsPerSecond() {
+        return elapsedMs > 0 ? rows * 1000.0 / elapsedMs : 0;
+    }
+
+    // Оставшееся время прохода по источнику по текущей скорости; -1 — оценить нельзя
+    public long etaMs() {
+        double speed = bytesPerSecond();
+        if (stage != Stage.COPY || totalBytes < 0 || speed <= 0) return -1;
+        return (long) (Math.max(0, totalBytes - bytes) * 1000 / speed);
+    }
+
+    // Доля прохода 0..100; -1 — размер неизвестен
+    public int percent() {
+        if (totalBytes <= 0) return -1;
+        return (int) Math.min(100, bytes * 100 / totalBytes);
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.eyegod.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Поиск при вводе: запрос к полю на каждое нажатие, только по словарям термов (.tix) —
+ * базы без словаря и запросы без поля ищутся кнопкой. Новый запрос отменяет текущий.
+ *
+ * Для каждой базы помнится раскрытие префикса: термы словаря с этим началом и их строки.
+ * Запрос, продолжающий префикс, отбирает термы из раскрытия, не читая файлов. Раскрытий
+ * два: последнее и самое короткое — к нему возвращает стирание символов; прочитанные
+ * строки термов помнятся, пока самое короткое раскрытие не сменится.
+ * Слишком общий префикс (больше MAX_TERMS термов в базе) не раскрывается — см. {@link Listener#onTooBroad}.
+ * Неполный номер на 8 или 9 раскрывается дважды — как введён и с 7 в начале ({@link SearchQuery#terms}).
+ *
+ * Все обращения к словарям — в одном своём потоке, поэтому состояние баз без блокировок.
+ */
+public final class IncrementalSearch implements Closeable {
+    // Короче нормализованный запрос — слишком много термов, ждём следующего символа
+    public static final int MIN_LENGTH = 3;
+    private static final int MAX_TERMS = 10000;
+
+    private final List<File> csvFiles;
+    private final long[] stamps;
+    private final Map<File, Db> databases = new HashMap<>();
+    private final ExecutorService thread = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "incremental-search");
+        t.setDaemon(true);
+        return t;
+    });
+    private SearchHandle current;
+
+    public interface Listener extends SearchListener {
+        // В базе слишком много термов с таким началом — её строки не выданы
+        default void onTooBroad(File csvFile) {}
+    }
+
+    public IncrementalSearch(List<File> csvFiles) {
+        this.csvFiles = new ArrayList<>(csvFiles);
+        this.stamps = stamps(this.csvFiles);
+    }
+
+    // Тот же набор баз и те же словари — иначе нужна новая сессия
+    public boolean isFor(List<File> csvFiles) {
+        return this.csvFiles.equals(csvFiles) && Arrays.equals(stamps, stamps(csvFiles));
+    }
+
+    public static boolean accepts(SearchQuery query) {
+        return query.isField() && Fields.normalizeQuery(query.type, query.text).length() >= MIN_LENGTH;
+    }
+
+    // Отменяет предыдущий запрос; строки каждой базы приходят одной порцией
+    public synchronized SearchHandle search(SearchQuery query, Listener listener) {
+        if (current != null) current.cancel();
+        SearchHandle handle = new SearchHandle(csvFiles.size(), listener);
+        current = handle;
+        String[] terms = query.terms();
+        // Точно — только ключ целиком (номер +7 из 11 цифр, адрес с доменом, см. Fields#isCompleteKey):
+        // набираемый Telegram-идентификатор и неполный номер уточняются как префикс на каждом символе
+        boolean exact = query.isExact();
+        thread.execute(() -> {
+            for (File csvFile : csvFiles) {
+                try {
+                    if (handle.isCancelled()) continue;
+                    int[] rows = database(csvFile).search(terms, exact, handle);
+                    if (rows == null) {
+                        listener.onTooBroad(csvFile);
+                    } else if (rows.length > 0 && !handle.isCancelled()) {
+                        listener.onHits(csvFile, rows);
+                    }
+                } catch (IOException e) {
+                    listener.onError(csvFile, e);
+                } finally {
+                    handle.fileDone(csvFile);
+                }
+            }
+        });
+        return handle;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (current != null) current.cancel();
+        thread.execute(() -> {
+            for (Db db : databases.values()) db.close();
+            databases.clear();
+        });
+        thread.shutdown();
+    }
+
+    private Db database(File csvFile) throws IOException {
+        Db db = databases.get(csvFile);
+        if (db == null) {
+            // Без таблицы смещений номера строк словаря не разрешить; словарь с дописанными,
+            // но не слитыми строками ({@link DeltaIndex}) неполон — такая база ищется кнопкой
+            TermIndex index = DbFiles.sidecar(csvFile, DbFiles.OFFSETS).exists()
+                    && !DbFiles.sidecar(csvFile, DbFiles.SEGMENTS).exists()
+                    ? TermIndex.open(DbFiles.sidecar(csvFile, DbFiles.TERMS)) : null;
+            db = new Db(index);
+            databases.put(csvFile, db);
+        }
+        return db;
+    }
+
+    private static long[] stamps(List<File> csvFiles) {
+        long[] result = new long[csvFiles.size()];
+        for (int i = 0; i < result.length; i++) {
+            // Дописывание строк меняет список порций, слияние — словарь
+            result[i] = Math.max(DbFiles.sidecar(csvFiles.get(i), DbFiles.TERMS).lastModified(),
+                    DbFiles.sidecar(csvFiles.get(i), DbFiles.SEGMENTS).lastModified());
+        }
+        return result;
+    }
+
+    private static final class Db {
+        private final TermIndex index;
+        // Раскрытия по термам запроса (см. SearchQuery#terms): номер как введён и с 7 в начале
+        private final Narrowing[] narrowings = {new Narrowing(), new Narrowing()};
+
+        Db(TermIndex index) {
+            this.index = index;
+        }
+
+        // null — префикс слишком общий
+        int[] search(String[] terms, boolean exact, SearchHandle handle) throws IOException {
+            if (index == null) return new int[0];
+            int[] result = new int[0];
+            for (int i = 0; i < terms.length; i++) {
+                int[] rows = narrowings[i].search(index, terms[i].getBytes(StandardCharsets.UTF_8), exact, handle);
+                if (rows == null) return null;
+                result = QueryPlanner.union(result, rows);
+            }
+            return result;
+        }
+
+        void close() {
+            try {
+                if (index != null) index.close();
+            } catch (IOException e) {
+                // Файл открыт только на чтение — ошибку закрытия можно не сообщать
+            }
+        }
+    }
+
+    // Раскрытия одного набираемого терма в словаре базы
+    private static final class Narrowing {
+        // Строки термов самого короткого раскрытия, прочитанные хотя бы раз
+        private final Map<TermIndex.Entry, int[]> rows = new IdentityHashMap<>();
+        private Expansion shortest;
+        private Expansion last;
+
+        int[] search(TermIndex index, byte[] term, boolean exact, SearchHandle handle) throws IOException {
+            Expansion expansion;
+            if (last != null && last.covers(term)) {
+                expansion = last.narrow(term);
+            } else if (shortest != null && shortest.covers(term)) {
+                expansion = shortest.narrow(term);
+            } else {
+                TermIndex.Entry[] entries = index.prefixEntries(term, MAX_TERMS);
+                if (entries == null) return null;
+                expansion = new Expansion(term, entries);
+                shortest = expansion;
+                rows.clear();
+            }
+            last = expansion;
+            return rows(index, expansion, exact, handle);
+        }
+
+        // exact — только сам терм, без продолжений
+        private int[] rows(TermIndex index, Expansion expansion, boolean exact, SearchHandle handle)
+                throws IOException {
+            IntList all = new IntList();
+            int lists = 0;
+            for (TermIndex.Entry entry : expansion.entries) {
+                if (handle.isCancelled()) break;
+                if (exact && entry.term.length != expansion.prefix.length) continue;
+                int[] termRows = rows.get(entry);
+                if (termRows == null) {
+                    termRows = index.rows(entry);
+                    rows.put(entry, termRows);
+                }
+                for (int row : termRows) all.add(row);
+                lists++;
+            }
+            int[] result = all.toArray();
+            if (lists <= 1) return result;
+            Arrays.sort(result);
+            int unique = 0;
+            for (int i = 0; i < result.length; i++) {
+                if (i == 0 || result[i] != result[i - 1]) result[unique++] = result[i];
+            }
+            return Arrays.copyOf(result, unique);
+        }
+    }
+
+    // Термы словаря с началом prefix
+    private static final class Expansion {
+        final byte[] prefix;
+        final TermIndex.Entry[] entries;
+
+        Expansion(byte[] prefix, TermIndex.Entry[] entries) {
+            this.prefix = prefix;
+            this.entries = entries;
+        }
+
+        boolean covers(byte[] term) {
+            return startsWith(term, prefix);
+        }
+
+        Expansion narrow(byte[] term) {
+            if (term.length == prefix.length) return this;
+            List<TermIndex.Entry> kept = new ArrayList<>();
+            for (TermIndex.Entry entry : entries) {
+                if (startsWith(entry.term, term)) kept.add(entry);
+            }
+            return new Expansion(term, kept.toArray(new TermIndex.Entry[0]));
+        }
+    }
+
+    private static boolean startsWith(byte[] term, byte[] prefix) {
+        if (term.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (term[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,443 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Построение файлов-спутников базы (.idx, .off, .tix, .blm, .tri) из потока CSV.
+ * Поток может быть как самим файлом, так и выходом {@link ImportPipeline}.
+ * Строки разбираются {@link CsvTokenizer} и пишутся в .idx байтами, без промежуточных String.
+ *
+ * Сборка параллельная: читающий поток режет CSV на куски целых записей, сам пишет .off
+ * и раздаёт куски рабочим потокам. Рабочие строят строки .idx и термы (у каждого свой
+ * буфер {@link TermIndexWriter.Buffer}); готовые куски .idx дописываются строго по порядку,
+ * вместе с ними по порядку строк заполняются фильтры Блума. Триграммы имён ({@link NameIndex})
+ * строятся в конце по готовому словарю.
+ * Результат побайтно совпадает с последовательной сборкой (threads = 1).
+ */
+public final class IndexBuilder {
+    static final int CHUNK_SIZE = 1 << 20; // байт записей CSV на кусок
+    // Нижняя граница бюджета словаря на поток: меньше — слишком много мелких прогонов
+    private static final long MIN_THREAD_BUDGET = 4L << 20;
+
+    private IndexBuilder() {}
+
+    public static int build(InputStream csv, File csvFile, String[] headers,
+                            Map<String, Integer> fieldMapping, AtomicInteger rowCounter) throws IOException {
+        return build(csv, csvFile, headers, fieldMapping, rowCounter, Runtime.getRuntime().availableProcessors());
+    }
+
+    // Возвращает число строк в индексе; rowCounter — счётчик для отчёта о ходе, растёт по мере записи .idx
+    public static int build(InputStream csv, File csvFile, String[] headers, Map<String, Integer> fieldMapping,
+                            AtomicInteger rowCounter, int threads) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(csv, CsvTokenizer.SAMPLE_SIZE);
+        return build(in, CsvTokenizer.detect(in), csvFile, headers, fieldMapping, rowCounter, threads);
+    }
+
+    // Разделитель известен заранее: дописанные строки ({@link DbAppender}) разбираются так же, как база
+    static int build(InputStream in, byte delimiter, File csvFile, String[] headers, Map<String, Integer> fieldMapping,
+                     AtomicInteger rowCounter, int threads) throws IOException {
+        File indexFile = DbFiles.sidecar(csvFile, DbFiles.IDX);
+        File offsetsFile = DbFiles.sidecar(csvFile, DbFiles.OFFSETS);
+        CsvTokenizer tokenizer = new CsvTokenizer(delimiter);
+        try (LineReader reader = new LineReader(in);
+             OutputStream writer = new BufferedOutputStream(new FileOutputStream(indexFile), 64 * 1024);
+             OffsetTable.Writer offsets = new OffsetTable.Writer(offsetsFile);
+             TermIndexWriter terms = new TermIndexWriter(DbFiles.sidecar(csvFile, DbFiles.TERMS));
+             BloomIndex.Writer bloom = new BloomIndex.Writer(DbFiles.sidecar(csvFile, DbFiles.BLOOM))) {
+
+            int row = 0;
+            if (!reader.nextRecord(tokenizer)) { // skip header
+                terms.finish();
+                bloom.finish();
+                return row;
+            }
+
+            Workers workers = new Workers(Math.max(1, threads), new Schema(fieldMapping), tokenizer.delimiter(),
+                    terms, bloom, writer, rowCounter);
+            try {
+                // Граница куска — всегда между записями, которые нашёл последовательный разбор,
+                // поэтому запись в кавычках на нескольких строках не разрезается
+                Chunk chunk = workers.takeFree(row);
+                while (reader.nextRecord(tokenizer)) {
+                    if (tokenizer.size() < headers.length) continue;
+                    chunk.add(reader.lineBytes(), reader.lineLength());
+                    offsets.add(reader.lineStart());
+                    row++;
+                    if (chunk.records.length >= CHUNK_SIZE) {
+                        workers.submit(chunk);
+                        chunk = workers.takeFree(row);
+                    }
+                }
+                workers.submit(chunk);
+                workers.finish();
+            } finally {
+                workers.stop();
+            }
+            checkInterrupted();
+            terms.finish();
+            bloom.finish();
+            checkInterrupted();
+            File namesFile = DbFiles.sidecar(csvFile, DbFiles.NAMES);
+            if (fieldMapping.getOrDefault(Fields.NAME, -1) >= 0) {
+                NameIndex.build(DbFiles.sidecar(csvFile, DbFiles.TERMS), namesFile);
+            } else {
+                namesFile.delete(); // от прошлого импорта с другим сопоставлением
+            }
+            return row;
+        }
+    }
+
+    // Поток сборки прерван (отмена импорта в {@link ImportPipeline}) — долгие этапы дальше не идут
+    static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Сборка индекса прервана");
+    }
+
+    // Номера нужных столбцов из сопоставления, которое подтвердил пользователь
+    static final class Schema {
+        // Телефон в .idx — цифрами, как в словаре: подстрока запроса найдётся при любом написании номера
+        static final int IDX_TEL = 0;
+        final int[] idxColumns;
+        final String[] termFields;
+        final int[] termColumns;
+        final boolean[] keyFields; // термы поля идут и в фильтры Блума
+
+        Schema(Map<String, Integer> fieldMapping) {
+            idxColumns = new int[]{
+                    fieldMapping.getOrDefault(Fields.TEL, -1),
+                    fieldMapping.getOrDefault(Fields.NAME, -1),
+                    fieldMapping.getOrDefault(Fields.EMAIL, -1),
+                    fieldMapping.getOrDefault(Fields.TG_ID, -1)
+            };
+            termFields = fieldMapping.keySet().toArray(new String[0]);
+            termColumns = new int[termFields.length];
+            keyFields = new boolean[termFields.length];
+            for (int i = 0; i < termFields.length; i++) {
+                termColumns[i] = fieldMapping.get(termFields[i]);
+                keyFields[i] = Fields.isKey(termFields[i]);
+            }
+        }
+    }
+
+    // Кусок подряд идущих записей: сырые байты записей на входе, строки .idx на выходе
+    private static final class Chunk {
+        int index;
+        int baseRow;
+        final Bytes records = new Bytes();
+        final IntList ends = new IntList();
+        final Bytes idx = new Bytes();
+        final IntList idxEnds = new IntList();
+        // Хеши ключей для фильтров Блума; keyEnds — граница ключей каждой записи
+        long[] keyHashes = new long[1024];
+        int keyCount;
+        final IntList keyEnds = new IntList();
+
+        void add(byte[] record, int length) {
+            records.append(record, 0, length);
+            ends.add(records.length);
+        }
+
+        void addKey(long hash) {
+            if (keyCount == keyHashes.length) keyHashes = Arrays.copyOf(keyHashes, keyCount * 2);
+            keyHashes[keyCount++] = hash;
+        }
+
+        void reset(int index, int baseRow) {
+            this.index = index;
+            this.baseRow = baseRow;
+            records.length = 0;
+            ends.clear();
+            idx.length = 0;
+            idxEnds.clear();
+            keyCount = 0;
+            keyEnds.clear();
+        }
+    }
+
+    /**
+     * Рабочие потоки и порядок записи. Кусков в обороте ограниченное число: читающий поток
+     * ждёт свободный, поэтому память не растёт, если рабочие не успевают.
+     */
+    private static final class Workers {
+        private static final Chunk END = new Chunk();
+
+        private final Schema schema;
+        private final byte delimiter;
+        private final BloomIndex.Writer bloom;
+        private final OutputStream idxOut;
+        private final AtomicInteger rowCounter;
+        private final BlockingQueue<Chunk> free;
+        private final BlockingQueue<Chunk> full = new LinkedBlockingQueue<>();
+        private final Map<Integer, Chunk> completed = new HashMap<>();
+        private final Thread[] threads;
+        private int submitted;
+        private int written; // индекс следующего куска для записи в .idx
+        private long idxLength; // сколько байт .idx уже записано
+        private volatile Throwable error;
+
+        Workers(int count, Schema schema, byte delimiter, TermIndexWriter terms, BloomIndex.Writer bloom,
+                OutputStream idxOut, AtomicInteger rowCounter) {
+            this.schema = schema;
+            this.delimiter = delimiter;
+            this.bloom = bloom;
+            this.idxOut = idxOut;
+            this.rowCounter = rowCounter;
+            long termBudget = Math.max(MIN_THREAD_BUDGET, TermIndexWriter.DEFAULT_MEMORY_BUDGET / count);
+            free = new ArrayBlockingQueue<>(count * 2);
+            for (int i = 0; i < count * 2; i++) free.add(new Chunk());
+            threads = new Thread[count];
+            for (int i = 0; i < count; i++) {
+                TermIndexWriter.Buffer buffer = terms.newBuffer(termBudget);
+                threads[i] = new Thread(() -> work(buffer), "index-" + (i + 1));
+                threads[i].start();
+            }
+        }
+
+        Chunk takeFree(int baseRow) throws IOException {
+            Chunk chunk = null;
+            try {
+                while (chunk == null) {
+                    checkError();
+                    chunk = free.poll(100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            chunk.reset(submitted, baseRow);
+            return chunk;
+        }
+
+        void submit(Chunk chunk) {
+            submitted++;
+            full.add(chunk);
+        }
+
+        // Ждёт, пока все куски обработаны и записаны
+        void finish() throws IOException {
+            for (int i = 0; i < threads.length; i++) full.add(END);
+            joinAll();
+            checkError();
+        }
+
+        // Останавливает рабочих, если сборка прервана; после finish ничего не делает
+        void stop() {
+            full.clear();
+            for (int i = 0; i < threads.length; i++) full.add(END);
+            joinAll();
+        }
+
+        private void joinAll() {
+            boolean interrupted = false;
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        private void checkError() throws IOException {
+            Throwable t = error;
+            if (t == null) return;
+            if (t instanceof IOException) throw (IOException) t;
+            throw new IOException("Ошибка индексации", t);
+        }
+
+        private void work(TermIndexWriter.Buffer buffer) {
+            CsvTokenizer tokenizer = new CsvTokenizer(delimiter);
+            IdxLine line = new IdxLine();
+            try {
+                while (true) {
+                    Chunk chunk = full.take();
+                    if (chunk == END) return;
+                    if (error != null) continue;
+                    process(chunk, tokenizer, line, buffer);
+                    complete(chunk);
+                }
+            } catch (Throwable t) {
+                if (error == null) error = t;
+            }
+        }
+
+        private void process(Chunk chunk, CsvTokenizer tokenizer, IdxLine line, TermIndexWriter.Buffer buffer)
+                throws IOException {
+            byte[] records = chunk.records.data;
+            int start = 0;
+            for (int r = 0; r < chunk.ends.size(); r++) {
+                int end = chunk.ends.get(r);
+                tokenizer.parse(records, start, end - start);
+                start = end;
+                int row = chunk.baseRow + r;
+
+                line.clear();
+                for (int i = 0; i < schema.idxColumns.length; i++) {
+                    int column = schema.idxColumns[i];
+                    if (column == -1 || column >= tokenizer.size()) continue;
+                    if (i == Schema.IDX_TEL) {
+                        line.appendAscii(Fields.normalizePhone(tokenizer.field(column)));
+                    } else {
+                        line.appendLower(tokenizer.data(), tokenizer.start(column), tokenizer.end(column));
+                    }
+                    line.append((byte) ' ');
+                }
+
+                // Словарь термов: каждое сопоставленное поле индексируется отдельно
+                for (int i = 0; i < schema.termFields.length; i++) {
+                    int column = schema.termColumns[i];
+                    if (tokenizer.isEmpty(column)) continue;
+                    for (String value : Fields.indexTerms(schema.termFields[i], tokenizer.field(column))) {
+                        String term = Fields.term(schema.termFields[i], value);
+                        buffer.add(term, row);
+                        if (schema.keyFields[i]) chunk.addKey(BloomIndex.hash(term));
+                    }
+                }
+                chunk.keyEnds.add(chunk.keyCount);
+
+                // Строка в .idx пишется, даже если она пустая: номер строки .idx = номер записи
+                line.writeTrimmed(chunk.idx);
+                chunk.idx.append((byte) '\n');
+                chunk.idxEnds.add(chunk.idx.length);
+            }
+        }
+
+        // Кусок готов: пишем в .idx его и все готовые за ним, освобождая буферы
+        private synchronized void complete(Chunk chunk) throws IOException {
+            completed.put(chunk.index, chunk);
+            Chunk next;
+            while ((next = completed.remove(written)) != null) {
+                idxOut.write(next.idx.data, 0, next.idx.length);
+                for (int r = 0, k = 0; r < next.ends.size(); r++) {
+                    bloom.startRow(idxLength + (r == 0 ? 0 : next.idxEnds.get(r - 1)));
+                    for (int end = next.keyEnds.get(r); k < end; k++) bloom.add(next.keyHashes[k]);
+                }
+                idxLength += next.idx.length;
+                rowCounter.lazySet(next.baseRow + next.ends.size());
+                written++;
+                free.add(next);
+            }
+        }
+    }
+
+    // Растущий массив байтов, переиспользуется между кусками
+    private static final class Bytes {
+        byte[] data = new byte[4096];
+        int length;
+
+        void append(byte b) {
+            ensure(1);
+            data[length++] = b;
+        }
+
+        void append(byte[] src, int from, int len) {
+            ensure(len);
+            System.arraycopy(src, from, data, length, len);
+            length += len;
+        }
+
+        void ensure(int extra) {
+            if (length + extra > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * Строка .idx в байтах. Нижний регистр для ASCII и кириллицы (U+0400–U+045F) считается
+     * прямо по UTF-8; поле с другими символами переводится через String.toLowerCase.
+     * Переводы строк внутри полей в кавычках заменяются пробелами: в .idx одна строка на запись.
+     * Телефон пишется цифрами ({@link Fields#normalizePhone}).
+     */
+    private static final class IdxLine {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        void clear() {
+            length = 0;
+        }
+
+        void append(byte b) {
+            ensure(1);
+            bytes[length++] = b;
+        }
+
+        void appendAscii(String text) {
+            ensure(text.length());
+            for (int i = 0; i < text.length(); i++) bytes[length++] = (byte) text.charAt(i);
+        }
+
+        void appendLower(byte[] src, int from, int to) {
+            ensure(to - from);
+            int mark = length;
+            for (int i = from; i < to; i++) {
+                int b = src[i] & 0xFF;
+                if (b < 0x80) {
+                    if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+                    else if (b == '\n' || b == '\r') b = ' ';
+                    bytes[length++] = (byte) b;
+                } else if (b == 0xD0 && i + 1 < to && (src[i + 1] & 0xC0) == 0x80) {
+                    int c = src[++i] & 0xFF;
+                    if (c < 0x90) {         // Ѐ–Џ → ѐ–џ
+                        bytes[length++] = (byte) 0xD1;
+                        bytes[length++] = (byte) (c + 0x10);
+                    } else if (c < 0xA0) {  // А–П → а–п
+                        bytes[length++] = (byte) 0xD0;
+                        bytes[length++] = (byte) (c + 0x20);
+                    } else if (c < 0xB0) {  // Р–Я → р–я
+                        bytes[length++] = (byte) 0xD1;
+                        bytes[length++] = (byte) (c - 0x20);
+                    } else {
+                        bytes[length++] = (byte) 0xD0;
+                        bytes[length++] = (byte) c;
+                    }
+                } else if (b == 0xD1 && i + 1 < to && (src[i + 1] & 0xFF) >= 0x80 && (src[i + 1] & 0xFF) < 0xA0) {
+                    bytes[length++] = (byte) 0xD1;
+                    bytes[length++] = src[++i];
+                } else {
+                    length = mark;
+                    appendLowerSlow(src, from, to);
+                    return;
+                }
+            }
+        }
+
+        private void appendLowerSlow(byte[] src, int from, int to) {
+            String lower = new String(src, from, to - from, StandardCharsets.UTF_8)
+                    .toLowerCase().replace('\n', ' ').replace('\r', ' ');
+            byte[] encoded = lower.getBytes(StandardCharsets.UTF_8);
+            ensure(encoded.length);
+            System.arraycopy(encoded, 0, bytes, length, encoded.length);
+            length += encoded.length;
+        }
+
+        // Как String.trim(): без пробелов и управляющих символов по краям
+        void writeTrimmed(Bytes out) {
+            int start = 0, end = length;
+            while (start < end && (bytes[start] & 0xFF) <= ' ') start++;
+            while (end > start && (bytes[end - 1] & 0xFF) <= ' ') end--;
+            out.append(bytes, start, end - start);
+        }
+
+        private void ensure(int extra) {
+            // кириллица не меняет длину в байтах, ASCII тоже
+            if (length + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+}
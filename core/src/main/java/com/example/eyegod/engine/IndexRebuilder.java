@@ -0,0 +1,467 @@
+package com.example.eyegod.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Годность индексов баз и их перестройка в фоне. Индекс годен, если его отметка ({@link IndexStamp})
+ * подходит к CSV; проверяется при запуске ({@link #checkAll}) и перед поиском ({@link #isUsable}) —
+ * там это два stat без чтения файлов. Негодные базы встают в очередь: найденные поиском — первыми,
+ * найденные при запуске — за ними. Очередь разбирает один поток с низким приоритетом; сборка идёт
+ * в threads потоков и читает CSV не быстрее bytesPerSecond, с паузой между базами.
+ *
+ * Новые спутники собираются под временным именем и заменяют старые, только когда готовы,
+ * поэтому идущие поиски дочитывают старые файлы. Пока база в очереди, поиск идёт прямо по CSV.
+ *
+ * Тот же поток сливает словари дописанных строк ({@link DbAppender}, {@link DeltaIndex}) со словарём
+ * базы: база при этом остаётся годной, а слияние читает только словари, не CSV.
+ */
+public final class IndexRebuilder {
+    // Спутники перестройки: name.csv.rebuild.idx и т. д.
+    private static final String TEMP = ".rebuild";
+    private static final long PAUSE_MS = 500;
+
+    // Раньше в перечислении — раньше в очереди
+    public enum Priority {
+        QUERY,
+        MERGE,   // слияние дешевле перестройки, а до него запросы к полю по базе идут просмотром .idx
+        STARTUP
+    }
+
+    public interface Listener {
+        // Спутники заменены и отметка записана; вызывается из потока перестройки
+        void onRebuilt(File csvFile, int rows);
+
+        void onFailed(File csvFile, IOException e);
+    }
+
+    private static final class Job implements Comparable<Job> {
+        final File csvFile;
+        final Priority priority;
+        final long order;
+        final boolean merge; // слить словари дописанных строк, а не перестроить базу
+
+        Job(File csvFile, Priority priority, long order, boolean merge) {
+            this.csvFile = csvFile;
+            this.priority = priority;
+            this.order = order;
+            this.merge = merge;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int c = priority.compareTo(other.priority);
+            return c != 0 ? c : Long.compare(order, other.order);
+        }
+    }
+
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>();
+    // Базы в очереди или в работе: поиск по ним идёт прямо по CSV
+    private final Map<File, Job> pending = new HashMap<>();
+    // Проверенные отметки: пока CSV не изменился, повторно не читаются
+    private final Map<File, IndexStamp> checked = new HashMap<>();
+    // Сборка упала: до изменения CSV (размер, время) база не перестраивается и ищется по CSV
+    private final Map<File, long[]> failed = new HashMap<>();
+    // Слияния в очереди: база годна, поиск идёт по её спутникам
+    private final Map<File, Job> merges = new HashMap<>();
+    // В базы дописываются строки: индекс годен для прежних строк, в очередь они не встают
+    private final Set<File> appending = new HashSet<>();
+    private Job working;
+    private long nextOrder;
+    private Thread worker;
+    private volatile boolean stopped;
+    private volatile DbCatalog catalog;
+    private volatile Listener listener;
+    private volatile int threads = 1;
+    private volatile long bytesPerSecond;
+
+    // Откуда брать разделитель и сопоставление полей и куда записать итог; null — из самого CSV
+    public void setCatalog(DbCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Сколько потоков у сборки и сколько байт CSV в секунду она читает; 0 — без ограничения
+    public void setThrottle(int threads, long bytesPerSecond) {
+        this.threads = Math.max(1, threads);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Проверка баз при запуске: отметки читаются с диска, негодные базы встают в очередь.
+     * Возвращает, сколько баз поставлено. Вызывается не из UI-потока.
+     */
+    public int checkAll(File[] csvFiles) {
+        int queued = 0;
+        for (File csvFile : csvFiles) {
+            if (!check(csvFile, Priority.STARTUP)) {
+                queued++;
+            } else if (DbFiles.sidecar(csvFile, DbFiles.SEGMENTS).exists()) {
+                scheduleMerge(csvFile); // слияние не успело до закрытия приложения
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Перед дописыванием строк в базу ({@link DbAppender}): индекс должен быть годен, иначе
+     * IOException. Ждёт конца идущего слияния базы и снимает слияние из очереди; до
+     * {@link #endAppend} база считается годной, хотя CSV уже длиннее отметки.
+     */
+    public void beginAppend(File csvFile) throws IOException {
+        if (!check(csvFile, Priority.QUERY)) {
+            throw new IOException("Индекс базы перестраивается — строки можно дописать, когда он будет готов");
+        }
+        synchronized (this) {
+            Job merge = merges.remove(csvFile);
+            if (merge != null) queue.remove(merge);
+            try {
+                while (working != null && working.csvFile.equals(csvFile)) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            appending.add(csvFile);
+        }
+    }
+
+    // Дописывание кончилось, удачно или нет: словари порций встают в очередь на слияние
+    public void endAppend(File csvFile) {
+        synchronized (this) {
+            appending.remove(csvFile);
+            checked.remove(csvFile);
+        }
+        // Сбой посреди записи спутников оставил отметку «строится» — база уже в очереди на перестройку
+        if (check(csvFile, Priority.QUERY) && DbFiles.sidecar(csvFile, DbFiles.SEGMENTS).exists()) {
+            scheduleMerge(csvFile);
+        }
+    }
+
+    /**
+     * Годен ли индекс базы для поиска. Нет — база ставится в очередь раньше найденных
+     * при запуске, а искать её надо прямо по CSV ({@link CsvScan}).
+     */
+    public boolean isUsable(File csvFile) {
+        return check(csvFile, Priority.QUERY);
+    }
+
+    // Идёт дописывание строк ({@link #beginAppend}) — файлы базы меняются
+    public synchronized boolean isAppending(File csvFile) {
+        return appending.contains(csvFile);
+    }
+
+    /**
+     * Годность по уже проверенным отметкам, без обращения к диску, — для UI-потока. База, которую
+     * ещё не проверял {@link #isUsable} или {@link #checkAll}, считается негодной.
+     */
+    public synchronized boolean isKnownUsable(File csvFile) {
+        if (appending.contains(csvFile)) return true;
+        if (working != null && working.merge && working.csvFile.equals(csvFile)) return true;
+        return !pending.containsKey(csvFile) && checked.containsKey(csvFile);
+    }
+
+    public synchronized boolean isRebuilding(File csvFile) {
+        return pending.containsKey(csvFile);
+    }
+
+    // Сколько баз ждёт перестройки, включая ту, что в работе
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    // База удалена или переименована: из очереди и проверенных. Уже идущая сборка дойдёт до конца
+    public synchronized void forget(File csvFile) {
+        Job job = pending.get(csvFile);
+        if (job != null && queue.remove(job)) pending.remove(csvFile);
+        Job merge = merges.get(csvFile);
+        if (merge != null && queue.remove(merge)) merges.remove(csvFile);
+        checked.remove(csvFile);
+        failed.remove(csvFile);
+    }
+
+    public void shutdown() {
+        stopped = true;
+        Thread t;
+        synchronized (this) {
+            t = worker;
+        }
+        if (t != null) t.interrupt();
+    }
+
+    private boolean check(File csvFile, Priority priority) {
+        IndexStamp stamp;
+        synchronized (this) {
+            // Дописывание и слияние меняют отметку, но не годность индекса
+            if (appending.contains(csvFile)) return true;
+            if (working != null && working.merge && working.csvFile.equals(csvFile)) return true;
+            Job job = pending.get(csvFile);
+            if (job != null) {
+                // Базу ждёт поиск — она обгоняет найденные при запуске
+                if (priority.compareTo(job.priority) < 0 && queue.remove(job)) enqueue(csvFile, priority);
+                return false;
+            }
+            stamp = checked.get(csvFile);
+            long[] failure = failed.get(csvFile);
+            if (failure != null && failure[0] == csvFile.length() && failure[1] == csvFile.lastModified()) return false;
+        }
+        if (stamp != null && stamp.matches(csvFile)) return true;
+        IndexStamp.Status status;
+        try {
+            status = IndexStamp.check(csvFile);
+        } catch (IOException e) {
+            status = IndexStamp.Status.STALE;
+        }
+        synchronized (this) {
+            if (status == IndexStamp.Status.FRESH) {
+                checked.put(csvFile, IndexStamp.read(csvFile));
+                return true;
+            }
+            checked.remove(csvFile);
+            if (!pending.containsKey(csvFile)) enqueue(csvFile, priority);
+            return false;
+        }
+    }
+
+    // Под блокировкой
+    private void enqueue(File csvFile, Priority priority) {
+        Job job = new Job(csvFile, priority, nextOrder++, false);
+        pending.put(csvFile, job);
+        queue.add(job);
+        startWorker();
+    }
+
+    private synchronized void scheduleMerge(File csvFile) {
+        if (merges.containsKey(csvFile) || pending.containsKey(csvFile) || appending.contains(csvFile)) return;
+        Job job = new Job(csvFile, Priority.MERGE, nextOrder++, true);
+        merges.put(csvFile, job);
+        queue.add(job);
+        startWorker();
+    }
+
+    // Под блокировкой
+    private void startWorker() {
+        if (worker == null && !stopped) {
+            worker = new Thread(this::work, "index-rebuild");
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            worker.start();
+        }
+    }
+
+    private void work() {
+        try {
+            workLoop();
+        } finally {
+            // Поток кончился (остановка или Error) — следующая задача запустит новый
+            synchronized (this) {
+                if (worker == Thread.currentThread()) worker = null;
+                if (!queue.isEmpty()) startWorker();
+            }
+        }
+    }
+
+    private void workLoop() {
+        while (!stopped) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                // Слияние снято дописыванием ({@link #beginAppend}) — его поставит endAppend
+                if (job.merge && merges.get(job.csvFile) != job) continue;
+                working = job;
+            }
+            boolean again = false;
+            boolean rebuild = false;
+            try {
+                if (job.csvFile.exists()) again = job.merge ? !merge(job.csvFile) : !rebuild(job.csvFile);
+            } catch (InterruptedIOException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // Непроверяемый сбой сборки (битый CSV, ошибка в сборщике) — как ошибка чтения: база
+                // помечается и ищется по CSV, а поток берёт следующую задачу
+                IOException failure = e instanceof IOException ? (IOException) e
+                        : new IOException("Сбой сборки индекса " + job.csvFile.getName() + ": " + e, e);
+                if (job.merge) {
+                    rebuild = true; // словари порций не сливаются — база собирается заново из CSV
+                } else {
+                    synchronized (this) {
+                        failed.put(job.csvFile, new long[]{job.csvFile.length(), job.csvFile.lastModified()});
+                    }
+                }
+                Listener l = listener;
+                if (l != null) l.onFailed(job.csvFile, failure);
+            } finally {
+                synchronized (this) {
+                    if (pending.get(job.csvFile) == job) pending.remove(job.csvFile);
+                    if (merges.get(job.csvFile) == job) merges.remove(job.csvFile);
+                    working = null;
+                    notifyAll();
+                    if (rebuild && !stopped && !pending.containsKey(job.csvFile)) {
+                        checked.remove(job.csvFile);
+                        enqueue(job.csvFile, Priority.STARTUP);
+                    } else if (again && !stopped) {
+                        enqueue(job.csvFile, job.priority);
+                    }
+                }
+            }
+            try {
+                Thread.sleep(PAUSE_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // false — CSV изменился за время сборки, собранное выброшено
+    private boolean rebuild(File csvFile) throws IOException {
+        long size = csvFile.length();
+        long modified = csvFile.lastModified();
+        File temp = new File(csvFile.getParentFile(), csvFile.getName() + TEMP);
+        DbFiles.deleteSidecars(temp);
+
+        DbCatalog c = catalog;
+        DbCatalog.Entry entry = c != null ? c.get(csvFile) : null;
+        byte delimiter;
+        String[] headers;
+        try (CsvScan scan = CsvScan.open(csvFile, entry)) {
+            delimiter = scan.fields().delimiter();
+            headers = scan.headers;
+        }
+        Map<String, Integer> mapping = new HashMap<>(CsvScan.mapping(entry, headers));
+        int rows;
+        try (InputStream in = new ThrottledInputStream(new FileInputStream(csvFile), bytesPerSecond)) {
+            rows = IndexBuilder.build(in, temp, headers, mapping, new AtomicInteger(), threads);
+        } catch (IOException | RuntimeException e) {
+            DbFiles.deleteSidecars(temp);
+            throw e;
+        }
+        if (csvFile.length() != size || csvFile.lastModified() != modified) {
+            DbFiles.deleteSidecars(temp);
+            return false;
+        }
+
+        // Отметка «строится» — до замены: если замена прервётся, смесь старых и новых файлов не примут за индекс
+        IndexStamp.markBuilding(csvFile);
+        for (String suffix : DbFiles.SIDECARS) {
+            if (suffix.equals(DbFiles.STAMP)) continue;
+            File built = DbFiles.sidecar(temp, suffix);
+            File target = DbFiles.sidecar(csvFile, suffix);
+            if (built.exists()) {
+                if (!built.renameTo(target)) throw new IOException("Не удалось заменить " + target.getName());
+            } else {
+                target.delete(); // спутник прошлой сборки, которого эта не строит
+            }
+        }
+        DbFiles.deleteSegments(csvFile); // строки порций вошли в новый словарь
+        IndexStamp stamp = IndexStamp.write(csvFile, rows);
+        synchronized (this) {
+            checked.put(csvFile, stamp);
+            failed.remove(csvFile);
+        }
+        if (c != null) c.put(csvFile, delimiter, headers, mapping, rows);
+        Listener l = listener;
+        if (l != null) l.onRebuilt(csvFile, rows);
+        return true;
+    }
+
+    /**
+     * Слияние словарей дописанных строк со словарём базы; триграммы имён строятся заново
+     * по новому словарю. Остальные спутники дописаны вместе со строками и не меняются.
+     */
+    private boolean merge(File csvFile) throws IOException {
+        List<DeltaIndex.Segment> segments = DeltaIndex.read(csvFile);
+        if (segments.isEmpty()) {
+            DeltaIndex.clear(csvFile);
+            return true;
+        }
+        File temp = new File(csvFile.getParentFile(), csvFile.getName() + TEMP);
+        DbFiles.deleteSidecars(temp);
+        File terms = DbFiles.sidecar(temp, DbFiles.TERMS);
+        File names = DbFiles.sidecar(temp, DbFiles.NAMES);
+        boolean hasNames = DbFiles.sidecar(csvFile, DbFiles.NAMES).exists();
+        try {
+            DeltaIndex.merge(csvFile, segments, terms);
+            if (hasNames) NameIndex.build(terms, names);
+        } catch (IOException | RuntimeException e) {
+            DbFiles.deleteSidecars(temp);
+            throw e;
+        }
+
+        int rows = OffsetTable.rowCount(DbFiles.sidecar(csvFile, DbFiles.OFFSETS));
+        IndexStamp.markBuilding(csvFile);
+        if (!terms.renameTo(DbFiles.sidecar(csvFile, DbFiles.TERMS))
+                || (hasNames && !names.renameTo(DbFiles.sidecar(csvFile, DbFiles.NAMES)))) {
+            DbFiles.deleteSidecars(temp);
+            throw new IOException("Не удалось заменить словарь " + csvFile.getName());
+        }
+        DeltaIndex.clear(csvFile);
+        IndexStamp stamp = IndexStamp.write(csvFile, rows);
+        synchronized (this) {
+            checked.put(csvFile, stamp);
+        }
+        DbCatalog c = catalog;
+        if (c != null) {
+            DbCatalog.Entry entry = c.get(csvFile);
+            if (entry != null) {
+                c.put(csvFile, entry.delimiter, entry.headers, entry.mapping, rows);
+            } else {
+                c.refresh(csvFile);
+            }
+        }
+        Listener l = listener;
+        if (l != null) l.onRebuilt(csvFile, rows);
+        return true;
+    }
+
+    // Чтение не быстрее bytesPerSecond: сборка не забирает диск у поиска
+    private static final class ThrottledInputStream extends FilterInputStream {
+        private final long bytesPerSecond;
+        private final long started = System.nanoTime();
+        private long read;
+
+        ThrottledInputStream(InputStream in, long bytesPerSecond) {
+            super(in);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n <= 0 || bytesPerSecond <= 0) return n;
+            read += n;
+            long aheadMs = read * 1000 / bytesPerSecond - (System.nanoTime() - started) / 1_000_000;
+            if (aheadMs > 0) {
+                try {
+                    Thread.sleep(aheadMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Отметка индекса (.stm): для какого CSV построены спутники базы — размер, время изменения
+ * и отпечаток содержимого источника, формат сборки и число строк. Пишется последней, когда
+ * все спутники готовы; на время перестройки — с флагом «строится». В .idx заголовок не положить:
+ * номер строки .idx — номер записи, поэтому отметка — отдельный спутник.
+ */
+public final class IndexStamp {
+    static final int MAGIC = 0x45475354; // "EGST"
+    static final int VERSION = 1;
+    // Версия того, что строит IndexBuilder: растёт, когда старые спутники надо перестроить
+    public static final int FORMAT = 2; // 2: телефон в .idx цифрами
+    // Отпечаток — хеш начала и конца файла: дёшево даже для баз в гигабайты
+    private static final int SAMPLE = 64 * 1024;
+
+    public enum Status {
+        FRESH,   // спутники построены по этому CSV
+        MISSING, // индекса нет
+        STALE    // CSV изменился, сборка прервана или формат устарел
+    }
+
+    public final long size;
+    public final long modified;
+    public final long fingerprint;
+    public final int format;
+    public final int rows;
+    public final boolean complete;
+
+    private IndexStamp(long size, long modified, long fingerprint, int format, int rows, boolean complete) {
+        this.size = size;
+        this.modified = modified;
+        this.fingerprint = fingerprint;
+        this.format = format;
+        this.rows = rows;
+        this.complete = complete;
+    }
+
+    // Подходит ли отметка к CSV без чтения его содержимого
+    public boolean matches(File csvFile) {
+        return complete && format == FORMAT && size == csvFile.length() && modified == csvFile.lastModified();
+    }
+
+    // Отметка готового индекса: вызывается, когда все спутники csvFile записаны
+    public static IndexStamp write(File csvFile, int rows) throws IOException {
+        IndexStamp stamp = new IndexStamp(csvFile.length(), csvFile.lastModified(), fingerprint(csvFile), FORMAT,
+                rows, true);
+        stamp.save(csvFile);
+        return stamp;
+    }
+
+    // Перед заменой спутников: прерванная перестройка не примет половину файлов за готовый индекс
+    static void markBuilding(File csvFile) throws IOException {
+        new IndexStamp(0, 0, 0, FORMAT, 0, false).save(csvFile);
+    }
+
+    // null — отметки нет или она не читается
+    public static IndexStamp read(File csvFile) {
+        File file = DbFiles.sidecar(csvFile, DbFiles.STAMP);
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            boolean complete = in.readBoolean();
+            int format = in.readInt();
+            long size = in.readLong();
+            long modified = in.readLong();
+            long fingerprint = in.readLong();
+            int rows = in.readInt();
+            return new IndexStamp(size, modified, fingerprint, format, rows, complete);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Подходит ли индекс к CSV. Время изменилось, а размер и отпечаток — нет (файл скопирован
+     * или тронут): индекс годен, отметка обновляется. Базы без отметки, собранные до неё,
+     * принимаются, если .idx и .off на месте и не старше CSV, — иначе перестраиваются.
+     */
+    public static Status check(File csvFile) throws IOException {
+        File idx = DbFiles.sidecar(csvFile, DbFiles.IDX);
+        if (!idx.exists()) return Status.MISSING;
+        IndexStamp stamp = read(csvFile);
+        if (stamp == null) {
+            File offsets = DbFiles.sidecar(csvFile, DbFiles.OFFSETS);
+            if (!offsets.exists() || idx.lastModified() < csvFile.lastModified()) return Status.STALE;
+            write(csvFile, OffsetTable.rowCount(offsets));
+            return Status.FRESH;
+        }
+        if (!stamp.complete || stamp.format != FORMAT || stamp.size != csvFile.length()) return Status.STALE;
+        if (stamp.modified == csvFile.lastModified()) return Status.FRESH;
+        if (stamp.fingerprint != fingerprint(csvFile)) return Status.STALE;
+        write(csvFile, stamp.rows);
+        return Status.FRESH;
+    }
+
+    // xxHash64 размера, первых и последних SAMPLE байт файла
+    static long fingerprint(File csvFile) throws IOException {
+        XxHash64 hash = new XxHash64();
+        try (RandomAccessFile file = new RandomAccessFile(csvFile, "r")) {
+            long size = file.length();
+            byte[] buffer = new byte[SAMPLE];
+            byte[] length = new byte[8];
+            for (int i = 0; i < 8; i++) length[i] = (byte) (size >>> (56 - 8 * i));
+            hash.update(length, 0, length.length);
+            int head = (int) Math.min(size, SAMPLE);
+            file.readFully(buffer, 0, head);
+            hash.update(buffer, 0, head);
+            if (size > SAMPLE) {
+                int tail = (int) Math.min(size - SAMPLE, SAMPLE);
+                file.seek(size - tail);
+                file.readFully(buffer, 0, tail);
+                hash.update(buffer, 0, tail);
+            }
+        }
+        return hash.digest();
+    }
+
+    private void save(File csvFile) throws IOException {
+        File file = DbFiles.sidecar(csvFile, DbFiles.STAMP);
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(complete);
+            out.writeInt(format);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeLong(fingerprint);
+            out.writeInt(rows);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Не удалось сохранить " + file.getName());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.eyegod.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Построчное чтение потока на уровне байтов с учётом смещения каждой строки.
+ * BufferedReader работает с символами и не знает, где в файле начинается строка,
+ * поэтому для таблицы смещений он не подходит.
+ */
+public final class LineReader implements Closeable {
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos, limit;
+    private long bufStart; // смещение buf[0] в потоке
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private long lineStart = -1;
+
+    public LineReader(InputStream in) {
+        this(in, 64 * 1024);
+    }
+
+    public LineReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+    }
+
+    // Читает следующую строку (без \n и \r); false в конце потока
+    public boolean next() throws IOException {
+        lineLength = 0;
+        lineStart = bufStart + pos;
+        return readLine();
+    }
+
+    /**
+     * Читает следующую запись CSV и разбирает её в tokenizer. Если поле в кавычках
+     * переходит на следующую строку, строки склеиваются через \n (не больше
+     * {@link CsvTokenizer#MAX_RECORD_LINES}); lineStart() — начало первой из них.
+     */
+    public boolean nextRecord(CsvTokenizer tokenizer) throws IOException {
+        if (!next()) return false;
+        for (int lines = 1; !tokenizer.parse(line, 0, lineLength) && lines < CsvTokenizer.MAX_RECORD_LINES; lines++) {
+            int joined = lineLength;
+            append((byte) '\n');
+            if (!readLine()) {
+                lineLength = joined;
+                break;
+            }
+        }
+        return true;
+    }
+
+    // Дописывает строку к уже прочитанному; false — поток кончился
+    private boolean readLine() throws IOException {
+        boolean any = false;
+        while (true) {
+            if (pos == limit && !fill()) {
+                if (!any) return false;
+                break;
+            }
+            any = true;
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n') pos++;
+            append(start, pos - start);
+            if (pos < limit) {
+                pos++; // пропускаем \n
+                break;
+            }
+        }
+        if (lineLength > 0 && line[lineLength - 1] == '\r') lineLength--;
+        return true;
+    }
+
+    public long lineStart() {
+        return lineStart;
+    }
+
+    // Смещение первого ещё не прочитанного байта
+    public long position() {
+        return bufStart + pos;
+    }
+
+    public byte[] lineBytes() {
+        return line;
+    }
+
+    public int lineLength() {
+        return lineLength;
+    }
+
+    public String lineString() {
+        return new String(line, 0, lineLength, StandardCharsets.UTF_8);
+    }
+
+    private boolean fill() throws IOException {
+        bufStart += limit;
+        pos = 0;
+        limit = 0;
+        int n;
+        do {
+            n = in.read(buf, 0, buf.length);
+        } while (n == 0);
+        if (n < 0) return false;
+        limit = n;
+        return true;
+    }
+
+    private void append(byte b) {
+        if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+        line[lineLength++] = b;
+    }
+
+    private void append(int from, int len) {
+        if (len == 0) return;
+        if (lineLength + len > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + len));
+        }
+        System.arraycopy(buf, from, line, lineLength, len);
+        lineLength += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.eyegod.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Триграммный индекс слов имени (.tri): подстрока, опечатки и транслитерация без просмотра базы.
+ * Индексируются не строки, а словарь слов поля name из .tix: слово переводится в латиницу
+ * ({@link Translit}), дополняется двумя PAD с каждой стороны и режется на триграммы.
+ * Файл — тот же формат, что .tix ({@link TermIndexWriter}), только терм — триграмма,
+ * а вместо номеров строк — номера слов в словаре .tix. Строки слова берутся из .tix.
+ *
+ * Кандидаты: слова, где есть все внутренние триграммы запроса (подстрока), или не меньше
+ * |триграмм| − 3·k общих (каждая правка портит не больше трёх триграмм — при k правках
+ * слово не может отличаться сильнее). Кандидаты проверяются честно, лучшие отбираются кучей.
+ */
+public final class NameIndex implements Closeable {
+    // Короче запрос не режется на триграммы — такие ищутся обычным поиском
+    public static final int MIN_QUERY_LENGTH = 3;
+    private static final char PAD = '\u0002';
+    // Больше кандидатов не проверяем: берём те, у кого больше общих триграмм
+    private static final int MAX_CANDIDATES = 4096;
+
+    private final TermIndex terms;
+    private final TermIndex grams;
+
+    private NameIndex(TermIndex terms, TermIndex grams) {
+        this.terms = terms;
+        this.grams = grams;
+    }
+
+    // null, если индекса нет: база импортирована старой версией или без столбца имени
+    public static NameIndex open(File csvFile) throws IOException {
+        TermIndex grams = TermIndex.open(DbFiles.sidecar(csvFile, DbFiles.NAMES));
+        if (grams == null) return null;
+        TermIndex terms;
+        try {
+            terms = TermIndex.open(DbFiles.sidecar(csvFile, DbFiles.TERMS));
+        } catch (IOException e) {
+            grams.close();
+            throw e;
+        }
+        if (terms == null) {
+            grams.close();
+            return null;
+        }
+        return new NameIndex(terms, grams);
+    }
+
+    // Строит .tri по готовому словарю .tix
+    static void build(File tixFile, File triFile) throws IOException {
+        String prefix = Fields.term(Fields.NAME, "");
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        try (TermIndex terms = TermIndex.open(tixFile);
+             TermIndexWriter writer = new TermIndexWriter(triFile)) {
+            if (terms != null) {
+                TermIndex.Cursor cursor = terms.terms(prefix);
+                while (cursor.next()) {
+                    byte[] term = cursor.term();
+                    int c = TermIndex.compare(term, term.length, prefixBytes, prefixBytes.length);
+                    if (c < 0) continue;
+                    if (!startsWith(term, prefixBytes)) break;
+                    String word = new String(term, prefixBytes.length, term.length - prefixBytes.length, StandardCharsets.UTF_8);
+                    // Слова идут по возрастанию номера; повтор триграммы в слове буфер отбросит сам
+                    for (String gram : grams(Translit.toLatin(word))) writer.add(gram, cursor.ordinal());
+                }
+            }
+            writer.finish();
+        }
+    }
+
+    // Запрос в том виде, в каком сравнивается со словами; из нескольких слов берётся самое длинное
+    public static String key(String query) {
+        String longest = "";
+        for (String word : Fields.indexTerms(Fields.NAME, query)) {
+            if (word.length() > longest.length()) longest = word;
+        }
+        return Translit.toLatin(longest);
+    }
+
+    public static boolean isSearchable(String query) {
+        return key(query).length() >= MIN_QUERY_LENGTH;
+    }
+
+    /**
+     * Слово из словаря и его сходство с запросом: 1 — совпадение, затем начало слова,
+     * подстрока и слова в пределах k правок. Внутри группы выше те, что ближе по длине.
+     */
+    public static final class Match {
+        public final String word;
+        public final double score;
+        final TermIndex.Entry entry;
+
+        Match(String word, double score, TermIndex.Entry entry) {
+            this.word = word;
+            this.score = score;
+            this.entry = entry;
+        }
+    }
+
+    // Худший — первым: так куча из limit элементов выталкивает наименее похожие
+    private static final Comparator<Match> WORST_FIRST = (a, b) -> {
+        int c = Double.compare(a.score, b.score);
+        return c != 0 ? c : b.word.compareTo(a.word);
+    };
+
+    // До limit лучших слов, по убыванию сходства
+    public List<Match> search(String query, int limit) throws IOException {
+        String key = key(query);
+        if (key.length() < MIN_QUERY_LENGTH || limit <= 0) return Collections.emptyList();
+        int maxEdits = maxEdits(key.length());
+
+        Set<String> all = new LinkedHashSet<>(grams(key));
+        Set<String> inner = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= key.length(); i++) inner.add(key.substring(i, i + 3));
+
+        IntList allHits = new IntList();
+        IntList innerHits = new IntList();
+        for (String gram : all) {
+            int[] words = grams.lookup(gram);
+            boolean isInner = inner.contains(gram);
+            for (int word : words) {
+                allHits.add(word);
+                if (isInner) innerHits.add(word);
+            }
+        }
+        int[] candidates = candidates(allHits, innerHits, inner.size(), all.size() - 3 * maxEdits);
+        if (candidates.length == 0) return Collections.emptyList();
+
+        byte[] prefix = Fields.term(Fields.NAME, "").getBytes(StandardCharsets.UTF_8);
+        TermIndex.Entry[] entries = terms.entries(candidates);
+        PriorityQueue<Match> top = new PriorityQueue<>(Math.min(limit, candidates.length), WORST_FIRST);
+        for (TermIndex.Entry entry : entries) {
+            if (!startsWith(entry.term, prefix)) continue; // .tri не от этого словаря
+            String word = new String(entry.term, prefix.length, entry.term.length - prefix.length, StandardCharsets.UTF_8);
+            double score = score(key, Translit.toLatin(word), maxEdits);
+            if (score <= 0) continue;
+            Match match = new Match(word, score, entry);
+            if (top.size() < limit) {
+                top.add(match);
+            } else if (WORST_FIRST.compare(match, top.peek()) > 0) {
+                top.poll();
+                top.add(match);
+            }
+        }
+        List<Match> result = new ArrayList<>(top);
+        result.sort(Collections.reverseOrder(WORST_FIRST));
+        return result;
+    }
+
+    // Оценка для планировщика: кандидатов containing() не больше, чем слов у самой редкой триграммы
+    int containingBound(String fragment) throws IOException {
+        String key = Translit.toLatin(fragment);
+        if (key.length() < MIN_QUERY_LENGTH) return Integer.MAX_VALUE;
+        int bound = Integer.MAX_VALUE;
+        for (int i = 0; i + 3 <= key.length() && bound > 0; i++) {
+            TermIndex.Entry entry = grams.entry(key.substring(i, i + 3).getBytes(StandardCharsets.UTF_8));
+            bound = Math.min(bound, entry == null ? 0 : entry.docFreq);
+        }
+        return bound;
+    }
+
+    /**
+     * Все слова словаря, содержащие fragment (нормализованный, как слова поля name), без предела
+     * и ранжирования — для масок {@link StructuredQuery}. Транслитерация побуквенная, поэтому
+     * слово с fragment содержит и его латиницу: кандидаты — слова со всеми внутренними
+     * триграммами, проверка — по самому слову. null — fragment короче трёх букв латиницей.
+     */
+    List<Match> containing(String fragment) throws IOException {
+        String key = Translit.toLatin(fragment);
+        if (key.length() < MIN_QUERY_LENGTH) return null;
+        List<int[]> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= key.length(); i++) lists.add(grams.lookup(key.substring(i, i + 3)));
+        lists.sort(Comparator.comparingInt(list -> list.length));
+        int[] candidates = lists.get(0);
+        for (int i = 1; i < lists.size() && candidates.length > 0; i++) {
+            candidates = QueryPlanner.intersect(candidates, lists.get(i));
+        }
+
+        byte[] prefix = Fields.term(Fields.NAME, "").getBytes(StandardCharsets.UTF_8);
+        List<Match> result = new ArrayList<>();
+        for (TermIndex.Entry entry : terms.entries(candidates)) {
+            if (!startsWith(entry.term, prefix)) continue;
+            String word = new String(entry.term, prefix.length, entry.term.length - prefix.length, StandardCharsets.UTF_8);
+            if (word.contains(fragment)) result.add(new Match(word, 1, entry));
+        }
+        return result;
+    }
+
+    // Строки базы, где встречается слово; по возрастанию
+    public int[] rows(Match match) throws IOException {
+        return terms.rows(match.entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            grams.close();
+        } finally {
+            terms.close();
+        }
+    }
+
+    /**
+     * Номера слов-кандидатов по возрастанию. allHits — по номеру на каждую общую триграмму,
+     * innerHits — то же для внутренних триграмм запроса.
+     */
+    private static int[] candidates(IntList allHits, IntList innerHits, int innerCount, int threshold) {
+        int[] inner = innerHits.toArray();
+        Arrays.sort(inner);
+        IntList substring = new IntList();
+        for (int i = 0, j; i < inner.length; i = j) {
+            j = i;
+            while (j < inner.length && inner[j] == inner[i]) j++;
+            if (j - i == innerCount) substring.add(inner[i]);
+        }
+
+        int[] hits = allHits.toArray();
+        Arrays.sort(hits);
+        // (число общих триграмм, номер слова) — чтобы при переборе оставить самых похожих
+        long[] scored = new long[hits.length];
+        int count = 0;
+        int s = 0;
+        for (int i = 0, j; i < hits.length; i = j) {
+            j = i;
+            while (j < hits.length && hits[j] == hits[i]) j++;
+            while (s < substring.size() && substring.get(s) < hits[i]) s++;
+            boolean isSubstring = s < substring.size() && substring.get(s) == hits[i];
+            // Подстрока проходит всегда; поднимаем её вес, чтобы её не отрезал MAX_CANDIDATES
+            if (isSubstring || j - i >= threshold) {
+                scored[count++] = (long) (j - i + (isSubstring ? hits.length : 0)) << 32 | hits[i];
+            }
+        }
+        if (count > MAX_CANDIDATES) {
+            Arrays.sort(scored, 0, count);
+            scored = Arrays.copyOfRange(scored, count - MAX_CANDIDATES, count);
+            count = MAX_CANDIDATES;
+        }
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) result[i] = (int) scored[i];
+        Arrays.sort(result);
+        return result;
+    }
+
+    // 0 — не подходит
+    static double score(String key, String word, int maxEdits) {
+        if (word.equals(key)) return 1;
+        double lengthPenalty = 0.05 * Math.abs(word.length() - key.length()) / (word.length() + key.length());
+        if (word.startsWith(key)) return 0.9 - lengthPenalty;
+        if (word.contains(key)) return 0.8 - lengthPenalty;
+        int edits = editDistance(key, word, maxEdits);
+        if (edits > maxEdits) return 0;
+        return 0.7 - 0.1 * edits - lengthPenalty;
+    }
+
+    // Допустимые правки: на коротком слове даже одна меняет его до неузнаваемости
+    static int maxEdits(int length) {
+        if (length <= 3) return 0;
+        return length <= 6 ? 1 : 2;
+    }
+
+    // Расстояние Левенштейна, но не дальше max: больше — возвращается max + 1
+    static int editDistance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) return max + 1;
+        int[] prev = new int[b.length() + 1];
+        int[] cur = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) prev[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            cur[0] = i;
+            int rowMin = cur[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                rowMin = Math.min(rowMin, cur[j]);
+            }
+            if (rowMin > max) return max + 1; // дальше расстояние только растёт
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return Math.min(prev[b.length()], max + 1);
+    }
+
+    // Триграммы слова с двумя PAD с каждой стороны: длина + 2 штуки, начало и конец слова различимы
+    static List<String> grams(String word) {
+        if (word.isEmpty()) return Collections.emptyList();
+        String padded = "" + PAD + PAD + word + PAD + PAD;
+        List<String> result = new ArrayList<>(padded.length() - 2);
+        for (int i = 0; i + 3 <= padded.length(); i++) result.add(padded.substring(i, i + 3));
+        return result;
+    }
+
+    private static boolean startsWith(byte[] term, byte[] prefix) {
+        if (term.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (term[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Таблица смещений (.off): по одному long (8 байт, big-endian) на каждую строку .idx —
+ * байтовое смещение соответствующей строки в CSV. Строка N индекса лежит по адресу N * 8.
+ */
+public final class OffsetTable implements Closeable {
+    private static final int ENTRY_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int rowCount;
+
+    private OffsetTable(RandomAccessFile file) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.rowCount = (int) (channel.size() / ENTRY_SIZE);
+    }
+
+    // null, если таблицы нет (база импортирована старой версией)
+    public static OffsetTable open(File offFile) throws IOException {
+        if (!offFile.exists()) return null;
+        return new OffsetTable(new RandomAccessFile(offFile, "r"));
+    }
+
+    // Число строк по размеру таблицы — без открытия файла
+    static int rowCount(File offFile) {
+        return (int) (offFile.length() / ENTRY_SIZE);
+    }
+
+    public int rowCount() {
+        return rowCount;
+    }
+
+    // Позиционное чтение: безопасно вызывать из нескольких потоков
+    public long offsetOf(int row) throws IOException {
+        if (row < 0 || row >= rowCount) return -1;
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        long pos = (long) row * ENTRY_SIZE;
+        while (entry.hasRemaining()) {
+            if (channel.read(entry, pos + entry.position()) < 0) return -1;
+        }
+        return entry.getLong(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public static final class Writer implements Closeable {
+        private final DataOutputStream out;
+
+        public Writer(File offFile) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offFile), 64 * 1024));
+        }
+
+        public void add(long offset) throws IOException {
+            out.writeLong(offset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
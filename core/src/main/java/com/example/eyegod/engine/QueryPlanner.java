@@ -0,0 +1,582 @@
+package com.example.eyegod.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * План {@link StructuredQuery} для одной базы: у каждого условия — самый дешёвый из путей,
+ * что есть у этой базы, у AND — пересечение списков строк от самого короткого.
+ *
+ * Пути, от дешёвых к дорогим:
+ *   фильтр Блума — целого ключа в базе нет: условие пусто, словарь не читается;
+ *   точный терм — один блок словаря .tix и список строк;
+ *   начало терма — подряд идущие термы словаря;
+ *   триграммы — маска по имени с куском от трёх букв латиницей и имя с "~" (.tri);
+ *   обход словаря — прочие маски: термы поля сверяются с маской, списки читаются только у подошедших;
+ *   просмотр .idx — условие без поля; в базе без словаря — любое условие, подстрокой по всей строке.
+ * Строки, дописанные после сборки словаря ({@link DeltaIndex}), ищутся ещё и в маленьких словарях
+ * порций: точный терм, начало или обход; имя с "~" там ищется по началу слова.
+ *
+ * Оценка условия — сколько строк оно даст и во что обойдётся. Строки точного терма, начала
+ * и триграмм известны по docFreq словаря, без чтения списков; у обхода и просмотра — не больше
+ * всех строк базы. AND вычисляет условия по возрастанию оценки и останавливается на первом
+ * пустом пересечении, поэтому дорогой обход или просмотр не начинается, если дешёвые условия
+ * уже ничего не оставили. NOT и прочие узлы, что не ограничивают строки сами
+ * ({@link StructuredQuery#isBounded}), вычисляются только внутри уже найденного — дополнение
+ * до всей базы не строится никогда.
+ *
+ * Один планировщик — одна база и один поток; {@link #explain()} — как был выполнен запрос.
+ */
+final class QueryPlanner implements Closeable {
+    // Больше термов у начала — строки читаются сразу, без оценки по docFreq
+    private static final int MAX_EXPANSION = 10000;
+    // Слов с опечатками на одно условие "~"
+    private static final int MAX_FUZZY_WORDS = 1000;
+    // Просмотр .idx дороже чтения списков строк: на строку базы — столько единиц стоимости
+    private static final int SCAN_COST_PER_ROW = 8;
+
+    private enum Path {
+        BLOOM("нет по фильтру Блума"),
+        ABSENT("нет в словаре"),
+        EXACT("точный терм"),
+        PREFIX("начало терма"),
+        TRIGRAM("триграммы имени"),
+        FUZZY("имя с опечатками"),
+        DICTIONARY("обход словаря поля"),
+        SCAN("просмотр .idx");
+
+        final String title;
+
+        Path(String title) {
+            this.title = title;
+        }
+    }
+
+    // Как будет вычислено условие и во что обойдётся; entries — уже прочитанные при оценке термы
+    private static final class Step {
+        final Path path;
+        final long rows;
+        final long cost;
+        final TermIndex.Entry[] entries;
+
+        Step(Path path, long rows, long cost, TermIndex.Entry[] entries) {
+            this.path = path;
+            this.rows = rows;
+            this.cost = cost;
+            this.entries = entries;
+        }
+    }
+
+    private final File csvFile;
+    private final SearchHandle handle;
+    private final TermIndex terms; // null — словаря нет или нет таблицы смещений
+    private final BloomIndex bloom;
+    private final List<DeltaIndex.Segment> segments;
+    private final List<TermIndex> segmentTerms;
+    private NameIndex names;
+    private boolean namesOpened;
+    private int rowCount = -1;
+    private final Map<StructuredQuery.Term, Step> steps = new IdentityHashMap<>();
+    private final StringBuilder plan = new StringBuilder();
+
+    private QueryPlanner(File csvFile, SearchHandle handle, TermIndex terms, BloomIndex bloom,
+                         List<DeltaIndex.Segment> segments, List<TermIndex> segmentTerms) {
+        this.csvFile = csvFile;
+        this.handle = handle;
+        this.terms = terms;
+        this.bloom = bloom;
+        this.segments = segments;
+        this.segmentTerms = segmentTerms;
+    }
+
+    // entry — запись каталога о базе: спутники и число строк берутся из неё; null — узнаются с диска
+    static QueryPlanner open(File csvFile, DbCatalog.Entry entry, SearchHandle handle) throws IOException {
+        // Словарь и таблица смещений пишутся вместе; без таблицы номера строк словаря не разрешить
+        boolean hasTerms = entry != null
+                ? entry.has(DbFiles.OFFSETS) && entry.has(DbFiles.TERMS)
+                : DbFiles.sidecar(csvFile, DbFiles.OFFSETS).exists();
+        TermIndex terms = hasTerms ? TermIndex.open(DbFiles.sidecar(csvFile, DbFiles.TERMS)) : null;
+        // Дописанных строк в словаре нет, пока порции не слиты, — их словари читаются рядом
+        List<DeltaIndex.Segment> segments = terms != null && (entry == null || entry.has(DbFiles.SEGMENTS))
+                ? DeltaIndex.read(csvFile) : new ArrayList<>();
+        List<TermIndex> segmentTerms = new ArrayList<>();
+        try {
+            for (DeltaIndex.Segment segment : segments) {
+                TermIndex index = TermIndex.open(DeltaIndex.file(csvFile, segment));
+                if (index == null) throw new IOException("Нет словаря порции " + segment.id);
+                segmentTerms.add(index);
+            }
+        } catch (IOException e) {
+            for (TermIndex index : segmentTerms) index.close();
+            if (terms != null) terms.close();
+            throw e;
+        }
+        BloomIndex bloom;
+        try {
+            bloom = BloomIndex.open(DbFiles.sidecar(csvFile, DbFiles.BLOOM));
+        } catch (IOException e) {
+            bloom = null; // фильтр не читается — обходимся без него
+        }
+        QueryPlanner planner = new QueryPlanner(csvFile, handle, terms, bloom, segments, segmentTerms);
+        if (entry != null) planner.rowCount = entry.rows;
+        return planner;
+    }
+
+    // Строки базы, подходящие под запрос, по возрастанию; после отмены — что успели
+    int[] execute(StructuredQuery query) throws IOException {
+        int[] rows = evaluate(query.root);
+        note("итог", rows.length);
+        return rows;
+    }
+
+    // Какой путь выбран для каждого условия и сколько строк он дал — для журнала
+    String explain() {
+        return plan.toString();
+    }
+
+    // Только ограниченный узел ({@link StructuredQuery#isBounded}); прочие — через {@link #filter}
+    private int[] evaluate(StructuredQuery.Node node) throws IOException {
+        if (handle.isCancelled()) return new int[0];
+        if (node instanceof StructuredQuery.Term) return evaluateTerm((StructuredQuery.Term) node);
+        if (node instanceof StructuredQuery.Or) {
+            int[] rows = new int[0];
+            for (StructuredQuery.Node child : ((StructuredQuery.Or) node).children) rows = union(rows, evaluate(child));
+            return rows;
+        }
+        return evaluateAnd((StructuredQuery.And) node);
+    }
+
+    private int[] evaluateAnd(StructuredQuery.And and) throws IOException {
+        List<StructuredQuery.Node> positive = new ArrayList<>();
+        List<StructuredQuery.Node> rest = new ArrayList<>();
+        for (StructuredQuery.Node child : and.children) {
+            if (StructuredQuery.isBounded(child)) {
+                positive.add(child);
+            } else {
+                rest.add(child);
+            }
+        }
+        // Самое узкое — первым, при равной оценке — самое дешёвое
+        long[][] estimates = new long[positive.size()][];
+        for (int i = 0; i < estimates.length; i++) estimates[i] = estimate(positive.get(i));
+        Integer[] order = new Integer[positive.size()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> estimates[a][0] != estimates[b][0]
+                ? Long.compare(estimates[a][0], estimates[b][0]) : Long.compare(estimates[a][1], estimates[b][1]));
+
+        int[] rows = null;
+        for (int i : order) {
+            if (rows != null && rows.length == 0) {
+                skip(positive.get(i));
+                continue;
+            }
+            int[] next = evaluate(positive.get(i));
+            rows = rows == null ? next : intersect(rows, next);
+        }
+        // Хоть одно ограниченное условие у AND есть — иначе он сам не ограничен и сюда не попадает
+        for (StructuredQuery.Node child : rest) rows = filter(child, rows);
+        return rows;
+    }
+
+    // Строки из rows, подходящие под узел: NOT вычитается из них, а не из всей базы
+    private int[] filter(StructuredQuery.Node node, int[] rows) throws IOException {
+        if (rows.length == 0 || handle.isCancelled()) {
+            skip(node);
+            return new int[0];
+        }
+        if (StructuredQuery.isBounded(node)) return intersect(rows, evaluate(node));
+        if (node instanceof StructuredQuery.Not) {
+            return difference(rows, filter(((StructuredQuery.Not) node).child, rows));
+        }
+        if (node instanceof StructuredQuery.Or) {
+            int[] result = new int[0];
+            for (StructuredQuery.Node child : ((StructuredQuery.Or) node).children) {
+                result = union(result, filter(child, rows));
+            }
+            return result;
+        }
+        for (StructuredQuery.Node child : ((StructuredQuery.And) node).children) rows = filter(child, rows);
+        return rows;
+    }
+
+    // {строк, стоимость} — по ним AND упорядочивает условия
+    private long[] estimate(StructuredQuery.Node node) throws IOException {
+        if (node instanceof StructuredQuery.Term) {
+            Step step = step((StructuredQuery.Term) node);
+            return new long[]{step.rows, step.cost};
+        }
+        if (node instanceof StructuredQuery.Not) {
+            // Дополнение: строк — почти вся база, и её надо перебрать
+            long[] inner = estimate(((StructuredQuery.Not) node).child);
+            return new long[]{rowCount(), inner[1] + rowCount()};
+        }
+        boolean isAnd = node instanceof StructuredQuery.And;
+        List<StructuredQuery.Node> children = isAnd ? ((StructuredQuery.And) node).children
+                : ((StructuredQuery.Or) node).children;
+        long rows = isAnd ? Long.MAX_VALUE : 0;
+        long cost = 0;
+        for (StructuredQuery.Node child : children) {
+            long[] e = estimate(child);
+            rows = isAnd ? Math.min(rows, e[0]) : Math.min(rowCount(), rows + e[0]);
+            cost += e[1];
+        }
+        return new long[]{rows, cost};
+    }
+
+    // Выбор пути условия; оценка читает не больше блоков словаря, чем нужно, и запоминается
+    private Step step(StructuredQuery.Term term) throws IOException {
+        Step step = steps.get(term);
+        if (step == null) {
+            step = choose(term);
+            steps.put(term, step);
+        }
+        return step;
+    }
+
+    private Step choose(StructuredQuery.Term term) throws IOException {
+        if (term.kind == StructuredQuery.Kind.EXACT && bloom != null && Fields.isKey(term.field)
+                && !bloom.mightContain(BloomIndex.hash(Fields.term(term.field, term.value())))) {
+            return new Step(Path.BLOOM, 0, 0, null);
+        }
+        if (term.field == null || terms == null) return scanStep();
+        switch (term.kind) {
+            case EXACT: {
+                TermIndex.Entry entry = terms.entry(bytes(Fields.term(term.field, term.value())));
+                if (entry == null) return new Step(Path.ABSENT, 0, 1, null);
+                return new Step(Path.EXACT, entry.docFreq, 1 + entry.docFreq, new TermIndex.Entry[]{entry});
+            }
+            case FUZZY: {
+                NameIndex index = names();
+                if (index == null) return prefixStep(term); // без .tri — хотя бы по началу слова
+                List<NameIndex.Match> matches = index.search(term.value(), MAX_FUZZY_WORDS);
+                TermIndex.Entry[] entries = new TermIndex.Entry[matches.size()];
+                for (int i = 0; i < entries.length; i++) entries[i] = matches.get(i).entry;
+                return termsStep(Path.FUZZY, entries);
+            }
+            case PATTERN:
+                return patternStep(term);
+            default:
+                return prefixStep(term);
+        }
+    }
+
+    private Step prefixStep(StructuredQuery.Term term) throws IOException {
+        byte[] prefix = bytes(Fields.term(term.field, term.value()));
+        int estimated = terms.estimateTerms(prefix);
+        TermIndex.Entry[] entries = estimated <= MAX_EXPANSION + TermIndexWriter.BLOCK_SIZE
+                ? terms.prefixEntries(prefix, MAX_EXPANSION) : null;
+        // Слишком общее начало: строк может быть сколько угодно, списки читаются все подряд
+        if (entries == null) return new Step(Path.PREFIX, rowCount(), estimated + rowCount(), null);
+        return termsStep(Path.PREFIX, entries);
+    }
+
+    /**
+     * Маска: обход словаря от её начала или, у имени, триграммы самого длинного куска —
+     * что обойдётся дешевле. Обход стоит число термов поля с началом маски (по оглавлению),
+     * триграммы — число слов у самой редкой триграммы куска.
+     */
+    private Step patternStep(StructuredQuery.Term term) throws IOException {
+        long dictionaryCost = terms.estimateTerms(bytes(Fields.term(term.field, term.parts[0])));
+        NameIndex index = term.field.equals(Fields.NAME) ? names() : null;
+        String fragment = longest(term.parts);
+        if (index != null && index.containingBound(fragment) < dictionaryCost) {
+            List<TermIndex.Entry> kept = new ArrayList<>();
+            List<NameIndex.Match> matches = index.containing(fragment);
+            if (matches != null) {
+                for (NameIndex.Match match : matches) {
+                    if (term.matches(match.word)) kept.add(match.entry);
+                }
+                return termsStep(Path.TRIGRAM, kept.toArray(new TermIndex.Entry[0]));
+            }
+        }
+        return new Step(Path.DICTIONARY, rowCount(), dictionaryCost, null);
+    }
+
+    // Термы уже известны: строк не больше суммы docFreq, стоимость — чтение их списков
+    private static Step termsStep(Path path, TermIndex.Entry[] entries) {
+        long rows = 0;
+        for (TermIndex.Entry entry : entries) rows += entry.docFreq;
+        return new Step(path, rows, entries.length + rows, entries);
+    }
+
+    private Step scanStep() {
+        long rows = rowCount();
+        return new Step(Path.SCAN, rows, rows * SCAN_COST_PER_ROW, null);
+    }
+
+    private int[] evaluateTerm(StructuredQuery.Term term) throws IOException {
+        Step step = step(term);
+        int[] rows;
+        switch (step.path) {
+            case BLOOM:
+            case ABSENT:
+                rows = new int[0];
+                break;
+            case DICTIONARY:
+                rows = dictionary(term);
+                break;
+            case SCAN:
+                rows = scan(term);
+                break;
+            default:
+                rows = step.entries != null ? terms.rows(step.entries)
+                        : terms.prefix(Fields.term(term.field, term.value()));
+                break;
+        }
+        // Фильтр Блума знает и дописанные строки; просмотр .idx видит их сам
+        if (step.path != Path.BLOOM && step.path != Path.SCAN && !segments.isEmpty()) {
+            rows = union(rows, appended(term));
+        }
+        String detail = step.entries != null && step.path != Path.EXACT
+                ? step.path.title + ", термов: " + step.entries.length : step.path.title;
+        note(term + " — " + detail, rows.length);
+        return rows;
+    }
+
+    // Строки условия в словарях порций — номерами строк базы; порции идут после словаря базы и друг за другом
+    private int[] appended(StructuredQuery.Term term) throws IOException {
+        IntList rows = new IntList();
+        for (int i = 0; i < segments.size() && !handle.isCancelled(); i++) {
+            TermIndex index = segmentTerms.get(i);
+            int[] found;
+            switch (term.kind) {
+                case EXACT:
+                    found = index.lookup(Fields.term(term.field, term.value()));
+                    break;
+                case PATTERN:
+                    found = dictionary(index, term);
+                    break;
+                default:
+                    found = index.prefix(Fields.term(term.field, term.value()));
+                    break;
+            }
+            int firstRow = segments.get(i).firstRow;
+            for (int row : found) rows.add(firstRow + row);
+        }
+        return rows.toArray();
+    }
+
+    private int[] dictionary(StructuredQuery.Term term) throws IOException {
+        return dictionary(terms, term);
+    }
+
+    // Термы поля от начала маски по порядку словаря; строки — только у подошедших под маску
+    private int[] dictionary(TermIndex index, StructuredQuery.Term term) throws IOException {
+        int valueStart = bytes(Fields.term(term.field, "")).length;
+        byte[] from = bytes(Fields.term(term.field, term.parts[0]));
+        TermIndex.Cursor cursor = index.terms(Fields.term(term.field, term.parts[0]));
+        IntList ordinals = new IntList();
+        for (int seen = 0; cursor.next(); seen++) {
+            if ((seen & 0xFFF) == 0 && handle.isCancelled()) return new int[0];
+            byte[] value = cursor.term();
+            if (TermIndex.compare(value, value.length, from, from.length) < 0) continue;
+            if (!startsWith(value, from)) break;
+            if (term.matches(new String(value, valueStart, value.length - valueStart, StandardCharsets.UTF_8))) {
+                ordinals.add(cursor.ordinal());
+            }
+        }
+        return index.rows(index.entries(ordinals.toArray()));
+    }
+
+    /**
+     * Подстрока в строках .idx: ищется самый длинный кусок, остальные проверяются в найденной
+     * строке по порядку. Поле здесь не различить — условие с полем в базе без словаря ищется
+     * по всей строке, как обычный поиск без словаря.
+     */
+    private int[] scan(StructuredQuery.Term term) throws IOException {
+        String[] parts = term.scanParts;
+        File indexFile = DbFiles.sidecar(csvFile, DbFiles.IDX);
+        if (!indexFile.exists()) return new int[0];
+        BytePattern needle = new BytePattern(longest(parts));
+        IntList rows = new IntList();
+        int lines = 0;
+        long[] bounds = SearchExecutor.splitByLines(indexFile, SearchExecutor.CHUNK_SIZE);
+        try (FileInputStream in = new FileInputStream(indexFile)) {
+            for (int chunk = 0; chunk + 1 < bounds.length && !handle.isCancelled(); chunk++) {
+                int limit = (int) (bounds[chunk + 1] - bounds[chunk]);
+                if (limit == 0) continue;
+                ByteBuffer buf = in.getChannel().map(FileChannel.MapMode.READ_ONLY, bounds[chunk], limit);
+                int pos = 0;
+                while (pos < limit) {
+                    int match = needle.indexOf(buf, pos, limit);
+                    if (match < 0) {
+                        lines += BytePattern.count(buf, (byte) '\n', pos, limit);
+                        break;
+                    }
+                    int lineStart = match;
+                    while (lineStart > pos && buf.get(lineStart - 1) != '\n') lineStart--;
+                    lines += BytePattern.count(buf, (byte) '\n', pos, lineStart);
+                    int newline = BytePattern.indexOf(buf, (byte) '\n', match, limit);
+                    int lineEnd = newline < 0 ? limit : newline;
+                    if (parts.length == 1 || StructuredQuery.matchesParts(parts, line(buf, lineStart, lineEnd), false)) {
+                        rows.add(lines);
+                    }
+                    if (newline < 0) break;
+                    lines++;
+                    pos = newline + 1;
+                }
+                if (buf.get(limit - 1) != '\n') lines++; // последняя строка файла без перевода строки
+            }
+        }
+        return rows.toArray();
+    }
+
+    /**
+     * Число строк базы: по таблице смещений или фильтрам Блума без чтения .idx;
+     * у старых баз без них — подсчётом строк .idx.
+     */
+    private int rowCount() {
+        if (rowCount >= 0) return rowCount;
+        File offsets = DbFiles.sidecar(csvFile, DbFiles.OFFSETS);
+        if (offsets.exists()) {
+            rowCount = (int) (offsets.length() / 8);
+        } else if (bloom != null) {
+            rowCount = bloom.rowCount();
+        } else {
+            rowCount = countLines(DbFiles.sidecar(csvFile, DbFiles.IDX));
+        }
+        return rowCount;
+    }
+
+    static int countLines(File indexFile) {
+        if (!indexFile.exists() || indexFile.length() == 0) return 0;
+        int lines = 0;
+        byte[] buffer = new byte[64 * 1024];
+        byte last = '\n';
+        try (FileInputStream in = new FileInputStream(indexFile)) {
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') lines++;
+                }
+                last = buffer[n - 1];
+            }
+        } catch (IOException e) {
+            return lines; // оценка, а не результат: ошибку чтения покажет сам просмотр
+        }
+        return last == '\n' ? lines : lines + 1;
+    }
+
+    private NameIndex names() throws IOException {
+        if (!namesOpened) {
+            namesOpened = true;
+            names = NameIndex.open(csvFile);
+        }
+        return names;
+    }
+
+    // Условие не понадобилось: пересечение уже пусто
+    private void skip(StructuredQuery.Node node) {
+        if (plan.length() > 0) plan.append("; ");
+        plan.append(node).append(" — не понадобилось");
+    }
+
+    private void note(String what, int rows) {
+        if (plan.length() > 0) plan.append("; ");
+        plan.append(String.format(Locale.ROOT, "%s → %d", what, rows));
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (terms != null) terms.close();
+            if (bloom != null) bloom.close();
+            for (TermIndex index : segmentTerms) index.close();
+        } finally {
+            if (names != null) names.close();
+        }
+    }
+
+    /**
+     * Пересечение возрастающих списков. Идём по короткому, в длинном ищем скачками
+     * (1, 2, 4, ... и двоичный поиск) — при разнице в размерах в сотни раз это быстрее слияния.
+     */
+    static int[] intersect(int[] a, int[] b) {
+        if (a.length > b.length) {
+            int[] t = a;
+            a = b;
+            b = t;
+        }
+        int[] result = new int[a.length];
+        int count = 0;
+        int from = 0;
+        for (int value : a) {
+            int step = 1;
+            while (from + step < b.length && b[from + step] < value) {
+                from += step;
+                step <<= 1;
+            }
+            int at = Arrays.binarySearch(b, from, Math.min(from + step + 1, b.length), value);
+            if (at >= 0) {
+                result[count++] = value;
+                from = at + 1;
+            } else {
+                from = -at - 1;
+            }
+            if (from == b.length) break;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    static int[] union(int[] a, int[] b) {
+        if (a.length == 0) return b;
+        if (b.length == 0) return a;
+        int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, count = 0;
+        while (i < a.length || j < b.length) {
+            int value = j == b.length || (i < a.length && a[i] <= b[j]) ? a[i] : b[j];
+            if (i < a.length && a[i] == value) i++;
+            if (j < b.length && b[j] == value) j++;
+            result[count++] = value;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    static int[] difference(int[] a, int[] b) {
+        int[] result = new int[a.length];
+        int count = 0;
+        int j = 0;
+        for (int value : a) {
+            while (j < b.length && b[j] < value) j++;
+            if (j < b.length && b[j] == value) continue;
+            result[count++] = value;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static String line(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String longest(String[] parts) {
+        String longest = "";
+        for (String part : parts) {
+            if (part.length() > longest.length()) longest = part;
+        }
+        return longest;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean startsWith(byte[] term, byte[] prefix) {
+        if (term.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (term[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+}
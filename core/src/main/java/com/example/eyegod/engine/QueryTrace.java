@@ -0,0 +1,270 @@
+package com.example.eyegod.engine;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Трасса одного поиска: отрезки по стадиям (спаны) — подготовка, словарь термов, просмотр куска .idx,
+ * чтение строки CSV для показа, сборка текста — с временем, байтами, просмотренными и найденными строками.
+ * Спаны пишутся из рабочих потоков. Хранится не больше MAX_SPANS отдельных спанов,
+ * итоги по стадиям считаются всегда — строки, дочитанные при прокрутке, не раздувают трассу.
+ */
+public final class QueryTrace {
+    public static final String LIST = "list";       // список баз перед поиском (приложение)
+    public static final String PLAN = "plan";       // кэш, выбор пути и постановка задач
+    public static final String CACHE = "cache";     // выдача из кэша результатов
+    public static final String BLOOM = "bloom";
+    public static final String GLOBAL = "global";   // общий индекс баз
+    public static final String INDEX = "index";     // словарь термов базы
+    public static final String NAMES = "names";     // триграммы имён
+    public static final String QUERY = "query";     // план StructuredQuery в базе
+    public static final String SCAN = "scan";       // кусок .idx
+    public static final String RESOLVE = "resolve"; // чтение строки CSV по номеру
+    public static final String FORMAT = "format";   // текст строки для вывода
+
+    static final int MAX_SPANS = 512;
+
+    public final long id;
+    public final String kind;
+    public final String query;
+    public final int files;
+    public final long startedAt; // System.currentTimeMillis()
+    final long startNanos;
+    private final TraceBuffer.AllocationCounter allocations; // null — не считаются
+
+    private final List<Span> spans = new ArrayList<>();
+    private final Map<String, Total> totals = new LinkedHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private int droppedSpans;
+    private volatile long durationNanos = -1;
+    private volatile boolean cancelled;
+    private volatile boolean fromCache;
+
+    QueryTrace(long id, String kind, String query, int files, TraceBuffer.AllocationCounter allocations) {
+        this.id = id;
+        this.kind = kind;
+        this.query = query;
+        this.files = files;
+        this.allocations = allocations;
+        this.startedAt = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /** Завершённый отрезок; время — в наносекундах от начала поиска, allocatedBytes = -1 — не считались. */
+    public static final class Span {
+        public final String name;
+        public final String file;   // имя базы; null — стадия всего поиска
+        public final String thread;
+        public final long startNanos;
+        public final long durationNanos;
+        public final long bytes;
+        public final long rows;
+        public final long hits;
+        public final long allocatedBytes;
+        public final String detail; // план запроса и т. п.; может быть null
+
+        Span(String name, String file, String thread, long startNanos, long durationNanos, long bytes, long rows,
+             long hits, long allocatedBytes, String detail) {
+            this.name = name;
+            this.file = file;
+            this.thread = thread;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.bytes = bytes;
+            this.rows = rows;
+            this.hits = hits;
+            this.allocatedBytes = allocatedBytes;
+            this.detail = detail;
+        }
+    }
+
+    /** Сумма по всем спанам стадии, включая не сохранённые. */
+    public static final class Total {
+        public final String name;
+        public int count;
+        public long durationNanos;
+        public long bytes;
+        public long rows;
+        public long hits;
+        public long allocatedBytes = -1;
+
+        Total(String name) {
+            this.name = name;
+        }
+
+        Total copy() {
+            Total copy = new Total(name);
+            copy.count = count;
+            copy.durationNanos = durationNanos;
+            copy.bytes = bytes;
+            copy.rows = rows;
+            copy.hits = hits;
+            copy.allocatedBytes = allocatedBytes;
+            return copy;
+        }
+    }
+
+    /**
+     * Открытый отрезок: поля заполняет тот, кто его открыл, end() записывает его в трассу.
+     * Открывается и закрывается в одном потоке — выделения памяти считаются по потоку.
+     */
+    public static final class Timer {
+        static final Timer NONE = new Timer(null, null, null);
+
+        public long bytes;
+        public long rows;
+        public long hits;
+        public String detail;
+        private final QueryTrace trace;
+        private final String name;
+        private final String file;
+        private final long started;
+        private final long allocatedAtStart;
+
+        private Timer(QueryTrace trace, String name, File file) {
+            this.trace = trace;
+            this.name = name;
+            this.file = file != null ? file.getName() : null;
+            this.started = trace != null ? System.nanoTime() : 0;
+            this.allocatedAtStart = trace != null ? trace.allocated() : -1;
+        }
+
+        public void end() {
+            if (trace == null) return;
+            long allocated = allocatedAtStart >= 0 ? trace.allocated() - allocatedAtStart : -1;
+            trace.add(name, file, started, System.nanoTime(), bytes, rows, hits, allocated, detail);
+        }
+    }
+
+    // Без трассы — пустой отрезок: вызывающему не нужны проверки на null
+    public static Timer begin(QueryTrace trace, String name, File file) {
+        return trace != null ? new Timer(trace, name, file) : Timer.NONE;
+    }
+
+    // Отрезок, замеренный снаружи (System.nanoTime()), например список баз до начала поиска
+    public void record(String name, File file, long startNanos, long endNanos) {
+        add(name, file != null ? file.getName() : null, startNanos, endNanos, 0, 0, 0, -1, null);
+    }
+
+    private long allocated() {
+        return allocations != null ? allocations.allocatedBytes() : -1;
+    }
+
+    private void add(String name, String file, long started, long ended, long bytes, long rows, long hits,
+                     long allocated, String detail) {
+        long duration = ended - started;
+        synchronized (this) {
+            Total total = totals.get(name);
+            if (total == null) {
+                total = new Total(name);
+                totals.put(name, total);
+            }
+            total.count++;
+            total.durationNanos += duration;
+            total.bytes += bytes;
+            total.rows += rows;
+            total.hits += hits;
+            if (allocated >= 0) total.allocatedBytes = Math.max(0, total.allocatedBytes) + allocated;
+            if (spans.size() < MAX_SPANS) {
+                spans.add(new Span(name, file, Thread.currentThread().getName(), started - startNanos, duration,
+                        bytes, rows, hits, allocated, detail));
+            } else {
+                droppedSpans++;
+            }
+        }
+    }
+
+    void addHits(int count) {
+        hits.addAndGet(count);
+    }
+
+    void finish(boolean cancelled, boolean fromCache) {
+        this.cancelled = cancelled;
+        this.fromCache = fromCache;
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    public boolean isFinished() {
+        return durationNanos >= 0;
+    }
+
+    // До конца поиска — -1
+    public long durationNanos() {
+        return durationNanos;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    // Сколько строк получил слушатель поиска
+    public long hits() {
+        return hits.get();
+    }
+
+    public synchronized List<Span> spans() {
+        return new ArrayList<>(spans);
+    }
+
+    public synchronized List<Total> totals() {
+        List<Total> copy = new ArrayList<>(totals.size());
+        for (Total total : totals.values()) copy.add(total.copy());
+        return copy;
+    }
+
+    public synchronized int droppedSpans() {
+        return droppedSpans;
+    }
+
+    // Строка для списка: время, тип, запрос, длительность и найденное
+    public String summary() {
+        String time = new SimpleDateFormat("HH:mm:ss", Locale.US).format(new Date(startedAt));
+        String duration = isFinished() ? formatNanos(durationNanos) : "идёт";
+        String flags = (cancelled ? " · отменён" : "") + (fromCache ? " · из кэша" : "");
+        return time + " " + kind + " «" + query + "» · " + duration + " · " + hits() + " стр." + flags;
+    }
+
+    // Подробный текст: итоги по стадиям, затем самые долгие отрезки
+    public String describe() {
+        StringBuilder sb = new StringBuilder(summary()).append('\n');
+        sb.append("Баз: ").append(files).append('\n');
+        for (Total total : totals()) {
+            sb.append('\n').append(total.name).append(" ×").append(total.count)
+                    .append(": ").append(formatNanos(total.durationNanos));
+            if (total.bytes > 0) sb.append(", ").append(total.bytes >> 10).append(" КБ");
+            if (total.rows > 0) sb.append(", строк ").append(total.rows);
+            if (total.hits > 0) sb.append(", найдено ").append(total.hits);
+            if (total.allocatedBytes >= 0) sb.append(", выделено ").append(total.allocatedBytes >> 10).append(" КБ");
+        }
+        List<Span> longest = spans();
+        Collections.sort(longest, (a, b) -> Long.compare(b.durationNanos, a.durationNanos));
+        sb.append("\n\nДольше всего:");
+        for (int i = 0; i < Math.min(10, longest.size()); i++) {
+            Span span = longest.get(i);
+            sb.append("\n").append(span.name);
+            if (span.file != null) sb.append(' ').append(span.file);
+            sb.append(" [").append(span.thread).append("] ").append(formatNanos(span.durationNanos));
+            if (span.detail != null) sb.append("\n  ").append(span.detail);
+        }
+        int dropped = droppedSpans();
+        if (dropped > 0) sb.append("\n\nНе сохранено отрезков: ").append(dropped);
+        return sb.toString();
+    }
+
+    static String formatNanos(long nanos) {
+        if (nanos < 1_000_000) return String.format(Locale.US, "%.2f мс", nanos / 1e6);
+        return (nanos / 1_000_000) + " мс";
+    }
+}
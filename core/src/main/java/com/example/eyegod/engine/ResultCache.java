@@ -0,0 +1,295 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш результатов поиска: одинаковый запрос к тем же базам не ищется повторно.
+ * Ключ — тип запроса, нормализованный текст и отпечаток набора баз: пути, размеры и время
+ * изменения CSV и файлов-спутников. Импорт, удаление и переименование меняют отпечаток,
+ * и кэш от прежнего набора сбрасывается сам — при первом же запросе с новым отпечатком.
+ *
+ * Два уровня: в памяти (LRU в пределах memoryBudget байт) и, если задан каталог, на диске —
+ * туда уходят вытесненные из памяти и слишком большие для неё результаты. Файл на диске
+ * назван по отпечатку, так что кэш переживает перезапуск, пока базы не менялись.
+ */
+public final class ResultCache {
+    private static final int MAGIC = 0x45475243; // "EGRC"
+    private static final String SUFFIX = ".res";
+    private static final char SEPARATOR = '\u001F';
+    private static final long ENTRY_OVERHEAD = 64;
+
+    private final long memoryBudget;
+    private final File diskDir;
+    private final long diskBudget;
+    private final LinkedHashMap<String, Result> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private long stamp;
+    private boolean stampKnown;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // diskDir = null — только память
+    public ResultCache(long memoryBudget, File diskDir, long diskBudget) {
+        this.memoryBudget = memoryBudget;
+        this.diskDir = diskDir;
+        this.diskBudget = diskDir != null ? diskBudget : 0;
+        if (diskDir != null) diskDir.mkdirs();
+    }
+
+    public static final class Key {
+        final String text;
+        final long stamp;
+
+        private Key(String text, long stamp) {
+            this.text = text;
+            this.stamp = stamp;
+        }
+
+        private String fileName() {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            return String.format(Locale.ROOT, "%016x-%016x%s", stamp, XxHash64.hash(bytes, 0, bytes.length), SUFFIX);
+        }
+    }
+
+    // variant — чем ещё отличается поиск с тем же запросом (например, предел выдачи)
+    public Key key(SearchQuery query, String variant, List<File> csvFiles) {
+        return key(query.type, variant, normalized(query), csvFiles);
+    }
+
+    // Запрос так, как его видит поиск: "8 916..." и "+7916..." — один ключ
+    static String normalized(SearchQuery query) {
+        return query.isField() ? Fields.normalizeQuery(query.type, query.text) : query.lower;
+    }
+
+    // type — вид поиска, normalized — запрос в однозначной записи
+    Key key(String type, String variant, String normalized, List<File> csvFiles) {
+        return new Key(type + SEPARATOR + variant + SEPARATOR + normalized, stamp(csvFiles));
+    }
+
+    // Отпечаток набора баз; порядок баз важен — в нём приходят результаты
+    static long stamp(List<File> csvFiles) {
+        StringBuilder sb = new StringBuilder();
+        for (File csvFile : csvFiles) {
+            sb.append(csvFile.getAbsolutePath()).append(SEPARATOR)
+                    .append(csvFile.length()).append(SEPARATOR).append(csvFile.lastModified());
+            for (String suffix : new String[]{DbFiles.IDX, DbFiles.TERMS}) {
+                sb.append(SEPARATOR).append(DbFiles.sidecar(csvFile, suffix).lastModified());
+            }
+            sb.append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        return XxHash64.hash(bytes, 0, bytes.length);
+    }
+
+    /** Найденные строки в порядке выдачи: порции (база, строки). */
+    public static final class Result {
+        final List<File> files = new ArrayList<>();
+        final List<int[]> rows = new ArrayList<>();
+        long bytes = ENTRY_OVERHEAD;
+
+        void add(File csvFile, int[] part) {
+            files.add(csvFile);
+            rows.add(part);
+            bytes += ENTRY_OVERHEAD + 4L * part.length;
+        }
+    }
+
+    // null — промах; диск читается в вызывающем потоке
+    public Result get(Key key) {
+        Result result;
+        synchronized (this) {
+            switchStamp(key.stamp);
+            result = memory.get(key.text);
+        }
+        if (result != null) {
+            memoryHits.incrementAndGet();
+            return result;
+        }
+        result = readDisk(key);
+        if (result == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        diskHits.incrementAndGet();
+        synchronized (this) {
+            // Снова понадобился — поднимаем в память
+            if (key.stamp == stamp && result.bytes <= memoryBudget / 4) putMemory(key, result);
+        }
+        return result;
+    }
+
+    public void put(Key key, Result result) {
+        synchronized (this) {
+            if (!stampKnown || key.stamp != stamp) return; // пока искали, базы сменились
+            if (result.bytes <= memoryBudget / 4) {
+                putMemory(key, result);
+                return;
+            }
+        }
+        writeDisk(key, result);
+    }
+
+    // Результат больше этого в кэш не попадёт — запись можно бросить
+    public long maxEntryBytes() {
+        return Math.max(memoryBudget, diskBudget) / 4;
+    }
+
+    public synchronized void clear() {
+        memory.clear();
+        memoryBytes = 0;
+        deleteDisk(null);
+    }
+
+    public Stats stats() {
+        synchronized (this) {
+            return new Stats(memoryHits.get(), diskHits.get(), misses.get(), memory.size(), memoryBytes);
+        }
+    }
+
+    /** Попадания и промахи с начала работы — чтобы подобрать размер кэша. */
+    public static final class Stats {
+        public final long memoryHits;
+        public final long diskHits;
+        public final long misses;
+        public final int memoryEntries;
+        public final long memoryBytes;
+
+        Stats(long memoryHits, long diskHits, long misses, int memoryEntries, long memoryBytes) {
+            this.memoryHits = memoryHits;
+            this.diskHits = diskHits;
+            this.misses = misses;
+            this.memoryEntries = memoryEntries;
+            this.memoryBytes = memoryBytes;
+        }
+
+        // Доля попаданий, 0..1
+        public double hitRate() {
+            long total = memoryHits + diskHits + misses;
+            return total == 0 ? 0 : (double) (memoryHits + diskHits) / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "кэш: %.0f%% попаданий (память %d, диск %d, промахов %d), %d записей, %d КБ",
+                    hitRate() * 100, memoryHits, diskHits, misses, memoryEntries, memoryBytes >> 10);
+        }
+    }
+
+    // Базы сменились (или это первый запрос): всё, что найдено по другому набору, больше не годится
+    private void switchStamp(long keyStamp) {
+        if (stampKnown && keyStamp == stamp) return;
+        memory.clear();
+        memoryBytes = 0;
+        stamp = keyStamp;
+        stampKnown = true;
+        deleteDisk(String.format(Locale.ROOT, "%016x-", keyStamp));
+    }
+
+    private void putMemory(Key key, Result result) {
+        Result old = memory.put(key.text, result);
+        if (old != null) memoryBytes -= old.bytes;
+        memoryBytes += result.bytes;
+        Iterator<Map.Entry<String, Result>> it = memory.entrySet().iterator();
+        while (memoryBytes > memoryBudget && it.hasNext()) {
+            Map.Entry<String, Result> eldest = it.next();
+            if (eldest.getValue() == result) continue;
+            it.remove();
+            memoryBytes -= eldest.getValue().bytes;
+            writeDisk(new Key(eldest.getKey(), stamp), eldest.getValue());
+        }
+    }
+
+    private Result readDisk(Key key) {
+        if (diskDir == null) return null;
+        File file = new File(diskDir, key.fileName());
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(key.text)) return null;
+            Result result = new Result();
+            int parts = in.readInt();
+            for (int p = 0; p < parts; p++) {
+                File csvFile = new File(in.readUTF());
+                int[] rows = new int[in.readInt()];
+                for (int i = 0; i < rows.length; i++) rows[i] = in.readInt();
+                result.add(csvFile, rows);
+            }
+            file.setLastModified(System.currentTimeMillis()); // для вытеснения по давности
+            return result;
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    private void writeDisk(Key key, Result result) {
+        if (diskDir == null || result.bytes > diskBudget / 4) return;
+        File file = new File(diskDir, key.fileName());
+        File tmp = new File(diskDir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(key.text);
+            out.writeInt(result.files.size());
+            for (int p = 0; p < result.files.size(); p++) {
+                out.writeUTF(result.files.get(p).getAbsolutePath());
+                int[] rows = result.rows.get(p);
+                out.writeInt(rows.length);
+                for (int row : rows) out.writeInt(row);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return;
+        }
+        trimDisk();
+    }
+
+    // Давно не читанные файлы — пока кэш на диске больше бюджета
+    private synchronized void trimDisk() {
+        File[] files = diskDir.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) return;
+        long total = 0;
+        for (File f : files) total += f.length();
+        if (total <= diskBudget) return;
+        long[] modified = new long[files.length];
+        for (int i = 0; i < files.length; i++) modified[i] = files[i].lastModified();
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(modified[a], modified[b]));
+        for (int i = 0; i < order.length && total > diskBudget; i++) {
+            File f = files[order[i]];
+            total -= f.length();
+            f.delete();
+        }
+    }
+
+    // keep — префикс имени файлов, которые остаются; null — удалить все
+    private void deleteDisk(String keep) {
+        if (diskDir == null) return;
+        File[] files = diskDir.listFiles((dir, name) -> name.endsWith(SUFFIX) || name.endsWith(SUFFIX + ".tmp"));
+        if (files == null) return;
+        for (File f : files) {
+            if (keep == null || !f.getName().startsWith(keep)) f.delete();
+        }
+    }
+}
@@ -0,0 +1,1030 @@
+package com.example.eyegod.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Параллельный поиск по всем базам на пуле из N потоков (по числу ядер).
+ * Каждая база — отдельная задача; большой .idx режется на куски по границам строк,
+ * куски сканируются параллельно. Найденные строки отдаются слушателю по мере готовности:
+ * кусок выдаётся, как только готовы все куски перед ним и известен номер его первой строки.
+ * Запросы к полю по базам из {@link GlobalIndex} решаются одним поиском в общем индексе,
+ * запросы по имени с учётом опечаток — триграммами {@link NameIndex} ({@link #searchNames}),
+ * запросы с полями, AND/OR/NOT и масками — по плану для каждой базы ({@link #searchStructured}).
+ * Базы, чей индекс негоден и перестраивается ({@link IndexRebuilder}), ищутся прямо по CSV.
+ */
+public final class SearchExecutor {
+    static final long CHUNK_SIZE = 8L << 20;
+    // Вид поиска в ключе кэша для запросов StructuredQuery — не совпадает ни с одним типом SearchQuery
+    private static final String STRUCTURED = "query";
+    // Вид поиска в трассе пакетного поиска
+    private static final String BATCH = "batch";
+    // Просмотр CSV без индекса выдаёт строки порциями по стольку
+    private static final int CSV_PORTION = 4096;
+
+    private final ExecutorService pool;
+    private volatile GlobalIndex globalIndex;
+    private volatile ResultCache resultCache;
+    private volatile TraceBuffer traces;
+    private volatile DbCatalog catalog;
+    private volatile IndexRebuilder rebuilder;
+
+    public SearchExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public SearchExecutor(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "search-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Общий индекс баз; null — каждая база ищется по своим файлам
+    public void setGlobalIndex(GlobalIndex globalIndex) {
+        this.globalIndex = globalIndex;
+    }
+
+    // Кэш результатов одиночных поисков; null — каждый запрос ищется заново
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    // Каталог баз: какие спутники у базы есть, узнаётся из него, а не с диска; null — с диска
+    public void setCatalog(DbCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    // Годность индексов баз; null — спутники на диске считаются годными
+    public void setRebuilder(IndexRebuilder rebuilder) {
+        this.rebuilder = rebuilder;
+    }
+
+    // Трассы поисков по стадиям ({@link QueryTrace}); null — без трассировки
+    public void setTraceBuffer(TraceBuffer traces) {
+        this.traces = traces;
+    }
+
+    public SearchHandle search(List<File> csvFiles, SearchQuery query, SearchListener listener) {
+        return cached(csvFiles, query, "", listener, (l, handle) -> startSearch(csvFiles, query, l, handle));
+    }
+
+    /**
+     * Запрос {@link StructuredQuery}: план строится для каждой базы отдельно ({@link QueryPlanner}) —
+     * у баз разные файлы-спутники. Строки базы приходят одной порцией по возрастанию,
+     * перед ними — план в {@link SearchListener#onPlan}.
+     */
+    public SearchHandle searchStructured(List<File> csvFiles, StructuredQuery query, SearchListener listener) {
+        return cached(csvFiles, STRUCTURED, query.toString(), "", listener, (l, handle) -> {
+            for (File csvFile : csvFiles) pool.execute(() -> searchPlanned(csvFile, query, l, handle));
+        });
+    }
+
+    private void searchPlanned(File csvFile, StructuredQuery query, SearchListener listener, SearchHandle handle) {
+        try {
+            if (handle.isCancelled()) return;
+            if (!indexed(csvFile)) {
+                listener.onPlan(csvFile, "просмотр CSV: индекс перестраивается");
+                scanCsv(csvFile, (line, matched) -> {
+                    if (query.matchesLine(line)) matched.add(0);
+                }, false, Integer.MAX_VALUE, listener, handle);
+                return;
+            }
+            QueryTrace.Timer span = QueryTrace.begin(handle.trace(), QueryTrace.QUERY, csvFile);
+            try (QueryPlanner planner = QueryPlanner.open(csvFile, entry(csvFile), handle)) {
+                int[] rows = planner.execute(query);
+                span.hits = rows.length;
+                span.detail = planner.explain();
+                span.end();
+                if (handle.isCancelled()) return;
+                listener.onPlan(csvFile, span.detail);
+                if (rows.length > 0) listener.onHits(csvFile, rows);
+            }
+        } catch (Exception e) {
+            listener.onError(csvFile, e);
+        } finally {
+            handle.fileDone(csvFile);
+        }
+    }
+
+    private void startSearch(List<File> csvFiles, SearchQuery query, SearchListener listener, SearchHandle handle) {
+        GlobalIndex global = globalIndex;
+        if (global != null && BatchPatterns.byTermIndex(query)) {
+            pool.execute(() -> searchGlobal(global, csvFiles, query, listener, handle));
+            return;
+        }
+        for (File csvFile : csvFiles) {
+            pool.execute(() -> searchFile(csvFile, query, listener, handle));
+        }
+    }
+
+    // Запуск поиска с готовыми слушателем и handle — чтобы кэш мог подставить свои
+    private interface Start {
+        void start(SearchListener listener, SearchHandle handle);
+    }
+
+    /**
+     * Поиск через кэш: при попадании строки выдаются из кэша в том же порядке, что и при поиске,
+     * с теми же onFileDone и onFinished; при промахе поиск идёт как обычно, а выданное
+     * запоминается, если поиск дошёл до конца без ошибок и отмены.
+     */
+    private SearchHandle cached(List<File> csvFiles, SearchQuery query, String variant,
+                                SearchListener listener, Start start) {
+        return cached(csvFiles, query.type, ResultCache.normalized(query), variant, listener, start);
+    }
+
+    private SearchHandle cached(List<File> csvFiles, String type, String normalized, String variant,
+                                SearchListener listener, Start start) {
+        QueryTrace trace = startTrace(type, normalized, csvFiles.size());
+        SearchListener target = trace != null ? new TracedListener(listener, trace) : listener;
+        ResultCache cache = resultCache;
+        if (cache == null) {
+            SearchHandle handle = new SearchHandle(csvFiles.size(), target, trace);
+            QueryTrace.Timer plan = QueryTrace.begin(trace, QueryTrace.PLAN, null);
+            start.start(target, handle);
+            plan.end();
+            return handle;
+        }
+        ResultCache.Key key = cache.key(type, variant, normalized, csvFiles);
+        Recorder recorder = new Recorder(cache, key, target);
+        SearchHandle handle = new SearchHandle(csvFiles.size(), recorder, trace);
+        pool.execute(() -> {
+            QueryTrace.Timer plan = QueryTrace.begin(trace, QueryTrace.PLAN, null);
+            ResultCache.Result result = cache.get(key);
+            if (result == null) {
+                start.start(recorder, handle);
+                plan.end();
+                return;
+            }
+            plan.end();
+            recorder.replaying = true;
+            handle.markFromCache();
+            QueryTrace.Timer replay = QueryTrace.begin(trace, QueryTrace.CACHE, null);
+            for (int i = 0; i < result.files.size() && !handle.isCancelled(); i++) {
+                target.onHits(result.files.get(i), result.rows.get(i));
+                replay.hits += result.rows.get(i).length;
+            }
+            replay.end();
+            for (File csvFile : csvFiles) handle.fileDone(csvFile);
+        });
+        return handle;
+    }
+
+    private QueryTrace startTrace(String kind, String query, int files) {
+        TraceBuffer buffer = traces;
+        return buffer != null ? buffer.start(kind, query, files) : null;
+    }
+
+    // Считает строки, полученные слушателем, в трассу поиска
+    private static final class TracedListener implements SearchListener {
+        private final SearchListener listener;
+        private final QueryTrace trace;
+
+        TracedListener(SearchListener listener, QueryTrace trace) {
+            this.listener = listener;
+            this.trace = trace;
+        }
+
+        @Override
+        public void onHits(File csvFile, int[] rows) {
+            trace.addHits(rows.length);
+            listener.onHits(csvFile, rows);
+        }
+
+        @Override
+        public void onMatches(File csvFile, int[] queries, int[] rows) {
+            trace.addHits(rows.length);
+            listener.onMatches(csvFile, queries, rows);
+        }
+
+        @Override
+        public void onPlan(File csvFile, String plan) {
+            listener.onPlan(csvFile, plan);
+        }
+
+        @Override
+        public void onFileDone(File csvFile, int filesDone, int filesTotal) {
+            listener.onFileDone(csvFile, filesDone, filesTotal);
+        }
+
+        @Override
+        public void onError(File csvFile, Exception e) {
+            listener.onError(csvFile, e);
+        }
+
+        @Override
+        public void onFinished(boolean cancelled) {
+            listener.onFinished(cancelled);
+        }
+    }
+
+    // Передаёт всё слушателю и копит выданные строки для кэша
+    private static final class Recorder implements SearchListener {
+        private final ResultCache cache;
+        private final ResultCache.Key key;
+        private final SearchListener listener;
+        private final ResultCache.Result result = new ResultCache.Result();
+        private volatile boolean replaying;
+        private boolean failed;
+
+        Recorder(ResultCache cache, ResultCache.Key key, SearchListener listener) {
+            this.cache = cache;
+            this.key = key;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onHits(File csvFile, int[] rows) {
+            synchronized (this) {
+                // Слишком большой результат в кэш всё равно не попадёт — не держим копию
+                if (!failed && result.bytes + 4L * rows.length <= cache.maxEntryBytes()) {
+                    result.add(csvFile, rows);
+                } else {
+                    failed = true;
+                }
+            }
+            listener.onHits(csvFile, rows);
+        }
+
+        @Override
+        public void onPlan(File csvFile, String plan) {
+            listener.onPlan(csvFile, plan);
+        }
+
+        @Override
+        public void onFileDone(File csvFile, int filesDone, int filesTotal) {
+            listener.onFileDone(csvFile, filesDone, filesTotal);
+        }
+
+        @Override
+        public void onError(File csvFile, Exception e) {
+            synchronized (this) {
+                failed = true; // неполный результат не кэшируем
+            }
+            listener.onError(csvFile, e);
+        }
+
+        @Override
+        public void onFinished(boolean cancelled) {
+            boolean store;
+            synchronized (this) {
+                store = !cancelled && !failed && !replaying;
+            }
+            if (store) cache.put(key, result);
+            listener.onFinished(cancelled);
+        }
+    }
+
+    // Базы из общего индекса — одним поиском в нём, остальные (старые, без словаря) — по одной
+    private void searchGlobal(GlobalIndex global, List<File> csvFiles, SearchQuery query,
+                              SearchListener listener, SearchHandle handle) {
+        List<File> rest = new ArrayList<>(csvFiles);
+        QueryTrace.Timer span = QueryTrace.begin(handle.trace(), QueryTrace.GLOBAL, null);
+        try (GlobalIndex.Snapshot snapshot = global.snapshot()) {
+            Map<String, int[]> hits = lookup(snapshot, query);
+            for (int[] rows : hits.values()) span.hits += rows.length;
+            span.end();
+            for (File csvFile : csvFiles) {
+                // Общий индекс хранит строки старой сборки негодного индекса и не знает дописанных строк
+                if (!snapshot.covers(csvFile.getName()) || !indexed(csvFile) || !merged(csvFile)) continue;
+                int[] rows = hits.get(csvFile.getName());
+                if (rows != null && !handle.isCancelled()) listener.onHits(csvFile, rows);
+                rest.remove(csvFile);
+                handle.fileDone(csvFile);
+            }
+        } catch (IOException e) {
+            // Общий индекс не читается — оставшиеся базы ищутся по своим словарям
+        }
+        for (File csvFile : rest) {
+            pool.execute(() -> searchFile(csvFile, query, listener, handle));
+        }
+    }
+
+    /**
+     * Поиск по имени с опечатками и транслитерацией ({@link NameIndex}): limit самых похожих
+     * строк по всем базам, одной выдачей в конце, по убыванию сходства. Лучшие строки
+     * отбираются общей кучей, и строки слова читаются, только если оно ещё может в неё попасть.
+     * Базы без .tri и слишком короткие запросы ищутся обычным {@link #search}.
+     */
+    public SearchHandle searchNames(List<File> csvFiles, SearchQuery query, int limit, SearchListener listener) {
+        if (!NameIndex.isSearchable(query.text)) return search(csvFiles, query, listener);
+        return cached(csvFiles, query, "names:" + limit, listener,
+                (l, handle) -> startNames(csvFiles, query, limit, l, handle));
+    }
+
+    private void startNames(List<File> csvFiles, SearchQuery query, int limit, SearchListener listener,
+                            SearchHandle handle) {
+        List<File> ranked = new ArrayList<>();
+        for (File csvFile : csvFiles) {
+            // Триграммы строятся по словарю базы — дописанных строк в них нет до слияния
+            if (has(csvFile, DbFiles.NAMES) && indexed(csvFile) && merged(csvFile)) {
+                ranked.add(csvFile);
+            } else {
+                pool.execute(() -> searchFile(csvFile, query, listener, handle));
+            }
+        }
+        TopRows top = new TopRows(limit);
+        AtomicInteger remaining = new AtomicInteger(ranked.size());
+        for (int i = 0; i < ranked.size(); i++) {
+            int db = i;
+            pool.execute(() -> {
+                try {
+                    if (!handle.isCancelled()) rankNames(ranked.get(db), db, query, limit, top, handle);
+                } catch (Exception e) {
+                    listener.onError(ranked.get(db), e);
+                } finally {
+                    // Выдача — до последнего fileDone: после него слушатель получает onFinished
+                    if (remaining.decrementAndGet() == 0) {
+                        if (!handle.isCancelled()) top.deliver(ranked, listener);
+                        for (File csvFile : ranked) handle.fileDone(csvFile);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void rankNames(File csvFile, int db, SearchQuery query, int limit, TopRows top,
+                                  SearchHandle handle) throws IOException {
+        QueryTrace.Timer span = QueryTrace.begin(handle.trace(), QueryTrace.NAMES, csvFile);
+        try (NameIndex names = NameIndex.open(csvFile)) {
+            if (names == null) return;
+            // Слова — по убыванию сходства: как только слово не проходит в кучу, не пройдут и следующие
+            for (NameIndex.Match match : names.search(query.text, limit)) {
+                if (handle.isCancelled() || !top.accepts(match.score)) break;
+                int[] rows = names.rows(match);
+                span.rows++;
+                span.hits += rows.length;
+                top.offer(match.score, db, rows);
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Куча лучших строк поиска по имени, общая для всех баз; наверху — худшая.
+     * При равном сходстве выше строка из базы раньше по списку, затем с меньшим номером.
+     */
+    private static final class TopRows {
+        private final int limit;
+        private final PriorityQueue<RankedRow> heap;
+
+        TopRows(int limit) {
+            this.limit = limit;
+            this.heap = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)));
+        }
+
+        synchronized boolean accepts(double score) {
+            return heap.size() < limit || (!heap.isEmpty() && score >= heap.peek().score);
+        }
+
+        synchronized void offer(double score, int db, int[] rows) {
+            for (int row : rows) {
+                RankedRow candidate = new RankedRow(score, db, row);
+                if (heap.size() < limit) {
+                    heap.add(candidate);
+                } else if (candidate.compareTo(heap.peek()) > 0) {
+                    heap.poll();
+                    heap.add(candidate);
+                } else {
+                    break; // строки одного слова по возрастанию: следующие ещё хуже
+                }
+            }
+        }
+
+        // Подряд идущие строки одной базы — одной порцией
+        synchronized void deliver(List<File> csvFiles, SearchListener listener) {
+            RankedRow[] rows = heap.toArray(new RankedRow[0]);
+            Arrays.sort(rows, Collections.reverseOrder());
+            IntList run = new IntList();
+            for (int i = 0; i < rows.length; i++) {
+                run.add(rows[i].row);
+                if (i + 1 == rows.length || rows[i + 1].db != rows[i].db) {
+                    listener.onHits(csvFiles.get(rows[i].db), run.toArray());
+                    run.clear();
+                }
+            }
+        }
+    }
+
+    private static final class RankedRow implements Comparable<RankedRow> {
+        final double score;
+        final int db;
+        final int row;
+
+        RankedRow(double score, int db, int row) {
+            this.score = score;
+            this.db = db;
+            this.row = row;
+        }
+
+        // Больше — лучше
+        @Override
+        public int compareTo(RankedRow other) {
+            int c = Double.compare(score, other.score);
+            if (c != 0) return c;
+            if (db != other.db) return Integer.compare(other.db, db);
+            return Integer.compare(other.row, row);
+        }
+    }
+
+    /**
+     * Пакетный поиск: список запросов за один проход по каждой базе. Запросы к полю в базах
+     * со словарём термов решаются поиском в словаре; все остальные собираются в один автомат
+     * Ахо — Корасик, и .idx просматривается один раз на весь список, а не раз на запрос.
+     * Совпадения приходят в {@link SearchListener#onMatches}.
+     */
+    public SearchHandle searchBatch(List<File> csvFiles, List<SearchQuery> queries, SearchListener listener) {
+        QueryTrace trace = startTrace(BATCH, queries.size() + " запросов", csvFiles.size());
+        SearchListener target = trace != null ? new TracedListener(listener, trace) : listener;
+        SearchHandle handle = new SearchHandle(csvFiles.size(), target, trace);
+        // Автоматы строятся один раз на пакет: для баз со словарём — только запросы без поля
+        QueryTrace.Timer plan = QueryTrace.begin(trace, QueryTrace.PLAN, null);
+        BatchPatterns scanAll = new BatchPatterns(queries, false);
+        BatchPatterns scanUntyped = new BatchPatterns(queries, true);
+        plan.end();
+        GlobalIndex global = globalIndex;
+        pool.execute(() -> {
+            Set<String> covered = global != null ? batchGlobal(global, csvFiles, queries, target, handle)
+                    : Collections.emptySet();
+            for (File csvFile : csvFiles) {
+                boolean typedDone = covered.contains(csvFile.getName());
+                pool.execute(() -> searchFileBatch(csvFile, queries, scanAll, scanUntyped, typedDone, target, handle));
+            }
+        });
+        return handle;
+    }
+
+    // Запросы к полю пакета — по общему индексу; возвращает базы, для которых они решены
+    private Set<String> batchGlobal(GlobalIndex global, List<File> csvFiles, List<SearchQuery> queries,
+                                    SearchListener listener, SearchHandle handle) {
+        // Базы с негодным индексом ищутся по CSV, строки старой сборки из общего индекса не берутся;
+        // базы с дописанными строками — по своим словарям
+        Map<String, File> byName = new HashMap<>();
+        for (File csvFile : csvFiles) {
+            if (indexed(csvFile) && merged(csvFile)) byName.put(csvFile.getName(), csvFile);
+        }
+        QueryTrace.Timer span = QueryTrace.begin(handle.trace(), QueryTrace.GLOBAL, null);
+        try (GlobalIndex.Snapshot snapshot = global.snapshot()) {
+            for (int q = 0; q < queries.size() && !handle.isCancelled(); q++) {
+                SearchQuery query = queries.get(q);
+                if (!BatchPatterns.byTermIndex(query)) continue;
+                for (Map.Entry<String, int[]> e : lookup(snapshot, query).entrySet()) {
+                    File csvFile = byName.get(e.getKey());
+                    if (csvFile == null) continue;
+                    int[] matched = new int[e.getValue().length];
+                    Arrays.fill(matched, q);
+                    span.hits += matched.length;
+                    listener.onMatches(csvFile, matched, e.getValue());
+                }
+            }
+            span.end();
+            Set<String> covered = new HashSet<>();
+            for (String name : byName.keySet()) {
+                if (snapshot.covers(name)) covered.add(name);
+            }
+            return covered;
+        } catch (IOException e) {
+            // Все базы ищутся по своим словарям. Строки, выданные до ошибки, могут прийти
+            // повторно — лучше повтор, чем пропуск
+            return Collections.emptySet();
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private void searchFile(File csvFile, SearchQuery query, SearchListener listener, SearchHandle handle) {
+        boolean scheduled = false;
+        try {
+            if (handle.isCancelled()) return;
+            if (!indexed(csvFile)) {
+                String[] needles = query.scanNeedles();
+                scanCsv(csvFile, (line, matched) -> {
+                    for (String needle : needles) {
+                        if (line.contains(needle)) {
+                            matched.add(0);
+                            break;
+                        }
+                    }
+                }, false, CSV_PORTION, listener, handle);
+                return;
+            }
+            long keyHash = query.isExact() ? BloomIndex.hash(query.term()) : 0;
+            QueryTrace.Timer filter = QueryTrace.begin(handle.trace(), QueryTrace.BLOOM, csvFile);
+            try (BloomIndex bloom = query.isExact() ? openBloom(csvFile, listener) : null) {
+                boolean absent = bloom != null && !bloom.mightContain(keyHash);
+                if (bloom != null) {
+                    filter.detail = absent ? "ключа нет" : "ключ возможен";
+                    filter.end();
+                }
+                // Ключа в базе точно нет — ни словарь, ни .idx не читаются
+                if (absent) return;
+                // Типизированный запрос ищем только в своём поле по словарю термов, если он есть
+                if (query.isField() && searchTermIndex(csvFile, query, listener, handle)) return;
+
+                File indexFile = DbFiles.sidecar(csvFile, DbFiles.IDX);
+                if (!has(csvFile, DbFiles.IDX)) return;
+
+                long[] bounds = splitByLines(indexFile, CHUNK_SIZE);
+                long[] starts = Arrays.copyOf(bounds, bounds.length - 1);
+                long[] ends = Arrays.copyOfRange(bounds, 1, bounds.length);
+                int[] firstRows = null;
+                if (bloom != null) {
+                    // Просмотр без словаря: только блоки строк, чей фильтр допускает ключ
+                    IntList blocks = new IntList();
+                    for (int b = 0; b < bloom.blockCount(); b++) {
+                        if (bloom.blockMightContain(b, keyHash)) blocks.add(b);
+                    }
+                    if (blocks.isEmpty()) return;
+                    starts = new long[blocks.size()];
+                    ends = new long[blocks.size()];
+                    firstRows = new int[blocks.size()];
+                    for (int i = 0; i < blocks.size(); i++) {
+                        int b = blocks.get(i);
+                        starts[i] = bloom.idxStart(b);
+                        ends[i] = b + 1 < bloom.blockCount() ? bloom.idxStart(b + 1) : indexFile.length();
+                        firstRows[i] = bloom.firstRow(b);
+                    }
+                }
+
+                FileScan scan = new FileScan(csvFile, starts.length, listener, handle, false, firstRows);
+                String[] needles = query.scanNeedles();
+                BytePattern[] patterns = new BytePattern[needles.length];
+                for (int i = 0; i < needles.length; i++) patterns[i] = new BytePattern(needles[i]);
+                for (int i = 0; i < starts.length; i++) {
+                    int chunk = i;
+                    long start = starts[i], end = ends[i];
+                    pool.execute(() -> scanChunk(indexFile, scan, chunk, start, end, patterns));
+                }
+                scheduled = true;
+            }
+        } catch (Exception e) {
+            listener.onError(csvFile, e);
+        } finally {
+            if (!scheduled) handle.fileDone(csvFile);
+        }
+    }
+
+    // typedDone — запросы к полю для этой базы уже решены общим индексом
+    private void searchFileBatch(File csvFile, List<SearchQuery> queries, BatchPatterns scanAll,
+                                 BatchPatterns scanUntyped, boolean typedDone, SearchListener listener,
+                                 SearchHandle handle) {
+        boolean scheduled = false;
+        try {
+            if (handle.isCancelled()) return;
+            if (!indexed(csvFile)) {
+                if (!scanAll.isEmpty()) scanCsv(csvFile, scanAll.lineMatcher(), true, CSV_PORTION, listener, handle);
+                return;
+            }
+            BatchPatterns patterns = typedDone || batchTermIndex(csvFile, queries, listener, handle)
+                    ? scanUntyped : scanAll;
+            if (patterns.isEmpty()) return;
+
+            File indexFile = DbFiles.sidecar(csvFile, DbFiles.IDX);
+            if (!has(csvFile, DbFiles.IDX)) return;
+
+            long[] bounds = splitByLines(indexFile, CHUNK_SIZE);
+            FileScan scan = new FileScan(csvFile, bounds.length - 1, listener, handle, true, null);
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                int chunk = i;
+                long start = bounds[i], end = bounds[i + 1];
+                pool.execute(() -> scanChunkBatch(indexFile, scan, chunk, start, end, patterns));
+            }
+            scheduled = true;
+        } catch (Exception e) {
+            listener.onError(csvFile, e);
+        } finally {
+            if (!scheduled) handle.fileDone(csvFile);
+        }
+    }
+
+    // Запросы к полю — по словарю термов; false — словаря нет, всё ищется просмотром
+    private boolean batchTermIndex(File csvFile, List<SearchQuery> queries, SearchListener listener,
+                                   SearchHandle handle) {
+        if (!has(csvFile, DbFiles.OFFSETS) || !has(csvFile, DbFiles.TERMS)) return false;
+        QueryTrace.Timer span = QueryTrace.begin(handle.trace(), QueryTrace.INDEX, csvFile);
+        try (TermIndex termIndex = TermIndex.open(DbFiles.sidecar(csvFile, DbFiles.TERMS));
+             BloomIndex bloom = openBloom(csvFile, listener)) {
+            if (termIndex == null) return false;
+            for (int q = 0; q < queries.size() && !handle.isCancelled(); q++) {
+                SearchQuery query = queries.get(q);
+                if (!BatchPatterns.byTermIndex(query)) continue;
+                // Точный ключ, которого нет в фильтре базы, не ищется в словаре
+                if (query.isExact() && bloom != null && !bloom.mightContain(BloomIndex.hash(query.term()))) continue;
+                int[] rows = lookup(csvFile, termIndex, query);
+                if (rows.length == 0) continue;
+                int[] matched = new int[rows.length];
+                Arrays.fill(matched, q);
+                span.hits += rows.length;
+                listener.onMatches(csvFile, matched, rows);
+            }
+            span.bytes = termIndex.bytesRead();
+            span.end();
+            return true;
+        } catch (IOException e) {
+            listener.onError(csvFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * Один проход по куску .idx для всего пакета: автомат сбрасывается на каждом '\n',
+     * запрос засчитывается строке один раз, сколько бы раз он в ней ни встретился.
+     */
+    private void scanChunkBatch(File indexFile, FileScan scan, int chunk, long start, long end,
+                                BatchPatterns patterns) {
+        IntList rows = new IntList();
+        IntList queries = new IntList();
+        int lines = 0;
+        QueryTrace.Timer span = QueryTrace.begin(scan.handle.trace(), QueryTrace.SCAN, scan.csvFile);
+        try (FileInputStream in = new FileInputStream(indexFile)) {
+            int limit = (int) (end - start);
+            ByteBuffer buf = in.getChannel().map(FileChannel.MapMode.READ_ONLY, start, limit);
+            AhoCorasick automaton = patterns.automaton;
+            int[] lastLine = new int[patterns.queryCount];
+            Arrays.fill(lastLine, -1);
+            int state = 0;
+            for (int i = 0; i < limit; i++) {
+                if ((i & 0xFFFF) == 0 && scan.handle.isCancelled()) break;
+                byte b = buf.get(i);
+                if (b == '\n') {
+                    lines++;
+                    state = 0;
+                    continue;
+                }
+                state = automaton.next(state, b);
+                for (int m = automaton.matchState(state); m >= 0; m = automaton.nextMatchState(m)) {
+                    for (int p = automaton.pattern(m); p >= 0; p = automaton.samePattern(p)) {
+                        int q = patterns.queryOf[p];
+                        if (lastLine[q] == lines) continue;
+                        lastLine[q] = lines;
+                        rows.add(lines);
+                        queries.add(q);
+                    }
+                }
+            }
+            if (limit > 0 && buf.get(limit - 1) != '\n') lines++; // последняя строка файла без перевода строки
+        } catch (Exception e) {
+            scan.listener.onError(scan.csvFile, e);
+        } finally {
+            span.bytes = end - start;
+            span.rows = lines;
+            span.hits = rows.size();
+            span.end();
+            scan.chunkDone(chunk, lines, rows, queries);
+        }
+    }
+
+    // Образцы пакета для просмотра .idx и соответствие образец → запрос (у запроса их может быть несколько)
+    private static final class BatchPatterns {
+        final AhoCorasick automaton;
+        final int[] queryOf;
+        final int queryCount;
+
+        BatchPatterns(List<SearchQuery> queries, boolean onlyUntyped) {
+            List<String> needles = new ArrayList<>();
+            IntList owners = new IntList();
+            for (int q = 0; q < queries.size(); q++) {
+                SearchQuery query = queries.get(q);
+                if (onlyUntyped && byTermIndex(query)) continue;
+                for (String needle : query.scanNeedles()) {
+                    if (needle.isEmpty()) continue; // пустой образец совпал бы с каждой строкой
+                    needles.add(needle);
+                    owners.add(q);
+                }
+            }
+            automaton = new AhoCorasick(needles);
+            queryOf = owners.toArray();
+            queryCount = queries.size();
+        }
+
+        boolean isEmpty() {
+            return queryOf.length == 0;
+        }
+
+        // Для просмотра CSV: запросы, найденные в строке, каждый по разу
+        LineMatcher lineMatcher() {
+            int[] lastLine = new int[queryCount];
+            Arrays.fill(lastLine, -1);
+            int[] lines = {0};
+            return (line, matched) -> {
+                int current = lines[0]++;
+                int state = 0;
+                for (byte b : line.getBytes(StandardCharsets.UTF_8)) {
+                    state = automaton.next(state, b);
+                    for (int m = automaton.matchState(state); m >= 0; m = automaton.nextMatchState(m)) {
+                        for (int p = automaton.pattern(m); p >= 0; p = automaton.samePattern(p)) {
+                            int q = queryOf[p];
+                            if (lastLine[q] == current) continue;
+                            lastLine[q] = current;
+                            matched.add(q);
+                        }
+                    }
+                }
+            };
+        }
+
+        // Тот же выбор, что у одиночного поиска: запрос к полю с непустым значением — по словарю
+        static boolean byTermIndex(SearchQuery query) {
+            return query.isField() && !Fields.normalizeQuery(query.type, query.text).isEmpty();
+        }
+    }
+
+    // Совпадения строки вида .idx при просмотре CSV: номера запросов пакета, у одиночного — 0
+    private interface LineMatcher {
+        void match(String line, IntList matched);
+    }
+
+    /**
+     * Поиск прямо по CSV ({@link CsvScan}), пока индекс базы перестраивается: подстрокой в строке
+     * вида .idx, как в базе без словаря. Строки выдаются порциями по portion по ходу чтения.
+     */
+    private void scanCsv(File csvFile, LineMatcher matcher, boolean batch, int portion, SearchListener listener,
+                         SearchHandle handle) throws IOException {
+        IntList rows = new IntList();
+        IntList queries = new IntList();
+        IntList matched = new IntList();
+        QueryTrace.Timer span = QueryTrace.begin(handle.trace(), QueryTrace.SCAN, csvFile);
+        span.detail = "CSV без индекса";
+        try (CsvScan scan = CsvScan.open(csvFile, entry(csvFile))) {
+            while (scan.next()) {
+                if ((scan.row() & 0xFFF) == 0 && handle.isCancelled()) return;
+                matched.clear();
+                matcher.match(scan.line(), matched);
+                for (int i = 0; i < matched.size(); i++) {
+                    rows.add(scan.row());
+                    queries.add(matched.get(i));
+                }
+                span.hits += matched.size();
+                if (rows.size() >= portion) deliver(csvFile, batch, rows, queries, listener, handle);
+                span.bytes = scan.position();
+                span.rows = scan.row() + 1;
+            }
+            deliver(csvFile, batch, rows, queries, listener, handle);
+        } finally {
+            span.end();
+        }
+    }
+
+    private static void deliver(File csvFile, boolean batch, IntList rows, IntList queries, SearchListener listener,
+                                SearchHandle handle) {
+        if (!rows.isEmpty() && !handle.isCancelled()) {
+            if (batch) {
+                listener.onMatches(csvFile, queries.toArray(), rows.toArray());
+            } else {
+                listener.onHits(csvFile, rows.toArray());
+            }
+        }
+        rows.clear();
+        queries.clear();
+    }
+
+    // Годен ли индекс базы; нет — она уже в очереди на перестройку
+    private boolean indexed(File csvFile) {
+        IndexRebuilder r = rebuilder;
+        return r == null || r.isUsable(csvFile);
+    }
+
+    private DbCatalog.Entry entry(File csvFile) {
+        DbCatalog c = catalog;
+        return c != null ? c.get(csvFile) : null;
+    }
+
+    // Есть ли у базы спутник: по каталогу, а для баз вне каталога — по диску
+    private boolean has(File csvFile, String suffix) {
+        DbCatalog.Entry entry = entry(csvFile);
+        return entry != null ? entry.has(suffix) : DbFiles.sidecar(csvFile, suffix).exists();
+    }
+
+    // Все строки базы в её словаре: нет словарей дописанных порций, ждущих слияния ({@link DeltaIndex})
+    private boolean merged(File csvFile) {
+        return !has(csvFile, DbFiles.SEGMENTS);
+    }
+
+    // Строки запроса к полю: объединение строк всех его термов ({@link SearchQuery#terms})
+    private int[] lookup(File csvFile, TermIndex termIndex, SearchQuery query) throws IOException {
+        int[] rows = new int[0];
+        for (String term : query.terms()) {
+            rows = QueryPlanner.union(rows, lookup(csvFile, termIndex, term, query.isExact()));
+        }
+        return rows;
+    }
+
+    // То же по общему индексу: строки каждой базы
+    private static Map<String, int[]> lookup(GlobalIndex.Snapshot snapshot, SearchQuery query) throws IOException {
+        Map<String, int[]> result = new HashMap<>();
+        for (String term : query.terms()) {
+            for (Map.Entry<String, int[]> e : snapshot.lookup(term, query.isExact()).entrySet()) {
+                int[] rows = result.get(e.getKey());
+                result.put(e.getKey(), rows == null ? e.getValue() : QueryPlanner.union(rows, e.getValue()));
+            }
+        }
+        return result;
+    }
+
+    // Строки терма в словаре базы и в словарях дописанных порций — порции идут после всех строк словаря
+    private int[] lookup(File csvFile, TermIndex termIndex, String term, boolean exact) throws IOException {
+        int[] rows = exact ? termIndex.lookup(term) : termIndex.prefix(term);
+        if (merged(csvFile)) return rows;
+        int[] appended = DeltaIndex.lookup(csvFile, term, exact);
+        if (appended.length == 0) return rows;
+        int[] all = Arrays.copyOf(rows, rows.length + appended.length);
+        System.arraycopy(appended, 0, all, rows.length, appended.length);
+        return all;
+    }
+
+    // Фильтры Блума базы или null: их нет или они не читаются — тогда ищем без них
+    private BloomIndex openBloom(File csvFile, SearchListener listener) {
+        if (!has(csvFile, DbFiles.BLOOM)) return null;
+        try {
+            return BloomIndex.open(DbFiles.sidecar(csvFile, DbFiles.BLOOM));
+        } catch (IOException e) {
+            listener.onError(csvFile, e);
+            return null;
+        }
+    }
+
+    // false — у базы нет словаря термов (импортирована старой версией), нужен полный просмотр .idx
+    private boolean searchTermIndex(File csvFile, SearchQuery query, SearchListener listener,
+                                    SearchHandle handle) throws IOException {
+        String value = Fields.normalizeQuery(query.type, query.text);
+        if (value.isEmpty()) return false;
+        // Словарь и таблица смещений пишутся вместе; без таблицы номера строк словаря не разрешить
+        if (!has(csvFile, DbFiles.OFFSETS) || !has(csvFile, DbFiles.TERMS)) return false;
+        QueryTrace.Timer span = QueryTrace.begin(handle.trace(), QueryTrace.INDEX, csvFile);
+        try (TermIndex termIndex = TermIndex.open(DbFiles.sidecar(csvFile, DbFiles.TERMS))) {
+            if (termIndex == null) return false;
+            int[] rows = lookup(csvFile, termIndex, query);
+            span.bytes = termIndex.bytesRead();
+            span.hits = rows.length;
+            span.end();
+            if (rows.length > 0 && !handle.isCancelled()) listener.onHits(csvFile, rows);
+            return true;
+        } catch (IOException e) {
+            listener.onError(csvFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * Кусок .idx отображается в память, и в сырых байтах ищутся закодированные в UTF-8 образцы запроса.
+     * Строки не декодируются: номер строки совпадения — число '\n' до ближайшего из вхождений,
+     * после совпадения поиск продолжается со следующей строки.
+     */
+    private void scanChunk(File indexFile, FileScan scan, int chunk, long start, long end, BytePattern[] needles) {
+        IntList hits = new IntList();
+        int lines = 0;
+        QueryTrace.Timer span = QueryTrace.begin(scan.handle.trace(), QueryTrace.SCAN, scan.csvFile);
+        try (FileInputStream in = new FileInputStream(indexFile)) {
+            int limit = (int) (end - start);
+            ByteBuffer buf = in.getChannel().map(FileChannel.MapMode.READ_ONLY, start, limit);
+            int pos = 0;
+            // Следующее вхождение каждого образца; -1 — больше нет, ещё не пройденное не ищется заново
+            int[] next = new int[needles.length];
+            Arrays.fill(next, Integer.MIN_VALUE);
+            while (pos < limit && !scan.handle.isCancelled()) {
+                int match = -1;
+                for (int k = 0; k < needles.length; k++) {
+                    if (next[k] != -1 && next[k] < pos) next[k] = needles[k].indexOf(buf, pos, limit);
+                    if (next[k] >= 0 && (match < 0 || next[k] < match)) match = next[k];
+                }
+                if (match < 0) {
+                    lines += BytePattern.count(buf, (byte) '\n', pos, limit);
+                    if (buf.get(limit - 1) != '\n') lines++; // последняя строка файла без перевода строки
+                    break;
+                }
+                lines += BytePattern.count(buf, (byte) '\n', pos, match);
+                hits.add(lines);
+                int newline = BytePattern.indexOf(buf, (byte) '\n', match, limit);
+                lines++;
+                if (newline < 0) break;
+                pos = newline + 1;
+            }
+        } catch (Exception e) {
+            scan.listener.onError(scan.csvFile, e);
+        } finally {
+            span.bytes = end - start;
+            span.rows = lines;
+            span.hits = hits.size();
+            span.end();
+            scan.chunkDone(chunk, lines, hits, null);
+        }
+    }
+
+    /**
+     * Границы кусков .idx: каждый кусок начинается сразу после '\n', поэтому
+     * ни одна строка не разрезается. Возвращает [0, b1, b2, ..., size].
+     */
+    static long[] splitByLines(File file, long chunkSize) throws IOException {
+        long size = file.length();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] window = new byte[4096];
+            long next = chunkSize;
+            while (next < size) {
+                long pos = next - 1;
+                long lineStart = -1;
+                while (lineStart < 0 && pos < size) {
+                    raf.seek(pos);
+                    int n = raf.read(window);
+                    if (n <= 0) break;
+                    for (int i = 0; i < n; i++) {
+                        if (window[i] == '\n') {
+                            lineStart = pos + i + 1;
+                            break;
+                        }
+                    }
+                    pos += n;
+                }
+                if (lineStart < 0 || lineStart >= size) break;
+                bounds.add(lineStart);
+                next = lineStart + chunkSize;
+            }
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+        return result;
+    }
+
+    // Состояние сканирования одной базы: куски завершаются в любом порядке, а выдаются по порядку
+    private static final class FileScan {
+        final File csvFile;
+        final SearchListener listener;
+        final SearchHandle handle;
+        private final int[] lineCounts;
+        private final IntList[] hits;
+        private final IntList[] queries; // только в пакетном поиске: запрос для каждой строки hits
+        private final int[] firstRows; // номера первых строк кусков; null — куски идут подряд с нулевой
+        private final boolean[] done;
+        private int delivered; // сколько первых кусков уже отдано слушателю
+        private int base;      // номер первой строки куска delivered
+        private final AtomicInteger remaining;
+
+        FileScan(File csvFile, int chunks, SearchListener listener, SearchHandle handle, boolean batch,
+                 int[] firstRows) {
+            this.csvFile = csvFile;
+            this.listener = listener;
+            this.handle = handle;
+            this.lineCounts = new int[chunks];
+            this.hits = new IntList[chunks];
+            this.queries = batch ? new IntList[chunks] : null;
+            this.firstRows = firstRows;
+            this.done = new boolean[chunks];
+            this.remaining = new AtomicInteger(chunks);
+        }
+
+        // Номер строки = номер первой строки куска (сумма строк предыдущих) + номер внутри куска
+        void chunkDone(int chunk, int lines, IntList chunkHits, IntList chunkQueries) {
+            synchronized (this) {
+                lineCounts[chunk] = lines;
+                hits[chunk] = chunkHits;
+                if (queries != null) queries[chunk] = chunkQueries;
+                done[chunk] = true;
+                IntList rows = new IntList();
+                IntList rowQueries = new IntList();
+                while (delivered < done.length && done[delivered]) {
+                    if (firstRows != null) base = firstRows[delivered];
+                    IntList ready = hits[delivered];
+                    for (int i = 0; i < ready.size(); i++) rows.add(base + ready.get(i));
+                    if (queries != null) rowQueries.addAll(queries[delivered]);
+                    base += lineCounts[delivered];
+                    hits[delivered] = null;
+                    if (queries != null) queries[delivered] = null;
+                    delivered++;
+                }
+                // Под блокировкой, чтобы куски одного файла не обгоняли друг друга
+                if (!rows.isEmpty() && !handle.isCancelled()) {
+                    if (queries != null) {
+                        listener.onMatches(csvFile, rowQueries.toArray(), rows.toArray());
+                    } else {
+                        listener.onHits(csvFile, rows.toArray());
+                    }
+                }
+            }
+            if (remaining.decrementAndGet() == 0) handle.fileDone(csvFile);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.eyegod.engine;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Запущенный поиск: кооперативная отмена и подсчёт завершённых баз.
+ * Рабочие задачи сами проверяют isCancelled() и прекращают чтение.
+ */
+public final class SearchHandle {
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final int filesTotal;
+    private final SearchListener listener;
+    private final QueryTrace trace;
+    private volatile boolean done;
+    private volatile boolean fromCache;
+
+    SearchHandle(int filesTotal, SearchListener listener) {
+        this(filesTotal, listener, null);
+    }
+
+    SearchHandle(int filesTotal, SearchListener listener, QueryTrace trace) {
+        this.filesTotal = filesTotal;
+        this.listener = listener;
+        this.trace = trace;
+        if (filesTotal == 0) finish();
+    }
+
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    // Результаты взяты из {@link ResultCache}, а не найдены заново
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    // Трасса этого поиска в {@link TraceBuffer}; null — трассировка выключена
+    public QueryTrace trace() {
+        return trace;
+    }
+
+    void markFromCache() {
+        fromCache = true;
+    }
+
+    void fileDone(File csvFile) {
+        int count = filesDone.incrementAndGet();
+        listener.onFileDone(csvFile, count, filesTotal);
+        if (count == filesTotal) finish();
+    }
+
+    private void finish() {
+        done = true;
+        if (trace != null) trace.finish(isCancelled(), fromCache);
+        listener.onFinished(isCancelled());
+    }
+}
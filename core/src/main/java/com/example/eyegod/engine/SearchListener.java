@@ -0,0 +1,36 @@
+package com.example.eyegod.engine;
+
+import java.io.File;
+
+/**
+ * Колбэки поиска. Вызываются из рабочих потоков {@link SearchExecutor}, не из UI.
+ */
+public interface SearchListener {
+    /**
+     * Очередная порция найденных строк базы (номера строк .idx, с нуля) — сразу, как только найдены.
+     * Порции одной базы приходят по возрастанию номеров, у {@link SearchExecutor#searchNames} — по убыванию
+     * сходства с запросом; текст строки получают через {@link HitFormatter}.
+     */
+    void onHits(File csvFile, int[] rows);
+
+    /**
+     * Пакетный поиск: строка rows[i] совпала с запросом queries[i] (индекс в списке запросов).
+     * Порции одной базы из просмотра .idx идут по возрастанию строк, из словаря термов — по запросам.
+     */
+    default void onMatches(File csvFile, int[] queries, int[] rows) {
+        onHits(csvFile, rows);
+    }
+
+    /**
+     * Запрос {@link SearchExecutor#searchStructured}: как он выполнен в базе — путь каждого условия
+     * и сколько строк он дал. Приходит перед строками базы; из кэша не приходит.
+     */
+    default void onPlan(File csvFile, String plan) {}
+
+    void onFileDone(File csvFile, int filesDone, int filesTotal);
+
+    void onError(File csvFile, Exception e);
+
+    // Вызывается ровно один раз, в том числе после отмены
+    void onFinished(boolean cancelled);
+}
@@ -0,0 +1,74 @@
+package com.example.eyegod.engine;
+
+/**
+ * Запрос пользователя и его тип из {@link #detectType}: tel, email, tg_id, name или all.
+ */
+public final class SearchQuery {
+    public static final String ALL = "all";
+
+    public final String type;
+    public final String text;
+    final String lower;
+
+    public SearchQuery(String type, String text) {
+        this.type = type;
+        this.text = text;
+        this.lower = text.toLowerCase();
+    }
+
+    // Тип запроса по его виду: телефон, Telegram, email, имя или поиск по всем полям
+    public static String detectType(String query) {
+        query = query.trim();
+        if (query.isEmpty()) return ALL;
+
+        // Номер в любом написании: +7 (916) 123-45-67, 8-916-..., 7916...
+        if (query.matches("[+\\d\\s()\\-]+") && query.matches(".*\\d.*")) {
+            return Fields.TEL;
+        }
+        // @nick проверяем раньше email, иначе он никогда не распознается как Telegram
+        if (query.startsWith("@") || (query.toLowerCase().startsWith("id") && query.substring(2).matches("\\d+"))) {
+            return Fields.TG_ID;
+        }
+        if (query.contains("@")) {
+            return Fields.EMAIL;
+        }
+        if (query.matches("[a-zA-Zа-яА-ЯёЁ]+")) {
+            return Fields.NAME;
+        }
+        return ALL;
+    }
+
+    // Запрос к конкретному полю — можно искать по словарю термов
+    boolean isField() {
+        return !type.equals(ALL);
+    }
+
+    // Запрос — ключ целиком: ищется точным термом, базы без него отсекает фильтр Блума
+    boolean isExact() {
+        return isField() && Fields.isCompleteKey(type, Fields.normalizeQuery(type, text));
+    }
+
+    // Терм словаря для запроса к полю
+    String term() {
+        return Fields.term(type, Fields.normalizeQuery(type, text));
+    }
+
+    // Термы, строки которых объединяются: неполный номер на 8 или 9 — ещё и с 7 в начале
+    String[] terms() {
+        String value = Fields.normalizeQuery(type, text);
+        String russian = type.equals(Fields.TEL) ? Fields.russianPrefix(value) : null;
+        return russian == null ? new String[]{term()} : new String[]{term(), Fields.term(type, russian)};
+    }
+
+    /**
+     * Что искать подстрокой в строках .idx: телефон там записан цифрами, как терм словаря,
+     * поэтому и запрос — нормализованными цифрами. Неполный номер на 8 — ещё и с 7 в начале,
+     * как в {@link #terms}; остальное — в нижнем регистре.
+     */
+    String[] scanNeedles() {
+        if (!type.equals(Fields.TEL)) return new String[]{lower};
+        String digits = Fields.normalizeQuery(type, text);
+        String russian = Fields.russianPrefix(digits);
+        return russian == null ? new String[]{digits} : new String[]{digits, russian};
+    }
+}
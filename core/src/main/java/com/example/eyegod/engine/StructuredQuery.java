@@ -0,0 +1,473 @@
+package com.example.eyegod.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Запрос с полями, логикой и масками: {@code tel:7916* AND name:иванов}, {@code email:*@mail.ru},
+ * {@code (tel:7916* OR tel:7903*) NOT name:"иванов"}, {@code name:petrov~}.
+ *
+ * <pre>
+ * выражение := и ("OR" и)*
+ * и         := не (["AND"] не)*        — условия подряд без оператора тоже AND
+ * не        := ("NOT" | "-") не | "(" выражение ")" | условие
+ * условие   := [поле ":"] значение ["~"]
+ * </pre>
+ * Поле — ключ из диалога сопоставления: tel, email, name, tg_id или свой столбец (такой запрос
+ * узнаётся по оператору — см. {@link #isStructured}). Значение
+ * без маски ищется как обычный запрос к полю (целый ключ — точно, иначе по началу),
+ * в кавычках — только целиком, "*" — любые символы, "~" у имени — с опечатками и транслитерацией.
+ * Без поля значение ищется подстрокой во всех полях строки. Как выполнять запрос в каждой
+ * базе, решает {@link QueryPlanner}.
+ */
+public final class StructuredQuery {
+    private static final int MAX_CONDITIONS = 32;
+    private static final int MAX_DEPTH = 16;
+    /**
+     * Признаки языка запросов: "поле:значение" с известным полем или оператор отдельным словом.
+     * Прочие "слово:значение" (12:30, http://vk.com/id1, Москва:Ленина) — обычный поиск;
+     * свой столбец ищется запросом с оператором: {@code passport:4510* AND name:иванов}.
+     */
+    private static final Pattern SYNTAX = Pattern.compile("(^|[\\s(])-?(?i:" + Fields.TEL + "|" + Fields.EMAIL + "|"
+            + Fields.NAME + "|" + Fields.TG_ID + "):[^\\s)]|(^|\\s)(AND|OR|NOT)(\\s|$)");
+
+    final Node root;
+    private final String canonical;
+
+    private StructuredQuery(Node root) {
+        this.root = root;
+        this.canonical = root.toString();
+    }
+
+    // Текст похож на запрос этого языка, а не на обычный запрос из {@link SearchQuery#detectType}
+    public static boolean isStructured(String text) {
+        return SYNTAX.matcher(text).find();
+    }
+
+    // IllegalArgumentException с понятным пользователю текстом — если запрос не разобран
+    public static StructuredQuery parse(String text) {
+        Parser parser = new Parser(new Lexer(text).tokens());
+        Node root = parser.expression(0);
+        if (parser.peek() != null) throw new IllegalArgumentException("Лишняя закрывающая скобка");
+        if (!isBounded(root)) throw new IllegalArgumentException("NOT — только вместе с условием без NOT");
+        return new StructuredQuery(root);
+    }
+
+    /**
+     * Строки узла можно найти, не перебирая всю базу: условие — да, NOT — нет, OR — если
+     * ограничены все ветви, AND — если хоть одна. Неограниченный узел {@link QueryPlanner}
+     * вычисляет только внутри строк соседей по AND.
+     */
+    static boolean isBounded(Node node) {
+        if (node instanceof Term) return true;
+        if (node instanceof Not) return false;
+        if (node instanceof Or) {
+            for (Node child : ((Or) node).children) {
+                if (!isBounded(child)) return false;
+            }
+            return true;
+        }
+        for (Node child : ((And) node).children) {
+            if (isBounded(child)) return true;
+        }
+        return false;
+    }
+
+    // Однозначная запись разобранного запроса: одинаковые по смыслу запросы дают одну строку
+    @Override
+    public String toString() {
+        return canonical;
+    }
+
+    enum Kind {
+        EXACT,   // терм целиком
+        PREFIX,  // начало терма
+        PATTERN, // маска с "*" не только в конце
+        FUZZY,   // имя с опечатками
+        TEXT     // подстрока строки .idx, без поля
+    }
+
+    abstract static class Node {
+    }
+
+    static final class And extends Node {
+        final List<Node> children;
+
+        And(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " AND ");
+        }
+    }
+
+    static final class Or extends Node {
+        final List<Node> children;
+
+        Or(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " OR ");
+        }
+    }
+
+    static final class Not extends Node {
+        final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + child;
+        }
+    }
+
+    /**
+     * Условие на одно поле. parts — нормализованное значение, разрезанное по "*" (у EXACT,
+     * PREFIX и FUZZY — один кусок); scanParts — то же для поиска подстрокой в .idx,
+     * где значения лежат в нижнем регистре, а телефон — нормализованными цифрами.
+     */
+    static final class Term extends Node {
+        final String field; // null — все поля
+        final Kind kind;
+        final String[] parts;
+        final String[] scanParts;
+
+        Term(String field, Kind kind, String[] parts, String[] scanParts) {
+            this.field = field;
+            this.kind = kind;
+            this.parts = parts;
+            this.scanParts = scanParts;
+        }
+
+        String value() {
+            return parts[0];
+        }
+
+        // Нормализованный терм подошёл под маску: первый кусок — начало, последний — конец, прочие — по порядку
+        boolean matches(String value) {
+            return matchesParts(parts, value, kind != Kind.TEXT);
+        }
+
+        @Override
+        public String toString() {
+            String value;
+            switch (kind) {
+                case EXACT: value = quote(parts[0]); break;
+                case PREFIX: value = parts[0] + "*"; break;
+                case FUZZY: value = parts[0] + "~"; break;
+                case TEXT: value = parts.length == 1 ? quote(parts[0]) : String.join("*", parts); break;
+                default: value = String.join("*", parts); break;
+            }
+            return field == null ? value : field + ":" + value;
+        }
+    }
+
+    /**
+     * Строка вида .idx под запросом — так же, как её проверяет просмотр .idx в {@link QueryPlanner}:
+     * условие, даже с полем, ищется подстроками по всей строке. Для поиска прямо по CSV.
+     */
+    boolean matchesLine(String line) {
+        return matchesLine(root, line);
+    }
+
+    private static boolean matchesLine(Node node, String line) {
+        if (node instanceof Term) {
+            return matchesParts(((Term) node).scanParts, line, false);
+        }
+        if (node instanceof Not) return !matchesLine(((Not) node).child, line);
+        if (node instanceof Or) {
+            for (Node child : ((Or) node).children) {
+                if (matchesLine(child, line)) return true;
+            }
+            return false;
+        }
+        for (Node child : ((And) node).children) {
+            if (!matchesLine(child, line)) return false;
+        }
+        return true;
+    }
+
+    // anchored = false — значение может начинаться и кончаться где угодно (подстрока)
+    static boolean matchesParts(String[] parts, String value, boolean anchored) {
+        if (!anchored) return containsInOrder(parts, 0, parts.length, value, 0, value.length());
+        int last = parts.length - 1;
+        if (last == 0) return value.equals(parts[0]);
+        if (value.length() < parts[0].length() + parts[last].length()) return false;
+        if (!value.startsWith(parts[0]) || !value.endsWith(parts[last])) return false;
+        return containsInOrder(parts, 1, last, value, parts[0].length(), value.length() - parts[last].length());
+    }
+
+    // parts[from..to) встречаются в value[start, end) по порядку и не перекрываясь
+    private static boolean containsInOrder(String[] parts, int from, int to, String value, int start, int end) {
+        for (int i = from; i < to; i++) {
+            int at = value.indexOf(parts[i], start);
+            if (at < 0 || at + parts[i].length() > end) return false;
+            start = at + parts[i].length();
+        }
+        return true;
+    }
+
+    private static String join(List<Node> children, String operator) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < children.size(); i++) {
+            if (i > 0) sb.append(operator);
+            sb.append(children.get(i));
+        }
+        return sb.append(')').toString();
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    // Слово запроса: оператор, скобка или условие
+    private static final class Token {
+        static final int TERM = 0, AND = 1, OR = 2, NOT = 3, OPEN = 4, CLOSE = 5;
+
+        final int type;
+        final String field;
+        final String value;
+        final boolean quoted;
+        final boolean fuzzy;
+
+        Token(int type) {
+            this(type, null, null, false, false);
+        }
+
+        Token(int type, String field, String value, boolean quoted, boolean fuzzy) {
+            this.type = type;
+            this.field = field;
+            this.value = value;
+            this.quoted = quoted;
+            this.fuzzy = fuzzy;
+        }
+    }
+
+    private static final class Lexer {
+        private final String text;
+        private int pos;
+
+        Lexer(String text) {
+            this.text = text;
+        }
+
+        List<Token> tokens() {
+            List<Token> tokens = new ArrayList<>();
+            while (true) {
+                while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+                if (pos == text.length()) return tokens;
+                char c = text.charAt(pos);
+                if (c == '(' || c == ')') {
+                    tokens.add(new Token(c == '(' ? Token.OPEN : Token.CLOSE));
+                    pos++;
+                } else if (c == '-' && pos + 1 < text.length() && !Character.isWhitespace(text.charAt(pos + 1))) {
+                    tokens.add(new Token(Token.NOT));
+                    pos++;
+                } else if (c == '"') {
+                    tokens.add(quoted(null));
+                } else {
+                    tokens.add(bare());
+                }
+            }
+        }
+
+        // До пробела или скобки; "поле:" перед кавычкой — поле значения в кавычках
+        private Token bare() {
+            int start = pos;
+            while (pos < text.length() && !isDelimiter(text.charAt(pos))) {
+                if (text.charAt(pos) == ':' && pos > start && pos + 1 < text.length() && text.charAt(pos + 1) == '"'
+                        && text.lastIndexOf(':', pos - 1) < start) {
+                    String field = text.substring(start, pos).toLowerCase();
+                    pos++;
+                    return quoted(field);
+                }
+                pos++;
+            }
+            String word = text.substring(start, pos);
+            switch (word) {
+                case "AND": return new Token(Token.AND);
+                case "OR": return new Token(Token.OR);
+                case "NOT": return new Token(Token.NOT);
+                default: break;
+            }
+            int colon = word.indexOf(':');
+            String field = colon > 0 ? word.substring(0, colon).toLowerCase() : null;
+            String value = colon > 0 ? word.substring(colon + 1) : word;
+            if (field != null && value.isEmpty()) throw new IllegalArgumentException("Нет значения после «" + field + ":»");
+            boolean fuzzy = value.length() > 1 && value.endsWith("~");
+            if (fuzzy) value = value.substring(0, value.length() - 1);
+            return new Token(Token.TERM, field, value, false, fuzzy);
+        }
+
+        private Token quoted(String field) {
+            StringBuilder value = new StringBuilder();
+            pos++; // открывающая кавычка
+            while (true) {
+                if (pos == text.length()) throw new IllegalArgumentException("Нет закрывающей кавычки");
+                char c = text.charAt(pos++);
+                if (c == '"') break;
+                if (c == '\\' && pos < text.length()) c = text.charAt(pos++);
+                value.append(c);
+            }
+            boolean fuzzy = pos < text.length() && text.charAt(pos) == '~';
+            if (fuzzy) pos++;
+            return new Token(Token.TERM, field, value.toString(), true, fuzzy);
+        }
+
+        private static boolean isDelimiter(char c) {
+            return Character.isWhitespace(c) || c == '(' || c == ')';
+        }
+    }
+
+    private static final class Parser {
+        private final List<Token> tokens;
+        private int pos;
+        private int conditions;
+
+        Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        Token peek() {
+            return pos < tokens.size() ? tokens.get(pos) : null;
+        }
+
+        Node expression(int depth) {
+            if (depth > MAX_DEPTH) throw new IllegalArgumentException("Слишком глубокая вложенность скобок");
+            List<Node> any = new ArrayList<>();
+            any.add(conjunction(depth));
+            while (peek() != null && peek().type == Token.OR) {
+                pos++;
+                any.add(conjunction(depth));
+            }
+            return any.size() == 1 ? any.get(0) : new Or(any);
+        }
+
+        private Node conjunction(int depth) {
+            List<Node> all = new ArrayList<>();
+            all.add(unary(depth));
+            while (peek() != null) {
+                int type = peek().type;
+                if (type == Token.AND) {
+                    pos++;
+                } else if (type != Token.TERM && type != Token.NOT && type != Token.OPEN) {
+                    break;
+                }
+                all.add(unary(depth));
+            }
+            return all.size() == 1 ? all.get(0) : new And(all);
+        }
+
+        private Node unary(int depth) {
+            Token token = peek();
+            if (token == null) throw new IllegalArgumentException("Запрос оборвался: ожидалось условие");
+            pos++;
+            switch (token.type) {
+                case Token.NOT:
+                    return new Not(unary(depth + 1));
+                case Token.OPEN:
+                    Node inner = expression(depth + 1);
+                    if (peek() == null || peek().type != Token.CLOSE) {
+                        throw new IllegalArgumentException("Нет закрывающей скобки");
+                    }
+                    pos++;
+                    return inner;
+                case Token.TERM:
+                    if (++conditions > MAX_CONDITIONS) {
+                        throw new IllegalArgumentException("Слишком много условий, максимум " + MAX_CONDITIONS);
+                    }
+                    return condition(token);
+                default:
+                    throw new IllegalArgumentException("Ожидалось условие, а не оператор");
+            }
+        }
+    }
+
+    private static Node condition(Token token) {
+        String raw = token.quoted ? token.value : token.value.trim();
+        if (token.field == null) {
+            if (token.fuzzy) throw new IllegalArgumentException("«~» — только для поля name");
+            String lower = raw.toLowerCase();
+            String[] parts = nonEmpty(token.quoted ? new String[]{lower} : lower.split("\\*", -1));
+            if (parts.length == 0) throw new IllegalArgumentException("Пустое условие");
+            return new Term(null, Kind.TEXT, parts, parts);
+        }
+        String field = token.field;
+        if (token.fuzzy) {
+            if (!field.equals(Fields.NAME)) throw new IllegalArgumentException("«~» — только для поля name");
+            String value = NameIndex.key(raw);
+            if (value.length() < NameIndex.MIN_QUERY_LENGTH) {
+                throw new IllegalArgumentException("Для «~» нужно слово от " + NameIndex.MIN_QUERY_LENGTH + " букв");
+            }
+            String normalized = Fields.normalizeQuery(field, raw);
+            return new Term(field, Kind.FUZZY, new String[]{normalized}, scanParts(field, new String[]{raw}, new String[]{normalized}));
+        }
+        // Имя в словаре — отдельные слова: name:"иванов иван" — оба слова в одной строке
+        String[] words = raw.trim().split("\\s+");
+        if (field.equals(Fields.NAME) && words.length > 1) {
+            List<Node> all = new ArrayList<>();
+            for (String word : words) all.add(condition(new Token(Token.TERM, field, word, token.quoted, false)));
+            return new And(all);
+        }
+
+        // В кавычках "*" — обычный символ
+        String[] rawParts = token.quoted ? new String[]{raw} : raw.split("\\*", -1);
+        String[] parts = new String[rawParts.length];
+        for (int i = 0; i < rawParts.length; i++) {
+            // Начало значения нормализуется как запрос к полю: "8 916 123-45-67" — это "79161234567"
+            parts[i] = i == 0 ? Fields.normalizeQuery(field, rawParts[0]) : Fields.normalizeFragment(field, rawParts[i]);
+        }
+        String[] scan = scanParts(field, rawParts, parts);
+        // "поле:*" подошло бы почти к каждой строке базы
+        if (nonEmpty(parts).length == 0 || scan.length == 0) {
+            throw new IllegalArgumentException("Маске поля " + field + " нужен хотя бы один символ");
+        }
+        Term term = fieldTerm(field, parts, scan, token.quoted);
+        // Неполное начало номера на 8 или 9 — ещё и российский номер: "8916*" — также "7916*"
+        String russian = field.equals(Fields.TEL) && term.kind != Kind.EXACT ? Fields.russianPrefix(parts[0]) : null;
+        if (russian == null) return term;
+        String[] russianParts = parts.clone();
+        russianParts[0] = russian;
+        String[] russianScan = scan.clone();
+        russianScan[0] = russian;
+        return new Or(Arrays.asList(term, fieldTerm(field, russianParts, russianScan, false)));
+    }
+
+    private static Term fieldTerm(String field, String[] parts, String[] scan, boolean quoted) {
+        if (parts.length == 1) {
+            if (parts[0].isEmpty()) throw new IllegalArgumentException("Пустое значение поля " + field);
+            boolean exact = quoted || Fields.isCompleteKey(field, parts[0]);
+            return new Term(field, exact ? Kind.EXACT : Kind.PREFIX, parts, scan);
+        }
+        if (parts.length == 2 && parts[1].isEmpty() && !parts[0].isEmpty()) {
+            return new Term(field, Kind.PREFIX, new String[]{parts[0]}, scan);
+        }
+        return new Term(field, Kind.PATTERN, parts, scan);
+    }
+
+    // Куски для подстроки в .idx: без пустых; телефон там цифрами, как в словаре, — куски нормализованного значения
+    private static String[] scanParts(String field, String[] rawParts, String[] parts) {
+        if (field.equals(Fields.TEL)) return nonEmpty(parts);
+        String[] result = new String[rawParts.length];
+        for (int i = 0; i < rawParts.length; i++) result[i] = rawParts[i].toLowerCase();
+        return nonEmpty(result);
+    }
+
+    private static String[] nonEmpty(String[] parts) {
+        List<String> result = new ArrayList<>();
+        for (String part : parts) {
+            if (!part.isEmpty()) result.add(part);
+        }
+        return result.toArray(new String[0]);
+    }
+}
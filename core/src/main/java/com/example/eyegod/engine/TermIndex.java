@@ -0,0 +1,467 @@
+package com.example.eyegod.engine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Чтение инвертированного индекса (.tix), формат описан в {@link TermIndexWriter}.
+ * В памяти держится только оглавление блоков словаря; поиск терма — двоичный поиск
+ * по оглавлению и разбор одного блока, поэтому стоимость не зависит от размера базы.
+ */
+public final class TermIndex implements Closeable {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long dictStart;
+    private final long dictEnd;
+    private final int termCount;
+    private final byte[][] blockFirst;
+    private final long[] blockOffset;
+    private long bytesRead; // для трассы поиска; экземпляр читает один поток
+
+    private TermIndex(RandomAccessFile file) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        long size = channel.size();
+        if (size < 8 + TermIndexWriter.FOOTER_SIZE) throw new IOException("Повреждённый индекс термов");
+
+        ByteBuffer header = read(0, 8);
+        if (header.getInt() != TermIndexWriter.MAGIC || header.getInt() != TermIndexWriter.VERSION) {
+            throw new IOException("Неизвестный формат индекса термов");
+        }
+        ByteBuffer footer = read(size - TermIndexWriter.FOOTER_SIZE, TermIndexWriter.FOOTER_SIZE);
+        dictStart = footer.getLong();
+        dictEnd = footer.getLong();
+        termCount = footer.getInt();
+        if (footer.getInt() != TermIndexWriter.MAGIC) throw new IOException("Повреждённый индекс термов");
+
+        ByteBuffer blocks = read(dictEnd, (int) (size - TermIndexWriter.FOOTER_SIZE - dictEnd));
+        int blockCount = Varint.readInt(blocks);
+        blockFirst = new byte[blockCount][];
+        blockOffset = new long[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blockFirst[i] = new byte[Varint.readInt(blocks)];
+            blocks.get(blockFirst[i]);
+            blockOffset[i] = dictStart + Varint.read(blocks);
+        }
+    }
+
+    // Версия формата словаря из заголовка, без чтения оглавления; -1 — файл не словарь термов
+    static int version(File tixFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(tixFile, "r")) {
+            if (file.length() < 8 || file.readInt() != TermIndexWriter.MAGIC) return -1;
+            return file.readInt();
+        }
+    }
+
+    // null, если индекса нет (база импортирована старой версией)
+    public static TermIndex open(File tixFile) throws IOException {
+        if (!tixFile.exists()) return null;
+        RandomAccessFile file = new RandomAccessFile(tixFile, "r");
+        try {
+            return new TermIndex(file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // Сколько байт прочитано с открытия, включая заголовок и оглавление блоков
+    long bytesRead() {
+        return bytesRead;
+    }
+
+    public int termCount() {
+        return termCount;
+    }
+
+    // Строки, где терм встречается целиком; отсортированы по возрастанию
+    public int[] lookup(String term) throws IOException {
+        return collect(term.getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    // Строки всех термов, начинающихся с prefix; отсортированы, без повторов
+    public int[] prefix(String prefix) throws IOException {
+        return collect(prefix.getBytes(StandardCharsets.UTF_8), true);
+    }
+
+    private int[] collect(byte[] key, boolean prefix) throws IOException {
+        IntList rows = new IntList();
+        int lists = 0;
+        byte[] term = new byte[64];
+        Stream stream = null; // у начала терма списки идут подряд — читаются одним потоком
+        for (int block = findBlock(key); block < blockFirst.length; block++) {
+            long end = block + 1 < blockOffset.length ? blockOffset[block + 1] : dictEnd;
+            ByteBuffer entries = read(blockOffset[block], (int) (end - blockOffset[block]));
+            int termLength = 0;
+            long postings = 0;
+            while (entries.hasRemaining()) {
+                int shared = Varint.readInt(entries);
+                int suffix = Varint.readInt(entries);
+                termLength = shared + suffix;
+                if (termLength > term.length) term = Arrays.copyOf(term, Math.max(term.length * 2, termLength));
+                entries.get(term, shared, suffix);
+                Varint.readInt(entries); // docFreq
+                postings += Varint.read(entries);
+                int postingsLength = Varint.readInt(entries);
+
+                int c = compare(term, termLength, key, key.length);
+                if (c < 0) continue;
+                boolean match = prefix ? startsWith(term, termLength, key) : c == 0;
+                if (!match) return finish(rows, lists);
+                if (!prefix) {
+                    readPostings(postings, postingsLength, rows);
+                    return finish(rows, 1);
+                }
+                if (stream == null) stream = new Stream(postings, dictStart);
+                readPostings(stream, postings, rows);
+                lists++;
+            }
+        }
+        return finish(rows, lists);
+    }
+
+    // Последний блок, первый терм которого не больше key
+    private int findBlock(byte[] key) {
+        int lo = 0, hi = blockFirst.length - 1, found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(blockFirst[mid], blockFirst[mid].length, key, key.length) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private static void readPostings(Stream stream, long offset, IntList rows) throws IOException {
+        stream.seek(offset);
+        int count = (int) stream.readVarint();
+        int row = 0;
+        for (int i = 0; i < count; i++) {
+            row += (int) stream.readVarint();
+            rows.add(row);
+        }
+    }
+
+    private void readPostings(long offset, int length, IntList rows) throws IOException {
+        ByteBuffer in = read(offset, length);
+        int count = Varint.readInt(in);
+        int row = 0;
+        for (int i = 0; i < count; i++) {
+            row += Varint.readInt(in);
+            rows.add(row);
+        }
+    }
+
+    // Последовательный обход всего словаря со списками строк — для слияния сегментов GlobalIndex
+    Cursor cursor() {
+        return new Cursor(0, dictStart, true);
+    }
+
+    // Термы без списков строк, начиная с блока, где мог бы лежать from, — для построения NameIndex
+    Cursor terms(String from) {
+        if (blockOffset.length == 0) return new Cursor(0, dictEnd, false);
+        int block = findBlock(from.getBytes(StandardCharsets.UTF_8));
+        return new Cursor(block, blockOffset[block], false);
+    }
+
+    /**
+     * Термы по порядку вместе со строками. Списки строк лежат в файле в том же порядке,
+     * что и словарь, поэтому оба читаются подряд, без поиска по смещениям.
+     */
+    final class Cursor {
+        private final Stream dict;
+        private final Stream postings;
+        private byte[] term = new byte[0];
+        private final IntList rows = new IntList();
+        private int ordinal;
+
+        private Cursor(int block, long start, boolean withRows) {
+            dict = new Stream(start, dictEnd);
+            postings = withRows ? new Stream(8, dictStart) : null;
+            ordinal = block * TermIndexWriter.BLOCK_SIZE - 1;
+        }
+
+        boolean next() throws IOException {
+            if (!dict.hasMore()) return false;
+            ordinal++;
+            int shared = (int) dict.readVarint();
+            int suffix = (int) dict.readVarint();
+            // Новый массив на каждый терм: слияние держит ссылку на предыдущий
+            byte[] next = Arrays.copyOf(term, shared + suffix);
+            dict.read(next, shared, suffix);
+            dict.readVarint(); // docFreq
+            dict.readVarint(); // смещение списка
+            dict.readVarint(); // длина списка
+            term = next;
+            if (postings == null) return true;
+
+            rows.clear();
+            int count = (int) postings.readVarint();
+            int row = 0;
+            for (int i = 0; i < count; i++) {
+                row += (int) postings.readVarint();
+                rows.add(row);
+            }
+            return true;
+        }
+
+        byte[] term() {
+            return term;
+        }
+
+        IntList rows() {
+            return rows;
+        }
+
+        // Номер терма в словаре (с нуля) — по нему терм читается через entries()
+        int ordinal() {
+            return ordinal;
+        }
+    }
+
+    // Терм словаря и где лежит его список строк
+    static final class Entry {
+        final byte[] term;
+        final int docFreq; // число строк — известно без чтения списка
+        private final long postings;
+        private final int length;
+
+        private Entry(byte[] term, int docFreq, long postings, int length) {
+            this.term = term;
+            this.docFreq = docFreq;
+            this.postings = postings;
+            this.length = length;
+        }
+    }
+
+    // Записи словаря по номерам (ordinals по возрастанию, без повторов): каждый блок читается один раз
+    Entry[] entries(int[] ordinals) throws IOException {
+        Entry[] result = new Entry[ordinals.length];
+        byte[] term = new byte[64];
+        int i = 0;
+        while (i < ordinals.length) {
+            int block = ordinals[i] / TermIndexWriter.BLOCK_SIZE;
+            if (block >= blockOffset.length) throw new IOException("Номер терма вне словаря");
+            long end = block + 1 < blockOffset.length ? blockOffset[block + 1] : dictEnd;
+            ByteBuffer entries = read(blockOffset[block], (int) (end - blockOffset[block]));
+            long postings = 0;
+            int ordinal = block * TermIndexWriter.BLOCK_SIZE;
+            while (i < ordinals.length && ordinals[i] / TermIndexWriter.BLOCK_SIZE == block) {
+                if (!entries.hasRemaining()) throw new IOException("Номер терма вне словаря");
+                int shared = Varint.readInt(entries);
+                int suffix = Varint.readInt(entries);
+                int termLength = shared + suffix;
+                if (termLength > term.length) term = Arrays.copyOf(term, Math.max(term.length * 2, termLength));
+                entries.get(term, shared, suffix);
+                int docFreq = Varint.readInt(entries);
+                postings += Varint.read(entries);
+                int postingsLength = Varint.readInt(entries);
+                if (ordinal++ == ordinals[i]) {
+                    result[i++] = new Entry(Arrays.copyOf(term, termLength), docFreq, postings, postingsLength);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Записи всех термов с началом prefix; null, если их больше max
+    Entry[] prefixEntries(byte[] prefix, int max) throws IOException {
+        List<Entry> result = new ArrayList<>();
+        byte[] term = new byte[64];
+        for (int block = findBlock(prefix); block < blockFirst.length; block++) {
+            long end = block + 1 < blockOffset.length ? blockOffset[block + 1] : dictEnd;
+            ByteBuffer entries = read(blockOffset[block], (int) (end - blockOffset[block]));
+            long postings = 0;
+            while (entries.hasRemaining()) {
+                int shared = Varint.readInt(entries);
+                int suffix = Varint.readInt(entries);
+                int termLength = shared + suffix;
+                if (termLength > term.length) term = Arrays.copyOf(term, Math.max(term.length * 2, termLength));
+                entries.get(term, shared, suffix);
+                int docFreq = Varint.readInt(entries);
+                postings += Varint.read(entries);
+                int postingsLength = Varint.readInt(entries);
+
+                if (compare(term, termLength, prefix, prefix.length) < 0) continue;
+                if (!startsWith(term, termLength, prefix)) return result.toArray(new Entry[0]);
+                if (result.size() == max) return null;
+                result.add(new Entry(Arrays.copyOf(term, termLength), docFreq, postings, postingsLength));
+            }
+        }
+        return result.toArray(new Entry[0]);
+    }
+
+    // Запись терма или null, если его нет в словаре; читается один блок
+    Entry entry(byte[] key) throws IOException {
+        if (blockFirst.length == 0) return null;
+        int block = findBlock(key);
+        long end = block + 1 < blockOffset.length ? blockOffset[block + 1] : dictEnd;
+        ByteBuffer entries = read(blockOffset[block], (int) (end - blockOffset[block]));
+        byte[] term = new byte[64];
+        long postings = 0;
+        while (entries.hasRemaining()) {
+            int shared = Varint.readInt(entries);
+            int suffix = Varint.readInt(entries);
+            int termLength = shared + suffix;
+            if (termLength > term.length) term = Arrays.copyOf(term, Math.max(term.length * 2, termLength));
+            entries.get(term, shared, suffix);
+            int docFreq = Varint.readInt(entries);
+            postings += Varint.read(entries);
+            int postingsLength = Varint.readInt(entries);
+            int c = compare(term, termLength, key, key.length);
+            if (c == 0) return new Entry(Arrays.copyOf(term, termLength), docFreq, postings, postingsLength);
+            if (c > 0) return null;
+        }
+        return null;
+    }
+
+    /**
+     * Верхняя оценка числа термов с началом prefix по одному оглавлению, без чтения файла:
+     * блоки от того, где мог бы лежать prefix, до того, где мог бы лежать его последний терм.
+     */
+    int estimateTerms(byte[] prefix) {
+        if (blockFirst.length == 0) return 0;
+        // Байта 0xFF нет в UTF-8: prefix + 0xFF больше любого терма с началом prefix
+        byte[] upper = Arrays.copyOf(prefix, prefix.length + 1);
+        upper[prefix.length] = (byte) 0xFF;
+        return (findBlock(upper) - findBlock(prefix) + 1) * TermIndexWriter.BLOCK_SIZE;
+    }
+
+    // Строки терма, отсортированы по возрастанию
+    int[] rows(Entry entry) throws IOException {
+        IntList rows = new IntList();
+        readPostings(entry.postings, entry.length, rows);
+        return rows.toArray();
+    }
+
+    /**
+     * Строки нескольких термов (entries по порядку словаря) — по возрастанию, без повторов.
+     * Списки лежат в порядке словаря, поэтому читаются одним проходом вперёд, а не чтением на терм.
+     */
+    int[] rows(Entry[] entries) throws IOException {
+        if (entries.length == 0) return new int[0];
+        if (entries.length == 1) return rows(entries[0]);
+        IntList rows = new IntList();
+        Stream stream = new Stream(entries[0].postings, dictStart);
+        for (Entry entry : entries) readPostings(stream, entry.postings, rows);
+        return finish(rows, entries.length);
+    }
+
+    // Последовательное чтение участка файла своим буфером, позиционными чтениями канала
+    private final class Stream {
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final long end;
+        private long position;
+
+        Stream(long start, long end) {
+            this.position = start;
+            this.end = end;
+            buffer.limit(0);
+        }
+
+        boolean hasMore() {
+            return buffer.hasRemaining() || position < end;
+        }
+
+        // Переход вперёд или назад; в пределах прочитанного буфера — без чтения
+        void seek(long target) {
+            long bufferStart = position - buffer.limit();
+            if (target >= bufferStart && target <= position) {
+                buffer.position((int) (target - bufferStart));
+            } else {
+                position = target;
+                buffer.limit(0);
+            }
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            int shift = 0;
+            while (true) {
+                if (!buffer.hasRemaining()) fill();
+                byte b = buffer.get();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+                shift += 7;
+            }
+        }
+
+        void read(byte[] dst, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) fill();
+                int n = Math.min(len, buffer.remaining());
+                buffer.get(dst, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void fill() throws IOException {
+            if (position >= end) throw new IOException("Неожиданный конец индекса");
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Неожиданный конец индекса");
+            }
+            position += buffer.limit();
+            bytesRead += buffer.limit();
+            buffer.flip();
+        }
+    }
+
+    // Списки нескольких термов склеены подряд — сортируем и убираем повторы
+    private static int[] finish(IntList rows, int lists) {
+        int[] result = rows.toArray();
+        if (lists <= 1) return result;
+        Arrays.sort(result);
+        int unique = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (i == 0 || result[i] != result[i - 1]) result[unique++] = result[i];
+        }
+        return Arrays.copyOf(result, unique);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        bytesRead += length;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Неожиданный конец индекса");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Сравнение UTF-8 как беззнаковых байтов — совпадает с порядком кодовых точек
+    static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+        int n = Math.min(aLength, bLength);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) return c;
+        }
+        return aLength - bLength;
+    }
+
+    private static boolean startsWith(byte[] term, int termLength, byte[] prefix) {
+        if (termLength < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (term[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,507 @@
+package com.example.eyegod.engine;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Построение инвертированного индекса (.tix) при импорте. Пары терм → строки копятся
+ * в буферах ({@link Buffer}) в пределах бюджета памяти, при переполнении сбрасываются
+ * на диск отсортированными «прогонами», а в finish() всё сливается в один словарь.
+ * Для параллельной сборки у каждого потока свой буфер.
+ *
+ * Формат файла:
+ *   [magic, version]
+ *   [списки строк: count, затем дельты номеров — всё varint]
+ *   [словарь: блоки по BLOCK_SIZE термов, внутри блока общий префикс с предыдущим термом]
+ *   [оглавление блоков: count, затем для каждого блока первый терм и смещение]
+ *   [dictStart, blockIndexStart, termCount, magic]
+ */
+public final class TermIndexWriter implements Closeable {
+    static final int MAGIC = 0x45475458; // "EGTX"
+    static final int VERSION = 2; // 2: термы с префиксом поля (см. Fields)
+    static final int BLOCK_SIZE = 64;
+    static final int FOOTER_SIZE = 8 + 8 + 4 + 4;
+    // Больше прогонов за одно слияние не открываем: сначала сливаем их группами в промежуточные
+    static final int MAX_MERGE_FAN_IN = 64;
+
+    public static final long DEFAULT_MEMORY_BUDGET = 16L << 20;
+
+    private final File target;
+    private final long memoryBudget;
+    private final List<Buffer> buffers = new ArrayList<>();
+    private final List<File> runs = new ArrayList<>();
+    private int runCounter;
+    private Buffer defaultBuffer;
+    private boolean finished;
+
+    public TermIndexWriter(File target) {
+        this(target, DEFAULT_MEMORY_BUDGET);
+    }
+
+    public TermIndexWriter(File target, long memoryBudget) {
+        this.target = target;
+        this.memoryBudget = memoryBudget;
+    }
+
+    // Однопоточная сборка: строки по возрастанию номера
+    public void add(String term, int row) throws IOException {
+        if (defaultBuffer == null) defaultBuffer = newBuffer(memoryBudget);
+        defaultBuffer.add(term, row);
+    }
+
+    /**
+     * Буфер для одного потока параллельной сборки со своей долей бюджета памяти.
+     * Внутри буфера строки идут по возрастанию; между буферами — в любом порядке,
+     * при слиянии списки строк одного терма из разных буферов упорядочиваются.
+     */
+    public synchronized Buffer newBuffer(long budget) {
+        Buffer buffer = new Buffer(budget);
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    public final class Buffer {
+        private final long budget;
+        private final Map<String, IntList> pending = new HashMap<>();
+        private long pendingBytes;
+
+        private Buffer(long budget) {
+            this.budget = budget;
+        }
+
+        public void add(String term, int row) throws IOException {
+            if (term.isEmpty()) return;
+            IntList rows = pending.get(term);
+            if (rows == null) {
+                rows = new IntList(2);
+                pending.put(term, rows);
+                pendingBytes += 64 + 2L * term.length();
+            } else if (rows.last() == row) {
+                return; // терм уже встретился в этой строке
+            }
+            rows.add(row);
+            pendingBytes += 4;
+            if (pendingBytes > budget) flush();
+        }
+
+        private void flush() throws IOException {
+            if (pending.isEmpty()) return;
+            File run = newRun();
+            writeRun(run, new MemorySource(sorted(pending)));
+            pending.clear();
+            pendingBytes = 0;
+        }
+    }
+
+    // Записывает итоговый файл; вызывается, когда все буферы заполнены. Без finish() close() лишь удаляет временные файлы
+    public void finish() throws IOException {
+        List<Buffer> inMemory = new ArrayList<>();
+        for (Buffer buffer : buffers) {
+            if (!buffer.pending.isEmpty()) inMemory.add(buffer);
+        }
+        compactRuns(MAX_MERGE_FAN_IN - inMemory.size());
+
+        List<TermSource> sources = new ArrayList<>();
+        try {
+            for (File run : runs) sources.add(new RunSource(run));
+            for (Buffer buffer : inMemory) sources.add(new MemorySource(sorted(buffer.pending)));
+            writeIndex(sources.size() == 1 ? sources.get(0) : new MergeSource(sources));
+        } finally {
+            for (TermSource source : sources) source.close();
+        }
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (File run : runs) run.delete();
+        runs.clear();
+        buffers.clear();
+        if (!finished) target.delete();
+    }
+
+    // Номер строки в слитом индексе или -1, если строка выбрасывается
+    interface RowMap {
+        int map(int row);
+    }
+
+    /**
+     * Слияние готовых индексов в один (сегменты {@link GlobalIndex}). Строки каждого индекса
+     * переводятся его RowMap, порядок строк внутри индекса должен сохраняться;
+     * термы, у которых не осталось строк, в результат не попадают.
+     */
+    static void merge(File target, List<TermIndex> indexes, List<RowMap> maps) throws IOException {
+        TermIndexWriter writer = new TermIndexWriter(target);
+        List<TermSource> sources = new ArrayList<>();
+        try {
+            for (int i = 0; i < indexes.size(); i++) sources.add(new CursorSource(indexes.get(i).cursor(), maps.get(i)));
+            writer.writeIndex(sources.size() == 1 ? sources.get(0) : new MergeSource(sources));
+            writer.finished = true;
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Сливает прогоны группами по MAX_MERGE_FAN_IN, пока их не станет не больше limit
+    private void compactRuns(int limit) throws IOException {
+        limit = Math.max(limit, 2);
+        while (runs.size() > limit) {
+            int count = Math.min(MAX_MERGE_FAN_IN, runs.size() - limit + 1);
+            List<File> group = new ArrayList<>(runs.subList(0, count));
+            List<TermSource> sources = new ArrayList<>();
+            File merged = newRun();
+            try {
+                for (File run : group) sources.add(new RunSource(run));
+                writeRun(merged, new MergeSource(sources));
+            } finally {
+                for (TermSource source : sources) source.close();
+            }
+            for (File run : group) run.delete();
+            synchronized (this) {
+                runs.removeAll(group);
+            }
+        }
+    }
+
+    private synchronized File newRun() {
+        File run = new File(target.getParentFile(), target.getName() + ".run" + runCounter++);
+        runs.add(run);
+        return run;
+    }
+
+    private static List<Map.Entry<byte[], IntList>> sorted(Map<String, IntList> pending) {
+        List<Map.Entry<byte[], IntList>> entries = new ArrayList<>(pending.size());
+        for (Map.Entry<String, IntList> e : pending.entrySet()) {
+            entries.add(new HashMap.SimpleEntry<>(e.getKey().getBytes(StandardCharsets.UTF_8), e.getValue()));
+        }
+        entries.sort((a, b) -> TermIndex.compare(a.getKey(), a.getKey().length, b.getKey(), b.getKey().length));
+        return entries;
+    }
+
+    // Прогон: (длина терма, терм, список строк)*, в конце длина 0 — пустых термов не бывает
+    private static void writeRun(File run, TermSource source) throws IOException {
+        try (OutputStream out = new CountingOutputStream(new FileOutputStream(run))) {
+            while (source.next()) {
+                byte[] term = source.term();
+                Varint.write(out, term.length);
+                out.write(term);
+                writePostings(out, source.rows());
+            }
+            Varint.write(out, 0);
+        }
+    }
+
+    private static void writePostings(OutputStream out, IntList rows) throws IOException {
+        Varint.write(out, rows.size());
+        int prev = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            int row = rows.get(i);
+            Varint.write(out, row - prev);
+            prev = row;
+        }
+    }
+
+    private void writeIndex(TermSource source) throws IOException {
+        File dictTmp = new File(target.getParentFile(), target.getName() + ".dict");
+        List<byte[]> blockFirst = new ArrayList<>();
+        List<Long> blockOffset = new ArrayList<>();
+        int termCount = 0;
+        try (CountingOutputStream out = new CountingOutputStream(new FileOutputStream(target))) {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+
+            try (CountingOutputStream dict = new CountingOutputStream(new FileOutputStream(dictTmp))) {
+                byte[] prevTerm = new byte[0];
+                long prevPostings = 0;
+                while (source.next()) {
+                    byte[] term = source.term();
+                    IntList rows = source.rows();
+                    long postingsStart = out.count;
+                    writePostings(out, rows);
+                    long postingsLength = out.count - postingsStart;
+
+                    boolean blockStart = termCount % BLOCK_SIZE == 0;
+                    int shared = 0;
+                    if (blockStart) {
+                        IndexBuilder.checkInterrupted();
+                        blockFirst.add(term);
+                        blockOffset.add(dict.count);
+                        prevPostings = 0;
+                    } else {
+                        int max = Math.min(prevTerm.length, term.length);
+                        while (shared < max && prevTerm[shared] == term[shared]) shared++;
+                    }
+                    Varint.write(dict, shared);
+                    Varint.write(dict, term.length - shared);
+                    dict.write(term, shared, term.length - shared);
+                    Varint.write(dict, rows.size());
+                    Varint.write(dict, postingsStart - prevPostings);
+                    Varint.write(dict, postingsLength);
+                    prevPostings = postingsStart;
+                    prevTerm = term;
+                    termCount++;
+                }
+            }
+
+            long dictStart = out.count;
+            try (InputStream in = new FileInputStream(dictTmp)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            }
+
+            long blockIndexStart = out.count;
+            Varint.write(out, blockFirst.size());
+            for (int i = 0; i < blockFirst.size(); i++) {
+                byte[] first = blockFirst.get(i);
+                Varint.write(out, first.length);
+                out.write(first);
+                Varint.write(out, blockOffset.get(i));
+            }
+
+            data.writeLong(dictStart);
+            data.writeLong(blockIndexStart);
+            data.writeInt(termCount);
+            data.writeInt(MAGIC);
+            data.flush();
+        } finally {
+            dictTmp.delete();
+        }
+    }
+
+    // Отсортированный поток (терм, строки) для записи словаря
+    private interface TermSource extends Closeable {
+        boolean next() throws IOException;
+
+        byte[] term();
+
+        IntList rows();
+
+        @Override
+        default void close() throws IOException {}
+    }
+
+    private static final class MemorySource implements TermSource {
+        private final List<Map.Entry<byte[], IntList>> entries;
+        private int index = -1;
+
+        MemorySource(List<Map.Entry<byte[], IntList>> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean next() {
+            return ++index < entries.size();
+        }
+
+        @Override
+        public byte[] term() {
+            return entries.get(index).getKey();
+        }
+
+        @Override
+        public IntList rows() {
+            return entries.get(index).getValue();
+        }
+    }
+
+    private static final class RunSource implements TermSource {
+        private final DataInputStream in;
+        private byte[] term;
+        private final IntList rows = new IntList();
+
+        RunSource(File run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 16 * 1024));
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            int length = (int) Varint.read(in);
+            if (length == 0) return false;
+            term = new byte[length];
+            in.readFully(term);
+            rows.clear();
+            int count = (int) Varint.read(in);
+            int row = 0;
+            for (int i = 0; i < count; i++) {
+                row += (int) Varint.read(in);
+                rows.add(row);
+            }
+            return true;
+        }
+
+        @Override
+        public byte[] term() {
+            return term;
+        }
+
+        @Override
+        public IntList rows() {
+            return rows;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class CursorSource implements TermSource {
+        private final TermIndex.Cursor cursor;
+        private final RowMap map;
+        private final IntList rows = new IntList();
+
+        CursorSource(TermIndex.Cursor cursor, RowMap map) {
+            this.cursor = cursor;
+            this.map = map;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (cursor.next()) {
+                rows.clear();
+                IntList source = cursor.rows();
+                for (int i = 0; i < source.size(); i++) {
+                    int row = map.map(source.get(i));
+                    if (row >= 0) rows.add(row);
+                }
+                if (!rows.isEmpty()) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public byte[] term() {
+            return cursor.term();
+        }
+
+        @Override
+        public IntList rows() {
+            return rows;
+        }
+    }
+
+    /**
+     * k-путевое слияние источников. Списки одного терма склеиваются; если источники
+     * пересекаются по строкам (буферы разных потоков), склеенный список сортируется.
+     */
+    private static final class MergeSource implements TermSource {
+        private final PriorityQueue<TermSource> queue;
+        private byte[] term;
+        private final IntList rows = new IntList();
+        private boolean ordered;
+
+        MergeSource(List<TermSource> sources) throws IOException {
+            queue = new PriorityQueue<>(Math.max(1, sources.size()),
+                    (a, b) -> TermIndex.compare(a.term(), a.term().length, b.term(), b.term().length));
+            for (TermSource source : sources) {
+                if (source.next()) queue.add(source);
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (queue.isEmpty()) return false;
+            TermSource head = queue.poll();
+            term = head.term();
+            rows.clear();
+            ordered = true;
+            append(head);
+            while (!queue.isEmpty() && Arrays.equals(queue.peek().term(), term)) {
+                append(queue.poll());
+            }
+            if (!ordered) rows.sort();
+            return true;
+        }
+
+        private void append(TermSource source) throws IOException {
+            IntList part = source.rows();
+            if (!rows.isEmpty() && !part.isEmpty() && part.get(0) < rows.last()) ordered = false;
+            rows.addAll(part);
+            if (source.next()) queue.add(source);
+        }
+
+        @Override
+        public byte[] term() {
+            return term;
+        }
+
+        @Override
+        public IntList rows() {
+            return rows;
+        }
+    }
+
+    /**
+     * Буферизованный поток со счётчиком байтов. Varint пишутся по байту, поэтому буфер свой,
+     * без синхронизации BufferedOutputStream на каждом write(int).
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buf = new byte[64 * 1024];
+        private int pos;
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (pos == buf.length) flushBuffer();
+            buf[pos++] = (byte) b;
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buf.length - pos) {
+                flushBuffer();
+                if (len > buf.length) {
+                    out.write(b, off, len);
+                    count += len;
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+            count += len;
+        }
+
+        private void flushBuffer() throws IOException {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBuffer();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.eyegod.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Последние capacity трасс поиска ({@link QueryTrace}) по кругу: новая вытесняет самую старую.
+ * Выгружается в JSON двух видов — свой формат для сравнения устройств и сборок
+ * и Trace Event Format, который открывают Perfetto UI и chrome://tracing.
+ */
+public final class TraceBuffer {
+    /** Байты, выделенные текущим потоком с какого-то момента; -1 — счётчика нет. */
+    public interface AllocationCounter {
+        long allocatedBytes();
+    }
+
+    private final QueryTrace[] ring;
+    private int next;
+    private long lastId;
+    private volatile AllocationCounter allocations;
+
+    public TraceBuffer(int capacity) {
+        this.ring = new QueryTrace[Math.max(1, capacity)];
+    }
+
+    // null — выделения памяти не считаются (по умолчанию: счётчик обычно не бесплатный)
+    public void setAllocationCounter(AllocationCounter allocations) {
+        this.allocations = allocations;
+    }
+
+    synchronized QueryTrace start(String kind, String query, int files) {
+        QueryTrace trace = new QueryTrace(++lastId, kind, query, files, allocations);
+        ring[next] = trace;
+        next = (next + 1) % ring.length;
+        return trace;
+    }
+
+    // Новые первыми
+    public synchronized List<QueryTrace> snapshot() {
+        List<QueryTrace> result = new ArrayList<>(ring.length);
+        for (int i = 1; i <= ring.length; i++) {
+            QueryTrace trace = ring[(next - i + ring.length) % ring.length];
+            if (trace != null) result.add(trace);
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(ring, null);
+    }
+
+    /**
+     * Все трассы с итогами и отрезками; environment — устройство, версия сборки и т. п.,
+     * чтобы выгрузки с разных устройств можно было сравнивать. Время — в микросекундах.
+     */
+    public String toJson(Map<String, String> environment) {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        sb.append("{\"environment\":");
+        appendObject(sb, environment);
+        sb.append(",\"traces\":[");
+        List<QueryTrace> traces = snapshot();
+        for (int t = 0; t < traces.size(); t++) {
+            QueryTrace trace = traces.get(t);
+            if (t > 0) sb.append(',');
+            sb.append("{\"id\":").append(trace.id);
+            sb.append(",\"kind\":");
+            appendString(sb, trace.kind);
+            sb.append(",\"query\":");
+            appendString(sb, trace.query);
+            sb.append(",\"files\":").append(trace.files);
+            sb.append(",\"startedAt\":").append(trace.startedAt);
+            sb.append(",\"durationUs\":").append(trace.isFinished() ? trace.durationNanos() / 1000 : -1);
+            sb.append(",\"cancelled\":").append(trace.isCancelled());
+            sb.append(",\"fromCache\":").append(trace.isFromCache());
+            sb.append(",\"hits\":").append(trace.hits());
+            sb.append(",\"droppedSpans\":").append(trace.droppedSpans());
+            sb.append(",\"totals\":[");
+            List<QueryTrace.Total> totals = trace.totals();
+            for (int i = 0; i < totals.size(); i++) {
+                QueryTrace.Total total = totals.get(i);
+                if (i > 0) sb.append(',');
+                sb.append("{\"name\":");
+                appendString(sb, total.name);
+                sb.append(",\"count\":").append(total.count);
+                appendCounters(sb, total.durationNanos, total.bytes, total.rows, total.hits, total.allocatedBytes);
+                sb.append('}');
+            }
+            sb.append("],\"spans\":[");
+            List<QueryTrace.Span> spans = trace.spans();
+            for (int i = 0; i < spans.size(); i++) {
+                QueryTrace.Span span = spans.get(i);
+                if (i > 0) sb.append(',');
+                sb.append("{\"name\":");
+                appendString(sb, span.name);
+                sb.append(",\"file\":");
+                appendString(sb, span.file);
+                sb.append(",\"thread\":");
+                appendString(sb, span.thread);
+                sb.append(",\"startUs\":").append(span.startNanos / 1000);
+                appendCounters(sb, span.durationNanos, span.bytes, span.rows, span.hits, span.allocatedBytes);
+                if (span.detail != null) {
+                    sb.append(",\"detail\":");
+                    appendString(sb, span.detail);
+                }
+                sb.append('}');
+            }
+            sb.append("]}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Trace Event Format: каждый поиск — отрезок на дорожке «поиски», его стадии — отрезки
+     * на дорожках потоков, где они шли. Счётчики стадии — в args.
+     */
+    public String toTraceEvents(Map<String, String> environment) {
+        List<QueryTrace> traces = snapshot();
+        long origin = Long.MAX_VALUE;
+        for (QueryTrace trace : traces) {
+            origin = Math.min(origin, trace.startNanos);
+            for (QueryTrace.Span span : trace.spans()) origin = Math.min(origin, trace.startNanos + span.startNanos);
+        }
+        Map<String, Integer> threads = new HashMap<>();
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        sb.append("{\"displayTimeUnit\":\"ms\",\"otherData\":");
+        appendObject(sb, environment);
+        sb.append(",\"traceEvents\":[");
+        sb.append("{\"ph\":\"M\",\"pid\":1,\"tid\":0,\"name\":\"thread_name\",\"args\":{\"name\":\"поиски\"}}");
+        for (int t = traces.size() - 1; t >= 0; t--) {
+            QueryTrace trace = traces.get(t);
+            long duration = trace.isFinished() ? trace.durationNanos() : System.nanoTime() - trace.startNanos;
+            sb.append(",{\"ph\":\"X\",\"pid\":1,\"tid\":0,\"name\":");
+            appendString(sb, trace.kind + " " + trace.query);
+            appendTime(sb, trace.startNanos - origin, duration);
+            sb.append(",\"args\":{\"id\":").append(trace.id)
+                    .append(",\"files\":").append(trace.files)
+                    .append(",\"hits\":").append(trace.hits())
+                    .append(",\"cancelled\":").append(trace.isCancelled())
+                    .append(",\"fromCache\":").append(trace.isFromCache()).append("}}");
+            for (QueryTrace.Span span : trace.spans()) {
+                Integer tid = threads.get(span.thread);
+                if (tid == null) {
+                    tid = threads.size() + 1;
+                    threads.put(span.thread, tid);
+                    sb.append(",{\"ph\":\"M\",\"pid\":1,\"tid\":").append(tid)
+                            .append(",\"name\":\"thread_name\",\"args\":{\"name\":");
+                    appendString(sb, span.thread);
+                    sb.append("}}");
+                }
+                sb.append(",{\"ph\":\"X\",\"pid\":1,\"tid\":").append(tid).append(",\"cat\":");
+                appendString(sb, trace.kind);
+                sb.append(",\"name\":");
+                appendString(sb, span.file != null ? span.name + " " + span.file : span.name);
+                appendTime(sb, trace.startNanos + span.startNanos - origin, span.durationNanos);
+                sb.append(",\"args\":{\"query\":").append(trace.id)
+                        .append(",\"bytes\":").append(span.bytes)
+                        .append(",\"rows\":").append(span.rows)
+                        .append(",\"hits\":").append(span.hits)
+                        .append(",\"allocatedBytes\":").append(span.allocatedBytes);
+                if (span.detail != null) {
+                    sb.append(",\"detail\":");
+                    appendString(sb, span.detail);
+                }
+                sb.append("}}");
+            }
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static void appendTime(StringBuilder sb, long startNanos, long durationNanos) {
+        sb.append(",\"ts\":").append(startNanos / 1000.0).append(",\"dur\":").append(durationNanos / 1000.0);
+    }
+
+    private static void appendCounters(StringBuilder sb, long durationNanos, long bytes, long rows, long hits,
+                                       long allocatedBytes) {
+        sb.append(",\"durationUs\":").append(durationNanos / 1000)
+                .append(",\"bytes\":").append(bytes)
+                .append(",\"rows\":").append(rows)
+                .append(",\"hits\":").append(hits)
+                .append(",\"allocatedBytes\":").append(allocatedBytes);
+    }
+
+    private static void appendObject(StringBuilder sb, Map<String, String> values) {
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            appendString(sb, e.getKey());
+            sb.append(':');
+            appendString(sb, e.getValue());
+        }
+        sb.append('}');
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.eyegod.engine;
+
+/**
+ * Кириллица → латиница для сравнения имён: "иванов" и "ivanov" дают одну строку.
+ * Схема одна (близкая к паспортной); расхождения вроде "kh"/"h" добирает нечёткий поиск.
+ */
+public final class Translit {
+    private static final char FIRST = 'а';
+    // Буквы от 'а' до 'я' по порядку
+    private static final String[] RUSSIAN = {
+            "a", "b", "v", "g", "d", "e", "zh", "z", "i", "y", "k", "l", "m", "n", "o", "p",
+            "r", "s", "t", "u", "f", "kh", "ts", "ch", "sh", "shch", "", "y", "", "e", "yu", "ya"
+    };
+
+    private Translit() {}
+
+    // Строка уже в нижнем регистре; символы не из кириллицы остаются как есть
+    public static String toLatin(String lower) {
+        StringBuilder out = null;
+        for (int i = 0; i < lower.length(); i++) {
+            String latin = latin(lower.charAt(i));
+            if (latin == null) {
+                if (out != null) out.append(lower.charAt(i));
+                continue;
+            }
+            if (out == null) {
+                out = new StringBuilder(lower.length() + 8);
+                out.append(lower, 0, i);
+            }
+            out.append(latin);
+        }
+        return out == null ? lower : out.toString();
+    }
+
+    private static String latin(char c) {
+        if (c >= FIRST && c <= 'я') return RUSSIAN[c - FIRST];
+        switch (c) {
+            case 'ё': return "e";
+            case 'і': return "i";
+            case 'ї': return "yi";
+            case 'є': return "ye";
+            case 'ґ': return "g";
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.eyegod.engine;
+
+/**
+ * Потоковый xxHash64 (seed 0): некриптографический 64-битный хеш, в разы быстрее MD5.
+ * Данные подаются кусками любого размера через update, результат — digest.
+ */
+public final class XxHash64 {
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+
+    private long v1 = P1 + P2;
+    private long v2 = P2;
+    private long v3 = 0;
+    private long v4 = -P1;
+    private final byte[] tail = new byte[32];
+    private int tailLength;
+    private long total;
+
+    public static long hash(byte[] data, int off, int len) {
+        XxHash64 h = new XxHash64();
+        h.update(data, off, len);
+        return h.digest();
+    }
+
+    public void update(byte[] data, int off, int len) {
+        total += len;
+        int end = off + len;
+        if (tailLength > 0) {
+            int n = Math.min(32 - tailLength, len);
+            System.arraycopy(data, off, tail, tailLength, n);
+            tailLength += n;
+            off += n;
+            if (tailLength < 32) return;
+            stripe(tail, 0);
+            tailLength = 0;
+        }
+        for (; off + 32 <= end; off += 32) stripe(data, off);
+        if (off < end) {
+            System.arraycopy(data, off, tail, 0, end - off);
+            tailLength = end - off;
+        }
+    }
+
+    public long digest() {
+        long h;
+        if (total >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = P5;
+        }
+        h += total;
+
+        int i = 0;
+        for (; i + 8 <= tailLength; i += 8) {
+            h ^= round(0, readLong(tail, i));
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+        if (i + 4 <= tailLength) {
+            h ^= (readInt(tail, i) & 0xFFFFFFFFL) * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+            i += 4;
+        }
+        for (; i < tailLength; i++) {
+            h ^= (tail[i] & 0xFFL) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+        }
+
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private void stripe(byte[] b, int off) {
+        v1 = round(v1, readLong(b, off));
+        v2 = round(v2, readLong(b, off + 8));
+        v3 = round(v3, readLong(b, off + 16));
+        v4 = round(v4, readLong(b, off + 24));
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * P1 + P4;
+    }
+
+    private static long readLong(byte[] b, int i) {
+        return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+                | (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48
+                | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BloomIndexTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static long key(int i) {
+        return BloomIndex.hash(Fields.term(Fields.TEL, "7916" + (1000000 + i)));
+    }
+
+    // Строки from..from+rows, у каждой один ключ; строка .idx — 100 байт
+    private File build(String name, int from, int rows) throws IOException {
+        File blm = new File(temp.getRoot(), name);
+        try (BloomIndex.Writer writer = new BloomIndex.Writer(blm)) {
+            for (int row = 0; row < rows; row++) {
+                writer.startRow(row * 100L);
+                writer.add(key(from + row));
+            }
+            writer.finish();
+        }
+        return blm;
+    }
+
+    private static int falsePositives(BloomIndex bloom, int from, int count) throws IOException {
+        int hits = 0;
+        for (int i = from; i < from + count; i++) {
+            if (bloom.mightContain(key(i))) hits++;
+        }
+        return hits;
+    }
+
+    @Test
+    public void buildAndProbe() throws IOException {
+        int rows = BloomIndex.BLOCK_ROWS + 1000;
+        try (BloomIndex bloom = BloomIndex.open(build("a.blm", 0, rows))) {
+            assertEquals(rows, bloom.rowCount());
+            assertEquals(2, bloom.blockCount());
+            assertEquals(BloomIndex.BLOCK_ROWS, bloom.firstRow(1));
+            assertEquals(BloomIndex.BLOCK_ROWS * 100L, bloom.idxStart(1));
+            for (int i = 0; i < rows; i += 97) assertTrue(bloom.mightContain(key(i)));
+            assertTrue(bloom.blockMightContain(1, key(rows - 1)));
+            // ~1% ложных срабатываний, с запасом
+            assertTrue(falsePositives(bloom, 1000000, 10000) < 300);
+        }
+    }
+
+    @Test
+    public void appendKeepsOldKeysAndAddsNew() throws IOException {
+        File base = build("base.blm", 0, 5000);
+        BloomIndex.append(base, build("part1.blm", 5000, 3000), 5000, 500000);
+        BloomIndex.append(base, build("part2.blm", 8000, 100), 8000, 800000);
+        try (BloomIndex bloom = BloomIndex.open(base)) {
+            assertEquals(8100, bloom.rowCount());
+            assertEquals(3, bloom.blockCount());
+            assertEquals(0, bloom.firstRow(0));
+            assertEquals(5000, bloom.firstRow(1));
+            assertEquals(8000, bloom.firstRow(2));
+            assertEquals(500000, bloom.idxStart(1));
+            assertEquals(800000, bloom.idxStart(2));
+            for (int i = 0; i < 8100; i++) assertTrue(bloom.mightContain(key(i)));
+            assertTrue(bloom.blockMightContain(1, key(6000)));
+            assertFalse(bloom.blockMightContain(2, key(6000)) && bloom.blockMightContain(2, key(6001))
+                    && bloom.blockMightContain(2, key(6002)));
+            assertTrue(falsePositives(bloom, 1000000, 10000) < 600);
+        }
+    }
+
+    // Открытый до дописывания фильтр дочитывает прежний файл, новый открывается уже с порцией
+    @Test
+    public void openFilterSurvivesAppend() throws IOException {
+        File base = build("base.blm", 0, 1000);
+        try (BloomIndex before = BloomIndex.open(base)) {
+            BloomIndex.append(base, build("part.blm", 1000, 1000), 1000, 100000);
+            assertEquals(1000, before.rowCount());
+            for (int i = 0; i < 1000; i++) assertTrue(before.mightContain(key(i)));
+        }
+        assertFalse(new File(temp.getRoot(), "base.blm.tmp").exists());
+        try (BloomIndex after = BloomIndex.open(base)) {
+            assertEquals(2000, after.rowCount());
+            for (int i = 0; i < 2000; i++) assertTrue(after.mightContain(key(i)));
+        }
+    }
+}
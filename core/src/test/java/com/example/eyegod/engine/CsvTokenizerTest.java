@@ -0,0 +1,56 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class CsvTokenizerTest {
+    private static String[] parse(char delimiter, String line) {
+        return new CsvTokenizer((byte) delimiter).split(line);
+    }
+
+    private static byte detect(String sample) {
+        byte[] bytes = sample.getBytes(StandardCharsets.UTF_8);
+        return CsvTokenizer.detect(bytes, bytes.length);
+    }
+
+    @Test
+    public void splitsAndTrimsFields() {
+        assertArrayEquals(new String[]{"79161234567", "Иванов Иван", ""}, parse(';', " 79161234567 ; Иванов Иван ;"));
+        assertArrayEquals(new String[]{""}, parse(',', ""));
+    }
+
+    @Test
+    public void quotedFields() {
+        assertArrayEquals(new String[]{"a;b", "he said \"hi\"", " kept "},
+                parse(';', "\"a;b\";\"he said \"\"hi\"\"\";\" kept \""));
+        // После закрывающей кавычки остаток поля берётся как есть
+        assertArrayEquals(new String[]{"ab c", "d"}, parse(',', "\"ab\" c,d"));
+    }
+
+    @Test
+    public void unclosedQuoteAsksForNextLine() {
+        CsvTokenizer tokenizer = new CsvTokenizer((byte) ',');
+        byte[] first = "1,\"multi".getBytes(StandardCharsets.UTF_8);
+        assertFalse(tokenizer.parse(first, 0, first.length));
+        byte[] whole = "1,\"multi\nline\",3".getBytes(StandardCharsets.UTF_8);
+        assertTrue(tokenizer.parse(whole, 0, whole.length));
+        assertArrayEquals(new String[]{"1", "multi\nline", "3"}, tokenizer.toArray());
+    }
+
+    @Test
+    public void detectsDelimiter() {
+        assertEquals(';', detect("tel;name;email\n7916;Иван;a@b.ru\n7903;Пётр;c@d.ru\n"));
+        assertEquals(',', detect("tel,name,email\n7916,Иван,a@b.ru\n"));
+        assertEquals('\t', detect("tel\tname\n7916\tИван\n"));
+        assertEquals('|', detect("tel|name\n7916|Иван\n"));
+        // Разделитель внутри кавычек не считается
+        assertEquals(',', detect("tel,name\n7916,\"Иванов; Иван; Петрович\"\n7903,\"a;b;c\"\n"));
+        assertEquals(';', detect("single\nvalue\n"));
+    }
+}
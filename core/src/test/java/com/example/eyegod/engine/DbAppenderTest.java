@@ -0,0 +1,185 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DbAppenderTest {
+    private static final long TIMEOUT_MS = 10000;
+    private static final String BASE = "tel;name;email\n"
+            + "79161234567;Иванов Иван;ivanov@mail.ru\n"
+            + "79031234567;Петров Пётр;petrov@mail.ru\n";
+    // Первая строка — уже известный номер в другом написании, последняя — повтор новой строки порции
+    private static final String DELTA = "tel;name;email\n"
+            + "8 916 123-45-67;Дубль Иван;double@mail.ru\n"
+            + "79261111111;Сидоров Сидор;sidorov@mail.ru\n"
+            + "+7 926 111-11-11;Повтор Сидор;again@mail.ru\n";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final SearchExecutor executor = new SearchExecutor(2);
+    private final IndexRebuilder rebuilder = new IndexRebuilder();
+    private File csvFile;
+
+    @Before
+    public void buildBase() throws IOException {
+        csvFile = new File(temp.getRoot(), "base.csv");
+        byte[] bytes = BASE.getBytes(StandardCharsets.UTF_8);
+        Files.write(csvFile.toPath(), bytes);
+        String[] headers = {"tel", "name", "email"};
+        int rows = IndexBuilder.build(new ByteArrayInputStream(bytes), csvFile, headers, Fields.inferMapping(headers),
+                new AtomicInteger(), 1);
+        IndexStamp.write(csvFile, rows);
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdown();
+        rebuilder.shutdown();
+    }
+
+    private DbAppender.Result append(String dedupField, ImportHandle handle) throws IOException {
+        return DbAppender.append(new ByteArrayInputStream(DELTA.getBytes(StandardCharsets.UTF_8)), csvFile, null,
+                dedupField, -1, handle, progress -> {});
+    }
+
+    private int[] search(String type, String text) throws InterruptedException {
+        return collect(listener -> executor.search(Collections.singletonList(csvFile), new SearchQuery(type, text),
+                listener));
+    }
+
+    private int[] searchStructured(String text) throws InterruptedException {
+        return collect(listener -> executor.searchStructured(Collections.singletonList(csvFile),
+                StructuredQuery.parse(text), listener));
+    }
+
+    private interface Start {
+        SearchHandle start(SearchListener listener);
+    }
+
+    private int[] collect(Start start) throws InterruptedException {
+        List<Integer> rows = Collections.synchronizedList(new ArrayList<>());
+        SearchHandle handle = start.start(new SearchListener() {
+            @Override
+            public void onHits(File csvFile, int[] hits) {
+                for (int row : hits) rows.add(row);
+            }
+
+            @Override
+            public void onFileDone(File csvFile, int filesDone, int filesTotal) {}
+
+            @Override
+            public void onError(File csvFile, Exception e) {
+                throw new AssertionError(e);
+            }
+
+            @Override
+            public void onFinished(boolean cancelled) {}
+        });
+        while (!handle.isDone()) Thread.sleep(5);
+        int[] result = new int[rows.size()];
+        for (int i = 0; i < result.length; i++) result[i] = rows.get(i);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private void awaitMerge() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (DbFiles.sidecar(csvFile, DbFiles.SEGMENTS).exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("порции не слиты", DbFiles.sidecar(csvFile, DbFiles.SEGMENTS).exists());
+    }
+
+    // Номер, известный базе в любом написании, и повтор внутри порции не дописываются
+    @Test
+    public void skipsKnownKeys() throws IOException {
+        DbAppender.Result result = append(Fields.TEL, new ImportHandle());
+        assertEquals(1, result.rows);
+        assertEquals(2, result.duplicates);
+        assertEquals(3, result.totalRows);
+        assertEquals(BASE + "79261111111;Сидоров Сидор;sidorov@mail.ru\n",
+                new String(Files.readAllBytes(csvFile.toPath()), StandardCharsets.UTF_8));
+        assertEquals(3, OffsetTable.rowCount(DbFiles.sidecar(csvFile, DbFiles.OFFSETS)));
+        assertEquals(IndexStamp.Status.FRESH, IndexStamp.check(csvFile));
+    }
+
+    // До слияния строки порции находятся по её словарю, после — по словарю базы
+    @Test
+    public void appendedRowsAreFoundBeforeAndAfterMerge() throws IOException, InterruptedException {
+        rebuilder.beginAppend(csvFile);
+        DbAppender.Result result = append(null, new ImportHandle());
+        assertEquals(3, result.rows);
+        assertTrue(DbFiles.sidecar(csvFile, DbFiles.SEGMENTS).exists());
+        assertArrayEquals(new int[]{0, 2}, search(Fields.TEL, "79161234567"));
+        assertArrayEquals(new int[]{3, 4}, search(Fields.TEL, "7926"));
+        assertArrayEquals(new int[]{3, 4}, search(Fields.NAME, "сидор"));
+        assertArrayEquals(new int[]{4}, search(Fields.EMAIL, "again@mail.ru"));
+        // Запрос с полями ищет и в словаре порции, не теряя полей
+        assertArrayEquals(new int[]{3, 4}, searchStructured("name:сидор AND tel:7926*"));
+        assertArrayEquals(new int[]{1, 3, 4}, searchStructured("email:*@mail.ru NOT name:иван"));
+        assertArrayEquals(new int[]{3}, searchStructured("tel:7926* (NOT name:повтор OR email:sidorov*)"));
+
+        rebuilder.endAppend(csvFile); // словарь порции встаёт в очередь на слияние
+        awaitMerge();
+        assertEquals(0, DbFiles.segmentFiles(csvFile).length);
+        try (TermIndex terms = TermIndex.open(DbFiles.sidecar(csvFile, DbFiles.TERMS))) {
+            assertArrayEquals(new int[]{3, 4}, terms.lookup(Fields.term(Fields.TEL, "79261111111")));
+        }
+        assertArrayEquals(new int[]{0, 2}, search(Fields.TEL, "79161234567"));
+        assertArrayEquals(new int[]{3, 4}, search(Fields.NAME, "сидор"));
+        assertEquals(IndexStamp.Status.FRESH, IndexStamp.check(csvFile));
+    }
+
+    // Отменённое дописывание оставляет базу как была
+    @Test
+    public void cancelledAppendRestoresBase() throws IOException {
+        ImportHandle handle = new ImportHandle();
+        handle.cancel();
+        try {
+            append(Fields.TEL, handle);
+            fail("дописывание не отменено");
+        } catch (CancellationException e) {
+            // ожидаемо
+        }
+        assertEquals(BASE, new String(Files.readAllBytes(csvFile.toPath()), StandardCharsets.UTF_8));
+        assertFalse(DbFiles.sidecar(csvFile, DbFiles.SEGMENTS).exists());
+        assertEquals(IndexStamp.Status.FRESH, IndexStamp.check(csvFile));
+    }
+
+    // База удалена посреди дописывания — откат не создаёт её заново пустым файлом
+    @Test
+    public void rollbackDoesNotRecreateDeletedBase() {
+        try {
+            DbAppender.append(new ByteArrayInputStream(DELTA.getBytes(StandardCharsets.UTF_8)), csvFile, null, null,
+                    -1, new ImportHandle(), progress -> {
+                        if (progress.stage == ImportProgress.Stage.INDEX) assertTrue(csvFile.delete());
+                    });
+            fail("дописывание в удалённую базу не сорвалось");
+        } catch (IOException e) {
+            // ожидаемо: хвост CSV уже не прочитать
+        }
+        assertFalse(csvFile.exists());
+    }
+}
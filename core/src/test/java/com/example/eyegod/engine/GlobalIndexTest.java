@@ -0,0 +1,110 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GlobalIndexTest {
+    private static final long TIMEOUT_MS = 10000;
+    private static final String PREFIX = Fields.term(Fields.TEL, "79161");
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    // База dbN — N строк с номерами 79161N0000R, R — номер строки
+    private File base(int n) throws IOException {
+        StringBuilder sb = new StringBuilder("tel;name\n");
+        for (int row = 0; row < n; row++) sb.append("79161").append(n).append("0000").append(row).append(";Иванов Иван\n");
+        File csvFile = new File(temp.getRoot(), "db" + n + ".csv");
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        Files.write(csvFile.toPath(), bytes);
+        String[] headers = {"tel", "name"};
+        IndexBuilder.build(new ByteArrayInputStream(bytes), csvFile, headers, Fields.inferMapping(headers),
+                new AtomicInteger(), 1);
+        return csvFile;
+    }
+
+    private static int[] rows(int n) {
+        int[] rows = new int[n];
+        for (int i = 0; i < n; i++) rows[i] = i;
+        return rows;
+    }
+
+    private static Map<String, int[]> lookup(GlobalIndex index, String term, boolean exact) throws IOException {
+        try (GlobalIndex.Snapshot snapshot = index.snapshot()) {
+            return snapshot.lookup(term, exact);
+        }
+    }
+
+    private static void awaitSegments(GlobalIndex index, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (index.segmentCount() != count && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(count, index.segmentCount());
+    }
+
+    // Пятая база сливает две самых маленьких; строки каждой базы остаются её строками
+    @Test
+    public void mergesSmallestSegments() throws IOException, InterruptedException {
+        try (GlobalIndex index = GlobalIndex.open(temp.getRoot())) {
+            for (int n = 1; n <= 5; n++) index.add(base(n));
+            awaitSegments(index, GlobalIndex.MAX_SEGMENTS);
+
+            Map<String, int[]> found = lookup(index, PREFIX, false);
+            assertEquals(5, found.size());
+            for (int n = 1; n <= 5; n++) assertArrayEquals(rows(n), found.get("db" + n + ".csv"));
+            found = lookup(index, Fields.term(Fields.TEL, "79161200001"), true);
+            assertEquals(1, found.size());
+            assertArrayEquals(new int[]{1}, found.get("db2.csv"));
+        }
+    }
+
+    // Удалённая база сразу пропадает из поиска, переименованная находится под новым именем,
+    // а сегмент без живых баз выбрасывается слиянием; всё это переживает повторное открытие
+    @Test
+    public void removeAndRenameSurviveMerge() throws IOException, InterruptedException {
+        try (GlobalIndex index = GlobalIndex.open(temp.getRoot())) {
+            for (int n = 1; n <= 5; n++) index.add(base(n));
+            awaitSegments(index, GlobalIndex.MAX_SEGMENTS);
+
+            index.remove("db1.csv"); // в слитом сегменте: вычеркнута, строки ещё лежат
+            index.rename("db2.csv", "two.csv");
+            File five = new File(temp.getRoot(), "db5.csv");
+            File renamed = new File(temp.getRoot(), "five.csv");
+            assertTrue(five.renameTo(renamed));
+            assertTrue(DbFiles.renameSidecars(five, renamed));
+            index.rename("db5.csv", "five.csv"); // собственный сегмент: словарь под новым именем
+
+            Map<String, int[]> found = lookup(index, PREFIX, false);
+            assertFalse(found.containsKey("db1.csv"));
+            assertFalse(found.containsKey("db2.csv"));
+            assertArrayEquals(rows(2), found.get("two.csv"));
+            assertArrayEquals(rows(5), found.get("five.csv"));
+            assertEquals(4, found.size());
+
+            index.remove("two.csv"); // в слитом сегменте живых баз не осталось
+            awaitSegments(index, GlobalIndex.MAX_SEGMENTS - 1);
+        }
+        try (GlobalIndex index = GlobalIndex.open(temp.getRoot())) {
+            Map<String, int[]> found = lookup(index, PREFIX, false);
+            assertEquals(3, found.size());
+            assertArrayEquals(rows(3), found.get("db3.csv"));
+            assertArrayEquals(rows(4), found.get("db4.csv"));
+            assertArrayEquals(rows(5), found.get("five.csv"));
+            // От слитого сегмента на диске ничего не осталось
+            assertArrayEquals(new String[]{"manifest"}, new File(temp.getRoot(), GlobalIndex.DIR_NAME).list());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HitListTest {
+    private static final int ROWS = 5000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    // Бюджет в один байт — в памяти минимум ссылок, остальные уходят в файл
+    private HitList spilling() throws IOException {
+        HitList hits = new HitList(temp.newFolder("spill"), 1);
+        int[] rows = new int[ROWS];
+        int[] tags = new int[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = i * 3;
+            tags[i] = i % 7;
+        }
+        hits.addAll(new File("a.csv"), rows, tags);
+        hits.addAll(new File("b.csv"), new int[]{42});
+        return hits;
+    }
+
+    @Test
+    public void spilledHitsReadBack() throws IOException {
+        try (HitList hits = spilling()) {
+            assertEquals(ROWS + 1, hits.size());
+            assertTrue(hits.spilledCount() > 0);
+            // Вразброс: блоки файла перечитываются, последняя ссылка — из памяти
+            for (int i = ROWS - 1; i >= 0; i -= 997) {
+                HitList.Hit hit = hits.get(i);
+                assertEquals("a.csv", hit.file.getName());
+                assertEquals(i * 3, hit.row);
+                assertEquals(i % 7, hit.tag);
+            }
+            for (int i = 0; i < ROWS; i++) assertEquals(i * 3, hits.get(i).row);
+            HitList.Hit last = hits.get(ROWS);
+            assertEquals("b.csv", last.file.getName());
+            assertEquals(42, last.row);
+            assertEquals(-1, last.tag);
+            assertNull(hits.get(ROWS + 1));
+
+            hits.clear();
+            assertNull(hits.get(0));
+            assertEquals(0, new File(temp.getRoot(), "spill").list().length);
+        }
+    }
+
+    // Испорченный временный файл — IOException у читающего, а не падение приложения
+    @Test
+    public void unreadableSpillIsReported() throws IOException {
+        try (HitList hits = spilling()) {
+            File[] spills = new File(temp.getRoot(), "spill").listFiles();
+            assertEquals(1, spills.length);
+            try (RandomAccessFile file = new RandomAccessFile(spills[0], "rw")) {
+                file.setLength(0);
+            }
+            try {
+                hits.get(0);
+                fail("обрезанный файл прочитан");
+            } catch (IOException e) {
+                // ожидаемо
+            }
+            assertEquals(42, hits.get(ROWS).row); // ссылки в памяти по-прежнему читаются
+        }
+    }
+}
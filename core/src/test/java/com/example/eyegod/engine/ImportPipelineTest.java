@@ -0,0 +1,59 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImportPipelineTest {
+    private static final String[] HEADERS = {"tel", "name", "email"};
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static byte[] csv(int rows) {
+        StringBuilder sb = new StringBuilder("tel;name;email\n");
+        for (int i = 0; i < rows; i++) {
+            sb.append(79160000000L + i).append(";Иванов").append(i).append(" Иван;user").append(i).append("@mail.ru\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void importsAndStampsIndex() throws IOException {
+        File target = temp.newFile("base.part");
+        ImportPipeline.Result result = ImportPipeline.run(new ByteArrayInputStream(csv(1000)), target, HEADERS,
+                Fields.inferMapping(HEADERS), -1, new ImportHandle(), progress -> {});
+        assertEquals(1000, result.rows);
+        assertEquals(IndexStamp.Status.FRESH, IndexStamp.check(target));
+    }
+
+    // Отмена во время сборки словаря прерывает её и убирает недостроенные спутники
+    @Test
+    public void cancelWhileIndexingRemovesSidecars() throws IOException {
+        File target = temp.newFile("base.part");
+        ImportHandle handle = new ImportHandle();
+        try {
+            ImportPipeline.run(new ByteArrayInputStream(csv(200000)), target, HEADERS, Fields.inferMapping(HEADERS),
+                    -1, handle, progress -> {
+                        if (progress.stage == ImportProgress.Stage.INDEX) handle.cancel();
+                    });
+            fail("импорт не отменён");
+        } catch (CancellationException e) {
+            // ожидаемо
+        }
+        for (String suffix : new String[]{DbFiles.IDX, DbFiles.OFFSETS, DbFiles.TERMS, DbFiles.BLOOM,
+                DbFiles.NAMES, DbFiles.STAMP}) {
+            assertFalse(suffix, DbFiles.sidecar(target, suffix).exists());
+        }
+    }
+}
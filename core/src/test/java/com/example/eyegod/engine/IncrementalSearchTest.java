@@ -0,0 +1,93 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IncrementalSearchTest {
+    private static final String CSV = "tel;tg\n"
+            + "79161234567;123456789\n"
+            + "79161234599;123456\n"
+            + "79031112233;987654321\n";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private IncrementalSearch search;
+
+    @Before
+    public void open() throws IOException {
+        File csvFile = new File(temp.getRoot(), "base.csv");
+        byte[] bytes = CSV.getBytes(StandardCharsets.UTF_8);
+        Files.write(csvFile.toPath(), bytes);
+        String[] headers = {"tel", "tg"};
+        IndexBuilder.build(new ByteArrayInputStream(bytes), csvFile, headers, Fields.inferMapping(headers),
+                new AtomicInteger(), 1);
+        search = new IncrementalSearch(Collections.singletonList(csvFile));
+    }
+
+    @After
+    public void close() {
+        search.close();
+    }
+
+    private int[] type(String field, String text) throws InterruptedException {
+        List<Integer> rows = Collections.synchronizedList(new ArrayList<>());
+        SearchHandle handle = search.search(new SearchQuery(field, text), new IncrementalSearch.Listener() {
+            @Override
+            public void onHits(File csvFile, int[] hits) {
+                for (int row : hits) rows.add(row);
+            }
+
+            @Override
+            public void onFileDone(File csvFile, int filesDone, int filesTotal) {}
+
+            @Override
+            public void onError(File csvFile, Exception e) {
+                throw new AssertionError(e);
+            }
+
+            @Override
+            public void onFinished(boolean cancelled) {}
+        });
+        while (!handle.isDone()) Thread.sleep(5);
+        int[] result = new int[rows.size()];
+        for (int i = 0; i < result.length; i++) result[i] = rows.get(i);
+        Arrays.sort(result);
+        return result;
+    }
+
+    // Каждый набранный символ Telegram-идентификатора уточняет выдачу, а не ждёт идентификатора целиком
+    @Test
+    public void telegramIdRefinesAsTyped() throws InterruptedException {
+        assertArrayEquals(new int[]{0, 1}, type(Fields.TG_ID, "123"));
+        assertArrayEquals(new int[]{0, 1}, type(Fields.TG_ID, "12345"));
+        assertArrayEquals(new int[]{0, 1}, type(Fields.TG_ID, "123456"));
+        assertArrayEquals(new int[]{0}, type(Fields.TG_ID, "1234567"));
+        assertArrayEquals(new int[]{0, 1}, type(Fields.TG_ID, "1234"));
+    }
+
+    @Test
+    public void phoneRefinesUntilFullNumber() throws InterruptedException {
+        assertArrayEquals(new int[]{0, 1}, type(Fields.TEL, "7916"));
+        assertArrayEquals(new int[]{0, 1}, type(Fields.TEL, "7916123"));
+        assertArrayEquals(new int[]{1}, type(Fields.TEL, "7916123459"));
+        assertArrayEquals(new int[]{1}, type(Fields.TEL, "79161234599"));
+        assertArrayEquals(new int[0], type(Fields.TEL, "79161234590"));
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexBuilderTest {
+    private static final String[] HEADERS = {"tel", "name", "email", "note"};
+    // Несколько кусков по IndexBuilder.CHUNK_SIZE — рабочим потокам есть что делить
+    private static final int ROWS = 60000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    // Каждая седьмая запись — в кавычках на нескольких строках, с кавычками и разделителем внутри
+    private static byte[] csv() {
+        StringBuilder sb = new StringBuilder("tel;name;email;note\n");
+        for (int i = 0; i < ROWS; i++) {
+            sb.append(79160000000L + i * 7919L % 10000000).append(';');
+            if (i % 7 == 0) {
+                sb.append("\"Иванов").append(i % 113).append("\nИван \"\"Ваня\"\"; младший\"");
+            } else {
+                sb.append("Петров").append(i % 997).append(" Пётр");
+            }
+            sb.append(";user").append(i % 5003).append("@mail.ru;");
+            sb.append(i % 11 == 0 ? "\"строка\r\nвторая\"" : "заметка " + i).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private File build(byte[] bytes, String name, int threads) throws IOException {
+        File csvFile = new File(temp.getRoot(), name);
+        Files.write(csvFile.toPath(), bytes);
+        int rows = IndexBuilder.build(new ByteArrayInputStream(bytes), csvFile, HEADERS, Fields.inferMapping(HEADERS),
+                new AtomicInteger(), threads);
+        assertEquals(ROWS, rows);
+        return csvFile;
+    }
+
+    // Параллельная сборка даёт те же спутники байт в байт, что и последовательная
+    @Test
+    public void parallelBuildMatchesSequential() throws IOException {
+        byte[] bytes = csv();
+        assertTrue(bytes.length > 3 * IndexBuilder.CHUNK_SIZE);
+        File sequential = build(bytes, "one.csv", 1);
+        File parallel = build(bytes, "four.csv", 4);
+        for (String suffix : new String[]{DbFiles.IDX, DbFiles.OFFSETS, DbFiles.TERMS, DbFiles.BLOOM, DbFiles.NAMES}) {
+            File expected = DbFiles.sidecar(sequential, suffix);
+            assertTrue(suffix, expected.exists());
+            assertArrayEquals(suffix, Files.readAllBytes(expected.toPath()),
+                    Files.readAllBytes(DbFiles.sidecar(parallel, suffix).toPath()));
+        }
+    }
+}
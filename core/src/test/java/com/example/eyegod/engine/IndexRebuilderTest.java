@@ -0,0 +1,72 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IndexRebuilderTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final IndexRebuilder rebuilder = new IndexRebuilder();
+
+    @After
+    public void shutdown() {
+        rebuilder.shutdown();
+    }
+
+    private File csv(String name) throws IOException {
+        File csvFile = new File(temp.getRoot(), name);
+        Files.write(csvFile.toPath(), "tel;name\n79161234567;Иванов\n".getBytes(StandardCharsets.UTF_8));
+        return csvFile;
+    }
+
+    private static void await(List<String> events, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (events.size() < count && System.currentTimeMillis() < deadline) Thread.sleep(10);
+    }
+
+    // Непроверяемое исключение в одной задаче не останавливает поток: следующая база перестраивается
+    @Test
+    public void uncheckedFailureDoesNotStallQueue() throws Exception {
+        File first = csv("a.csv");
+        File second = csv("b.csv");
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        rebuilder.setListener(new IndexRebuilder.Listener() {
+            @Override
+            public void onRebuilt(File csvFile, int rows) {
+                events.add("rebuilt " + csvFile.getName());
+                if (csvFile.equals(first)) throw new IllegalStateException("сбой в задаче");
+            }
+
+            @Override
+            public void onFailed(File csvFile, IOException e) {
+                events.add("failed " + csvFile.getName());
+            }
+        });
+        assertEquals(2, rebuilder.checkAll(new File[]{first, second}));
+        await(events, 3);
+        assertEquals(List.of("rebuilt a.csv", "failed a.csv", "rebuilt b.csv"), new ArrayList<>(events));
+        assertEquals(IndexStamp.Status.FRESH, IndexStamp.check(second));
+
+        // Поток жив и берёт новые задачи
+        File third = csv("c.csv");
+        rebuilder.checkAll(new File[]{third});
+        await(events, 4);
+        assertTrue(events.contains("rebuilt c.csv"));
+    }
+}
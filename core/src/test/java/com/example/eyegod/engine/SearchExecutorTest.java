@@ -0,0 +1,154 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SearchExecutorTest {
+    private static final String CSV = "tel;tg;name\n"
+            + "79161234567;123456789;Иванов Иван\n"
+            + "380501234567;123456;Петренко Петро\n"
+            + "79161234599;987654321;Сидоров Сидор\n"
+            + "8613800138000;555;Ли Вэй\n"
+            + "905321234567;556;Йылмаз Мехмет\n";
+
+    private static final String WRITTEN = "tel;name\n"
+            + "+7 (916) 123-45-67;Иванов Иван\n"
+            + "8-903-765-43-21;Петров Пётр\n"
+            + "+86 138 0013 8000;Ли Вэй\n";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final SearchExecutor executor = new SearchExecutor(2);
+    private File csvFile;
+
+    @Before
+    public void buildBase() throws IOException {
+        csvFile = new File(temp.getRoot(), "base.csv");
+        byte[] bytes = CSV.getBytes(StandardCharsets.UTF_8);
+        Files.write(csvFile.toPath(), bytes);
+        String[] headers = {"tel", "tg", "name"};
+        IndexBuilder.build(new ByteArrayInputStream(bytes), csvFile, headers, Fields.inferMapping(headers), new AtomicInteger(), 1);
+        assertTrue(DbFiles.sidecar(csvFile, DbFiles.TERMS).exists());
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private int[] search(String type, String text) throws InterruptedException {
+        return search(csvFile, type, text);
+    }
+
+    private int[] search(File base, String type, String text) throws InterruptedException {
+        List<Integer> rows = Collections.synchronizedList(new ArrayList<>());
+        SearchHandle handle = executor.search(Collections.singletonList(base), new SearchQuery(type, text),
+                new SearchListener() {
+                    @Override
+                    public void onHits(File csvFile, int[] hits) {
+                        for (int row : hits) rows.add(row);
+                    }
+
+                    @Override
+                    public void onFileDone(File csvFile, int filesDone, int filesTotal) {}
+
+                    @Override
+                    public void onError(File csvFile, Exception e) {
+                        throw new AssertionError(e);
+                    }
+
+                    @Override
+                    public void onFinished(boolean cancelled) {}
+                });
+        while (!handle.isDone()) Thread.sleep(5);
+        int[] result = new int[rows.size()];
+        for (int i = 0; i < result.length; i++) result[i] = rows.get(i);
+        Arrays.sort(result);
+        return result;
+    }
+
+    @Test
+    public void partialTelegramIdFindsLongerIds() throws InterruptedException {
+        assertFalse(new SearchQuery(Fields.TG_ID, "123456").isExact());
+        assertArrayEquals(new int[]{0, 1}, search(Fields.TG_ID, "123456"));
+        assertArrayEquals(new int[]{0}, search(Fields.TG_ID, "@id1234567"));
+    }
+
+    @Test
+    public void elevenDigitPrefixOfLongerNumber() throws InterruptedException {
+        assertFalse(new SearchQuery(Fields.TEL, "38050123456").isExact());
+        assertArrayEquals(new int[]{1}, search(Fields.TEL, "38050123456"));
+    }
+
+    // Полный номер +7 ищется точно: фильтр Блума отсекает отсутствующий
+    @Test
+    public void fullRussianNumberIsExact() throws InterruptedException {
+        assertTrue(new SearchQuery(Fields.TEL, "8 916 123-45-67").isExact());
+        assertArrayEquals(new int[]{0}, search(Fields.TEL, "8 916 123-45-67"));
+        assertArrayEquals(new int[0], search(Fields.TEL, "79160000000"));
+        assertArrayEquals(new int[]{0, 2}, search(Fields.TEL, "791612345"));
+    }
+
+    // Неполный номер не переписывается: 8613... — Китай, 90532... — Турция; 8916 и 916 — ещё и 7916
+    @Test
+    public void partialNumberMatchesAsTypedAndAsRussian() throws InterruptedException {
+        assertArrayEquals(new int[]{3}, search(Fields.TEL, "8613"));
+        assertArrayEquals(new int[]{4}, search(Fields.TEL, "90532"));
+        assertArrayEquals(new int[]{0, 2}, search(Fields.TEL, "8 916"));
+        assertArrayEquals(new int[]{0, 2}, search(Fields.TEL, "916123"));
+    }
+
+    // Без словаря .idx просматривается подстрокой: телефон там цифрами, как бы он ни был записан в CSV
+    @Test
+    public void scanFindsNumbersWrittenWithPunctuation() throws IOException, InterruptedException {
+        File base = new File(temp.getRoot(), "written.csv");
+        byte[] bytes = WRITTEN.getBytes(StandardCharsets.UTF_8);
+        Files.write(base.toPath(), bytes);
+        String[] headers = {"tel", "name"};
+        IndexBuilder.build(new ByteArrayInputStream(bytes), base, headers, Fields.inferMapping(headers), new AtomicInteger(), 1);
+        assertTrue(DbFiles.sidecar(base, DbFiles.TERMS).delete());
+
+        assertArrayEquals(new int[]{0}, search(base, Fields.TEL, "79161234567"));
+        assertArrayEquals(new int[]{0}, search(base, Fields.TEL, "8 916 123-45-67"));
+        assertArrayEquals(new int[]{0}, search(base, Fields.TEL, "916 123"));
+        assertArrayEquals(new int[]{1}, search(base, Fields.TEL, "8903"));
+        assertArrayEquals(new int[]{2}, search(base, Fields.TEL, "8613"));
+    }
+
+    // Просмотр CSV без индекса собирает те же строки, что лежат в .idx
+    @Test
+    public void csvScanLinesMatchIdx() throws IOException {
+        File base = new File(temp.getRoot(), "written.csv");
+        byte[] bytes = WRITTEN.getBytes(StandardCharsets.UTF_8);
+        Files.write(base.toPath(), bytes);
+        String[] headers = {"tel", "name"};
+        IndexBuilder.build(new ByteArrayInputStream(bytes), base, headers, Fields.inferMapping(headers), new AtomicInteger(), 1);
+        List<String> idx = Files.readAllLines(DbFiles.sidecar(base, DbFiles.IDX).toPath(), StandardCharsets.UTF_8);
+        List<String> scanned = new ArrayList<>();
+        try (CsvScan scan = CsvScan.open(base, null)) {
+            while (scan.next()) scanned.add(scan.line());
+        }
+        assertEquals(idx, scanned);
+        assertEquals("79161234567 иванов иван", idx.get(0));
+    }
+}
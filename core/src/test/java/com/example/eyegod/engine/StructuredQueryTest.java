@@ -0,0 +1,96 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class StructuredQueryTest {
+    private static String parse(String text) {
+        return StructuredQuery.parse(text).toString();
+    }
+
+    private static void assertRejected(String text) {
+        try {
+            StructuredQuery.parse(text);
+            fail("Разобран неверный запрос: " + text);
+        } catch (IllegalArgumentException expected) {
+            // ожидаемо
+        }
+    }
+
+    @Test
+    public void recognizesQueryLanguage() {
+        assertTrue(StructuredQuery.isStructured("tel:7916*"));
+        assertTrue(StructuredQuery.isStructured("иванов AND петров"));
+        assertTrue(StructuredQuery.isStructured("(name:иванов)"));
+        assertTrue(StructuredQuery.isStructured("-email:x@y.ru"));
+        assertFalse(StructuredQuery.isStructured("иванов иван"));
+        assertFalse(StructuredQuery.isStructured("79161234567"));
+        assertTrue(StructuredQuery.isStructured("Tg_Id:12345"));
+        assertTrue(StructuredQuery.isStructured("passport:4510* AND name:иванов"));
+    }
+
+    // "слово:значение" с неизвестным полем — обычный поиск, а не запрос к полю
+    @Test
+    public void freeTextWithColonIsNotStructured() {
+        assertFalse(StructuredQuery.isStructured("12:30"));
+        assertFalse(StructuredQuery.isStructured("http://vk.com/id1"));
+        assertFalse(StructuredQuery.isStructured("Москва:Ленина"));
+        assertFalse(StructuredQuery.isStructured("telegram:durov"));
+    }
+
+    @Test
+    public void andBindsTighterThanOr() {
+        assertEquals("((tel:7916* AND name:иванов*) OR email:\"a@b.ru\")",
+                parse("tel:7916* AND name:иванов OR email:a@b.ru"));
+        assertEquals("(tel:7916* AND (name:иванов* OR name:петров*))",
+                parse("tel:7916* (name:иванов OR name:петров)"));
+    }
+
+    @Test
+    public void negationForms() {
+        assertEquals("(name:иванов* AND NOT tel:7916*)", parse("name:иванов NOT tel:7916*"));
+        assertEquals(parse("name:иванов NOT tel:7916*"), parse("name:иванов -tel:7916*"));
+    }
+
+    @Test
+    public void valuesAreNormalized() {
+        // Телефон — как запрос к полю: полный номер на 8 — это 7 и ищется точно,
+        // неполное начало на 8 или 9 — и как есть, и с 7
+        assertEquals("tel:\"79161234567\"", parse("tel:8-916-123-45-67"));
+        assertEquals("(tel:8916* OR tel:7916*)", parse("TEL:8916*"));
+        assertEquals("(tel:90532* OR tel:790532*)", parse("tel:90532"));
+        assertEquals("tel:7916*", parse("tel:7916"));
+        assertEquals("email:*@mail.ru", parse("email:*@Mail.ru"));
+        assertEquals("name:\"иванов\"", parse("name:\"Иванов\""));
+        assertEquals("(name:\"иван\" AND name:\"петров\")", parse("name:\"Иван Петров\""));
+        assertEquals("name:иванов~", parse("name:иванов~"));
+        assertEquals("\"иванов\"", parse("Иванов"));
+    }
+
+    @Test
+    public void rejectsMalformedQueries() {
+        assertRejected("(tel:7916*");
+        assertRejected("tel:7916*)");
+        assertRejected("tel:");
+        assertRejected("name:\"иванов");
+        assertRejected("tel:7916* AND");
+        assertRejected("tel:7916~");
+        assertRejected("OR name:иванов");
+    }
+
+    // Запрос, которому пришлось бы перебрать всю базу: одни NOT или маска без символов
+    @Test
+    public void rejectsUnboundedQueries() {
+        assertRejected("NOT tel:7916*");
+        assertRejected("-name:иванов -tel:7916*");
+        assertRejected("name:иванов OR NOT tel:7916*");
+        assertRejected("tel:*");
+        assertRejected("email:**");
+        assertEquals("(name:иванов* AND (NOT tel:7916* OR email:*@mail.ru))",
+                parse("name:иванов (NOT tel:7916* OR email:*@mail.ru)"));
+    }
+}
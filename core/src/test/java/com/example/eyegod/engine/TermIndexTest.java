@@ -0,0 +1,122 @@
+package com.example.eyegod.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TermIndexTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File build(String name, long budget, String[][] rows) throws IOException {
+        File tix = new File(temp.getRoot(), name);
+        try (TermIndexWriter writer = new TermIndexWriter(tix, budget)) {
+            for (int row = 0; row < rows.length; row++) {
+                for (String term : rows[row]) writer.add(term, row);
+            }
+            writer.finish();
+        }
+        return tix;
+    }
+
+    private static String tel(String value) {
+        return Fields.term(Fields.TEL, value);
+    }
+
+    @Test
+    public void exactAndPrefixLookup() throws IOException {
+        File tix = build("a.tix", TermIndexWriter.DEFAULT_MEMORY_BUDGET, new String[][]{
+                {tel("79161234567"), Fields.term(Fields.NAME, "иванов")},
+                {tel("79161234568")},
+                {tel("79031112233"), Fields.term(Fields.NAME, "иванова")},
+                {tel("79161234567")},
+        });
+        try (TermIndex index = TermIndex.open(tix)) {
+            assertEquals(5, index.termCount());
+            assertArrayEquals(new int[]{0, 3}, index.lookup(tel("79161234567")));
+            assertArrayEquals(new int[]{0, 1, 3}, index.prefix(tel("7916")));
+            assertArrayEquals(new int[]{0, 1, 2, 3}, index.prefix(tel("7")));
+            assertArrayEquals(new int[]{0, 2}, index.prefix(Fields.term(Fields.NAME, "иванов")));
+            assertArrayEquals(new int[0], index.lookup(tel("7916")));
+            assertArrayEquals(new int[0], index.prefix(tel("7495")));
+            // Поля не пересекаются: префикс одного поля не находит термы другого
+            assertArrayEquals(new int[0], index.prefix(Fields.term(Fields.EMAIL, "")));
+        }
+    }
+
+    @Test
+    public void missingIndexOpensAsNull() throws IOException {
+        assertNull(TermIndex.open(new File(temp.getRoot(), "none.tix")));
+    }
+
+    // Маленький бюджет сбрасывает прогоны на диск — итог тот же, что и в памяти
+    @Test
+    public void spilledRunsGiveSameIndex() throws IOException {
+        String[][] rows = new String[5000][];
+        for (int i = 0; i < rows.length; i++) rows[i] = new String[]{tel("7916" + (1000000 + i % 700)), tel("7903" + i)};
+        File inMemory = build("memory.tix", TermIndexWriter.DEFAULT_MEMORY_BUDGET, rows);
+        File spilled = build("spilled.tix", 4096, rows);
+        try (TermIndex a = TermIndex.open(inMemory); TermIndex b = TermIndex.open(spilled)) {
+            assertEquals(a.termCount(), b.termCount());
+            assertArrayEquals(a.prefix(tel("79161")), b.prefix(tel("79161")));
+            assertArrayEquals(a.lookup(tel("79161000005")), b.lookup(tel("79161000005")));
+            assertArrayEquals(new int[]{5, 705, 1405, 2105, 2805, 3505, 4205, 4905}, b.lookup(tel("79161000005")));
+        }
+    }
+
+    // Буферы потоков сборки заполняются в любом порядке, строки терма в итоге по возрастанию
+    @Test
+    public void parallelBuffersAreOrdered() throws IOException {
+        File tix = new File(temp.getRoot(), "buffers.tix");
+        try (TermIndexWriter writer = new TermIndexWriter(tix)) {
+            TermIndexWriter.Buffer second = writer.newBuffer(1 << 20);
+            TermIndexWriter.Buffer first = writer.newBuffer(1 << 20);
+            second.add(tel("79160000000"), 10);
+            second.add(tel("79160000000"), 11);
+            first.add(tel("79160000000"), 2);
+            first.add(tel("79160000000"), 2);
+            writer.finish();
+        }
+        try (TermIndex index = TermIndex.open(tix)) {
+            assertArrayEquals(new int[]{2, 10, 11}, index.lookup(tel("79160000000")));
+        }
+    }
+
+    @Test
+    public void mergeMapsRows() throws IOException {
+        File main = build("main.tix", TermIndexWriter.DEFAULT_MEMORY_BUDGET, new String[][]{
+                {tel("79160000001")}, {tel("79160000002")}, {tel("79160000001")},
+        });
+        File delta = build("delta.tix", TermIndexWriter.DEFAULT_MEMORY_BUDGET, new String[][]{
+                {tel("79160000001")}, {tel("79160000003")},
+        });
+        File merged = new File(temp.getRoot(), "merged.tix");
+        List<TermIndex> indexes = new ArrayList<>();
+        try {
+            indexes.add(TermIndex.open(main));
+            indexes.add(TermIndex.open(delta));
+            // Строка 1 основного индекса выбрасывается, порция идёт после его строк
+            List<TermIndexWriter.RowMap> maps = Arrays.asList(row -> row == 1 ? -1 : row, row -> 3 + row);
+            TermIndexWriter.merge(merged, indexes, maps);
+        } finally {
+            for (TermIndex index : indexes) index.close();
+        }
+        try (TermIndex index = TermIndex.open(merged)) {
+            assertEquals(2, index.termCount()); // у 79160000002 не осталось строк
+            assertArrayEquals(new int[]{0, 2, 3}, index.lookup(tel("79160000001")));
+            assertArrayEquals(new int[0], index.lookup(tel("79160000002")));
+            assertArrayEquals(new int[]{4}, index.lookup(tel("79160000003")));
+            assertArrayEquals(new int[]{0, 2, 3, 4}, index.prefix(tel("7916")));
+        }
+    }
+}